@@ -0,0 +1,61 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building POP3 responses: the RETR status line and header (the body is copied from the
+ * store as it is) and a LIST scan listing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Pop3FormattingBenchmark {
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    @Param({"100"})
+    public int mailboxSize;
+
+    private String content;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < bodySize) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+        }
+        content = body.toString();
+    }
+
+    @Benchmark
+    public void retrResponse(Blackhole bh) {
+        String header = Pop3Session.formatHeader("Weekly report");
+        bh.consume("+OK " + (header.getBytes(StandardCharsets.UTF_8).length + content.length()) + " octets");
+        bh.consume(header);
+    }
+
+    @Benchmark
+    public void listResponse(Blackhole bh) {
+        for (int i = 1; i <= mailboxSize; i++) {
+            bh.consume(Pop3Session.formatScanLine(i, bodySize));
+        }
+    }
+}
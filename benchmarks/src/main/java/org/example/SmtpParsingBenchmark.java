@@ -0,0 +1,99 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTP command-line parsing and the MIME helpers run on every DATA transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmtpParsingBenchmark {
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    private String mailFrom;
+    private String rcptTo;
+    private String message;
+    private String encodedSubjectMessage;
+    private String[] lines;
+    private String[] multipartLines;
+
+    @Setup
+    public void setup() {
+        mailFrom = "MAIL FROM:<karim@example.com>";
+        rcptTo = "RCPT TO:<admin@example.com>";
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < bodySize) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+        }
+        String headers = "From: karim@example.com\r\nTo: admin@example.com\r\nDate: Mon, 19 Oct 2026 10:00:00 +0000\r\n";
+        message = headers + "Subject: Weekly report\r\n\r\n" + body;
+        encodedSubjectMessage = headers + "Subject: =?UTF-8?B?UmFwcG9ydCBoZWJkb21hZGFpcmU=?=\r\n\r\n" + body;
+        lines = message.split("\r\n");
+
+        // The same text with the body again as a base64 attachment.
+        String attachment = Base64.getMimeEncoder().encodeToString(body.toString().getBytes());
+        multipartLines = (headers + "Subject: Weekly report\r\nMIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n"
+                + "--b1\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n" + body
+                + "--b1\r\nContent-Type: application/octet-stream\r\nContent-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=\"report.txt\"\r\n\r\n" + attachment + "\r\n--b1--\r\n").split("\r\n");
+    }
+
+    @Benchmark
+    public void parseCommand(Blackhole bh) {
+        bh.consume(SmtpSession.extractToken(mailFrom).toUpperCase());
+        bh.consume(SmtpSession.extractArgument(mailFrom));
+        String argument = SmtpSession.extractArgument(rcptTo);
+        bh.consume(SmtpSession.extractEmail(argument.substring(3).trim()));
+    }
+
+    @Benchmark
+    public String extractSubject() {
+        return MimeParser.extractSubject(message);
+    }
+
+    @Benchmark
+    public String extractEncodedSubject() {
+        return MimeParser.extractSubject(encodedSubjectMessage);
+    }
+
+    @Benchmark
+    public String parseMessage() {
+        MimeParser parser = new MimeParser();
+        for (String line : lines) {
+            parser.line(line);
+        }
+        return parser.body();
+    }
+
+    @Benchmark
+    public void parseMultipartMessage(Blackhole bh) {
+        MimeParser parser = new MimeParser();
+        for (String line : multipartLines) {
+            parser.line(line);
+        }
+        bh.consume(parser.body());
+        bh.consume(parser.attachments());
+    }
+}
@@ -0,0 +1,154 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup time of the servers in the different build modes: plain JVM, JVM with an AppCDS
+ * archive (mvn -Pappcds package) and GraalVM native image (mvn -Pnative package). Each mode
+ * is started --runs times; a run measures the time until the port answers a first request
+ * (SMTP or POP3 greeting followed by QUIT, or any HTTP response) and the resident memory at
+ * that point, then kills the process.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar org.example.StartupBenchmark --runs 10 --probe smtp --port 2525
+ *
+ * Without --mode arguments the SMTP server modes found under target/ are compared. Custom
+ * modes are given as name=command line, e.g.
+ *   --mode "rest-cds=java -XX:SharedArchiveFile=target/cds/rest.jsa -jar ... --server.port=8080"
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        String probe = "smtp";
+        int port = 2525;
+        String target = "target";
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--runs": runs = Integer.parseInt(args[i + 1]); break;
+                case "--probe": probe = args[i + 1]; break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--target": target = args[i + 1]; break;
+                case "--mode":
+                    String[] mode = args[i + 1].split("=", 2);
+                    modes.put(mode[0], Arrays.asList(mode[1].trim().split("\\s+")));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (modes.isEmpty()) {
+            modes = defaultModes(target, port);
+        }
+
+        System.out.printf("%-10s %6s %10s %10s %10s %10s%n", "mode", "runs", "min ms", "p50 ms", "max ms", "RSS MB");
+        for (Map.Entry<String, List<String>> mode : modes.entrySet()) {
+            long[] millis = new long[runs];
+            long rss = 0;
+            for (int r = 0; r < runs; r++) {
+                long[] result = run(mode.getValue(), probe, port);
+                millis[r] = result[0];
+                rss = Math.max(rss, result[1]);
+            }
+            Arrays.sort(millis);
+            System.out.printf("%-10s %6d %10d %10d %10d %10.1f%n", mode.getKey(), runs,
+                    millis[0], millis[runs / 2], millis[runs - 1], rss / 1024.0);
+        }
+    }
+
+    // The SMTP server as plain JVM, with AppCDS and as native image, for the modes that were built.
+    private static Map<String, List<String>> defaultModes(String target, int port) {
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String jar = target + File.separator + "Messagerie-1.0-SNAPSHOT.jar";
+        String portProperty = "-Dmail.smtp.port=" + port;
+        modes.put("jvm", List.of(java, portProperty, "-cp", jar, "org.example.SmtpServer"));
+        String archive = target + File.separator + "cds" + File.separator + "smtp.jsa";
+        if (Files.exists(Path.of(archive))) {
+            modes.put("appcds", List.of(java, "-XX:SharedArchiveFile=" + archive, portProperty,
+                    "-cp", jar, "org.example.SmtpServer"));
+        }
+        String nativeImage = target + File.separator + "smtp-server";
+        if (Files.exists(Path.of(nativeImage))) {
+            modes.put("native", List.of(nativeImage, portProperty));
+        }
+        return modes;
+    }
+
+    // Starts the command and returns {milliseconds until the first answer, RSS in KB}.
+    private static long[] run(List<String> command, String probe, int port) throws Exception {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            long deadline = start + TimeUnit.SECONDS.toNanos(120);
+            while (System.nanoTime() < deadline) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Server exited with " + process.exitValue() + ": " + command);
+                }
+                if (answers(probe, port)) {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    return new long[]{millis, residentKb(process.pid())};
+                }
+                Thread.sleep(5);
+            }
+            throw new IllegalStateException("No answer on port " + port + " within 120 s: " + command);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static boolean answers(String probe, int port) {
+        try {
+            if ("http".equals(probe)) {
+                HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+                con.setConnectTimeout(200);
+                return con.getResponseCode() > 0;
+            }
+            try (Socket socket = new Socket("localhost", port)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                String greeting = in.readLine();
+                out.println("QUIT");
+                return greeting != null && in.readLine() != null;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // VmRSS of the process on Linux, 0 elsewhere.
+    private static long residentKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return 0;
+    }
+}
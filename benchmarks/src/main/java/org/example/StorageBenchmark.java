@@ -0,0 +1,122 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The SMTP store path (one copy per recipient) and the POP3 RETR path (list the mailbox,
+ * copy out the last body) on each {@link MailStore} engine: the emails table in an
+ * embedded H2 database in MySQL mode, the heap, a temporary directory, Maildirs in a
+ * temporary directory, and segment files in a temporary directory with the rest in the
+ * emails table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final String RECIPIENT = "karim@example.com";
+
+    @Param({"jdbc", "heap", "file", "maildir", "segment"})
+    public String engine;
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    @Param({"100"})
+    public int mailboxSize;
+
+    private MailStore store;
+    private Path dir;
+    private String body;
+    private List<String> recipients;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException {
+        if (engine.equals("jdbc")) {
+            EmbeddedMailDb.start("bench");
+            store = new JdbcMailStore();
+        } else if (engine.equals("segment")) {
+            EmbeddedMailDb.start("bench");
+            dir = Files.createTempDirectory("segments-bench");
+            store = new SegmentMailStore(new JdbcMailStore(), dir);
+        } else if (engine.equals("maildir")) {
+            dir = Files.createTempDirectory("maildir-bench");
+            store = new MaildirMailStore(dir);
+        } else if (engine.equals("file")) {
+            dir = Files.createTempDirectory("mailstore-bench");
+            store = new FileMailStore(dir);
+        } else {
+            store = new HeapMailStore();
+        }
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < bodySize) {
+            text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+        }
+        body = text.toString();
+        recipients = Collections.singletonList(RECIPIENT);
+
+        for (int i = 0; i < mailboxSize; i++) {
+            store.append("admin@example.com", recipients, "Message " + i, body);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException, IOException {
+        if (engine.equals("jdbc") || engine.equals("segment")) {
+            try (Connection con = MailDb.getConnection(); Statement st = con.createStatement()) {
+                st.executeUpdate("DROP TABLE emails");
+                st.executeUpdate("DROP TABLE email_bodies");
+            }
+        }
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Long> store() throws MailStoreException {
+        // Stored for a different mailbox so the RETR mailbox keeps a fixed size.
+        return store.append("admin@example.com", Collections.singletonList("bench@example.com"), "Benchmark", body);
+    }
+
+    @Benchmark
+    public String retrieveLast() throws IOException {
+        List<StoredMail> messages = store.list(RECIPIENT);
+        StringWriter out = new StringWriter(bodySize);
+        store.writeBody(RECIPIENT, messages.get(mailboxSize - 1).id, out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handshake rate of the implicit-TLS POP3 path over loopback: a new connection, the TLS
+ * handshake through {@link MailTls} and {@link TlsConnection}, the greeting, close.
+ *
+ * "full" clients offer nothing to resume; "resumed" clients reuse one client context, as a
+ * mail client polling every few minutes would, so the server can resume from its session
+ * cache or a TLS 1.3 ticket. The handshakes/resumed counters give the resumption ratio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+
+    private static final byte[] GREETING = "+OK POP3 server ready\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    public String protocol;
+
+    private Path keystore;
+    private ServerSocket server;
+    private SSLContext client;
+    // Set by the server thread before it sends the greeting the client waits for.
+    private volatile boolean lastResumed;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long handshakes;
+        public long resumed;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        keystore = Files.createTempDirectory("tls-bench").resolve("server.p12");
+        Process keytool = new ProcessBuilder("keytool", "-genkeypair", "-alias", "mail",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", "benchmark")
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed");
+        }
+        MailTls.configure(keystore, "benchmark".toCharArray());
+        client = trustingContext();
+
+        server = new ServerSocket(0);
+        Thread accept = new Thread(this::serve, "tls-bench-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(keystore);
+        Files.deleteIfExists(keystore.getParent());
+    }
+
+    @Benchmark
+    public int full(Counters counters) throws IOException {
+        return connect(client.createSSLEngine(), counters);
+    }
+
+    @Benchmark
+    public int resumed(Counters counters) throws IOException {
+        return connect(client.createSSLEngine("localhost", server.getLocalPort()), counters);
+    }
+
+    private int connect(SSLEngine engine, Counters counters) throws IOException {
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(new String[]{protocol});
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            TlsConnection tls = new TlsConnection(engine, socket.getInputStream(), socket.getOutputStream()).start();
+            InputStream in = tls.in();
+            int read = 0;
+            while (read < GREETING.length && in.read() >= 0) {
+                read++;
+            }
+            tls.close();
+            counters.handshakes++;
+            if (lastResumed) {
+                counters.resumed++;
+            }
+            return read;
+        }
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setTcpNoDelay(true);
+                TlsConnection tls = MailTls.accept("pop3", socket.getInputStream(), socket.getOutputStream());
+                lastResumed = MailTls.resumed(tls.engine());
+                tls.out().write(GREETING);
+                tls.out().flush();
+                tls.in().read(); // until the client's close_notify
+                tls.close();
+            } catch (IOException e) {
+                // client gone, or the server socket closed at tear down
+            }
+        }
+    }
+
+    private static SSLContext trustingContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{trustAll}, null);
+        return context;
+    }
+}
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit on concurrent operations against a shared resource (the database, the
+ * AuthService), adjusted AIMD-style from the latency of the operations.
+ *
+ * Every finished operation reports its latency. While the recent average stays under the
+ * target latency and the limit is actually in use, the limit grows by one per round (one
+ * round being about limit operations); once work queues up inside the resource and the
+ * average goes over the target, it shrinks by 10% per round, and every failure cuts it by
+ * 10% at once. A latency target rather than the lowest latency seen is used, because one
+ * limiter covers cheap lookups and expensive inserts alike.
+ *
+ * Callers that find the limit reached are turned away at once instead of piling up on the
+ * resource, so its throughput stays near the peak when it is overloaded, and the limit
+ * recovers by itself when latency does.
+ */
+public final class AdaptiveLimiter {
+
+    // The recent average follows about the last 10 operations.
+    private static final double WEIGHT = 0.1;
+
+    private final String name;
+    private final long targetNanos;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    // Guarded by this.
+    private double estimate;
+    private double averageNanos;
+
+    public AdaptiveLimiter(String name, long targetMillis, int initialLimit, int minLimit, int maxLimit) {
+        this.name = name;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimate = initialLimit;
+        this.limit = initialLimit;
+        MailMetrics.concurrency(name, inFlight::get, () -> limit);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Starts an operation; false if the limit is reached and the work should be shed.
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Starts an operation that must run even over the limit (committing work already accepted).
+    public void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    public boolean saturated() {
+        return inFlight.get() >= limit;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    // Ends an operation started by tryAcquire or acquire. failed means it timed out or the resource errored.
+    public void release(long latencyNanos, boolean failed) {
+        int running = inFlight.getAndDecrement();
+        update(latencyNanos, running, failed);
+    }
+
+    private synchronized void update(long latencyNanos, int running, boolean failed) {
+        if (failed) {
+            estimate = Math.max(minLimit, estimate * 0.9);
+            limit = (int) estimate;
+            return;
+        }
+        averageNanos = averageNanos == 0 ? latencyNanos : averageNanos + (latencyNanos - averageNanos) * WEIGHT;
+
+        // Far below the limit, latency says nothing about it: the resource is slow for
+        // other reasons, or has room to spare.
+        if (running * 2 < estimate) {
+            return;
+        }
+        if (averageNanos > targetNanos) {
+            estimate = Math.max(minLimit, estimate * Math.pow(0.9, 1 / estimate));
+        } else {
+            estimate = Math.min(maxLimit, estimate + 1 / estimate);
+        }
+        limit = (int) estimate;
+    }
+}
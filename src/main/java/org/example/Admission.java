@@ -0,0 +1,146 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control shared by the SMTP, POP3, IMAP and REST front ends, keyed by client address
+ * and by user name, so that one client flooding a server does not slow down the others.
+ *
+ * <ul>
+ *   <li>connections: per address rate (mail.limit.connect.rate/burst, 5/s, 20) and number
+ *       of concurrent sessions (mail.limit.sessions-per-ip, 20)</li>
+ *   <li>commands that cost a database or AuthService call (SMTP MAIL/RCPT, POP3 USER/PASS,
+ *       IMAP LOGIN/AUTHENTICATE, REST register): per address rate (mail.limit.command.rate/burst, 20/s, 100)</li>
+ *   <li>failed logins: each failure delays the reply (tarpit) by mail.limit.tarpit-base-ms
+ *       (250), doubling with every recent failure up to mail.limit.tarpit-max-ms (5000);
+ *       after mail.limit.auth.failures-per-ip (20) or -per-user (10) recent failures logins
+ *       are refused outright. One failure is forgiven per minute.</li>
+ * </ul>
+ * Addresses in mail.limit.exempt (comma separated) are never limited; mail.limit.enabled=false
+ * turns everything off. Key tables hold at most mail.limit.max-keys (100000) entries each.
+ * Rejections are counted in the mail.rejected meter.
+ */
+public final class Admission {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mail.limit.enabled", "true"));
+    private static final Set<String> EXEMPT = Set.copyOf(Arrays.asList(
+            System.getProperty("mail.limit.exempt", "").split("\\s*,\\s*")));
+    private static final int MAX_KEYS = Integer.getInteger("mail.limit.max-keys", 100_000);
+    private static final int SESSIONS_PER_IP = Integer.getInteger("mail.limit.sessions-per-ip", 20);
+    private static final long TARPIT_BASE_MS = Long.getLong("mail.limit.tarpit-base-ms", 250);
+    private static final long TARPIT_MAX_MS = Long.getLong("mail.limit.tarpit-max-ms", 5000);
+
+    private static final RateLimiter CONNECTIONS = new RateLimiter(
+            rate("connect", 5), Integer.getInteger("mail.limit.connect.burst", 20), MAX_KEYS);
+    private static final RateLimiter COMMANDS = new RateLimiter(
+            rate("command", 20), Integer.getInteger("mail.limit.command.burst", 100), MAX_KEYS);
+    private static final RateLimiter FAILURES_BY_IP = new RateLimiter(
+            1 / 60.0, Integer.getInteger("mail.limit.auth.failures-per-ip", 20), MAX_KEYS);
+    private static final RateLimiter FAILURES_BY_USER = new RateLimiter(
+            1 / 60.0, Integer.getInteger("mail.limit.auth.failures-per-user", 10), MAX_KEYS);
+
+    // Open sessions per address; entries go away with the address's last session.
+    private static final ConcurrentHashMap<String, AtomicInteger> SESSIONS = new ConcurrentHashMap<>();
+
+    private Admission() {
+    }
+
+    // A new connection from ip; false means it must be turned away. Pair with closeSession.
+    public static boolean openSession(String protocol, String ip) {
+        if (exempt(ip)) {
+            return true;
+        }
+        if (!CONNECTIONS.tryAcquire(ip)) {
+            MailMetrics.rejected(protocol, "connect_rate");
+            return false;
+        }
+        int[] open = new int[1];
+        SESSIONS.compute(ip, (k, count) -> {
+            count = count == null ? new AtomicInteger() : count;
+            open[0] = count.incrementAndGet();
+            return count;
+        });
+        if (open[0] > SESSIONS_PER_IP) {
+            closeSession(ip);
+            MailMetrics.rejected(protocol, "sessions");
+            return false;
+        }
+        return true;
+    }
+
+    public static void closeSession(String ip) {
+        if (!exempt(ip)) {
+            SESSIONS.computeIfPresent(ip, (k, open) -> open.decrementAndGet() <= 0 ? null : open);
+        }
+    }
+
+    // An expensive command from ip; false means it should be answered with a temporary failure.
+    public static boolean allowCommand(String protocol, String ip) {
+        if (exempt(ip) || COMMANDS.tryAcquire(ip)) {
+            return true;
+        }
+        MailMetrics.rejected(protocol, "command_rate");
+        return false;
+    }
+
+    // True if the address or the user failed to log in too often recently.
+    public static boolean authBlocked(String protocol, String ip, String user) {
+        if (exempt(ip)) {
+            return false;
+        }
+        if (FAILURES_BY_IP.isExhausted(ip) || (user != null && FAILURES_BY_USER.isExhausted(user))) {
+            MailMetrics.rejected(protocol, "auth_blocked");
+            return true;
+        }
+        return false;
+    }
+
+    // Seconds until authBlocked clears, for Retry-After.
+    public static long authRetryAfterSeconds(String ip, String user) {
+        long millis = Math.max(FAILURES_BY_IP.retryAfterMillis(ip),
+                user == null ? 0 : FAILURES_BY_USER.retryAfterMillis(user));
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    // Records a failed login; returns the tarpit delay, in milliseconds, before the failure
+    // should be answered (0 for exempt addresses). Callers hold back the reply, not a shared thread.
+    public static long authFailed(String ip, String user) {
+        if (exempt(ip)) {
+            return 0;
+        }
+        int recent = FAILURES_BY_IP.charge(ip);
+        if (user != null) {
+            recent = Math.max(recent, FAILURES_BY_USER.charge(user));
+        }
+        return Math.min(TARPIT_MAX_MS, TARPIT_BASE_MS << Math.min(30, Math.max(0, recent - 1)));
+    }
+
+    // Holds a session's own thread for a tarpit delay; only for thread-per-connection servers.
+    public static void tarpit(long delayMillis) {
+        if (delayMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void authSucceeded(String user) {
+        if (ENABLED && user != null) {
+            FAILURES_BY_USER.reset(user);
+        }
+    }
+
+    private static boolean exempt(String ip) {
+        return !ENABLED || EXEMPT.contains(ip);
+    }
+
+    private static double rate(String name, double defaultPerSecond) {
+        return Double.parseDouble(System.getProperty("mail.limit." + name + ".rate", String.valueOf(defaultPerSecond)));
+    }
+}
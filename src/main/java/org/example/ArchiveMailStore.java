@@ -0,0 +1,955 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link MailStore} with a cold tier: old mail of a mailbox, moved out of the hot store by
+ * {@link MailArchiver}, is kept in immutable archive files in a directory per mailbox, and
+ * read back from there on demand. Everything else goes to the hot store.
+ *
+ * An archive file, {@code <first id>-<last id>.arc}, holds the bodies in deflated blocks of
+ * about {@link #BLOCK_BYTES}, then a deflated directory: the metadata of every message and,
+ * as a sparse index, the first id and offset of every block. Reading a mailbox loads only the
+ * directories; a body costs one block. Flag and deletion changes to archived mail are lines
+ * appended to the state.log of the mailbox; the purge rewrites the files and the log without
+ * the messages it removes. Directories of the mailboxes read lately stay in memory, up to
+ * mail.archive.open-mailboxes (256), as snapshots that a new log line replaces rather than
+ * changes. The id range of every archive file and its mailbox are listed in the .ranges file
+ * of the root, so that finding the mailbox of an archived id reads only the mailboxes whose
+ * files may hold it.
+ *
+ * Several processes can share the directory: changes take the .lock file of the mailbox, and
+ * readers notice new files by the directory time and new state by the log size.
+ */
+public class ArchiveMailStore implements MailStore {
+
+    private static final int MAGIC = 0x4D415231;
+    private static final String SUFFIX = ".arc";
+    private static final String LOG = "state.log";
+    private static final String RANGES = ".ranges";
+    // Uncompressed bytes per block, give or take a message.
+    static final int BLOCK_BYTES = 64 * 1024;
+    // Directory times this recent may not show a change made in the same tick yet.
+    private static final long UNSETTLED_MS = 2000;
+
+    private final MailStore hot;
+    private final Path root;
+    private final Path tmp;
+    private final int maxOpen;
+    private final int compressLevel;
+    private final ConcurrentHashMap<String, Object> mailboxLocks = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Archive> open = new LinkedHashMap<>(64, 0.75f, true);
+    // The range index as read so far; guarded by ranges.
+    private final List<Range> ranges = new ArrayList<>();
+    private long rangesRead;
+
+    public ArchiveMailStore(MailStore hot, Path root) {
+        this(hot, root, Integer.getInteger("mail.archive.open-mailboxes", 256), Integer.getInteger("mail.archive.compress-level", 6));
+    }
+
+    public ArchiveMailStore(MailStore hot, Path root, int maxOpen, int compressLevel) {
+        this.hot = hot;
+        this.root = root;
+        this.tmp = root.resolve(".tmp");
+        this.maxOpen = maxOpen;
+        this.compressLevel = compressLevel;
+    }
+
+    public MailStore hot() {
+        return hot;
+    }
+
+    // An archived message: its metadata, and where its body is.
+    private static final class Entry {
+        final long id;
+        final long date;
+        final long size;
+        final int flags;
+        final String sender;
+        final String subject;
+        final ArcFile file;
+        final int block;
+
+        Entry(long id, long date, long size, int flags, String sender, String subject, ArcFile file, int block) {
+            this.id = id;
+            this.date = date;
+            this.size = size;
+            this.flags = flags;
+            this.sender = sender;
+            this.subject = subject;
+            this.file = file;
+            this.block = block;
+        }
+    }
+
+    // One archive file and its sparse index.
+    private static final class ArcFile {
+        final Path path;
+        final long[] offsets;
+        final int[] lengths;
+        final long[] firstIds;
+
+        ArcFile(Path path, long[] offsets, int[] lengths, long[] firstIds) {
+            this.path = path;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.firstIds = firstIds;
+        }
+    }
+
+    // An archive file of a mailbox, as listed in the range index.
+    private static final class Range {
+        final long first;
+        final long last;
+        final String mailbox;
+
+        Range(long first, long last, String mailbox) {
+            this.first = first;
+            this.last = last;
+            this.mailbox = mailbox;
+        }
+    }
+
+    // The archive of one mailbox as of one read: entries by id, and the state from the log.
+    // Nothing in it changes once built, so it is read without a lock.
+    private static final class Archive {
+        final Path dir;
+        final long dirStamp;
+        final TreeMap<Long, Entry> entries;
+        final Map<Long, Integer> flags;
+        final Set<Long> pending;
+        final Map<Long, Long> committed;
+        final Object logKey;
+        final long logRead;
+
+        Archive(Path dir, long dirStamp, TreeMap<Long, Entry> entries) {
+            this(dir, dirStamp, entries, Map.of(), Set.of(), Map.of(), null, 0);
+        }
+
+        Archive(Path dir, long dirStamp, TreeMap<Long, Entry> entries, Map<Long, Integer> flags, Set<Long> pending,
+                Map<Long, Long> committed, Object logKey, long logRead) {
+            this.dir = dir;
+            this.dirStamp = dirStamp;
+            this.entries = entries;
+            this.flags = flags;
+            this.pending = pending;
+            this.committed = committed;
+            this.logKey = logKey;
+            this.logRead = logRead;
+        }
+
+        boolean live(long id) {
+            return entries.containsKey(id) && !pending.contains(id) && !committed.containsKey(id);
+        }
+
+        StoredMail mail(String mailbox, Entry entry, String body) {
+            return new StoredMail(entry.id, mailbox, entry.sender, entry.subject,
+                    entry.date == Long.MIN_VALUE ? null : new Timestamp(entry.date), entry.size,
+                    flags.getOrDefault(entry.id, entry.flags), body);
+        }
+
+        static void apply(String line, Map<Long, Integer> flags, Set<Long> pending, Map<Long, Long> committed) {
+            String[] parts = line.split(" ");
+            switch (parts[0]) {
+                case "F":
+                    flags.put(Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                    break;
+                case "D":
+                    pending.add(Long.parseLong(parts[1]));
+                    break;
+                case "U":
+                    pending.clear();
+                    break;
+                case "C":
+                    for (long id : pending) {
+                        committed.put(id, Long.parseLong(parts[1]));
+                    }
+                    pending.clear();
+                    break;
+                case "X":
+                    pending.remove(Long.parseLong(parts[1]));
+                    committed.put(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                    break;
+                default:
+                    break; // a line cut short by a crash
+            }
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        return hot.append(sender, recipients, subject, body);
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        List<StoredMail> hotPage = hot.page(mailbox, afterId, limit, withBody);
+        if (archive.entries.isEmpty() || afterId >= archive.entries.lastKey()) {
+            return hotPage;
+        }
+        List<Entry> cold = new ArrayList<>();
+        for (Entry entry : archive.entries.tailMap(afterId, false).values()) {
+            if (cold.size() >= limit) {
+                break;
+            }
+            if (archive.live(entry.id)) {
+                cold.add(entry);
+            }
+        }
+        Map<Long, String> bodies = withBody ? bodies(cold) : Map.of();
+        // Both are in id order; a message still in the hot store as well is taken from there.
+        List<StoredMail> messages = new ArrayList<>(Math.min(limit, cold.size() + hotPage.size()));
+        int h = 0;
+        int c = 0;
+        while (messages.size() < limit && (h < hotPage.size() || c < cold.size())) {
+            if (c == cold.size() || h < hotPage.size() && hotPage.get(h).id <= cold.get(c).id) {
+                StoredMail mail = hotPage.get(h++);
+                if (c < cold.size() && cold.get(c).id == mail.id) {
+                    c++;
+                }
+                messages.add(mail);
+            } else {
+                Entry entry = cold.get(c++);
+                messages.add(archive.mail(mailbox, entry, bodies.get(entry.id)));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        List<Entry> cold = new ArrayList<>();
+        List<Long> rest = new ArrayList<>();
+        for (Long id : ids) {
+            if (archive.live(id)) {
+                cold.add(archive.entries.get(id));
+            } else {
+                rest.add(id);
+            }
+        }
+        Map<Long, StoredMail> messages = rest.isEmpty() ? new HashMap<>() : hot.fetch(mailbox, rest, withBody);
+        Map<Long, String> bodies = withBody ? bodies(cold) : Map.of();
+        for (Entry entry : cold) {
+            messages.put(entry.id, archive.mail(mailbox, entry, bodies.get(entry.id)));
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        Archive archive = archive(mailbox);
+        if (!archive.live(id)) {
+            return hot.writeBody(mailbox, id, out);
+        }
+        Entry entry = archive.entries.get(id);
+        out.write(bodies(List.of(entry)).get(id));
+        return true;
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        String mailbox = hot.mailboxOf(id);
+        if (mailbox != null || !Files.isDirectory(root)) {
+            return mailbox;
+        }
+        Set<String> candidates;
+        try {
+            candidates = covering(id);
+        } catch (IOException e) {
+            throw new MailStoreException("Could not search the archive for message " + id, e);
+        }
+        for (String candidate : candidates) {
+            if (archive(candidate).live(id)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        long highest = hot.highestId(mailbox);
+        return archive.entries.isEmpty() ? highest : Math.max(highest, archive.entries.lastKey());
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        Set<Long> retained = new HashSet<>(hot.retained(mailbox, ids));
+        for (Long id : ids) {
+            if (archive.entries.containsKey(id)) {
+                retained.add(id);
+            }
+        }
+        return retained;
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        Map<Long, Integer> rest = new HashMap<>();
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Long, Integer> change : flags.entrySet()) {
+            if (archive.live(change.getKey())) {
+                lines.add("F " + change.getKey() + " " + change.getValue());
+            } else {
+                rest.put(change.getKey(), change.getValue());
+            }
+        }
+        log(mailbox, lines);
+        if (!rest.isEmpty()) {
+            hot.setFlags(mailbox, rest);
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        List<Long> rest = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Long id : ids) {
+            if (archive.live(id)) {
+                lines.add(commit ? "X " + id + " " + now : "D " + id);
+            } else {
+                rest.add(id);
+            }
+        }
+        log(mailbox, lines);
+        return lines.size() + (rest.isEmpty() ? 0 : hot.markDeleted(mailbox, rest, commit));
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        int pending = archive.pending.size();
+        if (pending > 0) {
+            log(mailbox, List.of("U"));
+        }
+        return pending + hot.unmarkDeleted(mailbox);
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        Archive archive = archive(mailbox);
+        int pending = archive.pending.size();
+        if (pending > 0) {
+            log(mailbox, List.of("C " + System.currentTimeMillis()));
+        }
+        return pending + hot.commitDeleted(mailbox);
+    }
+
+    // Purges the hot store, then rewrites the archive files that hold committed deletions
+    // older than cutoff, a mailbox at a time.
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long purged = hot.purge(cutoff, batchSize, pauseMillis);
+        if (!Files.isDirectory(root)) {
+            return purged;
+        }
+        List<String> mailboxes = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (!name.startsWith(".") && Files.exists(dir.resolve(LOG))) {
+                    mailboxes.add(URLDecoder.decode(name, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            throw new MailStoreException("Could not list the archive", e);
+        }
+        for (String mailbox : mailboxes) {
+            long removed = purgeArchive(mailbox, cutoff.getTime());
+            if (removed > 0) {
+                System.out.println("[PURGE] " + removed + " archived message(s) of " + mailbox + " removed");
+                purged += removed;
+                if (pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Moves the live messages of the mailbox dated before cutoff, up to max of them, from the
+     * hot store into a new archive file, then deletes them from the hot store; returns how
+     * many moved. A message changed in the hot store meanwhile keeps the state it was archived
+     * with, except that one deleted meanwhile stays deleted (pending).
+     */
+    public int archive(String mailbox, Timestamp cutoff, int max) throws MailStoreException, IOException {
+        synchronized (lock(mailbox)) {
+            Path dir = directory(mailbox);
+            Files.createDirectories(dir);
+            Files.createDirectories(tmp);
+            Path file = tmp.resolve(dir.getFileName() + "-" + System.nanoTime() + SUFFIX);
+            try (FileChannel lockFile = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockFile.lock(); // released when the channel is closed
+                Archive archive = archive(mailbox);
+                List<Long> moved = new ArrayList<>();
+                List<Long> already = new ArrayList<>();
+                try (ArcWriter writer = new ArcWriter(file, compressLevel)) {
+                    long after = 0;
+                    List<StoredMail> page;
+                    do {
+                        page = hot.page(mailbox, after, 100, true);
+                        for (StoredMail mail : page) {
+                            if (moved.size() + already.size() >= max || mail.date == null || !mail.date.before(cutoff)) {
+                                page = List.of();
+                                break;
+                            }
+                            // Archived before a crash that kept it from leaving the hot store.
+                            if (archive.entries.containsKey(mail.id)) {
+                                already.add(mail.id);
+                            } else {
+                                writer.add(mail);
+                                moved.add(mail.id);
+                            }
+                            after = mail.id;
+                        }
+                    } while (page.size() == 100);
+                }
+                if (!moved.isEmpty()) {
+                    // Listed first: a range without its file only costs a lookup.
+                    indexRange(dir, moved.get(0), moved.get(moved.size() - 1));
+                    Files.move(file, dir.resolve(moved.get(0) + "-" + moved.get(moved.size() - 1) + SUFFIX),
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+
+                // One at a time, to tell which ones were deleted in the hot store meanwhile.
+                List<String> deleted = new ArrayList<>();
+                for (long id : moved) {
+                    if (hot.markDeleted(mailbox, List.of(id), true) == 0) {
+                        deleted.add("D " + id);
+                    }
+                }
+                for (long id : already) {
+                    hot.markDeleted(mailbox, List.of(id), true);
+                }
+                appendLog(dir, deleted);
+                return moved.size();
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // ---- archive files ---------------------------------------------------------------
+
+    // Writes an archive file a block at a time: the bodies as they come, the directory at close.
+    private static final class ArcWriter implements AutoCloseable {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final DataOutputStream records = new DataOutputStream(block);
+        private final ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        private final DataOutputStream entries = new DataOutputStream(directory);
+        private final List<long[]> blocks = new ArrayList<>();
+        private long position;
+        private long blockFirstId;
+        private int count;
+
+        ArcWriter(Path file, int level) throws IOException {
+            out = new BufferedOutputStream(Files.newOutputStream(file));
+            deflater = new Deflater(level);
+            new DataOutputStream(out).writeInt(MAGIC);
+            position = Integer.BYTES;
+        }
+
+        void add(StoredMail mail) throws IOException {
+            if (block.size() == 0) {
+                blockFirstId = mail.id;
+            }
+            byte[] body = (mail.body == null ? "" : mail.body).getBytes(StandardCharsets.UTF_8);
+            records.writeLong(mail.id);
+            records.writeInt(body.length);
+            records.write(body);
+            entries.writeLong(mail.id);
+            entries.writeLong(mail.date == null ? Long.MIN_VALUE : mail.date.getTime());
+            entries.writeLong(mail.size);
+            entries.writeInt(mail.flags);
+            writeString(entries, mail.sender);
+            writeString(entries, mail.subject);
+            entries.writeInt(blocks.size());
+            count++;
+            if (block.size() >= BLOCK_BYTES) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            byte[] compressed = deflate(block.toByteArray());
+            out.write(compressed);
+            blocks.add(new long[]{position, compressed.length, blockFirstId});
+            position += compressed.length;
+            block.reset();
+        }
+
+        private byte[] deflate(byte[] bytes) throws IOException {
+            deflater.reset();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3 + 64);
+            try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+                stream.write(bytes);
+            }
+            return compressed.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (block.size() > 0) {
+                    flushBlock();
+                }
+                ByteArrayOutputStream index = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(index);
+                data.writeInt(count);
+                data.write(directory.toByteArray());
+                data.writeInt(blocks.size());
+                for (long[] b : blocks) {
+                    data.writeLong(b[0]);
+                    data.writeInt((int) b[1]);
+                    data.writeLong(b[2]);
+                }
+                byte[] compressed = deflate(index.toByteArray());
+                DataOutputStream trailer = new DataOutputStream(out);
+                trailer.write(compressed);
+                trailer.writeLong(position);
+                trailer.writeInt(compressed.length);
+                trailer.writeInt(MAGIC);
+                trailer.flush();
+            } finally {
+                out.close();
+                deflater.end();
+            }
+        }
+    }
+
+    // Reads the directory of an archive file into entries.
+    private static void readDirectory(Path path, TreeMap<Long, Entry> entries) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+            channel.read(trailer, channel.size() - trailer.capacity());
+            trailer.flip();
+            long offset = trailer.getLong();
+            int length = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Not an archive file: " + path);
+            }
+            DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(read(channel, offset, length))));
+            int count = in.readInt();
+            long[][] rows = new long[count][];
+            String[][] strings = new String[count][];
+            for (int i = 0; i < count; i++) {
+                rows[i] = new long[]{in.readLong(), in.readLong(), in.readLong(), in.readInt(), 0};
+                strings[i] = new String[]{readString(in), readString(in)};
+                rows[i][4] = in.readInt();
+            }
+            int blocks = in.readInt();
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            long[] firstIds = new long[blocks];
+            for (int b = 0; b < blocks; b++) {
+                offsets[b] = in.readLong();
+                lengths[b] = in.readInt();
+                firstIds[b] = in.readLong();
+            }
+            ArcFile file = new ArcFile(path, offsets, lengths, firstIds);
+            for (int i = 0; i < count; i++) {
+                entries.put(rows[i][0], new Entry(rows[i][0], rows[i][1], rows[i][2], (int) rows[i][3],
+                        strings[i][0], strings[i][1], file, (int) rows[i][4]));
+            }
+        }
+    }
+
+    // The bodies of entries, inflating each block they are in once.
+    private static Map<Long, String> bodies(List<Entry> entries) throws MailStoreException {
+        Map<Long, String> bodies = new HashMap<>();
+        Map<ArcFile, Map<Integer, Set<Long>>> wanted = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            wanted.computeIfAbsent(entry.file, f -> new TreeMap<>())
+                    .computeIfAbsent(entry.block, b -> new HashSet<>()).add(entry.id);
+        }
+        for (Map.Entry<ArcFile, Map<Integer, Set<Long>>> byFile : wanted.entrySet()) {
+            ArcFile file = byFile.getKey();
+            try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+                for (Map.Entry<Integer, Set<Long>> byBlock : byFile.getValue().entrySet()) {
+                    int b = byBlock.getKey();
+                    DataInputStream in = new DataInputStream(new InflaterInputStream(
+                            new ByteArrayInputStream(read(channel, file.offsets[b], file.lengths[b]))));
+                    int found = 0;
+                    while (found < byBlock.getValue().size()) {
+                        long id = in.readLong();
+                        byte[] body = new byte[in.readInt()];
+                        in.readFully(body);
+                        if (byBlock.getValue().contains(id)) {
+                            bodies.put(id, new String(body, StandardCharsets.UTF_8));
+                            found++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new MailStoreException("Could not read archive file " + file.path, e);
+            }
+        }
+        return bodies;
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Archive file cut short");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- mailbox state ---------------------------------------------------------------
+
+    // The archive of the mailbox, reloaded if files or state changed since it was read.
+    private Archive archive(String mailbox) throws MailStoreException {
+        Path dir = directory(mailbox);
+        long stamp;
+        try {
+            stamp = Files.getLastModifiedTime(dir).toMillis();
+        } catch (NoSuchFileException e) {
+            return new Archive(dir, -1, new TreeMap<>());
+        } catch (IOException e) {
+            throw new MailStoreException("Could not read archive of " + mailbox, e);
+        }
+        synchronized (lock(mailbox)) {
+            Archive archive;
+            synchronized (open) {
+                archive = open.get(mailbox);
+            }
+            try {
+                if (archive == null || archive.dirStamp != stamp || System.currentTimeMillis() - stamp < UNSETTLED_MS) {
+                    TreeMap<Long, Entry> entries = new TreeMap<>();
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                        for (Path file : files) {
+                            readDirectory(file, entries);
+                        }
+                    }
+                    archive = new Archive(dir, stamp, entries);
+                }
+                archive = readLog(archive);
+            } catch (NoSuchFileException e) {
+                // Replaced by a purge in another process while read; the next call sees the new files.
+                return new Archive(dir, -1, archive == null ? new TreeMap<>() : archive.entries);
+            } catch (IOException e) {
+                throw new MailStoreException("Could not read archive of " + mailbox, e);
+            }
+            synchronized (open) {
+                open.put(mailbox, archive);
+                Iterator<Archive> eldest = open.values().iterator();
+                while (open.size() > maxOpen && eldest.hasNext()) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            return archive;
+        }
+    }
+
+    // The archive with the lines added to the state log since it was read last applied, or
+    // all of a new log; the archive itself if there are none.
+    private static Archive readLog(Archive archive) throws IOException {
+        Path log = archive.dir.resolve(LOG);
+        if (!Files.exists(log)) {
+            return archive;
+        }
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            Object key = Files.readAttributes(log, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            boolean replaced = key == null ? size < archive.logRead : !key.equals(archive.logKey);
+            long from = replaced ? 0 : archive.logRead;
+            String added = size <= from ? "" : new String(read(channel, from, (int) (size - from)), StandardCharsets.UTF_8);
+            // Only whole lines; the rest is still being written.
+            int end = added.lastIndexOf('\n') + 1;
+            if (end == 0 && !replaced) {
+                return archive;
+            }
+            Map<Long, Integer> flags = replaced ? new HashMap<>() : new HashMap<>(archive.flags);
+            Set<Long> pending = replaced ? new HashSet<>() : new HashSet<>(archive.pending);
+            Map<Long, Long> committed = replaced ? new HashMap<>() : new HashMap<>(archive.committed);
+            for (String line : added.substring(0, end).split("\n")) {
+                if (!line.isEmpty()) {
+                    Archive.apply(line, flags, pending, committed);
+                }
+            }
+            return new Archive(archive.dir, archive.dirStamp, archive.entries, flags, pending, committed, key,
+                    from + added.substring(0, end).getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    // Appends lines to the state log of the mailbox under its file lock.
+    private void log(String mailbox, List<String> lines) throws MailStoreException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        Path dir = directory(mailbox);
+        synchronized (lock(mailbox)) {
+            try (FileChannel lockFile = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockFile.lock(); // released when the channel is closed
+                appendLog(dir, lines);
+            } catch (IOException e) {
+                throw new MailStoreException("Could not update archive state of " + mailbox, e);
+            }
+        }
+    }
+
+    private static void appendLog(Path dir, List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+    }
+
+    // Rewrites the files with messages whose deletion was committed before cutoff without them,
+    // and the log without their lines; returns how many were removed.
+    private long purgeArchive(String mailbox, long cutoff) throws MailStoreException {
+        Path dir = directory(mailbox);
+        synchronized (lock(mailbox)) {
+            try (FileChannel lockFile = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockFile.lock(); // released when the channel is closed
+                Archive archive = archive(mailbox);
+                Set<Long> expired = new HashSet<>();
+                archive.committed.forEach((id, at) -> {
+                    if (at < cutoff && archive.entries.containsKey(id)) {
+                        expired.add(id);
+                    }
+                });
+                if (expired.isEmpty()) {
+                    return 0;
+                }
+                Files.createDirectories(tmp);
+                Map<ArcFile, List<Entry>> byFile = new LinkedHashMap<>();
+                for (Entry entry : archive.entries.values()) {
+                    byFile.computeIfAbsent(entry.file, f -> new ArrayList<>()).add(entry);
+                }
+                for (Map.Entry<ArcFile, List<Entry>> file : byFile.entrySet()) {
+                    List<Entry> kept = new ArrayList<>();
+                    for (Entry entry : file.getValue()) {
+                        if (!expired.contains(entry.id)) {
+                            kept.add(entry);
+                        }
+                    }
+                    if (kept.size() == file.getValue().size()) {
+                        continue;
+                    }
+                    if (!kept.isEmpty()) {
+                        Path rewritten = tmp.resolve(dir.getFileName() + "-" + System.nanoTime() + SUFFIX);
+                        Map<Long, String> bodies = bodies(kept);
+                        try (ArcWriter writer = new ArcWriter(rewritten, compressLevel)) {
+                            for (Entry entry : kept) {
+                                // Archived flags; later changes stay in the log.
+                                writer.add(new StoredMail(entry.id, mailbox, entry.sender, entry.subject,
+                                        entry.date == Long.MIN_VALUE ? null : new Timestamp(entry.date), entry.size,
+                                        entry.flags, bodies.get(entry.id)));
+                            }
+                        }
+                        Files.move(rewritten, dir.resolve(kept.get(0).id + "-" + kept.get(kept.size() - 1).id + SUFFIX),
+                                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    if (!file.getKey().path.getFileName().toString().equals(kept.isEmpty() ? ""
+                            : kept.get(0).id + "-" + kept.get(kept.size() - 1).id + SUFFIX)) {
+                        Files.deleteIfExists(file.getKey().path);
+                    }
+                }
+
+                // The state of the messages that are left, as a fresh log.
+                List<String> lines = new ArrayList<>();
+                archive.flags.forEach((id, flags) -> {
+                    if (!expired.contains(id)) {
+                        lines.add("F " + id + " " + flags);
+                    }
+                });
+                archive.committed.forEach((id, at) -> {
+                    if (!expired.contains(id)) {
+                        lines.add("X " + id + " " + at);
+                    }
+                });
+                for (long id : archive.pending) {
+                    lines.add("D " + id);
+                }
+                Path log = tmp.resolve(dir.getFileName() + "-" + System.nanoTime() + ".log");
+                StringBuilder text = new StringBuilder();
+                for (String line : lines) {
+                    text.append(line).append('\n');
+                }
+                Files.writeString(log, text);
+                Files.move(log, dir.resolve(LOG), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                synchronized (open) {
+                    open.remove(mailbox);
+                }
+                return expired.size();
+            } catch (IOException e) {
+                throw new MailStoreException("Could not purge archive of " + mailbox, e);
+            }
+        }
+    }
+
+    // ---- range index -----------------------------------------------------------------
+
+    // The mailboxes with an archive file whose id range holds id, as the range index lists them.
+    private Set<String> covering(long id) throws IOException {
+        Path index = root.resolve(RANGES);
+        Set<String> mailboxes = new LinkedHashSet<>();
+        // Also keeps threads of this process from taking the file lock of the root twice.
+        synchronized (ranges) {
+            if (!Files.exists(index)) {
+                try (FileChannel lockFile = FileChannel.open(root.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    lockFile.lock(); // released when the channel is closed
+                    buildRanges();
+                }
+            }
+            try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < rangesRead) {
+                    // Built again by another process.
+                    ranges.clear();
+                    rangesRead = 0;
+                }
+                if (size > rangesRead) {
+                    String added = new String(read(channel, rangesRead, (int) (size - rangesRead)), StandardCharsets.UTF_8);
+                    // Only whole lines; the rest is still being written.
+                    int end = added.lastIndexOf('\n') + 1;
+                    for (String line : added.substring(0, end).split("\n")) {
+                        String[] parts = line.split(" ");
+                        if (parts.length == 3) {
+                            ranges.add(new Range(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                                    URLDecoder.decode(parts[2], StandardCharsets.UTF_8)));
+                        }
+                    }
+                    rangesRead += added.substring(0, end).getBytes(StandardCharsets.UTF_8).length;
+                }
+            }
+            for (Range range : ranges) {
+                if (range.first <= id && id <= range.last) {
+                    mailboxes.add(range.mailbox);
+                }
+            }
+        }
+        return mailboxes;
+    }
+
+    // Lists the id range of a new archive file of the mailbox directory in the range index.
+    private void indexRange(Path dir, long first, long last) throws IOException {
+        synchronized (ranges) {
+            try (FileChannel lockFile = FileChannel.open(root.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockFile.lock(); // released when the channel is closed
+                buildRanges();
+                try (FileChannel channel = FileChannel.open(root.resolve(RANGES), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    channel.write(ByteBuffer.wrap((first + " " + last + " " + dir.getFileName() + "\n").getBytes(StandardCharsets.UTF_8)));
+                    channel.force(false);
+                }
+            }
+        }
+    }
+
+    // Writes the range index from the names of the archive files, if there is none yet; under
+    // the lock of the root. Archives written before the index was kept get theirs this way.
+    private void buildRanges() throws IOException {
+        Path index = root.resolve(RANGES);
+        if (Files.exists(index)) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (name.startsWith(".") || !Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                    for (Path file : files) {
+                        String fileName = file.getFileName().toString();
+                        String[] range = fileName.substring(0, fileName.length() - SUFFIX.length()).split("-");
+                        if (range.length == 2) {
+                            text.append(range[0]).append(' ').append(range[1]).append(' ').append(name).append('\n');
+                        }
+                    }
+                }
+            }
+        }
+        Files.createDirectories(tmp);
+        Path built = tmp.resolve("ranges-" + System.nanoTime());
+        Files.writeString(built, text);
+        Files.move(built, index, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // One directory per address, named as in FileMailStore.
+    private Path directory(String mailbox) {
+        return root.resolve(URLEncoder.encode(mailbox, StandardCharsets.UTF_8).replace("%40", "@").replace("*", "%2A"));
+    }
+
+    private Object lock(String mailbox) {
+        return mailboxLocks.computeIfAbsent(mailbox, k -> new Object());
+    }
+}
@@ -2,10 +2,10 @@ package org.example;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.RemoteException;
 import java.io.*;
@@ -25,14 +25,11 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
     }
 
     @Override
-    public boolean authenticate(String username, String password) {
+    public boolean authenticate(String username, String password) throws RemoteException {
 
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
         String sql = "SELECT password_hash FROM users WHERE username = ?";
 
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = MailDb.getConnection();
              PreparedStatement pst = con.prepareStatement(sql)) {
 
             pst.setString(1, username);
@@ -48,6 +45,9 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
                 rs.close();
                 return false; // Username not found
             }
+        } catch (SQLTransientException ex) {
+            // Not a wrong password: callers must not count it as a failed login.
+            throw new RemoteException("Database busy", ex);
         } catch (SQLException ex) {
             ex.printStackTrace();
             return false;
@@ -57,12 +57,9 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
 
     @Override
     public boolean createUser(String username, String password) {
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
         String sql = "INSERT INTO users (username, password_clear, password_hash) VALUES (?, ?, ?)";
 
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = MailDb.getConnection();
              PreparedStatement pst = con.prepareStatement(sql)) {
 
             String hashedPassword = hashPassword(password);
@@ -81,22 +78,16 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
                 return false;
             }
         } catch (SQLException ex) {
-<<<<<<< HEAD
-        System.err.println("❌ SQL error during createUser:");
-        System.err.println("→ Message: " + ex.getMessage());
-        System.err.println("→ SQLState: " + ex.getSQLState());
-        System.err.println("→ ErrorCode: " + ex.getErrorCode());
-        ex.printStackTrace();
-        return false;
-    }
-=======
+            System.err.println("❌ SQL error during createUser:");
+            System.err.println("→ Message: " + ex.getMessage());
+            System.err.println("→ SQLState: " + ex.getSQLState());
+            System.err.println("→ ErrorCode: " + ex.getErrorCode());
             ex.printStackTrace();
             return false;
         }
->>>>>>> 293e3d8e9d382c015a22abd503c2ddd6e652a4fa
     }
 
-    private String hashPassword(String password) {
+    static String hashPassword(String password) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             byte[] hash = md.digest(password.getBytes());
@@ -114,13 +105,10 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
     @Override
 
     public boolean updateUser(String username, String newPassword) {
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = ""; // XAMPP default
         String sql = "UPDATE users SET password_clear = ?, password_hash = ? WHERE username = ?";
 
         System.out.println("Attempting to update user: " + username);
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = MailDb.getConnection();
              PreparedStatement stmt = con.prepareStatement(sql)) {
 
             String hashedPassword = hashPassword(newPassword);
@@ -149,13 +137,10 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthService
 
     @Override
     public boolean deleteUser(String username) {
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = ""; // XAMPP default
         String sql = "DELETE FROM users WHERE username = ?";
 
         System.out.println("Attempting to delete user: " + username);
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = MailDb.getConnection();
              PreparedStatement stmt = con.prepareStatement(sql)) {
 
             stmt.setString(1, username);
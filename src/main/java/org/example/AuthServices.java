@@ -0,0 +1,32 @@
+package org.example;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * Where the servers get their {@link AuthService}: the RMI registry of AuthServer by
+ * default, or an instance living in this JVM once {@link #useLocal} was called (the
+ * all-in-one {@link MailLauncher} does this, so authentication is a plain method call).
+ */
+public final class AuthServices {
+
+    private static volatile AuthService local;
+
+    private AuthServices() {
+    }
+
+    public static void useLocal(AuthService service) {
+        local = service;
+    }
+
+    public static AuthService get() throws RemoteException, NotBoundException {
+        AuthService service = local;
+        if (service != null) {
+            return service;
+        }
+        Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+        return (AuthService) registry.lookup("AuthService");
+    }
+}
@@ -0,0 +1,254 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link MailStore} that answers listings of the mailboxes read most recently from memory:
+ * the metadata of their live messages (ids, sizes, dates, flags, sender and subject) in
+ * parallel arrays, one set per mailbox. Bodies are not cached.
+ *
+ * Entries are evicted least recently used first once their estimated size passes
+ * mail.cache.max-bytes (64 MB). Every change made through this store drops the entry of its
+ * mailbox at once, and a listing that was being read while it happened is not cached; a change
+ * made by another process is noticed through the mailbox version ({@link MailboxVersions}),
+ * which each entry is tagged with, within its refresh time.
+ */
+public class CachingMailStore implements MailStore {
+
+    private final MailStore store;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(256, 0.75f, true);
+    // Guarded by this.
+    private long bytes;
+    // Changes made through this store, counted per stripe of mailboxes. Guarded by this.
+    private final long[] changes = new long[1024];
+
+    public CachingMailStore(MailStore store) {
+        this(store, Long.getLong("mail.cache.max-bytes", 64L << 20));
+    }
+
+    public CachingMailStore(MailStore store, long maxBytes) {
+        this.store = store;
+        this.maxBytes = maxBytes;
+        MailMetrics.cacheSize(this::bytes, this::mailboxes);
+    }
+
+    // The live messages of a mailbox as of one version, in id order.
+    private static final class Listing {
+        final long version;
+        final long[] ids;
+        final long[] sizes;
+        final long[] dates;
+        final int[] flags;
+        final String[] senders;
+        final String[] subjects;
+        final long bytes;
+
+        Listing(long version, List<StoredMail> messages) {
+            int n = messages.size();
+            this.version = version;
+            ids = new long[n];
+            sizes = new long[n];
+            dates = new long[n];
+            flags = new int[n];
+            senders = new String[n];
+            subjects = new String[n];
+            long strings = 0;
+            for (int i = 0; i < n; i++) {
+                StoredMail mail = messages.get(i);
+                ids[i] = mail.id;
+                sizes[i] = mail.size;
+                dates[i] = mail.date == null ? Long.MIN_VALUE : mail.date.getTime();
+                flags[i] = mail.flags;
+                senders[i] = mail.sender;
+                subjects[i] = mail.subject;
+                strings += length(mail.sender) + length(mail.subject);
+            }
+            // Arrays and their headers, plus about 40 bytes and 2 per char for each string.
+            bytes = 128 + n * (3L * Long.BYTES + Integer.BYTES + 2L * 4 + 2 * 40) + 2 * strings;
+        }
+
+        StoredMail get(String mailbox, int i) {
+            return new StoredMail(ids[i], mailbox, senders[i], subjects[i],
+                    dates[i] == Long.MIN_VALUE ? null : new Timestamp(dates[i]), sizes[i], flags[i], null);
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        try {
+            return store.append(sender, recipients, subject, body);
+        } finally {
+            for (String recipientEmail : recipients) {
+                invalidate(recipientEmail);
+            }
+        }
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        Listing listing = withBody ? null : listing(mailbox);
+        if (listing == null) {
+            return store.page(mailbox, afterId, limit, withBody);
+        }
+        int from = Arrays.binarySearch(listing.ids, afterId);
+        from = from >= 0 ? from + 1 : -from - 1;
+        int to = (int) Math.min(listing.ids.length, (long) from + limit);
+        List<StoredMail> messages = new ArrayList<>(Math.max(to - from, 0));
+        for (int i = from; i < to; i++) {
+            messages.add(listing.get(mailbox, i));
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Listing listing = withBody ? null : listing(mailbox);
+        if (listing == null) {
+            return store.fetch(mailbox, ids, withBody);
+        }
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (Long id : ids) {
+            int i = Arrays.binarySearch(listing.ids, id);
+            if (i >= 0) {
+                messages.put(id, listing.get(mailbox, i));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        return store.writeBody(mailbox, id, out);
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        return store.mailboxOf(id);
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        return store.highestId(mailbox);
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        return store.retained(mailbox, ids);
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        try {
+            store.setFlags(mailbox, flags);
+        } finally {
+            invalidate(mailbox);
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        try {
+            return store.markDeleted(mailbox, ids, commit);
+        } finally {
+            invalidate(mailbox);
+        }
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        try {
+            return store.unmarkDeleted(mailbox);
+        } finally {
+            invalidate(mailbox);
+        }
+    }
+
+    // Committing only changes deleted messages, which no listing holds.
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        return store.commitDeleted(mailbox);
+    }
+
+    // Purging only removes deleted messages, which no listing holds.
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        return store.purge(cutoff, batchSize, pauseMillis);
+    }
+
+    // The cached listing of the mailbox, loading it on a miss; null if the mailbox version is
+    // unknown, so that nothing is cached that could not be told stale later.
+    private Listing listing(String mailbox) throws MailStoreException {
+        // Read before the listing: a change in between leaves the entry tagged with an old version.
+        long version = MailboxVersions.current(mailbox);
+        if (version < 0) {
+            return null;
+        }
+        long changed;
+        synchronized (this) {
+            Listing cached = listings.get(mailbox);
+            if (cached != null && cached.version == version) {
+                MailMetrics.cache(true);
+                return cached;
+            }
+            changed = changes[stripe(mailbox)];
+        }
+        MailMetrics.cache(false);
+        Listing listing = new Listing(version, store.list(mailbox));
+        synchronized (this) {
+            if (changes[stripe(mailbox)] != changed) {
+                return listing; // changed meanwhile, perhaps before the version was bumped
+            }
+            Listing previous = listings.get(mailbox);
+            if (previous != null && previous.version > version) {
+                return listing; // a newer one was loaded meanwhile
+            }
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            listings.put(mailbox, listing);
+            bytes += listing.bytes;
+            Iterator<Listing> eldest = listings.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+        return listing;
+    }
+
+    private synchronized void invalidate(String mailbox) {
+        changes[stripe(mailbox)]++;
+        Listing removed = listings.remove(mailbox);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    private int stripe(String mailbox) {
+        return mailbox.hashCode() & (changes.length - 1);
+    }
+
+    private synchronized long bytes() {
+        return bytes;
+    }
+
+    private synchronized int mailboxes() {
+        return listings.size();
+    }
+}
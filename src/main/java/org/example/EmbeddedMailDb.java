@@ -0,0 +1,73 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * In-memory H2 database (MySQL mode) with the maildb schema, for load tests and benchmarks.
+ * Requires the H2 driver on the classpath. {@link #startShard} adds further mail shards the
+ * same way, to try {@link ShardedMailStore} with several databases.
+ */
+public final class EmbeddedMailDb {
+
+    private EmbeddedMailDb() {
+    }
+
+    // Points MailDb at a fresh in-memory database with the given name and creates the tables.
+    public static void start(String name) throws SQLException {
+        MailDb.configure("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        try (Connection con = MailDb.getConnection(); Statement st = con.createStatement()) {
+            st.executeUpdate("DROP TABLE IF EXISTS users");
+            st.executeUpdate("CREATE TABLE users (username VARCHAR(255) PRIMARY KEY, "
+                    + "password_clear VARCHAR(255), password_hash VARCHAR(255))");
+            createMailTables(st);
+            // Created on first use otherwise, which a database started again would not see.
+            st.executeUpdate("DROP TABLE IF EXISTS email_attachments");
+            st.executeUpdate("DROP TABLE IF EXISTS attachment_blobs");
+            st.executeUpdate("CREATE TABLE email_attachments (email_id BIGINT NOT NULL, part INT NOT NULL, "
+                    + "recipient_email VARCHAR(255) NOT NULL, name VARCHAR(255), content_type VARCHAR(255), "
+                    + "size BIGINT NOT NULL, hash CHAR(64) NOT NULL, PRIMARY KEY (email_id, part))");
+            st.executeUpdate("CREATE TABLE attachment_blobs (hash CHAR(64) NOT NULL PRIMARY KEY, "
+                    + "size BIGINT NOT NULL, refs INT NOT NULL, data LONGBLOB NOT NULL)");
+            st.executeUpdate("CREATE INDEX idx_attachment_blobs_refs ON attachment_blobs (refs)");
+            st.executeUpdate("DROP TABLE IF EXISTS mailbox_versions");
+            st.executeUpdate("CREATE TABLE mailbox_versions (recipient_email VARCHAR(255) NOT NULL PRIMARY KEY, "
+                    + "version BIGINT NOT NULL)");
+        }
+    }
+
+    // Points mail shard index (above 0) at a fresh in-memory database named after name, with the mail tables.
+    public static void startShard(String name, int index) throws SQLException {
+        MailShards.configure(index, "jdbc:h2:mem:" + name + "-shard" + index + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        try (Connection con = MailShards.get(index).getConnection(); Statement st = con.createStatement()) {
+            createMailTables(st);
+        }
+    }
+
+    private static void createMailTables(Statement st) throws SQLException {
+        st.executeUpdate("DROP TABLE IF EXISTS emails");
+        st.executeUpdate("DROP TABLE IF EXISTS email_bodies");
+        st.executeUpdate("CREATE TABLE emails (id BIGINT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(255), "
+                + "recipient_email VARCHAR(255), content LONGTEXT, subject VARCHAR(255), date_sent TIMESTAMP, "
+                + "is_deleted BOOLEAN DEFAULT FALSE NOT NULL, deleted_at TIMESTAMP NULL, "
+                + "flags INT DEFAULT 0 NOT NULL, body_hash CHAR(64) NULL)");
+        // InnoDB appends the primary key to every secondary index; H2 needs it spelled out to
+        // read a mailbox in id order, a page at a time, rather than sort all of it per page.
+        st.executeUpdate("CREATE INDEX idx_emails_recipient ON emails (recipient_email, id)");
+        st.executeUpdate("CREATE TABLE email_bodies (hash CHAR(64) NOT NULL PRIMARY KEY, content LONGTEXT NOT NULL, "
+                + "size BIGINT NOT NULL, refs INT NOT NULL, data LONGBLOB NULL)");
+    }
+
+    public static void addUser(String username, String password) throws SQLException {
+        String sql = "INSERT INTO users (username, password_clear, password_hash) VALUES (?, ?, ?)";
+        try (Connection con = MailDb.getConnection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setString(1, username);
+            pst.setString(2, password);
+            pst.setString(3, AuthServiceImpl.hashPassword(password));
+            pst.executeUpdate();
+        }
+    }
+}
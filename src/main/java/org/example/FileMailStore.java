@@ -0,0 +1,430 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link MailStore} in a local directory: one subdirectory per mailbox and one file per
+ * stored copy, named {@code <id>_<flags>_<state>.eml} where state is L (live), P (deletion
+ * pending) or D followed by the commit time in milliseconds. A file holds the recipient,
+ * sender and subject (each UTF-8 after its length), date and body size, then the body in
+ * UTF-8; it is never rewritten, and
+ * flag and deletion changes are atomic renames.
+ *
+ * Ids come from the .next-id file under a file lock, which is held until the new files are
+ * in place, so several processes can share the directory and no one ever sees an id before
+ * a smaller one that is still on its way.
+ */
+public class FileMailStore implements MailStore {
+
+    private static final String SUFFIX = ".eml";
+
+    private final Path root;
+    private final Path tmp;
+    private final Object idLock = new Object();
+    private final ConcurrentHashMap<String, Object> mailboxLocks = new ConcurrentHashMap<>();
+    // Mailbox directory of the ids seen so far, for mailboxOf.
+    private final ConcurrentHashMap<Long, Path> directories = new ConcurrentHashMap<>();
+
+    public FileMailStore(Path root) {
+        this.root = root;
+        this.tmp = root.resolve(".tmp");
+    }
+
+    // A message file name, split up.
+    private static final class Name {
+        final long id;
+        final int flags;
+        final char state;
+        final long deletedAt;
+
+        Name(long id, int flags, char state, long deletedAt) {
+            this.id = id;
+            this.flags = flags;
+            this.state = state;
+            this.deletedAt = deletedAt;
+        }
+
+        // Null for files that are not messages.
+        static Name parse(String file) {
+            if (!file.endsWith(SUFFIX)) {
+                return null;
+            }
+            String[] parts = file.substring(0, file.length() - SUFFIX.length()).split("_");
+            if (parts.length != 3 || parts[2].isEmpty()) {
+                return null;
+            }
+            try {
+                char state = parts[2].charAt(0);
+                long deletedAt = state == 'D' ? Long.parseLong(parts[2].substring(1)) : 0;
+                return new Name(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), state, deletedAt);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean live() {
+            return state == 'L';
+        }
+
+        String file() {
+            return id + "_" + flags + "_" + (state == 'D' ? "D" + deletedAt : String.valueOf(state)) + SUFFIX;
+        }
+
+        Name with(int newFlags, char newState, long newDeletedAt) {
+            return new Name(id, newFlags, newState, newDeletedAt);
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        byte[] content = (body == null ? "" : body).getBytes(StandardCharsets.UTF_8);
+        long date = System.currentTimeMillis();
+        List<Path> written = new ArrayList<>(recipients.size());
+        try {
+            Files.createDirectories(tmp);
+            for (String recipientEmail : recipients) {
+                Path file = Files.createTempFile(tmp, "new", SUFFIX);
+                written.add(file);
+                try (FileOutputStream fos = new FileOutputStream(file.toFile());
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                    writeString(out, recipientEmail);
+                    writeString(out, sender == null ? "" : sender);
+                    writeString(out, subject == null ? "" : subject);
+                    out.writeLong(date);
+                    out.writeLong(content.length);
+                    out.write(content);
+                    out.flush();
+                    fos.getFD().sync(); // the client is told the message is safe once this returns
+                }
+            }
+
+            List<Long> ids = new ArrayList<>(recipients.size());
+            synchronized (idLock) {
+                try (FileChannel counter = FileChannel.open(root.resolve(".next-id"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    counter.lock(); // released when the channel is closed
+                    ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+                    long next = counter.read(value, 0) == Long.BYTES ? value.flip().getLong() : 1;
+                    for (int i = 0; i < recipients.size(); i++) {
+                        Path dir = Files.createDirectories(directory(recipients.get(i)));
+                        long id = next++;
+                        Files.move(written.get(i), dir.resolve(new Name(id, 0, 'L', 0).file()), StandardCopyOption.ATOMIC_MOVE);
+                        directories.put(id, dir);
+                        ids.add(id);
+                    }
+                    counter.write(value.clear().putLong(next).flip(), 0);
+                }
+            }
+            return ids;
+        } catch (IOException e) {
+            for (Path file : written) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // left in tmp, harmless
+                }
+            }
+            throw new MailStoreException("Could not store message: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        Path dir = directory(mailbox);
+        List<Name> names = new ArrayList<>();
+        for (Name name : names(dir)) {
+            if (name.live() && name.id > afterId) {
+                names.add(name);
+            }
+        }
+        names.sort(Comparator.comparingLong(n -> n.id));
+        List<StoredMail> messages = new ArrayList<>();
+        for (Name name : names.subList(0, Math.min(limit, names.size()))) {
+            StoredMail mail = read(dir, name, withBody);
+            if (mail != null) {
+                messages.add(mail);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Path dir = directory(mailbox);
+        Map<Long, Name> live = liveById(dir);
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (Long id : ids) {
+            Name name = live.get(id);
+            StoredMail mail = name == null ? null : read(dir, name, withBody);
+            if (mail != null) {
+                messages.put(id, mail);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        Path dir = directory(mailbox);
+        Name name = liveById(dir).get(id);
+        if (name == null) {
+            return false;
+        }
+        InputStream in;
+        try {
+            in = Files.newInputStream(dir.resolve(name.file()));
+        } catch (NoSuchFileException e) {
+            return false; // deleted or renamed meanwhile
+        }
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            skipHeader(data);
+            try (Reader body = new InputStreamReader(data, StandardCharsets.UTF_8)) {
+                body.transferTo(out);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        Path dir = directories.get(id);
+        if (dir == null) {
+            try (DirectoryStream<Path> all = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path candidate : all) {
+                    if (!candidate.equals(tmp) && liveById(candidate).containsKey(id)) {
+                        dir = candidate;
+                        break;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                throw new MailStoreException("Could not list " + root + ": " + e.getMessage(), e);
+            }
+        }
+        if (dir == null) {
+            return null;
+        }
+        Name name = liveById(dir).get(id);
+        StoredMail mail = name == null ? null : read(dir, name, false);
+        return mail == null ? null : mail.mailbox;
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        long highest = 0;
+        for (Name name : names(directory(mailbox))) {
+            highest = Math.max(highest, name.id);
+        }
+        return highest;
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        Set<Long> stored = new HashSet<>();
+        for (Name name : names(directory(mailbox))) {
+            stored.add(name.id);
+        }
+        stored.retainAll(ids instanceof Set ? ids : new HashSet<>(ids));
+        return stored;
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        Path dir = directory(mailbox);
+        synchronized (lock(mailbox)) {
+            Map<Long, Name> live = liveById(dir);
+            for (Map.Entry<Long, Integer> change : flags.entrySet()) {
+                Name name = live.get(change.getKey());
+                if (name != null && name.flags != change.getValue()) {
+                    rename(dir, name, name.with(change.getValue(), 'L', 0));
+                }
+            }
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        Path dir = directory(mailbox);
+        long now = System.currentTimeMillis();
+        int marked = 0;
+        synchronized (lock(mailbox)) {
+            Map<Long, Name> live = liveById(dir);
+            for (Long id : ids) {
+                Name name = live.get(id);
+                if (name != null && rename(dir, name, commit ? name.with(name.flags, 'D', now) : name.with(name.flags, 'P', 0))) {
+                    marked++;
+                }
+            }
+        }
+        return marked;
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        return changeState(mailbox, 'L', 0);
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        return changeState(mailbox, 'D', System.currentTimeMillis());
+    }
+
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long purged = 0;
+        try (DirectoryStream<Path> all = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : all) {
+                if (dir.equals(tmp)) {
+                    continue;
+                }
+                for (Name name : names(dir)) {
+                    if (name.state != 'D' || name.deletedAt >= cutoff.getTime()) {
+                        continue;
+                    }
+                    if (Files.deleteIfExists(dir.resolve(name.file()))) {
+                        directories.remove(name.id);
+                        if (++purged % batchSize == 0 && pauseMillis > 0) {
+                            Thread.sleep(pauseMillis);
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return purged;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not purge " + root + ": " + e.getMessage(), e);
+        }
+        return purged;
+    }
+
+    // Moves the messages of the mailbox whose deletion is pending to the given state.
+    private int changeState(String mailbox, char state, long deletedAt) throws MailStoreException {
+        Path dir = directory(mailbox);
+        int changed = 0;
+        synchronized (lock(mailbox)) {
+            for (Name name : names(dir)) {
+                if (name.state == 'P' && rename(dir, name, name.with(name.flags, state, deletedAt))) {
+                    changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // False if the file is gone: another process changed it first.
+    private static boolean rename(Path dir, Name from, Name to) throws MailStoreException {
+        try {
+            Files.move(dir.resolve(from.file()), dir.resolve(to.file()), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not update " + from.file() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static List<Name> names(Path dir) throws MailStoreException {
+        List<Name> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Name name = Name.parse(file.getFileName().toString());
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return names; // nothing stored for the mailbox yet
+        } catch (IOException e) {
+            throw new MailStoreException("Could not list " + dir + ": " + e.getMessage(), e);
+        }
+        return names;
+    }
+
+    private static Map<Long, Name> liveById(Path dir) throws MailStoreException {
+        Map<Long, Name> live = new HashMap<>();
+        for (Name name : names(dir)) {
+            if (name.live()) {
+                live.put(name.id, name);
+            }
+        }
+        return live;
+    }
+
+    // The message, or null if its file went away while reading.
+    private StoredMail read(Path dir, Name name, boolean withBody) throws MailStoreException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(name.file()))))) {
+            String mailbox = readString(in);
+            String sender = readString(in);
+            String subject = readString(in);
+            Timestamp date = new Timestamp(in.readLong());
+            long size = in.readLong();
+            String body = withBody ? new String(in.readNBytes((int) size), StandardCharsets.UTF_8) : null;
+            directories.putIfAbsent(name.id, dir);
+            return new StoredMail(name.id, mailbox, sender, subject, date, size, name.flags, body);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not read " + name.file() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void skipHeader(DataInputStream in) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            in.skipNBytes(in.readInt());
+        }
+        in.readLong();
+        in.readLong();
+    }
+
+    // Header strings are UTF-8 after their length in bytes; writeUTF would refuse subjects over 64 KB.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    // One directory per address; the name is URL-encoded so that distinct addresses never share
+    // one, and never starts with a dot, as .tmp and .next-id do.
+    private Path directory(String mailbox) {
+        String name = URLEncoder.encode(mailbox, StandardCharsets.UTF_8).replace("%40", "@").replace("*", "%2A");
+        return root.resolve(name.startsWith(".") ? "%2E" + name.substring(1) : name);
+    }
+
+    private Object lock(String mailbox) {
+        return mailboxLocks.computeIfAbsent(mailbox, k -> new Object());
+    }
+}
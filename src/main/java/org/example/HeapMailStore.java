@@ -0,0 +1,213 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MailStore} kept on the heap of this JVM, for tests, benchmarks and the load test:
+ * nothing survives a restart. Reads take no locks; changes to a mailbox are serialized on it.
+ */
+public class HeapMailStore implements MailStore {
+
+    private final AtomicLong lastId = new AtomicLong();
+    private final ConcurrentHashMap<String, ConcurrentNavigableMap<Long, Entry>> mailboxes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> owners = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final StoredMail mail;
+        volatile int flags;
+        volatile boolean deleted;
+        // When the deletion was committed; 0 while it is pending or the message is live.
+        volatile long deletedAt;
+
+        Entry(StoredMail mail) {
+            this.mail = mail;
+        }
+
+        StoredMail view(boolean withBody) {
+            return new StoredMail(mail.id, mail.mailbox, mail.sender, mail.subject, mail.date, mail.size, flags,
+                    withBody ? mail.body : null);
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) {
+        String content = body == null ? "" : body;
+        long size = content.getBytes(StandardCharsets.UTF_8).length;
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Long> ids = new ArrayList<>(recipients.size());
+        for (String recipientEmail : recipients) {
+            ConcurrentNavigableMap<Long, Entry> mailbox = mailbox(recipientEmail);
+            synchronized (mailbox) {
+                // Taken under the lock so that ids enter each mailbox in increasing order.
+                long id = lastId.incrementAndGet();
+                mailbox.put(id, new Entry(new StoredMail(id, recipientEmail, sender, subject, now, size, 0, content)));
+                owners.put(id, recipientEmail);
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) {
+        List<StoredMail> messages = new ArrayList<>();
+        for (Entry entry : mailbox(mailbox).tailMap(afterId, false).values()) {
+            if (messages.size() >= limit) {
+                break;
+            }
+            if (!entry.deleted) {
+                messages.add(entry.view(withBody));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (Long id : ids) {
+            Entry entry = entries.get(id);
+            if (entry != null && !entry.deleted) {
+                messages.put(id, entry.view(withBody));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws IOException {
+        Entry entry = mailbox(mailbox).get(id);
+        if (entry == null || entry.deleted) {
+            return false;
+        }
+        out.write(entry.mail.body);
+        return true;
+    }
+
+    @Override
+    public String mailboxOf(long id) {
+        String mailbox = owners.get(id);
+        if (mailbox == null) {
+            return null;
+        }
+        Entry entry = mailbox(mailbox).get(id);
+        return entry == null || entry.deleted ? null : mailbox;
+    }
+
+    @Override
+    public long highestId(String mailbox) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        return entries.isEmpty() ? 0 : entries.lastKey();
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        Set<Long> retained = new HashSet<>();
+        for (Long id : ids) {
+            if (entries.containsKey(id)) {
+                retained.add(id);
+            }
+        }
+        return retained;
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        synchronized (entries) {
+            for (Map.Entry<Long, Integer> change : flags.entrySet()) {
+                Entry entry = entries.get(change.getKey());
+                if (entry != null && !entry.deleted) {
+                    entry.flags = change.getValue();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        long now = System.currentTimeMillis();
+        int marked = 0;
+        synchronized (entries) {
+            for (Long id : ids) {
+                Entry entry = entries.get(id);
+                if (entry != null && !entry.deleted) {
+                    entry.deletedAt = commit ? now : 0;
+                    entry.deleted = true;
+                    marked++;
+                }
+            }
+        }
+        return marked;
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        int restored = 0;
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                if (entry.deleted && entry.deletedAt == 0) {
+                    entry.deleted = false;
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) {
+        ConcurrentNavigableMap<Long, Entry> entries = mailbox(mailbox);
+        long now = System.currentTimeMillis();
+        int committed = 0;
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                if (entry.deleted && entry.deletedAt == 0) {
+                    entry.deletedAt = now;
+                    committed++;
+                }
+            }
+        }
+        return committed;
+    }
+
+    // Nothing here holds locks for long, so batchSize and pauseMillis are not needed.
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) {
+        long purged = 0;
+        for (ConcurrentNavigableMap<Long, Entry> entries : mailboxes.values()) {
+            synchronized (entries) {
+                for (Entry entry : entries.values()) {
+                    if (entry.deleted && entry.deletedAt != 0 && entry.deletedAt < cutoff.getTime()) {
+                        entries.remove(entry.mail.id);
+                        owners.remove(entry.mail.id);
+                        purged++;
+                    }
+                }
+            }
+        }
+        return purged;
+    }
+
+    private ConcurrentNavigableMap<Long, Entry> mailbox(String mailbox) {
+        return mailboxes.computeIfAbsent(mailbox, k -> new ConcurrentSkipListMap<>());
+    }
+}
@@ -0,0 +1,198 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One IMAP command as the client sent it: tag, command name and arguments.
+ *
+ * Arguments are Strings (atoms, quoted strings and literals, which the session has already
+ * read and inlined as quoted strings) and Lists for parenthesized lists. An atom keeps its
+ * [section] and &lt;partial&gt; suffix, so BODY.PEEK[HEADER.FIELDS (FROM)]&lt;0.512&gt; is one
+ * argument. Syntax errors are IllegalArgumentExceptions, answered with BAD.
+ */
+final class ImapCommand {
+
+    final String tag;
+    final String name;
+    final List<Object> args;
+
+    private final String line;
+    private int pos;
+
+    private ImapCommand(String line) {
+        this.line = line;
+        this.tag = atom();
+        if (tag.isEmpty() || tag.equals("*") || tag.equals("+")) {
+            throw new IllegalArgumentException("Missing tag");
+        }
+        skipSpaces();
+        this.name = atom().toUpperCase(Locale.ROOT);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Missing command");
+        }
+        this.args = list((char) 0);
+    }
+
+    static ImapCommand parse(String line) {
+        return new ImapCommand(line);
+    }
+
+    // The first word of a line, to tag the BAD reply to a line that does not parse.
+    static String tagOf(String line) {
+        int space = line.indexOf(' ');
+        String tag = space < 0 ? line : line.substring(0, space);
+        return tag.isEmpty() ? "*" : tag;
+    }
+
+    // A literal's text in the quoted form the parser reads back.
+    static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    String string(int index) {
+        if (index >= args.size() || !(args.get(index) instanceof String)) {
+            throw new IllegalArgumentException("Missing argument");
+        }
+        return (String) args.get(index);
+    }
+
+    // The argument as a list; a single atom counts as a list of one (FETCH 1 FLAGS).
+    @SuppressWarnings("unchecked")
+    List<Object> list(int index) {
+        if (index >= args.size()) {
+            throw new IllegalArgumentException("Missing argument");
+        }
+        Object arg = args.get(index);
+        return arg instanceof List ? (List<Object>) arg : List.of(arg);
+    }
+
+    private List<Object> list(char close) {
+        List<Object> items = new ArrayList<>();
+        while (true) {
+            skipSpaces();
+            if (pos >= line.length()) {
+                if (close != 0) {
+                    throw new IllegalArgumentException("Missing " + close);
+                }
+                return items;
+            }
+            char c = line.charAt(pos);
+            if (c == close) {
+                pos++;
+                return items;
+            }
+            if (c == '(') {
+                pos++;
+                items.add(list(')'));
+            } else if (c == '"') {
+                items.add(quoted());
+            } else if (c == ')') {
+                throw new IllegalArgumentException("Unexpected )");
+            } else {
+                items.add(atom());
+            }
+        }
+    }
+
+    private String atom() {
+        int start = pos;
+        int brackets = 0;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (c == '[') {
+                brackets++;
+            } else if (c == ']') {
+                brackets--;
+            } else if (brackets == 0 && (c == ' ' || c == '(' || c == ')')) {
+                break;
+            }
+            pos++;
+        }
+        if (brackets != 0) {
+            throw new IllegalArgumentException("Missing ]");
+        }
+        return line.substring(start, pos);
+    }
+
+    private String quoted() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (pos < line.length()) {
+            char c = line.charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\' && pos < line.length()) {
+                c = line.charAt(pos++);
+            }
+            sb.append(c);
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private void skipSpaces() {
+        while (pos < line.length() && line.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    /** A message set such as 1:4,7,9:* over sequence numbers or UIDs. */
+    static final class SequenceSet {
+
+        private final long[] ranges; // pairs of inclusive bounds, -1 standing for *
+
+        private SequenceSet(long[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static boolean looksLike(String text) {
+            return !text.isEmpty() && text.chars().allMatch(c -> (c >= '0' && c <= '9') || c == ':' || c == ',' || c == '*');
+        }
+
+        static SequenceSet parse(String text) {
+            if (!looksLike(text)) {
+                throw new IllegalArgumentException("Invalid message set " + text);
+            }
+            String[] parts = text.split(",");
+            long[] ranges = new long[parts.length * 2];
+            for (int i = 0; i < parts.length; i++) {
+                String[] bounds = parts[i].split(":", -1);
+                if (bounds.length > 2) {
+                    throw new IllegalArgumentException("Invalid message set " + text);
+                }
+                ranges[2 * i] = bound(bounds[0]);
+                ranges[2 * i + 1] = bound(bounds[bounds.length - 1]);
+            }
+            return new SequenceSet(ranges);
+        }
+
+        private static long bound(String text) {
+            if (text.equals("*")) {
+                return -1;
+            }
+            try {
+                long value = Long.parseLong(text);
+                if (value <= 0) {
+                    throw new IllegalArgumentException("Invalid message number " + text);
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid message number " + text);
+            }
+        }
+
+        // star is the value * stands for: the highest sequence number or UID in the mailbox.
+        boolean contains(long value, long star) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                long a = ranges[i] < 0 ? star : ranges[i];
+                long b = ranges[i + 1] < 0 ? star : ranges[i + 1];
+                if (value >= Math.min(a, b) && value <= Math.max(a, b)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One stored message as an IMAP message: the flags, and a text/plain RFC 5322 message whose
+ * header is made up from the sender, recipient, subject and date. A message with attachments
+ * is multipart/mixed instead ({@link MailEntity}), the stored body its part 1 and the
+ * attachments parts 2 on; their content is only read for the sections that hold it, and those
+ * are streamed ({@link #streams}) rather than built.
+ *
+ * body is null when only the metadata was loaded; the body size then comes from the store,
+ * so FLAGS, ENVELOPE, RFC822.SIZE and header fetches never read the content. BODY and
+ * BODYSTRUCTURE count lines, so they need the body.
+ */
+final class ImapMessage {
+
+    static final int SEEN = 1;
+    static final int ANSWERED = 2;
+    static final int FLAGGED = 4;
+    static final int DELETED = 8;
+    static final int DRAFT = 16;
+    private static final String[] FLAG_NAMES = {"\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft"};
+    static final String ALL_FLAGS = "(\\Answered \\Flagged \\Deleted \\Seen \\Draft)";
+
+    private static final DateTimeFormatter HEADER_DATE =
+            DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter INTERNAL_DATE =
+            DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    final long uid;
+    final String sender;
+    final String recipient;
+    final String subject;
+    final Timestamp date;
+    int flags;
+    private final long storedSize;
+    private final String body;
+    private MailEntity entity;
+    private byte[] header;
+
+    ImapMessage(StoredMail mail) {
+        this.uid = mail.id;
+        this.sender = mail.sender == null ? "" : mail.sender;
+        this.recipient = mail.mailbox == null ? "" : mail.mailbox;
+        this.subject = mail.subject == null ? "" : mail.subject;
+        this.date = mail.date == null ? new Timestamp(0) : mail.date;
+        this.flags = mail.flags;
+        this.storedSize = mail.size;
+        // Bodies stored through SMTP have CRLF line ends already; others are brought in line.
+        this.body = mail.body == null ? null : mail.body.replace("\r\n", "\n").replace("\n", "\r\n");
+    }
+
+    // The attachments of the message, before anything is sent of it.
+    void attach(List<MailAttachment> attachments) {
+        entity = new MailEntity(uid, attachments);
+        header = null;
+    }
+
+    // Flag bits named in a STORE or SEARCH list; \Recent and keywords are not kept.
+    static int flagBits(List<Object> names) {
+        int bits = 0;
+        for (Object name : names) {
+            for (int i = 0; i < FLAG_NAMES.length; i++) {
+                if (FLAG_NAMES[i].equalsIgnoreCase(String.valueOf(name))) {
+                    bits |= 1 << i;
+                }
+            }
+        }
+        return bits;
+    }
+
+    String flagList() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if ((flags & (1 << i)) != 0) {
+                sb.append(sb.length() > 1 ? " " : "").append(FLAG_NAMES[i]);
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    String internalDate() {
+        return '"' + INTERNAL_DATE.format(date.toInstant()) + '"';
+    }
+
+    // RFC822.SIZE. Without the body loaded it is exact for CRLF bodies, as SMTP stores them.
+    long size() {
+        long bodySize = body != null ? body.getBytes(StandardCharsets.UTF_8).length : storedSize;
+        return header().length + 2 + (entity == null ? bodySize : entity.size(bodySize));
+    }
+
+    String bodyText() {
+        return body;
+    }
+
+    byte[] header() {
+        if (header == null) {
+            String text = "Date: " + HEADER_DATE.format(date.toInstant()) + "\r\n"
+                    + "From: " + oneLine(sender) + "\r\n"
+                    + "To: " + oneLine(recipient) + "\r\n"
+                    + "Subject: " + oneLine(subject) + "\r\n"
+                    + "MIME-Version: 1.0\r\n"
+                    + (entity == null ? MailEntity.TEXT_HEADER : "Content-Type: " + entity.contentType() + "\r\n");
+            header = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return header;
+    }
+
+    // Header fields to send for BODY[HEADER.FIELDS (...)] or, with not, BODY[HEADER.FIELDS.NOT (...)].
+    byte[] headerFields(List<Object> names, boolean not) {
+        Set<String> wanted = new HashSet<>();
+        for (Object name : names) {
+            wanted.add(String.valueOf(name).toLowerCase(Locale.ROOT));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String field : new String(header(), StandardCharsets.UTF_8).split("\r\n")) {
+            String name = field.substring(0, field.indexOf(':')).toLowerCase(Locale.ROOT);
+            if (wanted.contains(name) != not) {
+                sb.append(field).append("\r\n");
+            }
+        }
+        return sb.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The octets of a BODY[section]; section is already upper case apart from field names.
+    // Needs the body unless the section is HEADER or HEADER.FIELDS. Not for the sections that
+    // stream.
+    byte[] section(String section, List<Object> fieldNames) {
+        switch (section) {
+            case "":
+                return concat(header(), "\r\n".getBytes(StandardCharsets.US_ASCII), bodyBytes());
+            case "HEADER":
+                return concat(header(), "\r\n".getBytes(StandardCharsets.US_ASCII));
+            case "HEADER.FIELDS":
+                return headerFields(fieldNames, false);
+            case "HEADER.FIELDS.NOT":
+                return headerFields(fieldNames, true);
+            case "TEXT":
+            case "1":
+                return bodyBytes();
+            case "MIME":
+            case "1.MIME":
+                return (MailEntity.TEXT_HEADER + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            default:
+                MailAttachment attachment = attachment(section);
+                return attachment != null && section.endsWith(".MIME") ? MailEntity.partHeader(attachment) : new byte[0];
+        }
+    }
+
+    // Whether BODY[section] holds attachment content: the whole message or its text when it
+    // has attachments, or an attachment. Those are written with writeSection, never held whole.
+    boolean streams(String section) {
+        if (entity == null) {
+            return false;
+        }
+        return section.isEmpty() || section.equals("TEXT") || (!section.endsWith(".MIME") && attachment(section) != null);
+    }
+
+    // The octets of a section that streams.
+    long sectionSize(String section) {
+        switch (section) {
+            case "":
+                return header().length + 2 + entity.size(bodyBytes().length);
+            case "TEXT":
+                return entity.size(bodyBytes().length);
+            default:
+                return MailEntity.encodedSize(attachment(section).size);
+        }
+    }
+
+    // Writes length octets from offset on of a section that streams.
+    void writeSection(String section, long offset, long length, OutputStream out) throws IOException {
+        switch (section) {
+            case "":
+                entity.write(concat(header(), "\r\n".getBytes(StandardCharsets.US_ASCII)), bodyBytes(), offset, length, out);
+                break;
+            case "TEXT":
+                entity.write(new byte[0], bodyBytes(), offset, length, out);
+                break;
+            default:
+                MailEntity.writeContent(attachment(section), offset, length, out);
+                break;
+        }
+    }
+
+    static boolean needsBody(String section) {
+        return !section.startsWith("HEADER") && !section.endsWith("MIME");
+    }
+
+    private byte[] bodyBytes() {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The attachment a section "n" or "n.MIME" names, or null.
+    private MailAttachment attachment(String section) {
+        if (entity == null) {
+            return null;
+        }
+        String number = section.endsWith(".MIME") ? section.substring(0, section.length() - ".MIME".length()) : section;
+        int part;
+        try {
+            part = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return part >= 2 && part - 2 < entity.attachments.size() ? entity.attachments.get(part - 2) : null;
+    }
+
+    void envelope(ByteArrayOutputStream out) {
+        ascii(out, "(");
+        string(out, HEADER_DATE.format(date.toInstant()));
+        ascii(out, " ");
+        string(out, subject);
+        ascii(out, " ");
+        address(out, sender);
+        ascii(out, " ");
+        address(out, sender);
+        ascii(out, " ");
+        address(out, sender);
+        ascii(out, " ");
+        address(out, recipient);
+        ascii(out, " NIL NIL NIL NIL)");
+    }
+
+    // BODY, or BODYSTRUCTURE with extensible set, of the text/plain part and the attachments
+    // after it. Needs the body.
+    void bodyStructure(ByteArrayOutputStream out, boolean extensible) {
+        long lines = body.chars().filter(c -> c == '\n').count();
+        String text = "(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") NIL NIL \"8BIT\" " + bodyBytes().length + " " + lines
+                + (extensible ? " NIL NIL NIL)" : ")");
+        if (entity == null) {
+            ascii(out, text);
+            return;
+        }
+        ascii(out, "(" + text);
+        for (MailAttachment attachment : entity.attachments) {
+            String type = MailEntity.contentType(attachment).toUpperCase(Locale.ROOT);
+            int slash = type.indexOf('/');
+            ascii(out, "(");
+            string(out, type.substring(0, slash));
+            ascii(out, " ");
+            string(out, type.substring(slash + 1));
+            if (attachment.name == null) {
+                ascii(out, " NIL");
+            } else {
+                ascii(out, " (\"NAME\" ");
+                string(out, attachment.name);
+                ascii(out, ")");
+            }
+            ascii(out, " NIL NIL \"BASE64\" " + MailEntity.encodedSize(attachment.size));
+            if (type.startsWith("TEXT/")) {
+                ascii(out, " " + MailEntity.encodedLines(attachment.size));
+            }
+            if (extensible) {
+                ascii(out, " NIL (\"ATTACHMENT\" ");
+                if (attachment.name == null) {
+                    ascii(out, "NIL");
+                } else {
+                    ascii(out, "(\"FILENAME\" ");
+                    string(out, attachment.name);
+                    ascii(out, ")");
+                }
+                ascii(out, ") NIL");
+            }
+            ascii(out, ")");
+        }
+        ascii(out, " \"MIXED\"");
+        if (extensible) {
+            ascii(out, " (\"BOUNDARY\" ");
+            string(out, entity.boundary());
+            ascii(out, ") NIL NIL");
+        }
+        ascii(out, ")");
+    }
+
+    private static void address(ByteArrayOutputStream out, String address) {
+        if (address.isEmpty()) {
+            ascii(out, "NIL");
+            return;
+        }
+        int at = address.lastIndexOf('@');
+        ascii(out, "((NIL NIL ");
+        string(out, at < 0 ? address : address.substring(0, at));
+        ascii(out, " ");
+        string(out, at < 0 ? "" : address.substring(at + 1));
+        ascii(out, "))");
+    }
+
+    // An IMAP string: quoted when that is possible, a literal otherwise.
+    static void string(ByteArrayOutputStream out, String text) {
+        if (text == null) {
+            ascii(out, "NIL");
+            return;
+        }
+        boolean quotable = text.length() < 1000 && text.chars().allMatch(c -> c >= 0x20 && c < 0x7f);
+        if (quotable) {
+            ascii(out, ImapCommand.quote(text));
+        } else {
+            literal(out, text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static void literal(ByteArrayOutputStream out, byte[] data) {
+        ascii(out, "{" + data.length + "}\r\n");
+        out.write(data, 0, data.length);
+    }
+
+    static void ascii(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String oneLine(String value) {
+        return value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = Arrays.stream(parts).mapToInt(p -> p.length).sum();
+        byte[] all = new byte[length];
+        int at = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, at, part.length);
+            at += part.length;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,1450 @@
+package org.example;
+
+import org.example.jfr.AuthEvent;
+import org.example.jfr.CommandEvent;
+import org.example.jfr.SessionEvent;
+import org.example.jfr.UserHash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * IMAP4rev1 (RFC 3501) server over the same {@link MailStore} and AuthService as the POP3
+ * server, with IDLE (RFC 2177) and STARTTLS.
+ *
+ * Each user has one mailbox, INBOX. UIDs are the store's message ids, so they only grow and
+ * UIDVALIDITY never changes. Flags are kept by the store; EXPUNGE commits deletions the way
+ * POP3 QUIT does, leaving the messages to MailPurger. Clients can fetch flags, envelopes and
+ * single header fields without the message bodies being read, and IDLE replaces polling: changes made in this JVM are
+ * pushed right away (see {@link MailboxVersions#watch}), changes made by other processes
+ * within mail.imap.idle-poll-seconds (5).
+ */
+public class ImapServer {
+    static final int PORT = Integer.getInteger("mail.imap.port", 1430); // Custom port, like POP3's
+    // Implicit TLS (IMAPS), only when MailTls is configured.
+    static final int TLS_PORT = Integer.getInteger("mail.imaps.port", 993);
+
+    public static void main(String[] args) {
+        // EXPUNGE only marks the rows; they are removed in the background, as for POP3.
+        new MailPurger().start();
+
+        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+            System.out.println("IMAP Server started on port " + PORT);
+            MailMetrics.enableJmx();
+            ProtocolTrace.registerMBean();
+            if (MailTls.enabled()) {
+                serveTls(new ServerSocket(TLS_PORT));
+                System.out.println("IMAPS started on port " + TLS_PORT);
+            }
+            serve(serverSocket);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Accept loop; one ImapSession per connection until the socket is closed.
+    static void serve(ServerSocket serverSocket) throws IOException {
+        listener(serverSocket).serve();
+    }
+
+    // Runs the implicit-TLS accept loop on its own thread.
+    private static void serveTls(ServerSocket serverSocket) {
+        new Thread(() -> {
+            try {
+                listener(serverSocket, true).serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "imaps-accept").start();
+    }
+
+    static SessionListener listener(ServerSocket serverSocket) {
+        return listener(serverSocket, false);
+    }
+
+    // With implicitTls the busy reply is not sent: the client expects a TLS handshake first.
+    static SessionListener listener(ServerSocket serverSocket, boolean implicitTls) {
+        return new SessionListener("imap", serverSocket, socket -> new ImapSession(socket, implicitTls),
+                implicitTls ? null : "* BYE [UNAVAILABLE] Too many connections, try again later");
+    }
+}
+
+class ImapSession extends Thread {
+    // Once TLS is configured, LOGIN/AUTHENTICATE are refused on plaintext connections unless this is set.
+    private static final boolean PLAINTEXT_AUTH = Boolean.getBoolean("mail.tls.allow-plaintext-auth");
+    // How often an idling client is told about changes made by other processes.
+    private static final int IDLE_POLL_MS = (int) TimeUnit.SECONDS.toMillis(Long.getLong("mail.imap.idle-poll-seconds", 5));
+    // Longest command line, and longest literal, accepted from a client.
+    private static final int MAX_LINE = 64 * 1024;
+    // Messages whose bodies a SEARCH on content loads at a time.
+    private static final int SEARCH_PAGE = Integer.getInteger("mail.imap.search-page", 200);
+    private static final long UID_VALIDITY = 1;
+    private static final DateTimeFormatter SEARCH_DATE = DateTimeFormatter.ofPattern("d-MMM-yyyy", Locale.US);
+
+    // Pushes IDLE updates for changes made in this JVM, off the thread that made the change.
+    private static final ExecutorService IDLE_UPDATES = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "imap-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final String clientIp;
+    private final boolean implicitTls;
+    // The socket's (metered) streams, the TLS layer over them once started, and what commands use.
+    private InputStream netIn;
+    private OutputStream netOut;
+    private TlsConnection tls;
+    private InputStream in;
+    private OutputStream out;
+    // The line being read; kept when an IDLE poll interrupts the read halfway.
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private boolean authenticated;
+    private String mailbox;
+    private boolean selected;
+    private boolean readOnly;
+    // UIDs of the selected mailbox by sequence number, as the client knows them.
+    private final List<Long> uids = new ArrayList<>();
+    private long seenVersion;
+
+    // While idling, updates may be written by an IDLE_UPDATES thread; writes hold this lock.
+    private final Object outputLock = new Object();
+    private boolean idling;
+    private final AtomicBoolean updateQueued = new AtomicBoolean();
+    private final Runnable onMailboxChange = this::queueUpdate;
+
+    // Flight recorder state: the session event and the pseudonym of the user.
+    private final SessionEvent sessionEvent = new SessionEvent();
+    private ProtocolTrace trace;
+    private String userHash;
+    private long lastMessageSize;
+
+    ImapSession(Socket socket, boolean implicitTls) {
+        this.socket = socket;
+        this.implicitTls = implicitTls;
+        this.clientIp = socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void run() {
+        MailMetrics.sessionOpened("imap");
+        sessionEvent.begin();
+        trace = new ProtocolTrace("imap", socket.getInetAddress());
+        try {
+            netIn = MailMetrics.meterIn("imap", socket.getInputStream());
+            netOut = MailMetrics.meterOut("imap", socket.getOutputStream());
+            if (implicitTls) {
+                tls = MailTls.accept("imap", netIn, netOut);
+            }
+            useStreams();
+
+            send("* OK [CAPABILITY " + capabilities() + "] IMAP4rev1 server ready");
+            out.flush();
+
+            String text;
+            while ((text = readCommand()) != null) {
+                trace.received(text);
+                long started = System.nanoTime();
+                CommandEvent event = new CommandEvent();
+                event.begin();
+                lastMessageSize = 0;
+
+                ImapCommand command;
+                try {
+                    command = ImapCommand.parse(text);
+                } catch (IllegalArgumentException e) {
+                    send(ImapCommand.tagOf(text) + " BAD " + e.getMessage());
+                    out.flush();
+                    continue;
+                }
+                String name = command.name;
+                if (name.equals("UID") && !command.args.isEmpty()) {
+                    name = String.valueOf(command.args.get(0)).toUpperCase(Locale.ROOT);
+                }
+                boolean more = true;
+                try {
+                    more = execute(command);
+                } catch (IllegalArgumentException e) {
+                    send(command.tag + " BAD " + e.getMessage());
+                }
+                out.flush();
+                commandDone(name, started, event);
+                if (!more) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            trace.error(e);
+            System.err.println("Error reading from connection: " + e.getMessage());
+        } finally {
+            MailMetrics.sessionClosed("imap");
+            trace.close();
+            sessionEvent.protocol = "imap";
+            sessionEvent.user = userHash;
+            sessionEvent.commit();
+            try {
+                if (tls != null) {
+                    tls.close();
+                }
+            } catch (IOException e) {
+                // the client is gone already
+            }
+            try { socket.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+
+    // Records the latency metric and the flight recorder event of one command.
+    private void commandDone(String command, long started, CommandEvent event) {
+        MailMetrics.command("imap", command, started);
+        trace.commandDone(command, started);
+        sessionEvent.commands++;
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = "imap";
+            event.command = command.length() > 16 ? command.substring(0, 16) : command;
+            event.user = userHash;
+            event.messageSize = lastMessageSize;
+            event.commit();
+        }
+    }
+
+    // Runs one command; false once the session should end.
+    private boolean execute(ImapCommand c) throws IOException {
+        String name = c.name;
+        if ((name.equals("LOGIN") || name.equals("AUTHENTICATE") || name.equals("STARTTLS")) && authenticated) {
+            send(c.tag + " BAD Already logged in");
+            return true;
+        }
+        if (needsLogin(name) && !authenticated) {
+            send(c.tag + " BAD Log in first");
+            return true;
+        }
+        if (needsSelection(name) && !selected) {
+            send(c.tag + " BAD Select a mailbox first");
+            return true;
+        }
+        try {
+            switch (name) {
+                case "CAPABILITY":
+                    send("* CAPABILITY " + capabilities());
+                    send(c.tag + " OK CAPABILITY completed");
+                    break;
+                case "NOOP":
+                case "CHECK":
+                    if (selected) {
+                        sendUpdates();
+                    }
+                    send(c.tag + " OK " + name + " completed");
+                    break;
+                case "LOGOUT":
+                    send("* BYE IMAP4rev1 server logging out");
+                    send(c.tag + " OK LOGOUT completed");
+                    return false;
+                case "STARTTLS":
+                    handleStartTls(c);
+                    break;
+                case "LOGIN":
+                    if (admitted(c) && loginPermitted(c)) {
+                        login(c.tag, c.string(0), c.string(1));
+                    }
+                    break;
+                case "AUTHENTICATE":
+                    if (admitted(c) && loginPermitted(c)) {
+                        return handleAuthenticate(c);
+                    }
+                    break;
+                case "SELECT":
+                case "EXAMINE":
+                    if (available(c)) {
+                        handleSelect(c, name.equals("EXAMINE"));
+                    }
+                    break;
+                case "STATUS":
+                    if (available(c)) {
+                        handleStatus(c);
+                    }
+                    break;
+                case "LIST":
+                case "LSUB":
+                    handleList(c);
+                    break;
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE":
+                    send(c.tag + (isInbox(c.string(0)) ? " OK " + name + " completed" : " NO [NONEXISTENT] No such mailbox"));
+                    break;
+                case "CREATE":
+                case "DELETE":
+                case "RENAME":
+                case "APPEND":
+                case "COPY":
+                    send(c.tag + " NO [CANNOT] Only INBOX is supported");
+                    break;
+                case "IDLE":
+                    return handleIdle(c);
+                case "CLOSE":
+                    handleClose(c);
+                    break;
+                case "EXPUNGE":
+                    if (available(c)) {
+                        handleExpunge(c);
+                    }
+                    break;
+                case "FETCH":
+                    if (available(c)) {
+                        handleFetch(c, 0, false);
+                    }
+                    break;
+                case "STORE":
+                    if (available(c)) {
+                        handleStore(c, 0, false);
+                    }
+                    break;
+                case "SEARCH":
+                    if (available(c)) {
+                        handleSearch(c, 0, false);
+                    }
+                    break;
+                case "UID":
+                    handleUid(c);
+                    break;
+                default:
+                    send(c.tag + " BAD Unknown command");
+                    break;
+            }
+        } catch (MailStoreException e) {
+            if (e.isTemporary()) {
+                // Overloaded or timed out: the client can try again.
+                System.err.println("IMAP " + name + " failed, store busy: " + e.getMessage());
+                send(c.tag + " NO [UNAVAILABLE] Server busy, try again later");
+            } else {
+                e.printStackTrace();
+                send(c.tag + " NO [SERVERBUG] Storage error");
+            }
+        }
+        return true;
+    }
+
+    private static boolean needsLogin(String name) {
+        switch (name) {
+            case "CAPABILITY":
+            case "NOOP":
+            case "LOGOUT":
+            case "STARTTLS":
+            case "LOGIN":
+            case "AUTHENTICATE":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean needsSelection(String name) {
+        switch (name) {
+            case "CHECK":
+            case "CLOSE":
+            case "EXPUNGE":
+            case "FETCH":
+            case "STORE":
+            case "SEARCH":
+            case "COPY":
+            case "UID":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleUid(ImapCommand c) throws IOException {
+        String sub = c.string(0).toUpperCase(Locale.ROOT);
+        switch (sub) {
+            case "FETCH":
+                if (available(c)) {
+                    handleFetch(c, 1, true);
+                }
+                break;
+            case "STORE":
+                if (available(c)) {
+                    handleStore(c, 1, true);
+                }
+                break;
+            case "SEARCH":
+                if (available(c)) {
+                    handleSearch(c, 1, true);
+                }
+                break;
+            case "COPY":
+                send(c.tag + " NO [CANNOT] Only INBOX is supported");
+                break;
+            default:
+                send(c.tag + " BAD Unknown UID command");
+                break;
+        }
+    }
+
+    // Login commands cost an AuthService call, so they are rate limited per address.
+    private boolean admitted(ImapCommand c) throws IOException {
+        if (!available(c)) {
+            return false;
+        }
+        if (Admission.allowCommand("imap", clientIp)) {
+            return true;
+        }
+        send(c.tag + " NO [UNAVAILABLE] Too many commands, slow down");
+        return false;
+    }
+
+    // Mailbox commands are shed while the database is at its concurrency limit; NOOP, IDLE,
+    // CLOSE and LOGOUT never are.
+    private boolean available(ImapCommand c) throws IOException {
+        if (!Overload.DB.saturated()) {
+            return true;
+        }
+        MailMetrics.rejected("imap", "overload");
+        send(c.tag + " NO [UNAVAILABLE] Server busy, try again later");
+        return false;
+    }
+
+    private boolean loginDisabled() {
+        return tls == null && MailTls.enabled() && !PLAINTEXT_AUTH;
+    }
+
+    private boolean loginPermitted(ImapCommand c) throws IOException {
+        if (!loginDisabled()) {
+            return true;
+        }
+        send(c.tag + " NO [PRIVACYREQUIRED] Use STARTTLS before logging in");
+        return false;
+    }
+
+    private String capabilities() {
+        StringBuilder caps = new StringBuilder("IMAP4rev1 IDLE");
+        if (!authenticated) {
+            if (tls == null && MailTls.enabled()) {
+                caps.append(" STARTTLS");
+            }
+            caps.append(loginDisabled() ? " LOGINDISABLED" : " AUTH=PLAIN");
+        }
+        return caps.toString();
+    }
+
+    // RFC 3501 6.2.1: plaintext the client pipelined after STARTTLS is dropped with the old stream.
+    private void handleStartTls(ImapCommand c) throws IOException {
+        if (tls != null) {
+            send(c.tag + " BAD TLS already active");
+            return;
+        }
+        if (!MailTls.enabled()) {
+            send(c.tag + " BAD STARTTLS not supported");
+            return;
+        }
+        send(c.tag + " OK Begin TLS negotiation now");
+        out.flush();
+        tls = MailTls.accept("imap", netIn, netOut);
+        line.reset();
+        useStreams();
+    }
+
+    // AUTHENTICATE PLAIN, with the initial response inline or after a continuation.
+    private boolean handleAuthenticate(ImapCommand c) throws IOException {
+        if (!c.string(0).equalsIgnoreCase("PLAIN")) {
+            send(c.tag + " NO [CANNOT] Unsupported authentication mechanism");
+            return true;
+        }
+        String response;
+        if (c.args.size() > 1) {
+            response = c.string(1);
+        } else {
+            send("+ ");
+            out.flush();
+            response = readLine();
+            if (response == null) {
+                return false;
+            }
+            trace.received(response);
+        }
+        if (response.equals("*")) {
+            send(c.tag + " BAD Authentication cancelled");
+            return true;
+        }
+        String[] fields;
+        try {
+            fields = new String(Base64.getDecoder().decode(response), StandardCharsets.UTF_8).split("\0", -1);
+        } catch (IllegalArgumentException e) {
+            fields = new String[0];
+        }
+        if (fields.length != 3) {
+            send(c.tag + " BAD Invalid PLAIN response");
+            return true;
+        }
+        login(c.tag, fields[1], fields[2]);
+        return true;
+    }
+
+    private void login(String tag, String user, String password) throws IOException {
+        if (user.trim().isEmpty()) {
+            send(tag + " NO [AUTHENTICATIONFAILED] Invalid credentials");
+            return;
+        }
+        userHash = UserHash.of(user);
+        trace.user(user);
+
+        if (Admission.authBlocked("imap", clientIp, user)) {
+            send(tag + " NO [UNAVAILABLE] Too many failed logins, try again later");
+            return;
+        }
+        if (!Overload.AUTH.tryAcquire()) {
+            MailMetrics.rejected("imap", "overload");
+            send(tag + " NO [UNAVAILABLE] Server busy, try again later");
+            return;
+        }
+        long authStarted = System.nanoTime();
+        boolean authErrored = true;
+        AuthEvent authEvent = new AuthEvent();
+        authEvent.begin();
+        authEvent.operation = "authenticate";
+        authEvent.user = userHash;
+        try {
+            boolean isAuthenticated = AuthServices.get().authenticate(user, password);
+            MailMetrics.auth("authenticate", authStarted);
+            authErrored = false;
+            Overload.AUTH.release(System.nanoTime() - authStarted, false);
+            authEvent.success = isAuthenticated;
+            if (!isAuthenticated) {
+                authEvent.end(); // the tarpit below is not AuthService time
+                Admission.tarpit(Admission.authFailed(clientIp, user));
+                send(tag + " NO [AUTHENTICATIONFAILED] Invalid credentials");
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            send(tag + " NO [SERVERBUG] Server error during authentication");
+            return;
+        } finally {
+            if (authErrored) {
+                Overload.AUTH.release(System.nanoTime() - authStarted, true);
+            }
+            authEvent.commit();
+        }
+
+        authenticated = true;
+        mailbox = user + "@example.com";
+        Admission.authSucceeded(user);
+        send(tag + " OK [CAPABILITY " + capabilities() + "] Logged in");
+    }
+
+    private static boolean isInbox(String name) {
+        return name.equalsIgnoreCase("INBOX");
+    }
+
+    private void handleSelect(ImapCommand c, boolean examine) throws IOException {
+        // A failed SELECT leaves no mailbox selected.
+        selected = false;
+        uids.clear();
+        if (!isInbox(c.string(0))) {
+            send(c.tag + " NO [NONEXISTENT] No such mailbox");
+            return;
+        }
+        long version = MailboxVersions.current(mailbox);
+        Index index = loadIndex();
+        uids.addAll(index.uids);
+        seenVersion = version;
+        selected = true;
+        readOnly = examine;
+
+        send("* FLAGS " + ImapMessage.ALL_FLAGS);
+        send("* OK [PERMANENTFLAGS " + (examine ? "()" : ImapMessage.ALL_FLAGS) + "] Flags permitted");
+        send("* " + uids.size() + " EXISTS");
+        send("* 0 RECENT");
+        int firstUnseen = index.firstUnseen();
+        if (firstUnseen > 0) {
+            send("* OK [UNSEEN " + firstUnseen + "] First unseen message");
+        }
+        send("* OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid");
+        send("* OK [UIDNEXT " + index.uidNext + "] Predicted next UID");
+        send(c.tag + " OK [" + (examine ? "READ-ONLY" : "READ-WRITE") + "] " + c.name + " completed");
+    }
+
+    private void handleStatus(ImapCommand c) throws IOException {
+        if (!isInbox(c.string(0))) {
+            send(c.tag + " NO [NONEXISTENT] No such mailbox");
+            return;
+        }
+        Index index = loadIndex();
+        StringBuilder status = new StringBuilder();
+        for (Object item : c.list(1)) {
+            String name = String.valueOf(item).toUpperCase(Locale.ROOT);
+            long value;
+            switch (name) {
+                case "MESSAGES":
+                    value = index.uids.size();
+                    break;
+                case "UNSEEN":
+                    value = index.unseen();
+                    break;
+                case "UIDNEXT":
+                    value = index.uidNext;
+                    break;
+                case "UIDVALIDITY":
+                    value = UID_VALIDITY;
+                    break;
+                case "RECENT":
+                    value = 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown status item " + name);
+            }
+            status.append(status.length() > 0 ? " " : "").append(name).append(' ').append(value);
+        }
+        send("* STATUS INBOX (" + status + ")");
+        send(c.tag + " OK STATUS completed");
+    }
+
+    private void handleList(ImapCommand c) throws IOException {
+        String pattern = c.string(1);
+        if (pattern.isEmpty()) {
+            // The hierarchy delimiter and root.
+            send("* " + c.name + " (\\Noselect) \"/\" \"\"");
+        } else if (matchesInbox(c.string(0) + pattern)) {
+            send("* " + c.name + " (\\HasNoChildren) \"/\" INBOX");
+        }
+        send(c.tag + " OK " + c.name + " completed");
+    }
+
+    // LIST wildcards: * matches anything, % anything but the delimiter.
+    private static boolean matchesInbox(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : pattern.split("((?<=[*%])|(?=[*%]))")) {
+            regex.append(part.equals("*") ? ".*" : part.equals("%") ? "[^/]*" : Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE).matcher("INBOX").matches();
+    }
+
+    // RFC 2177. Changes made in this JVM arrive through MailboxVersions.watch; the read
+    // timeout also looks for changes made by other processes every IDLE_POLL_MS.
+    private boolean handleIdle(ImapCommand c) throws IOException {
+        send("+ idling");
+        out.flush();
+        String done;
+        if (selected) {
+            MailboxVersions.watch(mailbox, onMailboxChange);
+        }
+        synchronized (outputLock) {
+            idling = true;
+        }
+        socket.setSoTimeout(IDLE_POLL_MS);
+        try {
+            while (true) {
+                try {
+                    done = readLine();
+                    break;
+                } catch (SocketTimeoutException e) {
+                    if (selected) {
+                        pushUpdates();
+                    }
+                }
+            }
+        } finally {
+            if (selected) {
+                MailboxVersions.unwatch(mailbox, onMailboxChange);
+            }
+            synchronized (outputLock) {
+                idling = false;
+            }
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(0);
+            }
+        }
+        if (done == null) {
+            return false;
+        }
+        trace.received(done);
+        send(c.tag + (done.trim().equalsIgnoreCase("DONE") ? " OK IDLE terminated" : " BAD Expected DONE"));
+        return true;
+    }
+
+    // Runs on the thread that changed the mailbox: only hands the work to IDLE_UPDATES.
+    private void queueUpdate() {
+        if (updateQueued.compareAndSet(false, true)) {
+            IDLE_UPDATES.execute(this::pushUpdates);
+        }
+    }
+
+    private void pushUpdates() {
+        updateQueued.set(false);
+        synchronized (outputLock) {
+            if (!idling) {
+                return;
+            }
+            try {
+                if (sendUpdates()) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the session thread sees the broken connection on its next read
+            }
+        }
+    }
+
+    // Tells the client about messages expunged or added by others since it last heard, if
+    // the mailbox version says anything changed. Returns true if something was sent.
+    private boolean sendUpdates() throws IOException {
+        long version = MailboxVersions.current(mailbox);
+        if (version < 0 || version == seenVersion) {
+            return false;
+        }
+        List<Long> live;
+        try {
+            live = loadIndex().uids;
+        } catch (MailStoreException e) {
+            System.err.println("IMAP mailbox update failed: " + e.getMessage());
+            return false;
+        }
+        seenVersion = version;
+        boolean sent = false;
+        Set<Long> present = new HashSet<>(live);
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            if (!present.contains(uids.get(i))) {
+                uids.remove(i);
+                send("* " + (i + 1) + " EXPUNGE");
+                sent = true;
+            }
+        }
+        // Only UIDs above the last known one can be appended; a row committed out of id
+        // order shows up at the next SELECT.
+        long last = uids.isEmpty() ? 0 : uids.get(uids.size() - 1);
+        int before = uids.size();
+        for (long uid : live) {
+            if (uid > last) {
+                uids.add(uid);
+            }
+        }
+        if (uids.size() != before) {
+            send("* " + uids.size() + " EXISTS");
+            sent = true;
+        }
+        return sent;
+    }
+
+    private void handleClose(ImapCommand c) throws IOException {
+        if (!readOnly) {
+            try {
+                expungeDeleted();
+            } catch (MailStoreException e) {
+                // CLOSE still succeeds; the messages keep their \Deleted flag
+                System.err.println("IMAP CLOSE could not expunge: " + e.getMessage());
+            }
+        }
+        selected = false;
+        uids.clear();
+        send(c.tag + " OK CLOSE completed");
+    }
+
+    private void handleExpunge(ImapCommand c) throws IOException {
+        if (readOnly) {
+            send(c.tag + " NO [READ-ONLY] Mailbox is read-only");
+            return;
+        }
+        Set<Long> expunged = new HashSet<>(expungeDeleted());
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            if (expunged.contains(uids.get(i))) {
+                uids.remove(i);
+                send("* " + (i + 1) + " EXPUNGE");
+            }
+        }
+        send(c.tag + " OK EXPUNGE completed");
+    }
+
+    private void handleFetch(ImapCommand c, int first, boolean byUid) throws IOException {
+        ImapCommand.SequenceSet set = ImapCommand.SequenceSet.parse(c.string(first));
+        List<FetchItem> items = FetchItem.parseAll(c.list(first + 1), byUid);
+        boolean withBody = items.stream().anyMatch(FetchItem::needsBody);
+        boolean marksSeen = !readOnly && items.stream().anyMatch(item -> item.marksSeen);
+
+        List<Integer> positions = select(set, byUid);
+        Map<Long, ImapMessage> messages = loadMessages(uidsAt(positions), withBody);
+
+        List<ImapMessage> newlySeen = new ArrayList<>();
+        if (marksSeen) {
+            for (ImapMessage message : messages.values()) {
+                if (!message.has(ImapMessage.SEEN)) {
+                    message.flags |= ImapMessage.SEEN;
+                    newlySeen.add(message);
+                }
+            }
+            updateFlags(newlySeen);
+        }
+
+        boolean fetchesFlags = items.stream().anyMatch(item -> item.name.equals("FLAGS"));
+        for (int position : positions) {
+            ImapMessage message = messages.get(uids.get(position));
+            if (message == null) {
+                continue; // expunged by another session since the client last heard
+            }
+            ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+            long streamed = 0;
+            ImapMessage.ascii(response, "* " + (position + 1) + " FETCH (");
+            for (int i = 0; i < items.size(); i++) {
+                if (i > 0) {
+                    ImapMessage.ascii(response, " ");
+                }
+                streamed += items.get(i).write(message, response, out);
+            }
+            if (!fetchesFlags && newlySeen.contains(message)) {
+                ImapMessage.ascii(response, " FLAGS " + message.flagList());
+            }
+            ImapMessage.ascii(response, ")\r\n");
+            trace.sent("* " + (position + 1) + " FETCH");
+            lastMessageSize += streamed + response.size();
+            response.writeTo(out);
+        }
+        send(c.tag + " OK FETCH completed");
+    }
+
+    private void handleStore(ImapCommand c, int first, boolean byUid) throws IOException {
+        if (readOnly) {
+            send(c.tag + " NO [READ-ONLY] Mailbox is read-only");
+            return;
+        }
+        ImapCommand.SequenceSet set = ImapCommand.SequenceSet.parse(c.string(first));
+        String operation = c.string(first + 1).toUpperCase(Locale.ROOT);
+        boolean silent = operation.endsWith(".SILENT");
+        if (silent) {
+            operation = operation.substring(0, operation.length() - ".SILENT".length());
+        }
+        if (!operation.equals("FLAGS") && !operation.equals("+FLAGS") && !operation.equals("-FLAGS")) {
+            throw new IllegalArgumentException("Unknown STORE operation " + operation);
+        }
+        List<Object> names = new ArrayList<>();
+        for (int i = first + 2; i < c.args.size(); i++) {
+            names.addAll(c.list(i));
+        }
+        int bits = ImapMessage.flagBits(names);
+
+        List<Integer> positions = select(set, byUid);
+        Map<Long, ImapMessage> messages = loadMessages(uidsAt(positions), false);
+        List<ImapMessage> changed = new ArrayList<>();
+        for (ImapMessage message : messages.values()) {
+            int flags = operation.equals("FLAGS") ? bits
+                    : operation.equals("+FLAGS") ? message.flags | bits : message.flags & ~bits;
+            if (flags != message.flags) {
+                message.flags = flags;
+                changed.add(message);
+            }
+        }
+        updateFlags(changed);
+
+        if (!silent) {
+            for (int position : positions) {
+                ImapMessage message = messages.get(uids.get(position));
+                if (message != null) {
+                    send("* " + (position + 1) + " FETCH (" + (byUid ? "UID " + message.uid + " " : "")
+                            + "FLAGS " + message.flagList() + ")");
+                }
+            }
+        }
+        send(c.tag + " OK STORE completed");
+    }
+
+    private void handleSearch(ImapCommand c, int first, boolean byUid) throws IOException {
+        List<Object> keys = new ArrayList<>(c.args.subList(first, c.args.size()));
+        if (keys.size() >= 2 && String.valueOf(keys.get(0)).equalsIgnoreCase("CHARSET")) {
+            String charset = String.valueOf(keys.get(1));
+            if (!charset.equalsIgnoreCase("UTF-8") && !charset.equalsIgnoreCase("US-ASCII")) {
+                send(c.tag + " NO [BADCHARSET (UTF-8 US-ASCII)] Unsupported charset");
+                return;
+            }
+            keys = keys.subList(2, keys.size());
+        }
+        Search search = new Search(keys, uids.size(), uids.isEmpty() ? 0 : uids.get(uids.size() - 1));
+
+        // Metadata comes in one listing; bodies a page at a time, dropped once matched, so
+        // the mailbox is never in memory whole.
+        StringBuilder hits = new StringBuilder("* SEARCH");
+        int page = search.needsBody ? SEARCH_PAGE : Math.max(uids.size(), 1);
+        for (int from = 0; from < uids.size(); from += page) {
+            int to = Math.min(uids.size(), from + page);
+            Map<Long, ImapMessage> messages = search.needsBody
+                    ? loadMessages(new ArrayList<>(uids.subList(from, to)), true) : loadMessages(null, false);
+            for (int i = from; i < to; i++) {
+                ImapMessage message = messages.get(uids.get(i));
+                if (message != null && search.matches(i + 1, message)) {
+                    hits.append(' ').append(byUid ? message.uid : i + 1);
+                }
+            }
+        }
+        send(hits.toString());
+        send(c.tag + " OK SEARCH completed");
+    }
+
+    // Positions (0-based sequence numbers) of the messages in the set.
+    private List<Integer> select(ImapCommand.SequenceSet set, boolean byUid) {
+        long star = byUid ? (uids.isEmpty() ? 0 : uids.get(uids.size() - 1)) : uids.size();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < uids.size(); i++) {
+            if (set.contains(byUid ? uids.get(i) : i + 1, star)) {
+                positions.add(i);
+            }
+        }
+        return positions;
+    }
+
+    private List<Long> uidsAt(List<Integer> positions) {
+        List<Long> selection = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            selection.add(uids.get(position));
+        }
+        return selection;
+    }
+
+    private void useStreams() {
+        in = new BufferedInputStream(tls != null ? tls.in() : netIn);
+        out = new BufferedOutputStream(tls != null ? tls.out() : netOut);
+    }
+
+    // Writes one response line; the caller flushes once the whole response is written.
+    private void send(String text) throws IOException {
+        trace.sent(text);
+        out.write((text + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // One command, with the literals it announces read and inlined as quoted strings; null at
+    // the end of the stream.
+    private String readCommand() throws IOException {
+        StringBuilder command = new StringBuilder();
+        while (true) {
+            String part = readLine();
+            if (part == null) {
+                return null;
+            }
+            int open = part.endsWith("}") ? part.lastIndexOf('{') : -1;
+            if (open < 0) {
+                return command.append(part).toString();
+            }
+            String size = part.substring(open + 1, part.length() - 1);
+            boolean synchronizing = !size.endsWith("+");
+            long length;
+            try {
+                length = Long.parseLong(synchronizing ? size : size.substring(0, size.length() - 1));
+            } catch (NumberFormatException e) {
+                return command.append(part).toString(); // not a literal; the parser complains
+            }
+            command.append(part, 0, open);
+            if (length > MAX_LINE || command.length() > MAX_LINE) {
+                send(ImapCommand.tagOf(command.toString()) + " BAD Command too long");
+                out.flush();
+                if (!synchronizing) {
+                    in.skipNBytes(length);
+                }
+                command.setLength(0);
+                continue;
+            }
+            if (synchronizing) {
+                send("+ Ready for literal data");
+                out.flush();
+            }
+            byte[] literal = in.readNBytes((int) length);
+            if (literal.length < length) {
+                throw new EOFException("Connection closed in a literal");
+            }
+            command.append(ImapCommand.quote(new String(literal, StandardCharsets.UTF_8)));
+        }
+    }
+
+    // One line without its line end; null at the end of the stream.
+    private String readLine() throws IOException {
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (b == '\n') {
+                String text = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("Command line too long");
+            }
+            line.write(b);
+        }
+    }
+
+    // --- store ---
+
+    // UIDs and flags of the live messages in UID order, and the next UID.
+    private Index loadIndex() throws MailStoreException {
+        MailStore store = MailStores.get();
+        Index index = new Index();
+        for (StoredMail mail : store.list(mailbox)) {
+            index.uids.add(mail.id);
+            index.flags.add(mail.flags);
+        }
+        // Messages deleted but not purged yet still count for UIDNEXT, which must never go down.
+        index.uidNext = store.highestId(mailbox) + 1;
+        return index;
+    }
+
+    // The live messages among uids (all of the mailbox if null), by UID, with the list of their
+    // attachments. The content is only read withBody.
+    private Map<Long, ImapMessage> loadMessages(List<Long> selection, boolean withBody) throws MailStoreException {
+        Map<Long, ImapMessage> messages = new HashMap<>();
+        Collection<StoredMail> found = selection == null
+                ? MailStores.get().page(mailbox, 0, Integer.MAX_VALUE, withBody)
+                : MailStores.get().fetch(mailbox, selection, withBody).values();
+        for (StoredMail mail : found) {
+            messages.put(mail.id, new ImapMessage(mail));
+        }
+        for (Map.Entry<Long, List<MailAttachment>> attached : MailAttachments.list(mailbox, messages.keySet()).entrySet()) {
+            messages.get(attached.getKey()).attach(attached.getValue());
+        }
+        return messages;
+    }
+
+    // Stores the flags of the changed messages. Nothing changed, nothing written: a bump would
+    // drop cached listings, change ETags and wake every IDLE on the mailbox for no news.
+    private void updateFlags(Collection<ImapMessage> changed) throws MailStoreException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        Map<Long, Integer> flags = new HashMap<>();
+        for (ImapMessage message : changed) {
+            flags.put(message.uid, message.flags);
+        }
+        MailStores.get().setFlags(mailbox, flags);
+        MailboxVersions.bump(mailbox);
+    }
+
+    // Commits the deletion of the \Deleted messages; MailPurger removes them later.
+    // Returns their UIDs.
+    private List<Long> expungeDeleted() throws MailStoreException {
+        Index index = loadIndex();
+        List<Long> deleted = new ArrayList<>();
+        for (int i = 0; i < index.uids.size(); i++) {
+            if ((index.flags.get(i) & ImapMessage.DELETED) != 0) {
+                deleted.add(index.uids.get(i));
+            }
+        }
+        if (deleted.isEmpty()) {
+            return deleted;
+        }
+        MailStores.get().markDeleted(mailbox, deleted, true);
+        MailboxVersions.bump(mailbox);
+        return deleted;
+    }
+
+    private static final class Index {
+        final List<Long> uids = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        long uidNext = 1;
+
+        int unseen() {
+            return (int) flags.stream().filter(f -> (f & ImapMessage.SEEN) == 0).count();
+        }
+
+        // Sequence number of the first unseen message, 0 if there is none.
+        int firstUnseen() {
+            for (int i = 0; i < flags.size(); i++) {
+                if ((flags.get(i) & ImapMessage.SEEN) == 0) {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** One data item of a FETCH: FLAGS, ENVELOPE, BODY.PEEK[HEADER.FIELDS (SUBJECT)]&lt;0.100&gt;, ... */
+    private static final class FetchItem {
+        final String name;
+        // Only for BODY[...]: the section, its header field names, the partial range and the reply label.
+        String section;
+        List<Object> fields = List.of();
+        long start = -1;
+        long count;
+        String label;
+        boolean marksSeen;
+
+        private FetchItem(String name) {
+            this.name = name;
+        }
+
+        static List<FetchItem> parseAll(List<Object> atoms, boolean byUid) {
+            List<Object> expanded = new ArrayList<>();
+            for (Object atom : atoms) {
+                String text = String.valueOf(atom);
+                switch (text.toUpperCase(Locale.ROOT)) {
+                    case "ALL":
+                        expanded.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE"));
+                        break;
+                    case "FAST":
+                        expanded.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                        break;
+                    case "FULL":
+                        expanded.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE", "BODY"));
+                        break;
+                    default:
+                        expanded.add(text);
+                }
+            }
+            List<FetchItem> items = new ArrayList<>();
+            if (byUid && expanded.stream().noneMatch(a -> String.valueOf(a).equalsIgnoreCase("UID"))) {
+                items.add(new FetchItem("UID"));
+            }
+            for (Object atom : expanded) {
+                items.add(parse(String.valueOf(atom)));
+            }
+            return items;
+        }
+
+        private static FetchItem parse(String atom) {
+            int bracket = atom.indexOf('[');
+            if (bracket < 0) {
+                String name = atom.toUpperCase(Locale.ROOT);
+                switch (name) {
+                    case "UID":
+                    case "FLAGS":
+                    case "INTERNALDATE":
+                    case "RFC822.SIZE":
+                    case "ENVELOPE":
+                    case "BODY":
+                    case "BODYSTRUCTURE":
+                    case "RFC822.HEADER":
+                        return new FetchItem(name);
+                    case "RFC822":
+                    case "RFC822.TEXT":
+                        FetchItem item = new FetchItem(name);
+                        item.marksSeen = true;
+                        return item;
+                    default:
+                        throw new IllegalArgumentException("Unknown FETCH item " + atom);
+                }
+            }
+            String prefix = atom.substring(0, bracket).toUpperCase(Locale.ROOT);
+            if (!prefix.equals("BODY") && !prefix.equals("BODY.PEEK")) {
+                throw new IllegalArgumentException("Unknown FETCH item " + atom);
+            }
+            int close = atom.lastIndexOf(']');
+            String inner = atom.substring(bracket + 1, close);
+            String partial = atom.substring(close + 1);
+
+            FetchItem item = new FetchItem("BODY[");
+            item.marksSeen = prefix.equals("BODY");
+            int paren = inner.indexOf('(');
+            item.section = (paren < 0 ? inner : inner.substring(0, paren)).trim().toUpperCase(Locale.ROOT);
+            if (paren >= 0) {
+                List<Object> fields = new ArrayList<>();
+                for (String field : inner.substring(paren + 1, inner.lastIndexOf(')')).trim().split("\\s+")) {
+                    if (!field.isEmpty()) {
+                        fields.add(field.replace("\"", ""));
+                    }
+                }
+                item.fields = fields;
+            }
+            item.label = "BODY[" + inner + "]";
+            if (!partial.isEmpty()) {
+                if (!partial.startsWith("<") || !partial.endsWith(">") || !partial.contains(".")) {
+                    throw new IllegalArgumentException("Invalid partial " + partial);
+                }
+                String[] range = partial.substring(1, partial.length() - 1).split("\\.");
+                try {
+                    item.start = Long.parseLong(range[0]);
+                    item.count = Long.parseLong(range[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Invalid partial " + partial);
+                }
+                item.label += "<" + item.start + ">";
+            }
+            return item;
+        }
+
+        boolean needsBody() {
+            return name.equals("RFC822") || name.equals("RFC822.TEXT") || name.equals("BODY") || name.equals("BODYSTRUCTURE")
+                    || (name.equals("BODY[") && ImapMessage.needsBody(section));
+        }
+
+        // Adds the item to the response in out, or for a section that streams, sends out and
+        // then the section to sink; returns the octets sent to sink.
+        long write(ImapMessage message, ByteArrayOutputStream out, OutputStream sink) throws IOException {
+            switch (name) {
+                case "UID":
+                    ImapMessage.ascii(out, "UID " + message.uid);
+                    break;
+                case "FLAGS":
+                    ImapMessage.ascii(out, "FLAGS " + message.flagList());
+                    break;
+                case "INTERNALDATE":
+                    ImapMessage.ascii(out, "INTERNALDATE " + message.internalDate());
+                    break;
+                case "RFC822.SIZE":
+                    ImapMessage.ascii(out, "RFC822.SIZE " + message.size());
+                    break;
+                case "ENVELOPE":
+                    ImapMessage.ascii(out, "ENVELOPE ");
+                    message.envelope(out);
+                    break;
+                case "BODY":
+                case "BODYSTRUCTURE":
+                    ImapMessage.ascii(out, name + " ");
+                    message.bodyStructure(out, name.equals("BODYSTRUCTURE"));
+                    break;
+                case "RFC822":
+                    ImapMessage.ascii(out, "RFC822 ");
+                    return literal(message, "", out, sink);
+                case "RFC822.HEADER":
+                    ImapMessage.ascii(out, "RFC822.HEADER ");
+                    ImapMessage.literal(out, message.section("HEADER", fields));
+                    break;
+                case "RFC822.TEXT":
+                    ImapMessage.ascii(out, "RFC822.TEXT ");
+                    return literal(message, "TEXT", out, sink);
+                default:
+                    ImapMessage.ascii(out, label + " ");
+                    return literal(message, section, out, sink);
+            }
+            return 0;
+        }
+
+        // The section, or its partial range, as a literal.
+        private long literal(ImapMessage message, String section, ByteArrayOutputStream out, OutputStream sink) throws IOException {
+            if (!message.streams(section)) {
+                ImapMessage.literal(out, partial(message.section(section, fields)));
+                return 0;
+            }
+            long size = message.sectionSize(section);
+            long from = start < 0 ? 0 : Math.min(start, size);
+            long length = start < 0 ? size : Math.min(count, size - from);
+            ImapMessage.ascii(out, "{" + length + "}\r\n");
+            long sent = out.size() + length;
+            out.writeTo(sink);
+            out.reset();
+            message.writeSection(section, from, length, sink);
+            return sent;
+        }
+
+        private byte[] partial(byte[] data) {
+            if (start < 0) {
+                return data;
+            }
+            int from = (int) Math.min(start, data.length);
+            int to = (int) Math.min(data.length, from + count);
+            return Arrays.copyOfRange(data, from, to);
+        }
+    }
+
+    /** SEARCH keys (RFC 3501 6.4.4) compiled once and matched against each message. */
+    private static final class Search {
+
+        private interface Key {
+            boolean matches(int sequence, ImapMessage message);
+        }
+
+        final boolean needsBody;
+        private final Key key;
+        private final List<Object> keys;
+        private final long maxSequence;
+        private final long maxUid;
+        private int pos;
+        private boolean bodyKeys;
+
+        Search(List<Object> keys, long maxSequence, long maxUid) {
+            this.keys = keys;
+            this.maxSequence = maxSequence;
+            this.maxUid = maxUid;
+            List<Key> all = new ArrayList<>();
+            while (pos < keys.size()) {
+                all.add(next());
+            }
+            if (all.isEmpty()) {
+                throw new IllegalArgumentException("Missing search key");
+            }
+            this.key = and(all);
+            this.needsBody = bodyKeys;
+        }
+
+        boolean matches(int sequence, ImapMessage message) {
+            return key.matches(sequence, message);
+        }
+
+        private static Key and(List<Key> all) {
+            return (s, m) -> all.stream().allMatch(k -> k.matches(s, m));
+        }
+
+        @SuppressWarnings("unchecked")
+        private Key next() {
+            if (pos >= keys.size()) {
+                throw new IllegalArgumentException("Missing search key");
+            }
+            Object token = keys.get(pos++);
+            if (token instanceof List) {
+                Search group = new Search((List<Object>) token, maxSequence, maxUid);
+                bodyKeys |= group.needsBody;
+                return group.key;
+            }
+            String atom = String.valueOf(token);
+            if (ImapCommand.SequenceSet.looksLike(atom)) {
+                ImapCommand.SequenceSet set = ImapCommand.SequenceSet.parse(atom);
+                return (s, m) -> set.contains(s, maxSequence);
+            }
+            switch (atom.toUpperCase(Locale.ROOT)) {
+                case "ALL":
+                case "OLD":
+                    return (s, m) -> true;
+                case "NEW":
+                case "RECENT":
+                    return (s, m) -> false;
+                case "SEEN":
+                    return flag(ImapMessage.SEEN, true);
+                case "UNSEEN":
+                    return flag(ImapMessage.SEEN, false);
+                case "ANSWERED":
+                    return flag(ImapMessage.ANSWERED, true);
+                case "UNANSWERED":
+                    return flag(ImapMessage.ANSWERED, false);
+                case "FLAGGED":
+                    return flag(ImapMessage.FLAGGED, true);
+                case "UNFLAGGED":
+                    return flag(ImapMessage.FLAGGED, false);
+                case "DELETED":
+                    return flag(ImapMessage.DELETED, true);
+                case "UNDELETED":
+                    return flag(ImapMessage.DELETED, false);
+                case "DRAFT":
+                    return flag(ImapMessage.DRAFT, true);
+                case "UNDRAFT":
+                    return flag(ImapMessage.DRAFT, false);
+                case "KEYWORD":
+                    argument();
+                    return (s, m) -> false;
+                case "UNKEYWORD":
+                    argument();
+                    return (s, m) -> true;
+                case "FROM":
+                    return contains(argument(), m -> m.sender);
+                case "TO":
+                    return contains(argument(), m -> m.recipient);
+                case "SUBJECT":
+                    return contains(argument(), m -> m.subject);
+                case "CC":
+                case "BCC":
+                    return contains(argument(), m -> "");
+                case "HEADER": {
+                    String field = argument().toLowerCase(Locale.ROOT);
+                    String value = argument();
+                    return contains(value, m -> new String(m.headerFields(List.of(field), false), StandardCharsets.UTF_8));
+                }
+                case "BODY":
+                    bodyKeys = true;
+                    return contains(argument(), ImapMessage::bodyText);
+                case "TEXT":
+                    bodyKeys = true;
+                    return contains(argument(), m -> new String(m.header(), StandardCharsets.UTF_8) + m.bodyText());
+                case "LARGER": {
+                    long size = number();
+                    return (s, m) -> m.size() > size;
+                }
+                case "SMALLER": {
+                    long size = number();
+                    return (s, m) -> m.size() < size;
+                }
+                case "BEFORE":
+                case "SENTBEFORE": {
+                    LocalDate date = date();
+                    return (s, m) -> day(m).isBefore(date);
+                }
+                case "ON":
+                case "SENTON": {
+                    LocalDate date = date();
+                    return (s, m) -> day(m).isEqual(date);
+                }
+                case "SINCE":
+                case "SENTSINCE": {
+                    LocalDate date = date();
+                    return (s, m) -> !day(m).isBefore(date);
+                }
+                case "UID": {
+                    ImapCommand.SequenceSet set = ImapCommand.SequenceSet.parse(argument());
+                    return (s, m) -> set.contains(m.uid, maxUid);
+                }
+                case "NOT": {
+                    Key negated = next();
+                    return (s, m) -> !negated.matches(s, m);
+                }
+                case "OR": {
+                    Key left = next();
+                    Key right = next();
+                    return (s, m) -> left.matches(s, m) || right.matches(s, m);
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown search key " + atom);
+            }
+        }
+
+        private static Key flag(int flag, boolean set) {
+            return (s, m) -> m.has(flag) == set;
+        }
+
+        private static Key contains(String needle, Function<ImapMessage, String> field) {
+            String lower = needle.toLowerCase(Locale.ROOT);
+            return (s, m) -> {
+                String value = field.apply(m);
+                return value != null && value.toLowerCase(Locale.ROOT).contains(lower);
+            };
+        }
+
+        private String argument() {
+            if (pos >= keys.size() || !(keys.get(pos) instanceof String)) {
+                throw new IllegalArgumentException("Missing search argument");
+            }
+            return (String) keys.get(pos++);
+        }
+
+        private long number() {
+            try {
+                return Long.parseLong(argument());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number");
+            }
+        }
+
+        private LocalDate date() {
+            try {
+                return LocalDate.parse(argument(), SEARCH_DATE);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date");
+            }
+        }
+
+        private static LocalDate day(ImapMessage message) {
+            return message.date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        }
+    }
+}
@@ -0,0 +1,722 @@
+package org.example;
+
+import org.example.jfr.JdbcEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link MailStore} over the emails table, through {@link MailDb}: one row per stored copy.
+ * Deletion sets is_deleted, and its commit stamps deleted_at; the columns and tables added
+ * since the table was first created are added on first use where missing.
+ *
+ * Bodies are stored once per content in email_bodies, keyed by their SHA-256, with a count
+ * of the rows that point to them through body_hash: a broadcast to many recipients, or the
+ * same newsletter again, adds a row per copy but only bumps the count of the body. The
+ * purge takes the count down as it removes rows, and then removes bodies nothing points to.
+ * Rows stored before this, and empty bodies, keep the body in the content column.
+ *
+ * Bodies of mail.store.compress-threshold UTF-8 bytes (1024) or more are stored deflated
+ * (level mail.store.compress-level, 1) in email_bodies.data behind a format byte, with an
+ * empty content; size stays the uncompressed length, so POP3 octet counts are exact. Both
+ * ways stream through a Deflater or Inflater kept per thread.
+ *
+ * A store works on one {@link MailShard}, shard 0 unless given another; {@link ShardedMailStore}
+ * keeps one per shard. Every call takes its own connection, so calls are shed with a temporary
+ * {@link MailStoreException} while {@link Overload#DB} is at its limit, except
+ * {@link #commitDeleted}.
+ *
+ * Listings and bodies are read from a read replica of the shard when {@link MailShard#replica}
+ * picks one; a message looked up by id that the replica does not have is looked up again on the
+ * primary. Every write sends the reads of its mailbox to the primary for a while.
+ */
+public class JdbcMailStore implements MailStore {
+
+    // Ids per IN list when fetching a selection.
+    private static final int BATCH = 500;
+    private static final String COLUMNS = "e.id, e.recipient_email, e.sender, e.subject, e.date_sent, e.flags, "
+            + "COALESCE(b.size, OCTET_LENGTH(e.content)) AS size";
+    private static final String BODY = "COALESCE(b.content, e.content) AS content, b.data";
+    private static final String FROM = " FROM emails e LEFT JOIN email_bodies b ON b.hash = e.body_hash ";
+    // First byte of email_bodies.data: the body as a raw deflate stream.
+    private static final int DEFLATE = 1;
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final MailShard shard;
+    private final int compressThreshold;
+    private final int compressLevel;
+
+    public JdbcMailStore() {
+        this(MailShards.get(0));
+    }
+
+    public JdbcMailStore(MailShard shard) {
+        this(shard, Integer.getInteger("mail.store.compress-threshold", 1024), Integer.getInteger("mail.store.compress-level", 1));
+    }
+
+    public JdbcMailStore(int compressThreshold, int compressLevel) {
+        this(MailShards.get(0), compressThreshold, compressLevel);
+    }
+
+    // Bodies of compressThreshold bytes or more are stored deflated at compressLevel.
+    public JdbcMailStore(MailShard shard, int compressThreshold, int compressLevel) {
+        this.shard = shard;
+        this.compressThreshold = compressThreshold;
+        this.compressLevel = compressLevel;
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("store");
+        String content = body == null ? "" : body;
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        String hash = content.isEmpty() ? null : sha256(bytes);
+        String sql = "INSERT INTO emails (sender, content, body_hash, date_sent, recipient_email, subject) VALUES (?, ?, ?, ?, ?, ?)";
+
+        try (Connection con = connection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement pst = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                if (hash != null) {
+                    jdbc.rows += reference(con, hash, content, bytes, recipients.size());
+                }
+                List<Long> ids = new ArrayList<>(recipients.size());
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                for (String recipientEmail : recipients) {
+                    pst.setString(1, sender);
+                    pst.setString(2, hash == null ? content : null);
+                    pst.setString(3, hash);
+                    pst.setTimestamp(4, now);
+                    pst.setString(5, recipientEmail);
+                    pst.setString(6, subject);
+                    jdbc.rows += pst.executeUpdate();
+                    try (ResultSet keys = pst.getGeneratedKeys()) {
+                        ids.add(keys.next() ? keys.getLong(1) : 0L);
+                    }
+                }
+                con.commit();
+                return ids;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            recipients.forEach(MailReplicas::wrote);
+            MailMetrics.db("store", started);
+            jdbc.commit();
+        }
+    }
+
+    // Adds count references to the body with the given hash, storing it if it is new; the
+    // content is only sent to the database in that case.
+    private int reference(Connection con, String hash, String content, byte[] bytes, int count) throws SQLException {
+        String updateSql = "UPDATE email_bodies SET refs = refs + ? WHERE hash = ?";
+        String insertSql = "INSERT INTO email_bodies (hash, content, size, refs, data) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement update = con.prepareStatement(updateSql)) {
+            update.setInt(1, count);
+            update.setString(2, hash);
+            if (update.executeUpdate() > 0) {
+                return 1;
+            }
+            try (PreparedStatement insert = con.prepareStatement(insertSql)) {
+                boolean compress = bytes.length >= compressThreshold;
+                insert.setString(1, hash);
+                insert.setString(2, compress ? "" : content);
+                insert.setLong(3, bytes.length);
+                insert.setInt(4, count);
+                if (compress) {
+                    // Deflated as the driver reads it, not into a buffer first.
+                    Deflater deflater = DEFLATERS.get();
+                    deflater.reset();
+                    deflater.setLevel(compressLevel);
+                    insert.setBinaryStream(5, new SequenceInputStream(new ByteArrayInputStream(new byte[]{DEFLATE}),
+                            new DeflaterInputStream(new ByteArrayInputStream(bytes), deflater)));
+                } else {
+                    insert.setNull(5, Types.BLOB);
+                }
+                return insert.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // Stored by another transaction meanwhile; a failed statement leaves ours usable.
+                return update.executeUpdate();
+            }
+        }
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        long started = System.nanoTime();
+        String query = withBody ? "page_body" : "list";
+        JdbcEvent jdbc = JdbcEvent.start(query);
+        // Ordered as idx_emails_recipient is, so the page is read off the index and the LIMIT
+        // stops it, rather than the rest of the mailbox being joined and sorted each time.
+        String sql = "SELECT " + COLUMNS + (withBody ? ", " + BODY : "") + FROM
+                + "WHERE e.recipient_email = ? AND e.is_deleted = 0 AND e.id > ? ORDER BY e.recipient_email, e.id LIMIT ?";
+
+        try (Connection con = readConnection(replica(mailbox));
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setString(1, mailbox);
+            pst.setLong(2, afterId);
+            pst.setInt(3, limit);
+            List<StoredMail> messages = new ArrayList<>();
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(read(rs, withBody));
+                }
+            }
+            jdbc.rows = messages.size();
+            return messages;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db(query, started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        MailReplica replica = replica(mailbox);
+        Map<Long, StoredMail> messages = fetch(mailbox, ids, withBody, replica);
+        if (replica != null && messages.size() < ids.size()) {
+            // Perhaps too new for the replica.
+            List<Long> missing = new ArrayList<>();
+            for (Long id : ids) {
+                if (!messages.containsKey(id)) {
+                    missing.add(id);
+                }
+            }
+            messages.putAll(fetch(mailbox, missing, withBody, null));
+        }
+        return messages;
+    }
+
+    private Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody, MailReplica replica)
+            throws MailStoreException {
+        Map<Long, StoredMail> messages = new HashMap<>();
+        if (ids.isEmpty()) {
+            return messages;
+        }
+        long started = System.nanoTime();
+        String query = withBody ? "fetch_body" : "fetch";
+        JdbcEvent jdbc = JdbcEvent.start(query);
+        List<Long> all = new ArrayList<>(ids);
+
+        try (Connection con = readConnection(replica)) {
+            for (int from = 0; from < all.size(); from += BATCH) {
+                List<Long> batch = all.subList(from, Math.min(all.size(), from + BATCH));
+                String sql = "SELECT " + COLUMNS + (withBody ? ", " + BODY : "") + FROM
+                        + "WHERE e.recipient_email = ? AND e.is_deleted = 0 AND e.id IN (" + "?,".repeat(batch.size() - 1) + "?)";
+                try (PreparedStatement pst = con.prepareStatement(sql)) {
+                    pst.setString(1, mailbox);
+                    for (int i = 0; i < batch.size(); i++) {
+                        pst.setLong(i + 2, batch.get(i));
+                    }
+                    try (ResultSet rs = pst.executeQuery()) {
+                        while (rs.next()) {
+                            StoredMail mail = read(rs, withBody);
+                            messages.put(mail.id, mail);
+                        }
+                    }
+                }
+            }
+            jdbc.rows = messages.size();
+            return messages;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db(query, started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        MailReplica replica = replica(mailbox);
+        // Retried on the primary if missing, perhaps too new for the replica.
+        return writeBody(mailbox, id, out, replica) || replica != null && writeBody(mailbox, id, out, null);
+    }
+
+    private boolean writeBody(String mailbox, long id, Writer out, MailReplica replica) throws MailStoreException, IOException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("body");
+        String sql = "SELECT " + BODY + FROM + "WHERE e.id = ? AND e.recipient_email = ? AND e.is_deleted = 0";
+
+        try (Connection con = readConnection(replica);
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setLong(1, id);
+            pst.setString(2, mailbox);
+            try (ResultSet rs = pst.executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                jdbc.rows = 1;
+                try (Reader content = body(rs)) {
+                    if (content != null) {
+                        content.transferTo(out);
+                    }
+                }
+                return true;
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("body", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("mailbox_of");
+        String sql = "SELECT recipient_email FROM emails WHERE id = ? AND is_deleted = 0";
+
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setLong(1, id);
+            try (ResultSet rs = pst.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                jdbc.rows = 1;
+                return rs.getString(1);
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("mailbox_of", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("highest_id");
+        String sql = "SELECT MAX(id) FROM emails WHERE recipient_email = ?";
+
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setString(1, mailbox);
+            try (ResultSet rs = pst.executeQuery()) {
+                jdbc.rows = 1;
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("highest_id", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        Set<Long> retained = new HashSet<>();
+        if (ids.isEmpty()) {
+            return retained;
+        }
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("retained");
+        List<Long> all = new ArrayList<>(ids);
+
+        try (Connection con = connection()) {
+            for (int from = 0; from < all.size(); from += BATCH) {
+                List<Long> batch = all.subList(from, Math.min(all.size(), from + BATCH));
+                String sql = "SELECT id FROM emails WHERE recipient_email = ? AND id IN ("
+                        + "?,".repeat(batch.size() - 1) + "?)";
+                try (PreparedStatement pst = con.prepareStatement(sql)) {
+                    pst.setString(1, mailbox);
+                    for (int i = 0; i < batch.size(); i++) {
+                        pst.setLong(i + 2, batch.get(i));
+                    }
+                    try (ResultSet rs = pst.executeQuery()) {
+                        while (rs.next()) {
+                            retained.add(rs.getLong(1));
+                        }
+                    }
+                }
+            }
+            jdbc.rows = retained.size();
+            return retained;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("retained", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        if (flags.isEmpty()) {
+            return;
+        }
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("flags");
+        String sql = "UPDATE emails SET flags = ? WHERE id = ? AND recipient_email = ? AND is_deleted = 0";
+
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            for (Map.Entry<Long, Integer> entry : flags.entrySet()) {
+                pst.setInt(1, entry.getValue());
+                pst.setLong(2, entry.getKey());
+                pst.setString(3, mailbox);
+                pst.addBatch();
+            }
+            jdbc.rows = updated(pst.executeBatch());
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailReplicas.wrote(mailbox);
+            MailMetrics.db("flags", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("delete");
+        String sql = "UPDATE emails SET is_deleted = 1, deleted_at = ? WHERE id = ? AND recipient_email = ? AND is_deleted = 0";
+
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            Timestamp now = commit ? new Timestamp(System.currentTimeMillis()) : null;
+            for (long id : ids) {
+                pst.setTimestamp(1, now);
+                pst.setLong(2, id);
+                pst.setString(3, mailbox);
+                pst.addBatch();
+            }
+            int rows = updated(pst.executeBatch());
+            jdbc.rows = rows;
+            return rows;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailReplicas.wrote(mailbox);
+            MailMetrics.db("delete", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("undelete");
+        String sql = "UPDATE emails SET is_deleted = 0 WHERE recipient_email = ? AND is_deleted = 1 AND deleted_at IS NULL";
+
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setString(1, mailbox);
+            int rows = pst.executeUpdate();
+            jdbc.rows = rows;
+            return rows;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailReplicas.wrote(mailbox);
+            MailMetrics.db("undelete", started);
+            jdbc.commit();
+        }
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("commit_delete");
+        String sql = "UPDATE emails SET deleted_at = ? WHERE recipient_email = ? AND is_deleted = 1 AND deleted_at IS NULL";
+
+        try (Connection con = shard.getCommitConnection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            ensureSchema(con);
+            pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            pst.setString(2, mailbox);
+            int rows = pst.executeUpdate();
+            jdbc.rows = rows;
+            return rows;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailReplicas.wrote(mailbox);
+            MailMetrics.db("commit_delete", started);
+            jdbc.commit();
+        }
+    }
+
+    // Deletes id-ranged batches, so that no single statement holds row locks for long, taking
+    // down the reference counts of their bodies in the same transaction; then removes the
+    // bodies no row points to any more.
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        try {
+            long lockWaitBefore = rowLockTimeMillis();
+            long purged = 0;
+            long from = 0;
+            // A connection per batch, so that neither it nor its DB slot is held over the pauses.
+            long[] batch;
+            while ((batch = purgeBatch(cutoff, from, batchSize)) != null) {
+                purged += batch[1];
+                from = batch[0] + 1;
+                if (pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+
+            long collected = 0;
+            int removed;
+            do {
+                removed = collectBodies(batchSize);
+                collected += removed;
+                if (removed == batchSize && pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            } while (removed == batchSize);
+            if (collected > 0) {
+                System.out.println("[PURGE] " + collected + " unreferenced bod" + (collected == 1 ? "y" : "ies") + " removed");
+            }
+
+            long lockWaitAfter = rowLockTimeMillis();
+            if (purged > 0 && lockWaitBefore >= 0 && lockWaitAfter >= 0) {
+                System.out.println("[PURGE] Row lock wait " + (lockWaitAfter - lockWaitBefore) + " ms");
+            }
+            return purged;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        }
+    }
+
+    // Removes, in one transaction, up to batchSize purgeable messages with an id of at least from,
+    // and their body references; returns the highest id it covered and how many it removed, or
+    // null if there is nothing left to purge.
+    private long[] purgeBatch(Timestamp cutoff, long from, int batchSize) throws SQLException {
+        // Upper id of the batch: the batchSize-th purgeable id at or after from.
+        String upperSql = "SELECT MAX(id) FROM (SELECT id FROM emails WHERE is_deleted = 1 AND deleted_at < ? "
+                + "AND id >= ? ORDER BY id LIMIT ?) batch";
+        String countSql = "SELECT body_hash, COUNT(*) FROM emails WHERE id >= ? AND id <= ? AND is_deleted = 1 "
+                + "AND deleted_at < ? AND body_hash IS NOT NULL GROUP BY body_hash";
+        String unrefSql = "UPDATE email_bodies SET refs = refs - ? WHERE hash = ?";
+        String deleteSql = "DELETE FROM emails WHERE id >= ? AND id <= ? AND is_deleted = 1 AND deleted_at < ?";
+
+        try (Connection con = connection();
+             PreparedStatement upperPst = con.prepareStatement(upperSql);
+             PreparedStatement countPst = con.prepareStatement(countSql);
+             PreparedStatement unrefPst = con.prepareStatement(unrefSql);
+             PreparedStatement deletePst = con.prepareStatement(deleteSql)) {
+            upperPst.setTimestamp(1, cutoff);
+            upperPst.setLong(2, from);
+            upperPst.setInt(3, batchSize);
+            long upper;
+            try (ResultSet rs = upperPst.executeQuery()) {
+                rs.next();
+                upper = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+            }
+
+            con.setAutoCommit(false);
+            try {
+                // Hashes in order, so that two transactions never lock the same bodies the other way round.
+                Map<String, Integer> references = new TreeMap<>();
+                countPst.setLong(1, from);
+                countPst.setLong(2, upper);
+                countPst.setTimestamp(3, cutoff);
+                try (ResultSet rs = countPst.executeQuery()) {
+                    while (rs.next()) {
+                        references.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+                for (Map.Entry<String, Integer> reference : references.entrySet()) {
+                    unrefPst.setInt(1, reference.getValue());
+                    unrefPst.setString(2, reference.getKey());
+                    unrefPst.addBatch();
+                }
+                if (!references.isEmpty()) {
+                    unrefPst.executeBatch();
+                }
+
+                deletePst.setLong(1, from);
+                deletePst.setLong(2, upper);
+                deletePst.setTimestamp(3, cutoff);
+                int purged = deletePst.executeUpdate();
+                con.commit();
+                return new long[]{upper, purged};
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Removes up to limit bodies no message refers to any more; returns how many.
+    private int collectBodies(int limit) throws SQLException {
+        try (Connection con = connection();
+             PreparedStatement pst = con.prepareStatement("DELETE FROM email_bodies WHERE refs <= 0 LIMIT ?")) {
+            pst.setInt(1, limit);
+            return pst.executeUpdate();
+        }
+    }
+
+    // Total InnoDB row lock wait so far, or -1 where the database does not report it.
+    private long rowLockTimeMillis() {
+        try (Connection con = connection();
+             Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("SHOW GLOBAL STATUS LIKE 'Innodb_row_lock_time'")) {
+            return rs.next() ? rs.getLong(2) : -1;
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    private static StoredMail read(ResultSet rs, boolean withBody) throws SQLException {
+        long size = rs.getLong("size");
+        String body = null;
+        if (withBody) {
+            try (InputStream data = inflated(rs)) {
+                body = data == null ? rs.getString("content")
+                        : new String(data.readNBytes((int) Math.min(size, Integer.MAX_VALUE)), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new SQLException("Could not inflate body: " + e.getMessage(), e);
+            }
+        }
+        return new StoredMail(rs.getLong("id"), rs.getString("recipient_email"), rs.getString("sender"),
+                rs.getString("subject"), rs.getTimestamp("date_sent"), size, rs.getInt("flags"), body);
+    }
+
+    // The body of the current row as a stream of characters, or null.
+    private static Reader body(ResultSet rs) throws SQLException, IOException {
+        InputStream data = inflated(rs);
+        return data == null ? rs.getCharacterStream("content") : new InputStreamReader(data, StandardCharsets.UTF_8);
+    }
+
+    // The body of the current row inflated as it is read, or null if it is not stored deflated.
+    private static InputStream inflated(ResultSet rs) throws SQLException, IOException {
+        InputStream data = rs.getBinaryStream("data");
+        if (data == null) {
+            return null;
+        }
+        int format = data.read();
+        if (format != DEFLATE) {
+            data.close();
+            throw new IOException("Unknown body format " + format);
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        return new InflaterInputStream(data, inflater);
+    }
+
+    static String sha256(byte[] content) {
+        MessageDigest sha = sha256();
+        sha.update(content);
+        return hex(sha.digest());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static int updated(int[] counts) {
+        int rows = 0;
+        for (int count : counts) {
+            rows += Math.max(count, 0);
+        }
+        return rows;
+    }
+
+    // The replica of the shard to read the mailbox from, or null for the primary; always the
+    // primary until it has had its schema checked.
+    private MailReplica replica(String mailbox) {
+        return shard.schemaReady ? shard.replica(mailbox) : null;
+    }
+
+    private Connection readConnection(MailReplica replica) throws SQLException {
+        return replica != null ? replica.getConnection() : connection();
+    }
+
+    private Connection connection() throws SQLException {
+        Connection con = shard.getConnection();
+        try {
+            ensureSchema(con);
+        } catch (SQLException e) {
+            con.close();
+            throw e;
+        }
+        return con;
+    }
+
+    // Brings the tables of the shard up to what this store needs: the migration runs once per
+    // shard and process, whichever store instance gets there first, and not per connection.
+    void ensureSchema(Connection con) throws SQLException {
+        if (shard.schemaReady) {
+            return;
+        }
+        synchronized (shard) {
+            if (shard.schemaReady) {
+                return;
+            }
+            MailSchema.addColumn(con, "emails", "deleted_at", "TIMESTAMP NULL");
+            MailSchema.addColumn(con, "emails", "flags", "INT DEFAULT 0 NOT NULL");
+            MailSchema.addIndex(con, "emails", "idx_emails_deleted", "is_deleted, deleted_at");
+            MailSchema.addColumn(con, "emails", "body_hash", "CHAR(64) NULL");
+            try (Statement st = con.createStatement()) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS email_bodies (hash CHAR(64) NOT NULL PRIMARY KEY, "
+                        + "content LONGTEXT NOT NULL, size BIGINT NOT NULL, refs INT NOT NULL)");
+            }
+            MailSchema.addIndex(con, "email_bodies", "idx_email_bodies_refs", "refs");
+            MailSchema.addColumn(con, "email_bodies", "data", "LONGBLOB NULL");
+            shard.schemaReady = true;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.example;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background archival of old mail into the {@link ArchiveMailStore} tier, so that the emails
+ * table only holds recent mail.
+ *
+ * Each run finds, on every shard, the mailboxes with live mail older than the archive age of
+ * their domain, and moves that mail a mailbox at a time into a new archive file, up to
+ * mail.archive.batch-size (5000) messages per file. The moved rows are deleted with a
+ * committed deletion, so {@link MailPurger} removes them after its retention period; until
+ * then their ids are read from the archive.
+ *
+ * Settings (system properties): mail.archive.age-days (default 90), per domain
+ * mail.archive.age-days.example.com (0 never archives that domain), mail.archive.batch-size,
+ * mail.archive.pause-ms (100), mail.archive.interval-minutes (60). Only runs with mail.archive
+ * set, see {@link MailStores}.
+ */
+public class MailArchiver implements Runnable {
+
+    private static final String DOMAIN_AGE = "mail.archive.age-days.";
+
+    private final long ageDays;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final long intervalMinutes;
+
+    public MailArchiver() {
+        this(Long.getLong("mail.archive.age-days", 90),
+                Integer.getInteger("mail.archive.batch-size", 5000),
+                Long.getLong("mail.archive.pause-ms", 100),
+                Long.getLong("mail.archive.interval-minutes", 60));
+    }
+
+    public MailArchiver(long ageDays, int batchSize, long pauseMillis, long intervalMinutes) {
+        this.ageDays = ageDays;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    public static void main(String[] args) {
+        new MailArchiver().run();
+    }
+
+    // Runs the archival periodically on a daemon thread.
+    public ScheduledExecutorService start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mail-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this, 0, intervalMinutes, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    // Days after which mail of the mailbox is archived; 0 for never.
+    public long ageDays(String mailbox) {
+        String domain = mailbox.substring(mailbox.indexOf('@') + 1).toLowerCase(Locale.ROOT);
+        return Long.getLong(DOMAIN_AGE + domain, ageDays);
+    }
+
+    @Override
+    public void run() {
+        ArchiveMailStore archive = MailStores.archive();
+        if (archive == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long archived = 0;
+        try {
+            for (String mailbox : candidates(new Timestamp(now - TimeUnit.DAYS.toMillis(minAgeDays())))) {
+                long days = ageDays(mailbox);
+                if (days <= 0) {
+                    continue;
+                }
+                Timestamp cutoff = new Timestamp(now - TimeUnit.DAYS.toMillis(days));
+                int moved;
+                do {
+                    moved = archive.archive(mailbox, cutoff, batchSize);
+                    if (moved > 0) {
+                        MailboxVersions.bump(mailbox);
+                        archived += moved;
+                        Thread.sleep(pauseMillis);
+                    }
+                } while (moved == batchSize);
+            }
+            if (archived > 0) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("[ARCHIVE] %d message(s) archived in %.1f s (%.0f messages/s)%n",
+                        archived, seconds, seconds > 0 ? archived / seconds : 0.0);
+            }
+        } catch (IOException e) {
+            System.err.println("[ARCHIVE] Failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The shortest archive age over the default and the domains that set one.
+    private long minAgeDays() {
+        long min = ageDays > 0 ? ageDays : Long.MAX_VALUE;
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(DOMAIN_AGE)) {
+                long days = Long.getLong(name, 0);
+                if (days > 0) {
+                    min = Math.min(min, days);
+                }
+            }
+        }
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    // Mailboxes with live mail older than cutoff, on any shard.
+    private static List<String> candidates(Timestamp cutoff) throws MailStoreException {
+        List<String> mailboxes = new ArrayList<>();
+        if (cutoff.getTime() >= System.currentTimeMillis()) {
+            return mailboxes;
+        }
+        String sql = "SELECT DISTINCT recipient_email FROM emails WHERE is_deleted = 0 AND date_sent < ?";
+        for (int i = 0; i < MailShards.count(); i++) {
+            try (Connection con = MailShards.get(i).getConnection();
+                 PreparedStatement ps = con.prepareStatement(sql)) {
+                ps.setTimestamp(1, cutoff);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        mailboxes.add(rs.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw MailStoreException.of(e);
+            }
+        }
+        return mailboxes;
+    }
+}
@@ -0,0 +1,25 @@
+package org.example;
+
+/**
+ * An attachment of a stored message, as {@link MailAttachments} lists it: part is its number
+ * within the message, from 1, and size its length in octets once decoded.
+ */
+public final class MailAttachment {
+
+    public final long messageId;
+    public final int part;
+    public final String name;
+    public final String contentType;
+    public final long size;
+    // Of the content, in attachment_blobs.
+    final String hash;
+
+    MailAttachment(long messageId, int part, String name, String contentType, long size, String hash) {
+        this.messageId = messageId;
+        this.part = part;
+        this.name = name;
+        this.contentType = contentType;
+        this.size = size;
+        this.hash = hash;
+    }
+}
@@ -0,0 +1,387 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The attachments SMTP takes out of incoming messages ({@link MimeParser}), kept apart from
+ * the message bodies so that listings stay small and an attachment is only read when it is
+ * downloaded, a range at a time if need be.
+ *
+ * They live in the mail database next to the mailbox versions, whatever the mail store:
+ * email_attachments lists the attachments of every stored copy of a message, and
+ * attachment_blobs holds their content once per SHA-256, with a count of the rows that point
+ * to it, so a message to many recipients or a forwarded file is stored once. Once the message
+ * they belong to is purged, {@link #sweep} (run by {@link MailPurger}) drops them. A message
+ * that {@link ShardRebalancer} moves gets a new id, and its attachments go along.
+ */
+public final class MailAttachments {
+
+    // Ids per IN list.
+    private static final int BATCH = 500;
+    // Octets of an attachment read per query.
+    private static final int CHUNK = 1 << 20;
+
+    private static volatile boolean tablesReady;
+
+    private MailAttachments() {
+    }
+
+    // Stores the attachments of one message for its copies with the given ids, one per mailbox.
+    public static void store(List<Long> ids, List<String> mailboxes, List<MimeParser.Attachment> attachments) throws MailStoreException {
+        if (attachments.isEmpty()) {
+            return;
+        }
+        long started = System.nanoTime();
+        String sql = "INSERT INTO email_attachments (email_id, part, recipient_email, name, content_type, size, hash) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        // Not shed: the message they belong to is stored already.
+        try (Connection con = MailDb.getCommitConnection()) {
+            ensureTables(con);
+            con.setAutoCommit(false);
+            try (PreparedStatement pst = con.prepareStatement(sql)) {
+                int part = 0;
+                for (MimeParser.Attachment attachment : attachments) {
+                    part++;
+                    String hash = attachment.sha256();
+                    reference(con, hash, attachment, ids.size());
+                    for (int i = 0; i < ids.size(); i++) {
+                        pst.setLong(1, ids.get(i));
+                        pst.setInt(2, part);
+                        pst.setString(3, mailboxes.get(i));
+                        pst.setString(4, truncate(attachment.name));
+                        pst.setString(5, truncate(attachment.contentType));
+                        pst.setLong(6, attachment.size());
+                        pst.setString(7, hash);
+                        pst.addBatch();
+                    }
+                }
+                pst.executeBatch();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } catch (IOException e) {
+            throw new MailStoreException("Could not read an attachment to store: " + e.getMessage(), e);
+        } finally {
+            MailMetrics.db("attachment_store", started);
+        }
+    }
+
+    // Adds count references to the content with the given hash, storing it if it is new.
+    private static void reference(Connection con, String hash, MimeParser.Attachment attachment, int count) throws SQLException, IOException {
+        try (PreparedStatement update = con.prepareStatement("UPDATE attachment_blobs SET refs = refs + ? WHERE hash = ?")) {
+            update.setInt(1, count);
+            update.setString(2, hash);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO attachment_blobs (hash, size, refs, data) VALUES (?, ?, ?, ?)");
+                 InputStream content = attachment.content()) {
+                insert.setString(1, hash);
+                insert.setLong(2, attachment.size());
+                insert.setInt(3, count);
+                insert.setBinaryStream(4, content, attachment.size());
+                insert.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // Stored by another transaction meanwhile.
+                update.executeUpdate();
+            }
+        }
+    }
+
+    // The attachments of the messages of the mailbox among ids, by id, in part order; ids
+    // without attachments are left out.
+    public static Map<Long, List<MailAttachment>> list(String mailbox, Collection<Long> ids) throws MailStoreException {
+        Map<Long, List<MailAttachment>> attachments = new HashMap<>();
+        if (ids.isEmpty()) {
+            return attachments;
+        }
+        long started = System.nanoTime();
+        List<Long> all = new ArrayList<>(ids);
+        try (Connection con = MailDb.getConnection()) {
+            ensureTables(con);
+            for (int from = 0; from < all.size(); from += BATCH) {
+                List<Long> batch = all.subList(from, Math.min(all.size(), from + BATCH));
+                String sql = "SELECT email_id, part, name, content_type, size, hash FROM email_attachments "
+                        + "WHERE recipient_email = ? AND email_id IN (" + "?,".repeat(batch.size() - 1) + "?) ORDER BY email_id, part";
+                try (PreparedStatement pst = con.prepareStatement(sql)) {
+                    pst.setString(1, mailbox);
+                    for (int i = 0; i < batch.size(); i++) {
+                        pst.setLong(i + 2, batch.get(i));
+                    }
+                    try (ResultSet rs = pst.executeQuery()) {
+                        while (rs.next()) {
+                            MailAttachment attachment = new MailAttachment(rs.getLong(1), rs.getInt(2), rs.getString(3),
+                                    rs.getString(4), rs.getLong(5), rs.getString(6));
+                            attachments.computeIfAbsent(attachment.messageId, k -> new ArrayList<>()).add(attachment);
+                        }
+                    }
+                }
+            }
+            return attachments;
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("attachment_list", started);
+        }
+    }
+
+    // One attachment of a message of the mailbox, or null.
+    public static MailAttachment find(String mailbox, long id, int part) throws MailStoreException {
+        for (MailAttachment attachment : list(mailbox, List.of(id)).getOrDefault(id, List.of())) {
+            if (attachment.part == part) {
+                return attachment;
+            }
+        }
+        return null;
+    }
+
+    // Copies length octets of the attachment from offset on to out, CHUNK octets per query, so
+    // that the database sends only those and never more than a chunk is held.
+    public static void write(MailAttachment attachment, long offset, long length, OutputStream out) throws MailStoreException, IOException {
+        if (length <= 0) {
+            return;
+        }
+        long started = System.nanoTime();
+        try (Connection con = MailDb.getConnection();
+             PreparedStatement pst = con.prepareStatement("SELECT SUBSTRING(data, ?, ?) FROM attachment_blobs WHERE hash = ?")) {
+            pst.setString(3, attachment.hash);
+            long written = 0;
+            while (written < length) {
+                pst.setLong(1, offset + written + 1);
+                pst.setInt(2, (int) Math.min(CHUNK, length - written));
+                try (ResultSet rs = pst.executeQuery()) {
+                    byte[] chunk = rs.next() ? rs.getBytes(1) : null;
+                    if (chunk == null || chunk.length == 0) {
+                        throw new MailStoreException("Content of attachment " + attachment.part + " of message "
+                                + attachment.messageId + " is missing", null);
+                    }
+                    out.write(chunk);
+                    written += chunk.length;
+                }
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        } finally {
+            MailMetrics.db("attachment_read", started);
+        }
+    }
+
+    // Gives the attachments of messages to their copies as well, with the content referenced
+    // once more: copies maps the id of each message to the id of its copy. ShardRebalancer
+    // then drops those of whichever of the two it did not keep.
+    static void copy(Map<Long, Long> copies) throws SQLException {
+        if (copies.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(copies.keySet());
+        String countSql = "SELECT hash, COUNT(*) FROM email_attachments WHERE email_id IN ("
+                + "?,".repeat(ids.size() - 1) + "?) GROUP BY hash";
+        String copySql = "INSERT INTO email_attachments (email_id, part, recipient_email, name, content_type, size, hash) "
+                + "SELECT ?, part, recipient_email, name, content_type, size, hash FROM email_attachments WHERE email_id = ?";
+        String refSql = "UPDATE attachment_blobs SET refs = refs + ? WHERE hash = ?";
+        // Not shed: the copies are committed already.
+        try (Connection con = MailDb.getCommitConnection()) {
+            ensureTables(con);
+            con.setAutoCommit(false);
+            try (PreparedStatement countPst = con.prepareStatement(countSql);
+                 PreparedStatement copyPst = con.prepareStatement(copySql);
+                 PreparedStatement refPst = con.prepareStatement(refSql)) {
+                for (int i = 0; i < ids.size(); i++) {
+                    countPst.setLong(i + 1, ids.get(i));
+                }
+                // Hashes in order, as in drop.
+                Map<String, Integer> references = new TreeMap<>();
+                try (ResultSet rs = countPst.executeQuery()) {
+                    while (rs.next()) {
+                        references.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+                if (!references.isEmpty()) {
+                    for (Map.Entry<String, Integer> reference : references.entrySet()) {
+                        refPst.setInt(1, reference.getValue());
+                        refPst.setString(2, reference.getKey());
+                        refPst.addBatch();
+                    }
+                    refPst.executeBatch();
+                    for (Map.Entry<Long, Long> copy : copies.entrySet()) {
+                        copyPst.setLong(1, copy.getValue());
+                        copyPst.setLong(2, copy.getKey());
+                        copyPst.addBatch();
+                    }
+                    copyPst.executeBatch();
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Drops the attachments of the messages, as sweep does for purged ones.
+    static void drop(Collection<Long> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        // Not shed: the messages are gone already.
+        try (Connection con = MailDb.getCommitConnection()) {
+            ensureTables(con);
+            drop(con, new ArrayList<>(ids));
+        }
+    }
+
+    /**
+     * Drops the attachments of the messages the store no longer has, batchSize messages at a
+     * time with a pause in between, then the content no attachment points to any more;
+     * returns how many messages lost their attachments. Messages deleted but not purged yet
+     * keep them.
+     */
+    public static long sweep(MailStore store, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long swept = 0;
+        long after = 0;
+        while (true) {
+            Map<String, List<Long>> byMailbox = new LinkedHashMap<>();
+            int found = 0;
+            String pageSql = "SELECT DISTINCT email_id, recipient_email FROM email_attachments WHERE email_id > ? ORDER BY email_id LIMIT ?";
+            try (Connection con = MailDb.getConnection()) {
+                ensureTables(con);
+                try (PreparedStatement pst = con.prepareStatement(pageSql)) {
+                    pst.setLong(1, after);
+                    pst.setInt(2, batchSize);
+                    try (ResultSet rs = pst.executeQuery()) {
+                        while (rs.next()) {
+                            after = rs.getLong(1);
+                            byMailbox.computeIfAbsent(rs.getString(2), k -> new ArrayList<>()).add(after);
+                            found++;
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw MailStoreException.of(e);
+            }
+
+            List<Long> gone = new ArrayList<>();
+            for (Map.Entry<String, List<Long>> mailbox : byMailbox.entrySet()) {
+                Set<Long> retained = store.retained(mailbox.getKey(), mailbox.getValue());
+                for (Long id : mailbox.getValue()) {
+                    if (!retained.contains(id)) {
+                        gone.add(id);
+                    }
+                }
+            }
+            if (!gone.isEmpty()) {
+                try (Connection con = MailDb.getConnection()) {
+                    drop(con, gone);
+                } catch (SQLException e) {
+                    throw MailStoreException.of(e);
+                }
+                swept += gone.size();
+            }
+            if (found < batchSize) {
+                break;
+            }
+            if (pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+        collect(batchSize);
+        return swept;
+    }
+
+    // Deletes the attachment rows of the messages and takes down the counts of their content.
+    private static void drop(Connection con, List<Long> ids) throws SQLException {
+        String in = "(" + "?,".repeat(ids.size() - 1) + "?)";
+        String countSql = "SELECT hash, COUNT(*) FROM email_attachments WHERE email_id IN " + in + " GROUP BY hash";
+        String unrefSql = "UPDATE attachment_blobs SET refs = refs - ? WHERE hash = ?";
+        String deleteSql = "DELETE FROM email_attachments WHERE email_id IN " + in;
+        try (PreparedStatement countPst = con.prepareStatement(countSql);
+             PreparedStatement unrefPst = con.prepareStatement(unrefSql);
+             PreparedStatement deletePst = con.prepareStatement(deleteSql)) {
+            con.setAutoCommit(false);
+            try {
+                for (int i = 0; i < ids.size(); i++) {
+                    countPst.setLong(i + 1, ids.get(i));
+                    deletePst.setLong(i + 1, ids.get(i));
+                }
+                // Hashes in order, so that two transactions never lock the same rows the other way round.
+                Map<String, Integer> references = new TreeMap<>();
+                try (ResultSet rs = countPst.executeQuery()) {
+                    while (rs.next()) {
+                        references.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+                for (Map.Entry<String, Integer> reference : references.entrySet()) {
+                    unrefPst.setInt(1, reference.getValue());
+                    unrefPst.setString(2, reference.getKey());
+                    unrefPst.addBatch();
+                }
+                if (!references.isEmpty()) {
+                    unrefPst.executeBatch();
+                }
+                deletePst.executeUpdate();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static void collect(int batchSize) throws MailStoreException {
+        try (Connection con = MailDb.getConnection();
+             PreparedStatement pst = con.prepareStatement("DELETE FROM attachment_blobs WHERE refs <= 0 LIMIT ?")) {
+            ensureTables(con);
+            pst.setInt(1, batchSize);
+            while (pst.executeUpdate() == batchSize) {
+                // until none are left
+            }
+        } catch (SQLException e) {
+            throw MailStoreException.of(e);
+        }
+    }
+
+    private static String truncate(String value) {
+        return value == null || value.length() <= 255 ? value : value.substring(0, 255);
+    }
+
+    private static void ensureTables(Connection con) throws SQLException {
+        if (tablesReady) {
+            return;
+        }
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS email_attachments (email_id BIGINT NOT NULL, part INT NOT NULL, "
+                    + "recipient_email VARCHAR(255) NOT NULL, name VARCHAR(255), content_type VARCHAR(255), "
+                    + "size BIGINT NOT NULL, hash CHAR(64) NOT NULL, PRIMARY KEY (email_id, part))");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS attachment_blobs (hash CHAR(64) NOT NULL PRIMARY KEY, "
+                    + "size BIGINT NOT NULL, refs INT NOT NULL, data LONGBLOB NOT NULL)");
+        }
+        MailSchema.addIndex(con, "attachment_blobs", "idx_attachment_blobs_refs", "refs");
+        tablesReady = true;
+    }
+}
@@ -0,0 +1,114 @@
+package org.example;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+
+/**
+ * Connection settings of the mail database used by the socket servers.
+ *
+ * Defaults to the local MySQL maildb; override with the system properties maildb.url,
+ * maildb.user and maildb.password, or programmatically with {@link #configure} (tools and
+ * benchmarks point it at an embedded H2 database this way). When a pooled DataSource is
+ * installed with {@link #useDataSource} (see {@link MailLauncher}), connections come from it.
+ *
+ * Every connection holds a slot of {@link Overload#DB} from getConnection until it is closed;
+ * when none is free getConnection fails fast with a SQLTransientConnectionException instead
+ * of queueing on the database. {@link #getCommitConnection} is for work that must not be shed.
+ * The other mail shards ({@link MailShards}) take their connections the same way, each under
+ * its own limit.
+ */
+public final class MailDb {
+
+    private static volatile String url = System.getProperty("maildb.url", "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC");
+    private static volatile String user = System.getProperty("maildb.user", "root");
+    private static volatile String password = System.getProperty("maildb.password", "");
+    private static volatile DataSource dataSource;
+
+    private MailDb() {
+    }
+
+    public static void configure(String jdbcUrl, String dbUser, String dbPassword) {
+        url = jdbcUrl;
+        user = dbUser;
+        password = dbPassword;
+        dataSource = null;
+    }
+
+    public static void useDataSource(DataSource pool) {
+        dataSource = pool;
+    }
+
+    public static String url() {
+        return url;
+    }
+
+    public static String user() {
+        return user;
+    }
+
+    public static String password() {
+        return password;
+    }
+
+    public static Connection getConnection() throws SQLException {
+        return getConnection(null, Overload.DB);
+    }
+
+    // A connection that counts against the limit but is never refused: for committing work
+    // the client was already told is accepted, such as POP3 deletions at QUIT.
+    public static Connection getCommitConnection() throws SQLException {
+        return getCommitConnection(null, Overload.DB);
+    }
+
+    // A connection from source, or from this database if null, holding a slot of limiter.
+    static Connection getConnection(DataSource source, AdaptiveLimiter limiter) throws SQLException {
+        if (!limiter.tryAcquire()) {
+            throw new SQLTransientConnectionException("Database overloaded");
+        }
+        return open(source, limiter);
+    }
+
+    static Connection getCommitConnection(DataSource source, AdaptiveLimiter limiter) throws SQLException {
+        limiter.acquire();
+        return open(source, limiter);
+    }
+
+    private static Connection open(DataSource source, AdaptiveLimiter limiter) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            DataSource pool = source != null ? source : dataSource;
+            Connection con = pool != null ? pool.getConnection() : DriverManager.getConnection(url, user, password);
+            return limited(con, limiter, started);
+        } catch (SQLException | RuntimeException e) {
+            limiter.release(System.nanoTime() - started, true);
+            throw e;
+        }
+    }
+
+    // The connection, giving its slot back with the time it was held when closed.
+    private static Connection limited(Connection con, AdaptiveLimiter limiter, long started) {
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(MailDb.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+                        try {
+                            con.close();
+                        } finally {
+                            limiter.release(System.nanoTime() - started, false);
+                        }
+                        return null;
+                    }
+                    try {
+                        return method.invoke(con, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
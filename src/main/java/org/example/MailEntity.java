@@ -0,0 +1,198 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The multipart/mixed body a message with attachments is served as over POP3 and IMAP: the
+ * stored body as a text/plain part, then each attachment as a base64 part read from
+ * {@link MailAttachments}. It is put back together from those, so the stored body stays the
+ * text SMTP took out of the message.
+ *
+ * Its size is known from the attachment sizes alone, so it is announced before any content is
+ * read. It is always written out, never built: an attachment is only ever held a chunk
+ * ({@link MailAttachments#write}) at a time, and a range of it reads only the lines it covers.
+ */
+final class MailEntity {
+
+    // Octets of base64 per line, as the MIME encoder writes them, and the octets they encode.
+    private static final int LINE = 76;
+    private static final int RAW_LINE = LINE / 4 * 3;
+    static final String TEXT_HEADER = "Content-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n";
+
+    private final String boundary;
+    final List<MailAttachment> attachments;
+
+    MailEntity(long id, List<MailAttachment> attachments) {
+        this.boundary = "=_part_" + id;
+        this.attachments = attachments;
+    }
+
+    // The Content-Type header value of the message.
+    String contentType() {
+        return "multipart/mixed; boundary=\"" + boundary + "\"";
+    }
+
+    String boundary() {
+        return boundary;
+    }
+
+    // What comes before the text: the first delimiter and the header of the text part.
+    byte[] opening() {
+        return ("--" + boundary + "\r\n" + TEXT_HEADER + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // The octets of the whole entity for a text of bodySize octets.
+    long size(long bodySize) {
+        long size = opening().length + bodySize;
+        for (MailAttachment attachment : attachments) {
+            size += delimiter().length + partHeader(attachment).length + encodedSize(attachment.size);
+        }
+        return size + closing().length;
+    }
+
+    // Writes length octets from offset on of prefix (a message header, say) followed by the
+    // entity around the text.
+    void write(byte[] prefix, byte[] text, long offset, long length, OutputStream out) throws IOException {
+        long end = offset + length;
+        long at = piece(prefix, 0, offset, end, out);
+        at = piece(opening(), at, offset, end, out);
+        at = piece(text, at, offset, end, out);
+        for (MailAttachment attachment : attachments) {
+            at = piece(delimiter(), at, offset, end, out);
+            at = piece(partHeader(attachment), at, offset, end, out);
+            long size = encodedSize(attachment.size);
+            long from = Math.max(offset, at);
+            long to = Math.min(end, at + size);
+            if (from < to) {
+                writeContent(attachment, from - at, to - from, out);
+            }
+            at += size;
+        }
+        piece(closing(), at, offset, end, out);
+    }
+
+    // Everything after the text: the attachment parts and the close delimiter.
+    void writeAttachments(OutputStream out) throws IOException {
+        for (MailAttachment attachment : attachments) {
+            out.write(delimiter());
+            out.write(partHeader(attachment));
+            writeContent(attachment, 0, encodedSize(attachment.size), out);
+        }
+        out.write(closing());
+    }
+
+    // The same for a POP3 session, whose replies go through a Writer. Only the part headers can
+    // hold more than ASCII, and each of those is written whole.
+    void writeAttachments(Writer out) throws IOException {
+        writeAttachments(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(new String(b, off, len, StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    // Writes length octets from offset on of the base64 content of the attachment. Each line
+    // encodes RAW_LINE octets of its own, so only the lines the range covers are read: from the
+    // start of the first, to one line past the last, for the CRLF the encoder ends it with.
+    static void writeContent(MailAttachment attachment, long offset, long length, OutputStream out) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        long first = offset / (LINE + 2);
+        long last = (offset + length - 1) / (LINE + 2);
+        long from = first * RAW_LINE;
+        long to = Math.min(attachment.size, (last + 2) * RAW_LINE);
+        OutputStream window = new OutputStream() {
+            private long skip = offset - first * (LINE + 2);
+            private long left = length;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                int skipped = (int) Math.min(skip, len);
+                skip -= skipped;
+                int kept = (int) Math.min(left, len - skipped);
+                if (kept > 0) {
+                    out.write(b, off + skipped, kept);
+                    left -= kept;
+                }
+            }
+        };
+        // Closing the encoder writes the last group; closing window leaves out open.
+        try (OutputStream encoder = Base64.getMimeEncoder().wrap(window)) {
+            MailAttachments.write(attachment, from, to - from, encoder);
+        }
+    }
+
+    // The part header, blank line included.
+    static byte[] partHeader(MailAttachment attachment) {
+        String name = attachment.name == null ? null
+                : '"' + attachment.name.replace("\r", "").replace("\n", "").replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        return ("Content-Type: " + contentType(attachment) + (name == null ? "" : "; name=" + name) + "\r\n"
+                + "Content-Disposition: attachment" + (name == null ? "" : "; filename=" + name) + "\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The type/subtype of an attachment as served. Composite types may not be base64 encoded
+    // (RFC 2045 6.4), so those and anything unreadable go out as application/octet-stream.
+    static String contentType(MailAttachment attachment) {
+        String type = attachment.contentType == null ? "" : attachment.contentType.trim().toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0) {
+            type = type.substring(0, semicolon).trim();
+        }
+        int slash = type.indexOf('/');
+        if (slash <= 0 || slash == type.length() - 1 || type.startsWith("multipart/") || type.startsWith("message/")
+                || !type.chars().allMatch(c -> c > 0x20 && c < 0x7f && c != '"')) {
+            return "application/octet-stream";
+        }
+        return type;
+    }
+
+    // Octets of n octets in base64 with a CRLF between lines, none after the last.
+    static long encodedSize(long n) {
+        long chars = (n + 2) / 3 * 4;
+        return chars == 0 ? 0 : chars + (chars - 1) / LINE * 2;
+    }
+
+    // Lines of n octets in base64.
+    static long encodedLines(long n) {
+        long chars = (n + 2) / 3 * 4;
+        return (chars + LINE - 1) / LINE;
+    }
+
+    private byte[] delimiter() {
+        return ("\r\n--" + boundary + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] closing() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Writes the part of data, found at position at of the whole, that falls in [from, to);
+    // returns the position after it.
+    private static long piece(byte[] data, long at, long from, long to, OutputStream out) throws IOException {
+        long start = Math.max(from, at);
+        long stop = Math.min(to, at + data.length);
+        if (start < stop) {
+            out.write(data, (int) (start - at), (int) (stop - start));
+        }
+        return at + data.length;
+    }
+}
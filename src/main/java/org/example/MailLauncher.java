@@ -0,0 +1,246 @@
+package org.example;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.example.api.Application;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+/**
+ * All-in-one mode: SMTP, POP3, IMAP, AuthService and the REST API in a single JVM.
+ *
+ *   java -cp Messagerie.jar org.example.MailLauncher
+ *
+ * The components start in parallel and share one pooled DataSource (used by the socket
+ * servers through {@link MailDb} and by Spring as its "dataSource" bean), the in-memory
+ * caches and the Micrometer registry, so IMAP IDLE hears of new mail as it is stored. AuthService is called in-process instead of over RMI.
+ * On shutdown (SIGTERM, Ctrl-C) the listeners stop accepting and the sessions in progress
+ * get {@code mail.shutdown.drain-seconds} (30) to finish before they are cut off.
+ *
+ * Settings (system properties): mail.smtp.port (25), mail.pop3.port (1100), mail.imap.port (1430),
+ * with mail.tls.keystore set (see {@link MailTls}) also mail.smtps.port (465), mail.pop3s.port (995)
+ * and mail.imaps.port (993),
+ * mail.launcher.rest (true), mail.launcher.rmi (false: also bind AuthService in an RMI
+ * registry on 1099 for AuthClientGUI), maildb.pool-size (20), plus the maildb.* connection
+ * settings. Program arguments are passed on to Spring.
+ */
+public class MailLauncher {
+
+    /** Something the launcher starts and stops; add your own with {@link #add}. */
+    public interface Component {
+        String name();
+
+        void start() throws Exception;
+
+        // Called in reverse start order; drainMillis is the time left to finish gracefully.
+        void stop(long drainMillis) throws Exception;
+    }
+
+    private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("mail.shutdown.drain-seconds", 30));
+
+    private final List<Component> components = new CopyOnWriteArrayList<>();
+    private final List<Component> started = new CopyOnWriteArrayList<>();
+    private HikariDataSource dataSource;
+    private ScheduledExecutorService purger;
+    private ScheduledExecutorService archiver;
+
+    public static void main(String[] args) {
+        MailLauncher launcher = new MailLauncher();
+        launcher.add(listener("smtp", SmtpServer.PORT));
+        launcher.add(listener("pop3", Pop3Server.PORT));
+        launcher.add(listener("imap", ImapServer.PORT));
+        if (MailTls.enabled()) {
+            launcher.add(listener("smtp", SmtpServer.TLS_PORT, true));
+            launcher.add(listener("pop3", Pop3Server.TLS_PORT, true));
+            launcher.add(listener("imap", ImapServer.TLS_PORT, true));
+        }
+        if (Boolean.parseBoolean(System.getProperty("mail.launcher.rest", "true"))) {
+            launcher.add(rest(launcher, args));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(launcher::stop, "mail-shutdown"));
+        try {
+            launcher.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1); // the shutdown hook stops whatever did start
+        }
+    }
+
+    public void add(Component component) {
+        components.add(component);
+    }
+
+    public void start() throws Exception {
+        long begin = System.nanoTime();
+        dataSource = createDataSource();
+        MailDb.useDataSource(dataSource);
+
+        AuthServiceImpl auth = new AuthServiceImpl();
+        AuthServices.useLocal(auth);
+        if (Boolean.getBoolean("mail.launcher.rmi")) {
+            Registry registry = LocateRegistry.createRegistry(1099);
+            registry.rebind("AuthService", auth);
+        }
+
+        MailMetrics.enableJmx();
+        ProtocolTrace.registerMBean();
+        purger = new MailPurger().start();
+        if (MailStores.archive() != null) {
+            archiver = new MailArchiver().start();
+        }
+
+        ExecutorService starter = Executors.newFixedThreadPool(Math.max(1, components.size()));
+        try {
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (Component component : components) {
+                pending.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        component.start();
+                        started.add(component);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(component.name() + " failed to start", e);
+                    }
+                }, starter));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            starter.shutdown();
+        }
+        System.out.printf("Mail services %s started in %d ms%n", started.stream().map(Component::name).toList(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+
+    // Stops the started components in reverse order, sharing one drain deadline.
+    public synchronized void stop() {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        List<Component> order = new ArrayList<>(started);
+        Collections.reverse(order);
+        for (Component component : order) {
+            try {
+                component.stop(Math.max(0, deadline - System.currentTimeMillis()));
+                System.out.println("Stopped " + component.name());
+            } catch (Exception e) {
+                System.err.println("Error stopping " + component.name() + ": " + e.getMessage());
+            }
+        }
+        started.clear();
+        if (purger != null) {
+            purger.shutdownNow();
+            purger = null;
+        }
+        if (archiver != null) {
+            archiver.shutdownNow();
+            archiver = null;
+        }
+        if (dataSource != null) {
+            MailDb.useDataSource(null);
+            dataSource.close();
+            dataSource = null;
+        }
+    }
+
+    private static HikariDataSource createDataSource() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("maildb");
+        config.setJdbcUrl(MailDb.url());
+        config.setUsername(MailDb.user());
+        config.setPassword(MailDb.password());
+        config.setMaximumPoolSize(Integer.getInteger("maildb.pool-size", 20));
+        return new HikariDataSource(config);
+    }
+
+    // A socket server whose accept loop runs on its own thread.
+    static Component listener(String protocol, int port) {
+        return listener(protocol, port, false);
+    }
+
+    static Component listener(String protocol, int port, boolean implicitTls) {
+        String name = implicitTls ? protocol + "s" : protocol;
+        return new Component() {
+            private SessionListener listener;
+
+            @Override
+            public String name() {
+                return name + ":" + port;
+            }
+
+            @Override
+            public void start() throws IOException {
+                ServerSocket serverSocket = new ServerSocket(port);
+                switch (protocol) {
+                    case "smtp":
+                        listener = SmtpServer.listener(serverSocket, implicitTls);
+                        break;
+                    case "imap":
+                        listener = ImapServer.listener(serverSocket, implicitTls);
+                        break;
+                    default:
+                        listener = Pop3Server.listener(serverSocket, implicitTls);
+                        break;
+                }
+                Thread accept = new Thread(() -> {
+                    try {
+                        listener.serve();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, name + "-accept");
+                accept.start();
+            }
+
+            @Override
+            public void stop(long drainMillis) {
+                int cut = listener.stop(drainMillis);
+                if (cut > 0) {
+                    System.err.println(cut + " " + name + " session(s) cut off at shutdown");
+                }
+            }
+        };
+    }
+
+    // The Spring REST application, using the launcher's DataSource instead of its own pool.
+    static Component rest(MailLauncher launcher, String[] args) {
+        return new Component() {
+            private ConfigurableApplicationContext context;
+
+            @Override
+            public String name() {
+                return "rest";
+            }
+
+            @Override
+            public void start() {
+                context = new SpringApplicationBuilder(Application.class)
+                        // The pool belongs to the launcher: Spring must not close it with the context.
+                        .initializers((GenericApplicationContext ctx) -> ctx.registerBean("dataSource", DataSource.class,
+                                () -> launcher.dataSource, bd -> bd.setDestroyMethodName("")))
+                        // In-flight requests get the same drain time as the socket sessions.
+                        .properties("server.shutdown=graceful",
+                                "spring.lifecycle.timeout-per-shutdown-phase=" + DRAIN_MILLIS + "ms")
+                        .registerShutdownHook(false)
+                        .run(args);
+            }
+
+            @Override
+            public void stop(long drainMillis) {
+                context.close();
+            }
+        };
+    }
+}
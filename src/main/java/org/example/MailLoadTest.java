@@ -0,0 +1,326 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the SMTP and POP3 servers.
+ *
+ * Starts both servers and the RMI auth service in this JVM on an in-memory H2 database,
+ * then runs concurrent client sessions for a fixed time and prints throughput and latency
+ * percentiles per command. Mail goes to the emails table unless -Dmail.store (heap, file,
+ * maildir or segment) picks another {@link MailStore} engine; with -Dmail.shards=N it is
+ * spread over N in-memory databases:
+ *
+ *   java -cp Messagerie.jar org.example.MailLoadTest --smtp 50 --pop3 50 --duration 30
+ *        --recipients 3 --size 4096 --users 200
+ *
+ * SMTP sessions do EHLO, MAIL FROM, several RCPT TO, DATA and QUIT; POP3 sessions do USER,
+ * PASS, STAT, LIST, RETR, DELE and QUIT. Needs port 1099 free for the RMI registry.
+ */
+public class MailLoadTest {
+
+    private static final String PASSWORD = "secret";
+    private static final int SEED_MESSAGES_PER_USER = 5;
+
+    private final int smtpSessions;
+    private final int pop3Sessions;
+    private final int durationSeconds;
+    private final int recipientsPerMessage;
+    private final int messageSize;
+    private final int users;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder smtpCompleted = new LongAdder();
+    private final LongAdder pop3Completed = new LongAdder();
+    private volatile boolean running = true;
+
+    private int smtpPort;
+    private int pop3Port;
+    private List<String> messageLines;
+
+    public MailLoadTest(int smtpSessions, int pop3Sessions, int durationSeconds,
+                        int recipientsPerMessage, int messageSize, int users) {
+        this.smtpSessions = smtpSessions;
+        this.pop3Sessions = pop3Sessions;
+        this.durationSeconds = durationSeconds;
+        this.recipientsPerMessage = Math.min(recipientsPerMessage, users);
+        this.messageSize = messageSize;
+        this.users = users;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // The load comes from this host; do not let admission control throttle it.
+        System.setProperty("mail.limit.exempt", "127.0.0.1,0:0:0:0:0:0:0:1");
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        MailLoadTest test = new MailLoadTest(
+                Integer.parseInt(options.getOrDefault("smtp", "20")),
+                Integer.parseInt(options.getOrDefault("pop3", "20")),
+                Integer.parseInt(options.getOrDefault("duration", "30")),
+                Integer.parseInt(options.getOrDefault("recipients", "3")),
+                Integer.parseInt(options.getOrDefault("size", "4096")),
+                Integer.parseInt(options.getOrDefault("users", "100")));
+        test.run();
+        // Session threads of the embedded servers are not daemons.
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        startServers();
+        messageLines = buildMessage(messageSize);
+
+        System.out.printf("Running %d SMTP and %d POP3 sessions for %d s (%d recipients, %d byte messages, %d users)%n",
+                smtpSessions, pop3Sessions, durationSeconds, recipientsPerMessage, messageSize, users);
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, smtpSessions + pop3Sessions));
+        for (int i = 0; i < smtpSessions; i++) {
+            workers.execute(() -> loop("SMTP", smtpCompleted, this::smtpSession));
+        }
+        for (int i = 0; i < pop3Sessions; i++) {
+            workers.execute(() -> loop("POP3", pop3Completed, this::pop3Session));
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        running = false;
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private interface Session {
+        void run() throws IOException;
+    }
+
+    private void loop(String protocol, LongAdder completed, Session session) {
+        while (running) {
+            try {
+                session.run();
+                completed.increment();
+            } catch (IOException e) {
+                errors.computeIfAbsent(protocol + " SESSION", k -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    // ---- environment -----------------------------------------------------------------
+
+    private void startServers() throws Exception {
+        EmbeddedMailDb.start("loadtest");
+        for (int shard = 1; shard < MailShards.count(); shard++) {
+            EmbeddedMailDb.startShard("loadtest", shard);
+        }
+        for (int u = 0; u < users; u++) {
+            EmbeddedMailDb.addUser(user(u), PASSWORD);
+            List<String> mailbox = List.of(user(u) + "@example.com");
+            for (int m = 0; m < SEED_MESSAGES_PER_USER; m++) {
+                MailStores.get().append(user(0) + "@example.com", mailbox, "Seed " + m, "Seed message " + m);
+            }
+        }
+
+        Registry registry = LocateRegistry.createRegistry(1099);
+        registry.rebind("AuthService", new AuthServiceImpl());
+
+        ServerSocket smtp = new ServerSocket(0);
+        ServerSocket pop3 = new ServerSocket(0);
+        smtpPort = smtp.getLocalPort();
+        pop3Port = pop3.getLocalPort();
+        startDaemon("smtp-accept", () -> SmtpServer.serve(smtp));
+        startDaemon("pop3-accept", () -> Pop3Server.serve(pop3));
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private static void startDaemon(String name, Server server) {
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static String user(int index) {
+        return "loaduser" + index;
+    }
+
+    private static List<String> buildMessage(int size) {
+        List<String> lines = new ArrayList<>();
+        lines.add("Subject: load test");
+        lines.add("");
+        StringBuilder line = new StringBuilder();
+        int written = 0;
+        while (written < size) {
+            line.setLength(0);
+            while (line.length() < 76 && written + line.length() < size) {
+                line.append((char) ('a' + (written + line.length()) % 26));
+            }
+            lines.add(line.toString());
+            written += line.length() + 2;
+        }
+        return lines;
+    }
+
+    // ---- client sessions -------------------------------------------------------------
+
+    private void smtpSession() throws IOException {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        try (Socket socket = new Socket("localhost", smtpPort)) {
+            Conversation c = new Conversation("SMTP", socket);
+            c.expect("CONNECT", "220");
+            c.send("EHLO", "EHLO loadtest", "250");
+            c.send("MAIL", "MAIL FROM:<" + user(rnd.nextInt(users)) + "@example.com>", "250");
+            int first = rnd.nextInt(users);
+            for (int r = 0; r < recipientsPerMessage; r++) {
+                c.send("RCPT", "RCPT TO:<" + user((first + r) % users) + "@example.com>", "250");
+            }
+            c.send("DATA", "DATA", "354");
+            c.sendBlock("MESSAGE", messageLines, "250");
+            c.send("QUIT", "QUIT", "221");
+        }
+    }
+
+    private void pop3Session() throws IOException {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        try (Socket socket = new Socket("localhost", pop3Port)) {
+            Conversation c = new Conversation("POP3", socket);
+            c.expect("CONNECT", "+OK");
+            c.send("USER", "USER " + user(rnd.nextInt(users)), "+OK");
+            c.send("PASS", "PASS " + PASSWORD, "+OK");
+            String stat = c.send("STAT", "STAT", "+OK");
+            int messages = Integer.parseInt(stat.split(" ")[1]);
+            if (messages > 0) {
+                c.sendMultiLine("LIST", "LIST", "+OK");
+                c.sendMultiLine("RETR", "RETR 1", "+OK");
+                c.send("DELE", "DELE 1", "+OK");
+            }
+            c.send("QUIT", "QUIT", "+OK");
+        }
+    }
+
+    /** One client connection; every request/response pair is timed under "PROTOCOL COMMAND". */
+    private final class Conversation {
+        private final String protocol;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Conversation(String protocol, Socket socket) throws IOException {
+            this.protocol = protocol;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        // A reply line; the continuation lines of a multi-line SMTP reply (250-...) are skipped.
+        String reply() throws IOException {
+            String line = in.readLine();
+            while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+                line = in.readLine();
+            }
+            return line;
+        }
+
+        String expect(String command, String prefix) throws IOException {
+            long start = System.nanoTime();
+            return check(command, prefix, reply(), start);
+        }
+
+        String send(String command, String line, String prefix) throws IOException {
+            long start = System.nanoTime();
+            out.write(line + "\r\n");
+            out.flush();
+            return check(command, prefix, reply(), start);
+        }
+
+        // Sends the lines followed by the "." terminator and waits for a single-line reply.
+        String sendBlock(String command, List<String> lines, String prefix) throws IOException {
+            long start = System.nanoTime();
+            for (String line : lines) {
+                out.write(line.startsWith(".") ? "." + line + "\r\n" : line + "\r\n");
+            }
+            out.write(".\r\n");
+            out.flush();
+            return check(command, prefix, reply(), start);
+        }
+
+        // Sends a command whose successful reply is followed by lines up to a "." terminator.
+        void sendMultiLine(String command, String line, String prefix) throws IOException {
+            long start = System.nanoTime();
+            out.write(line + "\r\n");
+            out.flush();
+            String status = in.readLine();
+            if (status != null && status.startsWith(prefix)) {
+                String next;
+                while ((next = in.readLine()) != null && !next.equals(".")) {
+                    // drain the listing / message
+                }
+            }
+            check(command, prefix, status, start);
+        }
+
+        private String check(String command, String prefix, String reply, long start) throws IOException {
+            String key = protocol + " " + command;
+            latencies.computeIfAbsent(key, k -> new LatencyHistogram()).record(System.nanoTime() - start);
+            if (reply == null || !reply.startsWith(prefix)) {
+                errors.computeIfAbsent(key, k -> new LongAdder()).increment();
+                throw new IOException(key + " failed: " + reply);
+            }
+            return reply;
+        }
+    }
+
+    // ---- report ----------------------------------------------------------------------
+
+    private void report(double seconds) {
+        System.out.printf("%nCompleted in %.1f s: %d SMTP sessions (%.1f/s), %d POP3 sessions (%.1f/s)%n%n",
+                seconds, smtpCompleted.sum(), smtpCompleted.sum() / seconds,
+                pop3Completed.sum(), pop3Completed.sum() / seconds);
+        System.out.printf("%-14s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "command", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(latencies);
+        for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long count = h.count();
+            LongAdder failed = errors.get(e.getKey());
+            System.out.printf("%-14s %9d %7d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    e.getKey(), count, failed == null ? 0 : failed.sum(), count / seconds,
+                    h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6,
+                    h.percentile(99.9) / 1e6, h.max() / 1e6);
+        }
+        for (String protocol : new String[]{"SMTP", "POP3"}) {
+            LongAdder aborted = errors.get(protocol + " SESSION");
+            if (aborted != null) {
+                System.out.println(protocol + " sessions aborted: " + aborted.sum());
+            }
+        }
+    }
+}
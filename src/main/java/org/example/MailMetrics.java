@@ -0,0 +1,196 @@
+package org.example;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the mail servers, recorded into Micrometer's global registry.
+ *
+ * The REST application exposes that registry through Spring Boot Actuator; the socket
+ * servers call {@link #enableJmx()} at startup to publish it over JMX. Meters:
+ * <ul>
+ *   <li>mail.command (timer, protocol/command): latency of each protocol command</li>
+ *   <li>mail.sessions.active (gauge, protocol): open client connections</li>
+ *   <li>mail.bytes.in / mail.bytes.out (counters, protocol): socket traffic</li>
+ *   <li>mail.db (timer, query): time spent per kind of database statement</li>
+ *   <li>mail.auth (timer, operation): AuthService call latency</li>
+ *   <li>mail.tls.handshake (timer, protocol/resumed): TLS handshakes; the resumed=true share is the resumption ratio</li>
+ *   <li>mail.rejected (counter, protocol/reason): connections and commands refused by {@link Admission}
+ *       or shed by {@link Overload}</li>
+ *   <li>mail.concurrency.limit / mail.concurrency.inflight (gauges, resource): {@link AdaptiveLimiter} state</li>
+ *   <li>mail.cache.requests (counter, result): {@link CachingMailStore} listings answered from memory (hit) or not (miss)</li>
+ *   <li>mail.cache.bytes / mail.cache.mailboxes (gauges): estimated size and entries of that cache</li>
+ *   <li>mail.replica.reads (counter, route): reads routed by {@link MailShard} to a replica or to the
+ *       primary, and why (replica, sticky, lagging)</li>
+ *   <li>mail.replica.lag (gauge, replica): replication lag measured by {@link MailReplicas}, in ms</li>
+ * </ul>
+ */
+public final class MailMetrics {
+
+    // Command tags are limited to this set so clients cannot create unbounded meters.
+    private static final Set<String> KNOWN_COMMANDS = Set.of(
+            "HELO", "EHLO", "MAIL", "RCPT", "DATA", "QUIT", "RSET", "NOOP",
+            "USER", "PASS", "STAT", "LIST", "RETR", "DELE",
+            "STARTTLS", "STLS", "CAPA",
+            "CAPABILITY", "LOGIN", "AUTHENTICATE", "LOGOUT", "SELECT", "EXAMINE", "STATUS", "LSUB",
+            "FETCH", "STORE", "SEARCH", "EXPUNGE", "CLOSE", "CHECK", "IDLE");
+
+    private static final ConcurrentHashMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicInteger> ACTIVE_SESSIONS = new ConcurrentHashMap<>();
+    private static volatile boolean jmxEnabled;
+
+    private MailMetrics() {
+    }
+
+    public static synchronized void enableJmx() {
+        if (!jmxEnabled) {
+            Metrics.addRegistry(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+            jmxEnabled = true;
+        }
+    }
+
+    public static void command(String protocol, String command, long startNanos) {
+        String tag = KNOWN_COMMANDS.contains(command) ? command : "OTHER";
+        timer("mail.command", "protocol", protocol, "command", tag).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void db(String query, long startNanos) {
+        timer("mail.db", "query", query, null, null).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void auth(String operation, long startNanos) {
+        timer("mail.auth", "operation", operation, null, null).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void tlsHandshake(String protocol, boolean resumed, long startNanos) {
+        timer("mail.tls.handshake", "protocol", protocol, "resumed", String.valueOf(resumed))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void rejected(String protocol, String reason) {
+        COUNTERS.computeIfAbsent("mail.rejected|" + protocol + '|' + reason, k ->
+                Counter.builder("mail.rejected").tag("protocol", protocol).tag("reason", reason)
+                        .register(Metrics.globalRegistry)).increment();
+    }
+
+    public static void concurrency(String resource, Supplier<Number> inFlight, Supplier<Number> limit) {
+        Gauge.builder("mail.concurrency.inflight", inFlight).tag("resource", resource).register(Metrics.globalRegistry);
+        Gauge.builder("mail.concurrency.limit", limit).tag("resource", resource).register(Metrics.globalRegistry);
+    }
+
+    public static void cache(boolean hit) {
+        String result = hit ? "hit" : "miss";
+        COUNTERS.computeIfAbsent("mail.cache.requests|" + result, k ->
+                Counter.builder("mail.cache.requests").tag("result", result).register(Metrics.globalRegistry)).increment();
+    }
+
+    public static void cacheSize(Supplier<Number> bytes, Supplier<Number> mailboxes) {
+        Gauge.builder("mail.cache.bytes", bytes).baseUnit("bytes").register(Metrics.globalRegistry);
+        Gauge.builder("mail.cache.mailboxes", mailboxes).register(Metrics.globalRegistry);
+    }
+
+    public static void replicaRead(String route) {
+        COUNTERS.computeIfAbsent("mail.replica.reads|" + route, k ->
+                Counter.builder("mail.replica.reads").tag("route", route).register(Metrics.globalRegistry)).increment();
+    }
+
+    public static void replicaLag(String replica, Supplier<Number> lagMillis) {
+        Gauge.builder("mail.replica.lag", lagMillis).tag("replica", replica).baseUnit("milliseconds")
+                .register(Metrics.globalRegistry);
+    }
+
+    public static void sessionOpened(String protocol) {
+        activeSessions(protocol).incrementAndGet();
+    }
+
+    public static void sessionClosed(String protocol) {
+        activeSessions(protocol).decrementAndGet();
+    }
+
+    public static InputStream meterIn(String protocol, InputStream in) {
+        Counter bytes = counter("mail.bytes.in", protocol);
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) {
+                    bytes.increment(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public static OutputStream meterOut(String protocol, OutputStream out) {
+        Counter bytes = counter("mail.bytes.out", protocol);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.increment();
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                out.write(buf, off, len);
+                bytes.increment(len);
+            }
+        };
+    }
+
+    private static Timer timer(String name, String k1, String v1, String k2, String v2) {
+        String key = name + '|' + v1 + '|' + v2;
+        Timer timer = TIMERS.get(key);
+        if (timer == null) {
+            Timer.Builder builder = Timer.builder(name).tag(k1, v1)
+                    .publishPercentiles(0.5, 0.9, 0.99)
+                    .publishPercentileHistogram();
+            if (k2 != null) {
+                builder.tag(k2, v2);
+            }
+            timer = TIMERS.computeIfAbsent(key, k -> builder.register(Metrics.globalRegistry));
+        }
+        return timer;
+    }
+
+    private static Counter counter(String name, String protocol) {
+        return COUNTERS.computeIfAbsent(name + '|' + protocol, k ->
+                Counter.builder(name).baseUnit("bytes").tag("protocol", protocol).register(Metrics.globalRegistry));
+    }
+
+    private static AtomicInteger activeSessions(String protocol) {
+        return ACTIVE_SESSIONS.computeIfAbsent(protocol, p -> {
+            AtomicInteger count = new AtomicInteger();
+            Gauge.builder("mail.sessions.active", count, AtomicInteger::get)
+                    .tag("protocol", p)
+                    .register(Metrics.globalRegistry);
+            return count;
+        });
+    }
+}
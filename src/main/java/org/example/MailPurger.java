@@ -0,0 +1,77 @@
+package org.example;
+
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background purge of soft-deleted mail.
+ *
+ * A message is soft-deleted by POP3 DELE, IMAP EXPUNGE or the REST API, and the deletion
+ * is committed by POP3 QUIT, EXPUNGE or REST DELETE. Once the commit is older than the
+ * retention period the {@link MailStore} removes the message here, in small batches with a
+ * pause in between, so that no single statement holds locks for long and clients never
+ * wait for the cleanup. The attachments of the purged messages go after them.
+ *
+ * Settings (system properties): mail.purge.retention-hours (default 168),
+ * mail.purge.batch-size (500), mail.purge.pause-ms (50), mail.purge.interval-minutes (10).
+ */
+public class MailPurger implements Runnable {
+
+    private final long retentionMillis;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final long intervalMinutes;
+
+    public MailPurger() {
+        this(Long.getLong("mail.purge.retention-hours", 168),
+                Integer.getInteger("mail.purge.batch-size", 500),
+                Long.getLong("mail.purge.pause-ms", 50),
+                Long.getLong("mail.purge.interval-minutes", 10));
+    }
+
+    public MailPurger(long retentionHours, int batchSize, long pauseMillis, long intervalMinutes) {
+        this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    public static void main(String[] args) {
+        new MailPurger().run();
+    }
+
+    // Runs the purge periodically on a daemon thread.
+    public ScheduledExecutorService start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mail-purger");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this, 0, intervalMinutes, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    @Override
+    public void run() {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - retentionMillis);
+        long start = System.nanoTime();
+        try {
+            long purged = MailStores.get().purge(cutoff, batchSize, pauseMillis);
+            if (purged > 0) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("[PURGE] %d message(s) purged in %.1f s (%.0f messages/s)%n",
+                        purged, seconds, seconds > 0 ? purged / seconds : 0.0);
+            }
+            long swept = MailAttachments.sweep(MailStores.get(), batchSize, pauseMillis);
+            if (swept > 0) {
+                System.out.println("[PURGE] Attachments of " + swept + " purged message(s) removed");
+            }
+        } catch (MailStoreException e) {
+            System.err.println("[PURGE] Failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A read replica of a {@link MailShard}: its own connection pool, opened on first use, its own
+ * {@link Overload#db} limit, and the replication lag {@link MailReplicas} last measured on it.
+ */
+public final class MailReplica {
+
+    public final String name;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final AdaptiveLimiter limiter;
+    private volatile HikariDataSource pool;
+    // Unknown until the first check.
+    private volatile long lagMillis = Long.MAX_VALUE;
+
+    MailReplica(String name, String url, String user, String password) {
+        this.name = name;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.limiter = Overload.db(name);
+        MailMetrics.replicaLag(name, () -> lagMillis == Long.MAX_VALUE ? Double.NaN : lagMillis);
+    }
+
+    public Connection getConnection() throws SQLException {
+        return MailDb.getConnection(pool(), limiter);
+    }
+
+    public long lagMillis() {
+        return lagMillis;
+    }
+
+    // Measures the lag against the heartbeat the primary wrote last; unknown if it cannot be read.
+    void check(long now) {
+        try (Connection con = getConnection()) {
+            long beat = MailReplicas.beat(con);
+            lagMillis = beat < 0 ? Long.MAX_VALUE : Math.max(0, now - beat);
+        } catch (SQLException e) {
+            if (lagMillis != Long.MAX_VALUE) {
+                System.err.println("Replica " + name + " unavailable: " + e.getMessage());
+            }
+            lagMillis = Long.MAX_VALUE;
+        }
+    }
+
+    synchronized void close() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    private HikariDataSource pool() {
+        HikariDataSource current = pool;
+        if (current == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    pool = MailShard.pool("maildb-" + name, url, user, password);
+                }
+                current = pool;
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,124 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-replica routing for the mail shards.
+ *
+ * Each shard can list read replicas, comma-separated JDBC URLs in maildb.replicas for shard 0
+ * and mail.shard.i.replicas for the others, reached with the credentials of the shard. Reads
+ * of mailbox data and user lookups go to a replica, in turn, when its lag is within
+ * mail.replica.max-lag-ms (2000); writes, and everything else, stay on the primary.
+ *
+ * Lag is measured every mail.replica.check-ms (500) against the mail_heartbeat row that the
+ * check then writes on the primary, so it reads up to that much high, and assumes the
+ * processes writing the heartbeat share a clock. A replica not measured yet, or that cannot
+ * be reached, is skipped.
+ *
+ * For mail.replica.sticky-ms (5000) after a mailbox is written through this JVM, or is seen to
+ * change here through {@link MailboxVersions}, its reads go to the primary, so that a session
+ * reads its own writes and a cache or index filled on a change is not filled from a replica
+ * that has not got it yet.
+ */
+public final class MailReplicas {
+
+    static final long MAX_LAG_MS = Long.getLong("mail.replica.max-lag-ms", 2000);
+    static final long CHECK_MS = Long.getLong("mail.replica.check-ms", 500);
+    static final long STICKY_MS = Long.getLong("mail.replica.sticky-ms", 5000);
+
+    // Mailbox (lower case) -> time its reads may go to a replica again.
+    private static final ConcurrentHashMap<String, Long> STICKY = new ConcurrentHashMap<>();
+    private static final Set<MailShard> SHARDS = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService checker;
+
+    private MailReplicas() {
+    }
+
+    // Sends the reads of the mailbox to the primary for a while. Cheap when there are no replicas.
+    public static void wrote(String mailbox) {
+        if (mailbox != null && !SHARDS.isEmpty()) {
+            STICKY.put(mailbox.toLowerCase(Locale.ROOT), System.currentTimeMillis() + STICKY_MS);
+        }
+    }
+
+    static boolean sticky(String mailbox) {
+        Long until = STICKY.get(mailbox.toLowerCase(Locale.ROOT));
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    // Starts measuring the lag of the replicas of the shard.
+    static synchronized void register(MailShard shard) {
+        SHARDS.add(shard);
+        if (checker == null) {
+            checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mail-replica-check");
+                t.setDaemon(true);
+                return t;
+            });
+            checker.scheduleWithFixedDelay(MailReplicas::check, 0, CHECK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void unregister(MailShard shard) {
+        SHARDS.remove(shard);
+    }
+
+    private static void check() {
+        try {
+            long now = System.currentTimeMillis();
+            STICKY.values().removeIf(until -> until <= now);
+            for (MailShard shard : SHARDS) {
+                shard.checkReplicas();
+            }
+        } catch (RuntimeException e) {
+            // Thrown out of here it would cancel the schedule.
+            e.printStackTrace();
+        }
+    }
+
+    // The heartbeat a replica has, or -1 if it has none yet.
+    static long beat(Connection replica) throws SQLException {
+        try (Statement st = replica.createStatement();
+             ResultSet rs = st.executeQuery("SELECT beat FROM mail_heartbeat WHERE id = 1")) {
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            // No table until the primary's first heartbeat has replicated.
+            return -1;
+        }
+    }
+
+    // Creates the heartbeat table on a primary, if it has none yet.
+    static void createHeartbeat(Connection primary) throws SQLException {
+        try (Statement st = primary.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS mail_heartbeat (id INT NOT NULL PRIMARY KEY, beat BIGINT NOT NULL)");
+        }
+    }
+
+    // Writes the heartbeat on a primary; never moves it back, as other processes write it too.
+    static void beat(Connection primary, long now) throws SQLException {
+        try (PreparedStatement update = primary.prepareStatement("UPDATE mail_heartbeat SET beat = ? WHERE id = 1 AND beat < ?")) {
+            update.setLong(1, now);
+            update.setLong(2, now);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement insert = primary.prepareStatement("INSERT INTO mail_heartbeat (id, beat) VALUES (1, ?)")) {
+            insert.setLong(1, now);
+            insert.executeUpdate();
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // There already, with a later beat.
+        }
+    }
+}
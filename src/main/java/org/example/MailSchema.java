@@ -0,0 +1,84 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Columns and indexes the mail store adds to databases created before it needed them. MySQL
+ * knows no ADD COLUMN IF NOT EXISTS or CREATE INDEX IF NOT EXISTS, so each is looked up in
+ * the database metadata first. Should another server add it in between, the ALTER fails and
+ * the second look finds it there.
+ */
+final class MailSchema {
+
+    private MailSchema() {
+    }
+
+    // Adds column to table, as "column definition", unless the table has it.
+    static void addColumn(Connection con, String table, String column, String definition) throws SQLException {
+        if (hasColumn(con, table, column)) {
+            return;
+        }
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        } catch (SQLException e) {
+            if (!hasColumn(con, table, column)) {
+                throw e;
+            }
+        }
+    }
+
+    // Creates index on table over columns unless an index of that name exists.
+    static void addIndex(Connection con, String table, String index, String columns) throws SQLException {
+        if (hasIndex(con, table, index)) {
+            return;
+        }
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate("CREATE INDEX " + index + " ON " + table + " (" + columns + ")");
+        } catch (SQLException e) {
+            if (!hasIndex(con, table, index)) {
+                throw e;
+            }
+        }
+    }
+
+    static boolean hasColumn(Connection con, String table, String column) throws SQLException {
+        DatabaseMetaData meta = con.getMetaData();
+        try (ResultSet rs = meta.getColumns(con.getCatalog(), con.getSchema(), stored(meta, table), null)) {
+            while (rs.next()) {
+                if (rs.getString("COLUMN_NAME").equalsIgnoreCase(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean hasIndex(Connection con, String table, String index) throws SQLException {
+        DatabaseMetaData meta = con.getMetaData();
+        try (ResultSet rs = meta.getIndexInfo(con.getCatalog(), con.getSchema(), stored(meta, table), false, true)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                if (name != null && name.equalsIgnoreCase(index)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The table name the way the database keeps unquoted names, as the metadata wants it.
+    private static String stored(DatabaseMetaData meta, String table) throws SQLException {
+        if (meta.storesUpperCaseIdentifiers()) {
+            return table.toUpperCase(Locale.ROOT);
+        }
+        if (meta.storesLowerCaseIdentifiers()) {
+            return table.toLowerCase(Locale.ROOT);
+        }
+        return table;
+    }
+}
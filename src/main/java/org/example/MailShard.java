@@ -0,0 +1,147 @@
+package org.example;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the databases mailboxes are spread over (see {@link MailShards}). Shard 0 is the
+ * mail database of {@link MailDb} itself; the others get a connection pool of their own,
+ * opened on first use, and an {@link Overload#db} limit of their own. Reads may go to the
+ * read replicas of the shard instead, see {@link MailReplicas}.
+ */
+public final class MailShard {
+
+    public final int index;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final AdaptiveLimiter limiter;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private volatile HikariDataSource pool;
+    private volatile List<MailReplica> replicas = List.of();
+    private volatile boolean heartbeatReady;
+    // Set once JdbcMailStore has brought the tables of the shard up to date.
+    volatile boolean schemaReady;
+
+    MailShard(int index, String url, String user, String password) {
+        this.index = index;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.limiter = Overload.db(index);
+        String replicaUrls = System.getProperty(index == 0 ? "maildb.replicas" : "mail.shard." + index + ".replicas", "");
+        useReplicas(replicaUrls.isBlank() ? List.of() : List.of(replicaUrls.split(",")));
+    }
+
+    public Connection getConnection() throws SQLException {
+        return MailDb.getConnection(pool(), limiter);
+    }
+
+    // Never refused, as MailDb.getCommitConnection.
+    public Connection getCommitConnection() throws SQLException {
+        return MailDb.getCommitConnection(pool(), limiter);
+    }
+
+    // The replica to read from, or null to read from the primary: while the mailbox (if any)
+    // is sticky, or when no replica is within the lag bound.
+    public MailReplica replica(String mailbox) {
+        List<MailReplica> all = replicas;
+        if (all.isEmpty()) {
+            return null;
+        }
+        if (mailbox != null && MailReplicas.sticky(mailbox)) {
+            MailMetrics.replicaRead("sticky");
+            return null;
+        }
+        int start = nextReplica.getAndIncrement();
+        for (int i = 0; i < all.size(); i++) {
+            MailReplica replica = all.get(Math.floorMod(start + i, all.size()));
+            if (replica.lagMillis() <= MailReplicas.MAX_LAG_MS) {
+                MailMetrics.replicaRead("replica");
+                return replica;
+            }
+        }
+        MailMetrics.replicaRead("lagging");
+        return null;
+    }
+
+    public String url() {
+        return index == 0 ? MailDb.url() : url;
+    }
+
+    // Replaces the read replicas of the shard with the databases at urls.
+    synchronized void useReplicas(List<String> urls) {
+        List<MailReplica> old = replicas;
+        List<MailReplica> created = new ArrayList<>();
+        for (String replicaUrl : urls) {
+            created.add(new MailReplica("db" + index + "-replica" + created.size(), replicaUrl.trim(),
+                    index == 0 ? MailDb.user() : user, index == 0 ? MailDb.password() : password));
+        }
+        replicas = List.copyOf(created);
+        old.forEach(MailReplica::close);
+        if (created.isEmpty()) {
+            MailReplicas.unregister(this);
+        } else {
+            MailReplicas.register(this);
+        }
+    }
+
+    // Measures the lag of the replicas, then writes the heartbeat the next check measures against.
+    void checkReplicas() {
+        long now = System.currentTimeMillis();
+        for (MailReplica replica : replicas) {
+            replica.check(now);
+        }
+        // Not shed: while it is not written the replicas look ever more behind.
+        try (Connection con = getCommitConnection()) {
+            if (!heartbeatReady) {
+                MailReplicas.createHeartbeat(con);
+                heartbeatReady = true;
+            }
+            MailReplicas.beat(con, now);
+        } catch (SQLException e) {
+            System.err.println("Could not write the replication heartbeat of shard " + index + ": " + e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        useReplicas(List.of());
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    static HikariDataSource pool(String name, String url, String user, String password) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        config.setMaximumPoolSize(Integer.getInteger("maildb.pool-size", 20));
+        return new HikariDataSource(config);
+    }
+
+    // Null for shard 0, which connects the way MailDb does.
+    private HikariDataSource pool() {
+        if (index == 0) {
+            return null;
+        }
+        HikariDataSource current = pool;
+        if (current == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    pool = pool("maildb-shard" + index, url, user, password);
+                }
+                current = pool;
+            }
+        }
+        return current;
+    }
+}
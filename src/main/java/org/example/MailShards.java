@@ -0,0 +1,115 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The databases mailboxes are spread over, and which one holds a mailbox.
+ *
+ * mail.shards (default 1) is the number of shards. Shard 0 is the {@link MailDb} database,
+ * which also keeps the users and the mailbox versions; shard i above that is set with
+ * mail.shard.i.url, mail.shard.i.user and mail.shard.i.password (default maildb.user and
+ * maildb.password), or programmatically with {@link #configure}. Any shard can have read
+ * replicas ({@link MailReplicas}).
+ *
+ * A mailbox lives on the shard that owns the hash of its lower-cased address on a ring with
+ * {@link #POINTS} points per shard, so adding a shard takes mailboxes from every other shard
+ * and moves no others. While {@link ShardRebalancer} moves them, mail.shards.previous names
+ * the shard count before, so that the mailboxes on their way are read from both shards.
+ */
+public final class MailShards {
+
+    // Ring points per shard.
+    static final int POINTS = 128;
+
+    private static final List<MailShard> SHARDS = new ArrayList<>();
+    private static final ConcurrentHashMap<Integer, Ring> RINGS = new ConcurrentHashMap<>();
+
+    private MailShards() {
+    }
+
+    public static int count() {
+        return Math.max(1, Integer.getInteger("mail.shards", 1));
+    }
+
+    // The shard count before the last shards were added, while their mailboxes are moved; 0 otherwise.
+    public static int previous() {
+        int previous = Integer.getInteger("mail.shards.previous", 0);
+        return previous > 0 && previous < count() ? previous : 0;
+    }
+
+    public static synchronized MailShard get(int index) {
+        while (SHARDS.size() <= index) {
+            int i = SHARDS.size();
+            String prefix = "mail.shard." + i + ".";
+            SHARDS.add(new MailShard(i, System.getProperty(prefix + "url"),
+                    System.getProperty(prefix + "user", MailDb.user()),
+                    System.getProperty(prefix + "password", MailDb.password())));
+        }
+        return SHARDS.get(index);
+    }
+
+    // Points shard index (above 0) at another database, such as an embedded H2 one.
+    public static synchronized void configure(int index, String jdbcUrl, String dbUser, String dbPassword) {
+        if (index <= 0) {
+            throw new IllegalArgumentException("Shard 0 is configured through MailDb");
+        }
+        get(index).close();
+        SHARDS.set(index, new MailShard(index, jdbcUrl, dbUser, dbPassword));
+    }
+
+    // Points the read replicas of shard index (0 included) at the databases at urls; none turns them off.
+    public static void useReplicas(int index, List<String> urls) {
+        get(index).useReplicas(urls);
+    }
+
+    // The index of the shard that owns the mailbox among the first shards.
+    public static int owner(String mailbox, int shards) {
+        return shards <= 1 ? 0 : RINGS.computeIfAbsent(shards, Ring::new).owner(hash(mailbox.toLowerCase(Locale.ROOT)));
+    }
+
+    // 64-bit FNV-1a, mixed so that nearby keys land far apart on the ring.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // The points of the first shards, sorted; a key belongs to the first point at or after it.
+    private static final class Ring {
+        final long[] points;
+        final int[] owners;
+
+        Ring(int shards) {
+            long[][] entries = new long[shards * POINTS][];
+            for (int shard = 0; shard < shards; shard++) {
+                for (int point = 0; point < POINTS; point++) {
+                    entries[shard * POINTS + point] = new long[]{hash("shard-" + shard + "#" + point), shard};
+                }
+            }
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[entries.length];
+            owners = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                points[i] = entries[i][0];
+                owners[i] = (int) entries[i][1];
+            }
+        }
+
+        int owner(long key) {
+            int i = Arrays.binarySearch(points, key);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage of the messages the SMTP, POP3 and IMAP servers and the REST API work on.
+ *
+ * A mailbox is a recipient address; every message stored for it gets an id that is unique
+ * across mailboxes and larger than any id handed out before, so ids double as IMAP UIDs.
+ * Deleting is in two steps, as POP3 needs it: {@link #markDeleted} hides a message, and
+ * until the deletion is committed (by {@link #commitDeleted}, or at once with commit set)
+ * {@link #unmarkDeleted} brings it back. {@link #purge} removes committed deletions for
+ * good once they are old enough.
+ *
+ * Engines: {@link JdbcMailStore} (the emails table, the default), {@link HeapMailStore}
+ * (in memory, for tests and benchmarks), {@link FileMailStore} (a directory per mailbox),
+ * {@link MaildirMailStore} (a Maildir per mailbox) and {@link SegmentMailStore} (bodies in local segment files, the rest in one of the others);
+ * {@link MailStores} picks one from the mail.store setting, and fronts it with {@link CachingMailStore}. Callers bump the mailbox version
+ * ({@link MailboxVersions}) after a change; the store does not.
+ */
+public interface MailStore {
+
+    // Stores one copy of the message per recipient; returns their ids, in recipient order.
+    List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException;
+
+    // The live messages of the mailbox in id order, without bodies.
+    default List<StoredMail> list(String mailbox) throws MailStoreException {
+        return page(mailbox, 0, Integer.MAX_VALUE, false);
+    }
+
+    // Up to limit live messages of the mailbox with an id above afterId, in id order.
+    List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException;
+
+    // The live messages of the mailbox among ids, by id; missing ones are left out.
+    Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException;
+
+    // Copies the body of a live message to out without holding all of it; false if there is no such message.
+    boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException;
+
+    // The mailbox a live message belongs to, or null.
+    String mailboxOf(long id) throws MailStoreException;
+
+    // The highest id among the messages of the mailbox that are not purged yet, deleted ones
+    // included; 0 if there are none.
+    long highestId(String mailbox) throws MailStoreException;
+
+    // The ids among ids of messages of the mailbox that are not purged yet, deleted ones included.
+    Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException;
+
+    // Sets the IMAP flags of live messages, by id.
+    void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException;
+
+    // Marks live messages deleted, committing the deletion at once with commit; returns how many were.
+    int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException;
+
+    // Brings back the messages of the mailbox whose deletion is not committed yet; returns how many.
+    int unmarkDeleted(String mailbox) throws MailStoreException;
+
+    // Commits the pending deletions of the mailbox. Must not be shed: the client was told they are accepted.
+    int commitDeleted(String mailbox) throws MailStoreException;
+
+    // Removes the messages whose deletion was committed before cutoff, batchSize at a time
+    // with a pause in between; returns how many were removed.
+    long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException;
+}
@@ -0,0 +1,34 @@
+package org.example;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+
+/**
+ * A {@link MailStore} operation that failed. Temporary failures (the database shed the
+ * call or timed out) are worth retrying: SMTP answers them with 451, POP3 with
+ * -ERR [SYS/TEMP], IMAP with NO [UNAVAILABLE] and REST with 503.
+ */
+public class MailStoreException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean temporary;
+
+    public MailStoreException(String message, Throwable cause, boolean temporary) {
+        super(message, cause);
+        this.temporary = temporary;
+    }
+
+    public MailStoreException(String message, Throwable cause) {
+        this(message, cause, false);
+    }
+
+    static MailStoreException of(SQLException e) {
+        return new MailStoreException(e.getMessage(), e, e instanceof SQLTransientException);
+    }
+
+    public boolean isTemporary() {
+        return temporary;
+    }
+}
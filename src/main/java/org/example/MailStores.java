@@ -0,0 +1,113 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Where the servers get their {@link MailStore}: the engine named by the system property
+ * mail.store, {@code jdbc} (default; a {@link ShardedMailStore} when mail.shards is above 1), {@code heap}, {@code file} (under mail.store.dir,
+ * default "mailstore"), {@code maildir} (a Maildir per mailbox under mail.maildir.dir, default
+ * "maildir") or {@code segment} (bodies in segment files under mail.segment.dir,
+ * default "segments", the rest in the engine named by mail.segment.metadata, default jdbc),
+ * or whatever was installed with {@link #use}. Unless mail.cache is false, listings from any
+ * engine but heap are answered through a {@link CachingMailStore}. With mail.archive true, the
+ * jdbc engine gets an {@link ArchiveMailStore} tier under mail.archive.dir (default "archive")
+ * that {@link MailArchiver} moves old mail to.
+ *
+ * The heap engine lives and dies with the JVM, so with it SMTP, POP3, IMAP and REST only
+ * share mail when they run together in {@link MailLauncher}.
+ */
+public final class MailStores {
+
+    private static volatile MailStore store;
+    private static volatile ArchiveMailStore archive;
+
+    private MailStores() {
+    }
+
+    public static void use(MailStore mailStore) {
+        store = mailStore;
+    }
+
+    public static MailStore get() {
+        MailStore current = store;
+        if (current == null) {
+            synchronized (MailStores.class) {
+                if (store == null) {
+                    String engine = System.getProperty("mail.store", "jdbc");
+                    store = cached(engine, archived(engine, create(engine)));
+                }
+                current = store;
+            }
+        }
+        return current;
+    }
+
+    public static MailStore create(String engine) {
+        switch (engine) {
+            case "jdbc":
+                return MailShards.count() > 1 ? new ShardedMailStore() : new JdbcMailStore();
+            case "heap":
+                return new HeapMailStore();
+            case "file":
+                return new FileMailStore(Paths.get(System.getProperty("mail.store.dir", "mailstore")));
+            case "maildir":
+                return new MaildirMailStore(Paths.get(System.getProperty("mail.maildir.dir", "maildir")));
+            case "segment":
+                String dir = System.getProperty("mail.segment.dir", "segments");
+                try {
+                    return new SegmentMailStore(create(System.getProperty("mail.segment.metadata", "jdbc")), Paths.get(dir));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not open segment store in " + dir, e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown mail.store engine: " + engine);
+        }
+    }
+
+    // The archive tier of the store from get(), or null without one.
+    public static ArchiveMailStore archive() {
+        get();
+        return archive;
+    }
+
+    private static MailStore archived(String engine, MailStore created) {
+        if (!engine.equals("jdbc") || !Boolean.getBoolean("mail.archive")) {
+            return created;
+        }
+        archive = new ArchiveMailStore(created, Paths.get(System.getProperty("mail.archive.dir", "archive")));
+        return archive;
+    }
+
+    private static MailStore cached(String engine, MailStore created) {
+        if (engine.equals("heap") || !Boolean.parseBoolean(System.getProperty("mail.cache", "true"))) {
+            return created;
+        }
+        return new CachingMailStore(created);
+    }
+
+    // Decodes UTF-8 bytes, such as a mapped file region, into out a buffer at a time.
+    static void writeUtf8(ByteBuffer bytes, Writer out) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(8192);
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, true);
+            if (result.isUnderflow()) {
+                decoder.flush(chars);
+            }
+            out.write(chars.array(), 0, chars.position());
+            chars.clear();
+        } while (result.isOverflow());
+    }
+}
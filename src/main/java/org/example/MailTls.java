@@ -0,0 +1,223 @@
+package org.example;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-side TLS of the SMTP and POP3 servers (STARTTLS, STLS and the implicit-TLS ports).
+ *
+ * Off unless a PKCS#12 key store is given with mail.tls.keystore (password
+ * mail.tls.keystore-password), or programmatically with {@link #configure}. One SSLContext
+ * lives as long as the process, so its session cache (mail.tls.session-cache-size, 20000;
+ * mail.tls.session-timeout-seconds, 3600) and TLS 1.3 session tickets let returning clients,
+ * such as POP3 pollers, resume instead of doing a full handshake. The key store file is
+ * checked for changes every mail.tls.reload-check-seconds (30) and a new certificate is
+ * swapped in under the same context, keeping the cached sessions. mail.tls.protocols
+ * (TLSv1.3,TLSv1.2) lists the enabled protocol versions.
+ */
+public final class MailTls {
+
+    private static final String[] PROTOCOLS = System.getProperty("mail.tls.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*");
+    private static final long RELOAD_CHECK_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("mail.tls.reload-check-seconds", 30));
+
+    private static volatile Path keystore = pathProperty("mail.tls.keystore");
+    private static volatile char[] password = System.getProperty("mail.tls.keystore-password", "").toCharArray();
+    private static volatile SSLContext context;
+    private static final ReloadingKeyManager KEYS = new ReloadingKeyManager();
+    private static final AtomicLong NEXT_CHECK = new AtomicLong();
+
+    private MailTls() {
+    }
+
+    public static synchronized void configure(Path keystoreFile, char[] keystorePassword) {
+        keystore = keystoreFile;
+        password = keystorePassword.clone();
+        context = null;
+    }
+
+    public static boolean enabled() {
+        return keystore != null;
+    }
+
+    // A server-mode engine for one connection; fails if TLS is not configured or the key store is unusable.
+    public static SSLEngine serverEngine() throws IOException {
+        SSLEngine engine = context().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return engine;
+    }
+
+    // Starts TLS as the server on a connection; in and out are the socket's streams (metered or not).
+    static TlsConnection accept(String protocol, InputStream in, OutputStream out) throws IOException {
+        long started = System.nanoTime();
+        TlsConnection tls = new TlsConnection(serverEngine(), in, out).start();
+        MailMetrics.tlsHandshake(protocol, resumed(tls.engine()), started);
+        return tls;
+    }
+
+    // Whether the handshake resumed a cached session or ticket rather than authenticating anew.
+    static boolean resumed(SSLEngine engine) {
+        // Session creation time is kept on resumption (both TLS 1.2 ids and TLS 1.3 tickets).
+        return engine.getSession().getCreationTime() < engine.getSession().getLastAccessedTime();
+    }
+
+    private static SSLContext context() throws IOException {
+        SSLContext current = context;
+        if (current == null) {
+            current = init();
+        } else {
+            maybeReload();
+        }
+        return current;
+    }
+
+    private static synchronized SSLContext init() throws IOException {
+        if (context != null) {
+            return context;
+        }
+        if (keystore == null) {
+            throw new IOException("TLS is not configured (mail.tls.keystore)");
+        }
+        KEYS.load(keystore, password);
+        try {
+            SSLContext created = SSLContext.getInstance("TLS");
+            created.init(new KeyManager[]{KEYS}, null, null);
+            SSLSessionContext sessions = created.getServerSessionContext();
+            sessions.setSessionCacheSize(Integer.getInteger("mail.tls.session-cache-size", 20_000));
+            sessions.setSessionTimeout(Integer.getInteger("mail.tls.session-timeout-seconds", 3600));
+            NEXT_CHECK.set(System.nanoTime() + RELOAD_CHECK_NANOS);
+            context = created;
+            return created;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS", e);
+        }
+    }
+
+    // At most one caller per interval looks at the key store's modification time.
+    private static void maybeReload() {
+        long now = System.nanoTime();
+        long next = NEXT_CHECK.get();
+        if (now - next < 0 || !NEXT_CHECK.compareAndSet(next, now + RELOAD_CHECK_NANOS)) {
+            return;
+        }
+        Path file = keystore;
+        try {
+            if (file != null && !Files.getLastModifiedTime(file).equals(KEYS.loadedModified)) {
+                KEYS.load(file, password);
+                System.out.println("TLS certificate reloaded from " + file);
+            }
+        } catch (IOException e) {
+            // keep serving the certificate already loaded
+            System.err.println("TLS certificate reload failed: " + e.getMessage());
+        }
+    }
+
+    private static Path pathProperty(String name) {
+        String value = System.getProperty(name);
+        return value == null || value.isEmpty() ? null : Path.of(value);
+    }
+
+    // Delegates to the key manager of the latest key store. Aliases carry the generation they
+    // were chosen from, so a handshake that straddles a reload still gets a matching key and chain.
+    private static final class ReloadingKeyManager extends X509ExtendedKeyManager {
+
+        private volatile X509ExtendedKeyManager current;
+        private volatile X509ExtendedKeyManager previous;
+        private volatile int generation;
+        private volatile FileTime loadedModified;
+
+        synchronized void load(Path file, char[] storePassword) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                KeyStore store = KeyStore.getInstance("PKCS12");
+                store.load(in, storePassword);
+                KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                factory.init(store, storePassword);
+                X509ExtendedKeyManager loaded = null;
+                for (KeyManager manager : factory.getKeyManagers()) {
+                    if (manager instanceof X509ExtendedKeyManager) {
+                        loaded = (X509ExtendedKeyManager) manager;
+                    }
+                }
+                if (loaded == null) {
+                    throw new IOException("No X.509 key in " + file);
+                }
+                previous = current;
+                current = loaded;
+                generation++;
+                loadedModified = modified;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load key store " + file, e);
+            }
+        }
+
+        private String tag(String alias) {
+            return alias == null ? null : generation + ":" + alias;
+        }
+
+        // The key manager and bare alias a tagged alias was chosen from.
+        private X509ExtendedKeyManager owner(String tagged) {
+            int colon = tagged.indexOf(':');
+            return colon > 0 && tagged.substring(0, colon).equals(String.valueOf(generation)) ? current : previous;
+        }
+
+        private static String untag(String tagged) {
+            return tagged.substring(tagged.indexOf(':') + 1);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return tag(current.chooseEngineServerAlias(keyType, issuers, engine));
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return tag(current.chooseServerAlias(keyType, issuers, socket));
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            X509ExtendedKeyManager owner = owner(alias);
+            return owner == null ? null : owner.getCertificateChain(untag(alias));
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            X509ExtendedKeyManager owner = owner(alias);
+            return owner == null ? null : owner.getPrivateKey(untag(alias));
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return current.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-mailbox version counters, bumped on every insert or delete of a message.
+ *
+ * The counters live in the small {@code mailbox_versions} table so that the SMTP, POP3
+ * and REST processes all see each other's writes, and are cached in memory so that lookups
+ * do not hit the database at all. A write made in this JVM invalidates the cached entry
+ * immediately. Writes made by other processes are picked up by re-reading every cached
+ * version in one batched query at most every {@link #REFRESH_MS}, however many mailboxes are
+ * polled; a mailbox not looked up for {@link #IDLE_MS} leaves the cache. {@link #watch}
+ * callbacks hear of the writes made in this JVM as they happen (IMAP IDLE).
+ *
+ * A version read from the database is only cached if no bump came in while it was read: the
+ * entry read is replaced only if it is still the one there, and a bump always replaces it.
+ */
+public final class MailboxVersions {
+
+    // How often the cached versions are re-read from the database, all in one go.
+    static final long REFRESH_MS = 1000;
+    // How long a version nobody looks up stays cached.
+    static final long IDLE_MS = 60_000;
+    // Mailboxes per IN list of a refresh.
+    private static final int BATCH = 500;
+
+    private static final ConcurrentHashMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Set<Runnable>> WATCHERS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean REFRESHING = new AtomicBoolean();
+    private static volatile long refreshedAt;
+    private static volatile boolean tableReady;
+
+    // A cached version; a bump leaves a STALE one (version -1) that is read again on next use.
+    private static final class Entry {
+        final long version;
+        volatile long usedAt;
+
+        Entry(long version, long usedAt) {
+            this.version = version;
+            this.usedAt = usedAt;
+        }
+    }
+
+    private MailboxVersions() {
+    }
+
+    // Records a change to the mailbox. Call after the insert/delete has been committed.
+    public static void bump(String recipientEmail) {
+        if (recipientEmail == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        String sql = "INSERT INTO mailbox_versions (recipient_email, version) VALUES (?, 1) "
+                + "ON DUPLICATE KEY UPDATE version = version + 1";
+
+        // Not shed: the change it records is committed already.
+        try (Connection con = MailDb.getCommitConnection()) {
+            ensureTable(con);
+            try (PreparedStatement pst = con.prepareStatement(sql)) {
+                pst.setString(1, recipientEmail);
+                pst.executeUpdate();
+            }
+        } catch (SQLException e) {
+            System.err.println("Could not bump mailbox version for " + recipientEmail + ": " + e.getMessage());
+        } finally {
+            // Even if the bump failed, never keep serving a version that may now be stale. A
+            // fresh entry rather than none, so that a read in flight cannot put back what it read.
+            CACHE.put(recipientEmail, new Entry(-1, System.currentTimeMillis()));
+            MailReplicas.wrote(recipientEmail);
+            MailMetrics.db("version_bump", started);
+        }
+        Set<Runnable> watchers = WATCHERS.get(recipientEmail);
+        if (watchers != null) {
+            watchers.forEach(Runnable::run);
+        }
+    }
+
+    // Runs onChange after every bump of the mailbox made in this JVM, until unwatch. It runs
+    // on the thread that bumped, so it should only hand the work on.
+    public static void watch(String recipientEmail, Runnable onChange) {
+        WATCHERS.compute(recipientEmail, (k, watchers) -> {
+            Set<Runnable> set = watchers != null ? watchers : ConcurrentHashMap.newKeySet();
+            set.add(onChange);
+            return set;
+        });
+    }
+
+    public static void unwatch(String recipientEmail, Runnable onChange) {
+        WATCHERS.computeIfPresent(recipientEmail, (k, watchers) -> {
+            watchers.remove(onChange);
+            return watchers.isEmpty() ? null : watchers;
+        });
+    }
+
+    // Current version of the mailbox, or -1 if it cannot be determined.
+    public static long current(String recipientEmail) {
+        long now = System.currentTimeMillis();
+        if (now - refreshedAt >= REFRESH_MS) {
+            refresh(now);
+        }
+        Entry cached = CACHE.get(recipientEmail);
+        if (cached != null && cached.version >= 0) {
+            cached.usedAt = now;
+            return cached.version;
+        }
+        return load(recipientEmail, cached, now);
+    }
+
+    // Reads the version of one mailbox and caches it unless a bump replaced cached meanwhile.
+    private static long load(String recipientEmail, Entry cached, long now) {
+        long started = System.nanoTime();
+        String sql = "SELECT version FROM mailbox_versions WHERE recipient_email = ?";
+        try (Connection con = MailDb.getConnection()) {
+            ensureTable(con);
+            try (PreparedStatement pst = con.prepareStatement(sql)) {
+                pst.setString(1, recipientEmail);
+                try (ResultSet rs = pst.executeQuery()) {
+                    long version = rs.next() ? rs.getLong("version") : 0L;
+                    // Not known to this JVM, so perhaps changed by another process: read it
+                    // from the primary for a while.
+                    MailReplicas.wrote(recipientEmail);
+                    cache(recipientEmail, cached, new Entry(version, now));
+                    return version;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Could not read mailbox version for " + recipientEmail + ": " + e.getMessage());
+            return -1;
+        } finally {
+            MailMetrics.db("version_read", started);
+        }
+    }
+
+    // Re-reads every cached version in one query per BATCH mailboxes, on one thread at a time
+    // while the others go on with what is cached, and drops the idle ones.
+    private static void refresh(long now) {
+        if (!REFRESHING.compareAndSet(false, true)) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            Map<String, Entry> read = new HashMap<>();
+            for (Map.Entry<String, Entry> cached : CACHE.entrySet()) {
+                if (now - cached.getValue().usedAt >= IDLE_MS) {
+                    CACHE.remove(cached.getKey(), cached.getValue());
+                } else if (cached.getValue().version >= 0) {
+                    read.put(cached.getKey(), cached.getValue());
+                }
+            }
+            List<String> mailboxes = new ArrayList<>(read.keySet());
+            if (mailboxes.isEmpty()) {
+                return;
+            }
+            try (Connection con = MailDb.getConnection()) {
+                ensureTable(con);
+                for (int from = 0; from < mailboxes.size(); from += BATCH) {
+                    List<String> batch = mailboxes.subList(from, Math.min(mailboxes.size(), from + BATCH));
+                    String sql = "SELECT recipient_email, version FROM mailbox_versions WHERE recipient_email IN ("
+                            + "?,".repeat(batch.size() - 1) + "?)";
+                    Map<String, Long> versions = new HashMap<>();
+                    try (PreparedStatement pst = con.prepareStatement(sql)) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            pst.setString(i + 1, batch.get(i));
+                        }
+                        try (ResultSet rs = pst.executeQuery()) {
+                            while (rs.next()) {
+                                versions.put(rs.getString(1), rs.getLong(2));
+                            }
+                        }
+                    }
+                    for (String mailbox : batch) {
+                        Entry cached = read.get(mailbox);
+                        long version = versions.getOrDefault(mailbox, 0L);
+                        if (version != cached.version) {
+                            // Changed by another process: read it from the primary for a while.
+                            MailReplicas.wrote(mailbox);
+                        }
+                        cache(mailbox, cached, new Entry(version, cached.usedAt));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // The cached versions stay until the next try.
+            System.err.println("Could not refresh mailbox versions: " + e.getMessage());
+        } finally {
+            refreshedAt = now;
+            REFRESHING.set(false);
+            MailMetrics.db("version_refresh", started);
+        }
+    }
+
+    // Caches fresh in place of cached, read before fresh was, unless a bump replaced it since.
+    private static void cache(String recipientEmail, Entry cached, Entry fresh) {
+        if (cached == null) {
+            CACHE.putIfAbsent(recipientEmail, fresh);
+        } else {
+            CACHE.replace(recipientEmail, cached, fresh);
+        }
+    }
+
+    // Strong ETag for the whole mailbox listing, or null if the version is unknown.
+    public static String etag(String recipientEmail) {
+        long version = current(recipientEmail);
+        return version < 0 ? null : "\"v" + version + "\"";
+    }
+
+    // Strong ETag for a single message of the mailbox, or null if the version is unknown.
+    public static String etag(String recipientEmail, long messageId) {
+        long version = current(recipientEmail);
+        return version < 0 ? null : "\"v" + version + "-" + messageId + "\"";
+    }
+
+    // True if the If-None-Match header value matches the given strong ETag.
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void ensureTable(Connection con) throws SQLException {
+        if (tableReady) {
+            return;
+        }
+        try (Statement st = con.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS mailbox_versions ("
+                    + "recipient_email VARCHAR(255) NOT NULL PRIMARY KEY, "
+                    + "version BIGINT NOT NULL)");
+        }
+        tableReady = true;
+    }
+}
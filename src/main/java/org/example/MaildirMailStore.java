@@ -0,0 +1,682 @@
+package org.example;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MailStore} that keeps each mailbox as a Maildir under a local directory, so that
+ * messages are stored and read without the emails table and other Maildir tools can read the
+ * mail. The servers still need the database for the rest: SMTP checks recipients against the
+ * users table, and mailbox versions ({@link MailboxVersions}, which {@link CachingMailStore}
+ * checks before serving a cached listing) and attachments are kept there.
+ *
+ * A message is written to tmp/, fsynced and renamed into new/ as
+ * {@code <seconds>.<id>.<host>,S=<file size>}; the file is an RFC 822 message (Return-Path,
+ * From, To, Subject and Date, then the body). Setting flags moves it to cur/ with the usual
+ * {@code :2,<DFRST>} suffix. Deleted messages go to the .Trash folder: its new/ while the
+ * deletion is pending, its cur/ once committed, with the file time set to the commit, which
+ * is what {@link #purge} goes by. Ids come from .next-id under a file lock, as in
+ * {@link FileMailStore}; files with no id in their name are not this store's and are left out.
+ *
+ * Each mailbox has an index of its messages, built from the directories once and kept up to
+ * date by this store's own changes, so LIST and STAT only stat the four directories to see
+ * whether something else changed them. Bodies of mail.maildir.map-threshold bytes (256 KB)
+ * and more are read through a read-only mapping, smaller ones with a plain read.
+ */
+public class MaildirMailStore implements MailStore {
+
+    private static final String[] FOLDERS = {"new", "cur", ".Trash/new", ".Trash/cur"};
+    private static final DateTimeFormatter DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final String HOST = host();
+
+    private final Path root;
+    private final long mapThreshold;
+    private final Object idLock = new Object();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // Mailbox of the ids seen so far, for mailboxOf.
+    private final ConcurrentHashMap<Long, String> owners = new ConcurrentHashMap<>();
+
+    public MaildirMailStore(Path root) {
+        this(root, Long.getLong("mail.maildir.map-threshold", 256 * 1024));
+    }
+
+    public MaildirMailStore(Path root, long mapThreshold) {
+        this.root = root;
+        this.mapThreshold = mapThreshold;
+    }
+
+    // The index of one Maildir; entries are replaced, never changed.
+    private static final class Mailbox {
+        final String name;
+        final Path dir;
+        final ConcurrentNavigableMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+        // Modification times of FOLDERS when the index was last brought up to date.
+        volatile long[] stamps;
+
+        Mailbox(String name, Path dir) {
+            this.name = name;
+            this.dir = dir;
+        }
+    }
+
+    private static final class Entry {
+        final long id;
+        // One of FOLDERS.
+        final String folder;
+        final String file;
+        final String sender;
+        final String subject;
+        final Timestamp date;
+        final int headerLength;
+        final long size;
+        final int flags;
+        // Commit time for deletions in .Trash/cur.
+        final long deletedAt;
+
+        Entry(long id, String folder, String file, String sender, String subject, Timestamp date, int headerLength,
+              long size, int flags, long deletedAt) {
+            this.id = id;
+            this.folder = folder;
+            this.file = file;
+            this.sender = sender;
+            this.subject = subject;
+            this.date = date;
+            this.headerLength = headerLength;
+            this.size = size;
+            this.flags = flags;
+            this.deletedAt = deletedAt;
+        }
+
+        boolean live() {
+            return !folder.startsWith(".Trash");
+        }
+
+        Path path(Path dir) {
+            return dir.resolve(folder).resolve(file);
+        }
+
+        // The entry moved to folder with the given flags, which go in the file name outside new/.
+        Entry moved(String newFolder, int newFlags, long newDeletedAt) {
+            String base = file.contains(":") ? file.substring(0, file.indexOf(':')) : file;
+            String name = newFolder.equals("new") ? base : base + ":2," + info(newFlags);
+            return new Entry(id, newFolder, name, sender, subject, date, headerLength, size, newFlags, newDeletedAt);
+        }
+
+        StoredMail view(String mailbox, String body) {
+            return new StoredMail(id, mailbox, sender, subject, date, size, flags, body);
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        byte[] content = (body == null ? "" : body).getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        List<Path> written = new ArrayList<>(recipients.size());
+        List<Integer> headers = new ArrayList<>(recipients.size());
+        try {
+            for (String recipientEmail : recipients) {
+                Mailbox mailbox = mailbox(recipientEmail);
+                for (String folder : new String[]{"tmp", "new", "cur"}) {
+                    Files.createDirectories(mailbox.dir.resolve(folder));
+                }
+                byte[] header = header(sender, recipientEmail, subject, now);
+                Path file = mailbox.dir.resolve("tmp").resolve(now / 1000 + ".P" + ProcessHandle.current().pid()
+                        + "Q" + deliveries.incrementAndGet() + "." + HOST);
+                written.add(file);
+                headers.add(header.length);
+                try (FileOutputStream out = new FileOutputStream(file.toFile())) {
+                    out.write(header);
+                    out.write(content);
+                    out.getFD().sync(); // the client is told the message is safe once this returns
+                }
+            }
+
+            List<Long> ids = new ArrayList<>(recipients.size());
+            synchronized (idLock) {
+                try (FileChannel counter = FileChannel.open(root.resolve(".next-id"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    counter.lock(); // released when the channel is closed
+                    ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+                    long next = counter.read(value, 0) == Long.BYTES ? value.flip().getLong() : 1;
+                    for (int i = 0; i < recipients.size(); i++) {
+                        Mailbox mailbox = mailbox(recipients.get(i));
+                        long id = next++;
+                        int header = headers.get(i);
+                        String name = now / 1000 + "." + id + "." + HOST + ",S=" + (header + content.length);
+                        synchronized (mailbox) {
+                            Files.move(written.get(i), mailbox.dir.resolve("new").resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                            if (mailbox.stamps != null) {
+                                mailbox.entries.put(id, new Entry(id, "new", name, sender, subject, new Timestamp(now / 1000 * 1000),
+                                        header, content.length, 0, 0));
+                                mailbox.stamps = stamps(mailbox);
+                            }
+                        }
+                        owners.put(id, mailbox.name);
+                        ids.add(id);
+                    }
+                    counter.write(value.clear().putLong(next).flip(), 0);
+                }
+            }
+            return ids;
+        } catch (IOException e) {
+            for (Path file : written) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // left in tmp, harmless
+                }
+            }
+            throw new MailStoreException("Could not deliver message: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        List<StoredMail> messages = new ArrayList<>();
+        for (Entry entry : box.entries.tailMap(afterId, false).values()) {
+            if (messages.size() >= limit) {
+                break;
+            }
+            if (entry.live()) {
+                StoredMail mail = withBody ? withBody(box, entry) : entry.view(mailbox, null);
+                if (mail != null) {
+                    messages.add(mail);
+                }
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (Long id : ids) {
+            Entry entry = box.entries.get(id);
+            if (entry != null && entry.live()) {
+                StoredMail mail = withBody ? withBody(box, entry) : entry.view(mailbox, null);
+                if (mail != null) {
+                    messages.put(id, mail);
+                }
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        Mailbox box = fresh(mailbox);
+        Entry entry = box.entries.get(id);
+        if (entry == null || !entry.live()) {
+            return false;
+        }
+        ByteBuffer bytes = body(box, entry);
+        if (bytes == null) {
+            return false;
+        }
+        MailStores.writeUtf8(bytes, out);
+        return true;
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        String mailbox = owners.get(id);
+        if (mailbox == null) {
+            // Not seen since start: load the mailboxes until it turns up.
+            try (DirectoryStream<Path> all = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path dir : all) {
+                    Mailbox box = mailboxes.get(address(dir));
+                    if (box == null || box.stamps == null) {
+                        fresh(address(dir));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                throw new MailStoreException("Could not list " + root + ": " + e.getMessage(), e);
+            }
+            mailbox = owners.get(id);
+        }
+        if (mailbox == null) {
+            return null;
+        }
+        Entry entry = fresh(mailbox).entries.get(id);
+        return entry != null && entry.live() ? mailbox : null;
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        ConcurrentNavigableMap<Long, Entry> entries = fresh(mailbox).entries;
+        return entries.isEmpty() ? 0 : entries.lastKey();
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        ConcurrentNavigableMap<Long, Entry> entries = fresh(mailbox).entries;
+        Set<Long> retained = new HashSet<>();
+        for (Long id : ids) {
+            if (entries.containsKey(id)) {
+                retained.add(id);
+            }
+        }
+        return retained;
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        synchronized (box) {
+            for (Map.Entry<Long, Integer> change : flags.entrySet()) {
+                Entry entry = box.entries.get(change.getKey());
+                if (entry != null && entry.live() && (entry.flags != change.getValue() || entry.folder.equals("new"))) {
+                    move(box, entry, entry.moved("cur", change.getValue(), 0));
+                }
+            }
+            box.stamps = stamps(box);
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        long now = System.currentTimeMillis();
+        int marked = 0;
+        synchronized (box) {
+            trash(box);
+            for (Long id : ids) {
+                Entry entry = box.entries.get(id);
+                if (entry != null && entry.live()
+                        && move(box, entry, commit ? entry.moved(".Trash/cur", entry.flags, now) : entry.moved(".Trash/new", entry.flags, 0))) {
+                    marked++;
+                }
+            }
+            box.stamps = stamps(box);
+        }
+        return marked;
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        int restored = 0;
+        synchronized (box) {
+            for (Entry entry : box.entries.values()) {
+                if (entry.folder.equals(".Trash/new") && move(box, entry, entry.moved("cur", entry.flags, 0))) {
+                    restored++;
+                }
+            }
+            box.stamps = stamps(box);
+        }
+        return restored;
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        Mailbox box = fresh(mailbox);
+        long now = System.currentTimeMillis();
+        int committed = 0;
+        synchronized (box) {
+            for (Entry entry : box.entries.values()) {
+                if (entry.folder.equals(".Trash/new") && move(box, entry, entry.moved(".Trash/cur", entry.flags, now))) {
+                    committed++;
+                }
+            }
+            box.stamps = stamps(box);
+        }
+        return committed;
+    }
+
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long purged = 0;
+        try (DirectoryStream<Path> all = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : all) {
+                Mailbox box = fresh(address(dir));
+                int batch;
+                do {
+                    // The mailbox is locked for one batch at a time, not through the pauses.
+                    batch = 0;
+                    synchronized (box) {
+                        for (Entry entry : box.entries.values()) {
+                            if (batch == batchSize) {
+                                break;
+                            }
+                            if (entry.folder.equals(".Trash/cur") && entry.deletedAt < cutoff.getTime()) {
+                                Files.deleteIfExists(entry.path(box.dir));
+                                box.entries.remove(entry.id);
+                                owners.remove(entry.id);
+                                batch++;
+                            }
+                        }
+                        box.stamps = stamps(box);
+                    }
+                    purged += batch;
+                    if (batch == batchSize && pauseMillis > 0) {
+                        Thread.sleep(pauseMillis);
+                    }
+                } while (batch == batchSize);
+            }
+        } catch (NoSuchFileException e) {
+            return purged;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not purge " + root + ": " + e.getMessage(), e);
+        }
+        return purged;
+    }
+
+    // The mailbox, its index reloaded first if something other than this store changed it.
+    private Mailbox fresh(String mailbox) throws MailStoreException {
+        Mailbox box = mailbox(mailbox);
+        long[] stamps = stamps(box);
+        if (Arrays.equals(stamps, box.stamps)) {
+            return box;
+        }
+        synchronized (box) {
+            stamps = stamps(box);
+            if (!Arrays.equals(stamps, box.stamps)) {
+                reload(box);
+                box.stamps = stamps;
+            }
+        }
+        return box;
+    }
+
+    // Reads the directories again; the headers of files already in the index are not reread.
+    private void reload(Mailbox box) throws MailStoreException {
+        Map<Long, Entry> found = new HashMap<>();
+        for (String folder : FOLDERS) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(box.dir.resolve(folder))) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    long id = idOf(name);
+                    if (id <= 0) {
+                        continue;
+                    }
+                    Entry known = box.entries.get(id);
+                    if (known != null && known.folder.equals(folder) && known.file.equals(name)) {
+                        found.put(id, known);
+                        continue;
+                    }
+                    Entry entry = read(file, folder, name, id);
+                    if (entry != null) {
+                        found.put(id, entry);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // no such folder yet
+            } catch (IOException e) {
+                throw new MailStoreException("Could not list " + box.dir.resolve(folder) + ": " + e.getMessage(), e);
+            }
+        }
+        box.entries.keySet().retainAll(found.keySet());
+        box.entries.putAll(found);
+        for (Long id : found.keySet()) {
+            owners.put(id, box.name);
+        }
+    }
+
+    // The entry for a message file from its header, or null if it went away meanwhile.
+    private static Entry read(Path file, String folder, String name, long id) throws MailStoreException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(16 * 1024);
+            int end = indexOf(head, new byte[]{'\r', '\n', '\r', '\n'});
+            int headerLength = end < 0 ? 0 : end + 4;
+            String sender = "";
+            String subject = "";
+            for (String line : new String(head, 0, Math.max(end, 0), StandardCharsets.UTF_8).split("\r\n")) {
+                if (line.regionMatches(true, 0, "From: ", 0, 6)) {
+                    sender = line.substring(6);
+                } else if (line.regionMatches(true, 0, "Subject: ", 0, 9)) {
+                    subject = line.substring(9);
+                }
+            }
+            long fileSize = sizeOf(name);
+            if (fileSize < 0) {
+                fileSize = Files.size(file);
+            }
+            int flags = 0;
+            int info = name.indexOf(":2,");
+            if (info >= 0) {
+                flags = flags(name.substring(info + 3));
+            }
+            long deletedAt = folder.equals(".Trash/cur") ? Files.getLastModifiedTime(file).toMillis() : 0;
+            long seconds = Long.parseLong(name.substring(0, name.indexOf('.')));
+            return new Entry(id, folder, name, sender, subject, new Timestamp(seconds * 1000), headerLength,
+                    fileSize - headerLength, flags, deletedAt);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            throw new MailStoreException("Could not read " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private StoredMail withBody(Mailbox box, Entry entry) throws MailStoreException {
+        ByteBuffer bytes = body(box, entry);
+        return bytes == null ? null : entry.view(box.name, StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    // The body bytes, mapped when large; null if the file went away meanwhile.
+    private ByteBuffer body(Mailbox box, Entry entry) throws MailStoreException {
+        Path file = entry.path(box.dir);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size() - entry.headerLength;
+            if (length >= mapThreshold) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, entry.headerLength, length);
+            }
+            ByteBuffer body = ByteBuffer.allocate((int) length);
+            while (body.hasRemaining() && channel.read(body, entry.headerLength + body.position()) >= 0) {
+                // until the end of the file
+            }
+            return body.flip();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not read " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    // False if the file is gone: something else changed the Maildir first.
+    private boolean move(Mailbox box, Entry from, Entry to) throws MailStoreException {
+        try {
+            Files.move(from.path(box.dir), to.path(box.dir), StandardCopyOption.ATOMIC_MOVE);
+            if (to.deletedAt != 0) {
+                Files.setLastModifiedTime(to.path(box.dir), FileTime.fromMillis(to.deletedAt));
+            }
+            box.entries.put(to.id, to);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new MailStoreException("Could not move " + from.file + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Makes the .Trash folder a Maildir++ folder of the mailbox, for other Maildir tools.
+    private static void trash(Mailbox box) throws MailStoreException {
+        try {
+            for (String folder : new String[]{".Trash/tmp", ".Trash/new", ".Trash/cur"}) {
+                Files.createDirectories(box.dir.resolve(folder));
+            }
+            Path marker = box.dir.resolve(".Trash/maildirfolder");
+            if (!Files.exists(marker)) {
+                Files.createFile(marker);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created meanwhile
+        } catch (IOException e) {
+            throw new MailStoreException("Could not create " + box.dir.resolve(".Trash") + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static long[] stamps(Mailbox box) throws MailStoreException {
+        long[] stamps = new long[FOLDERS.length];
+        for (int i = 0; i < FOLDERS.length; i++) {
+            try {
+                stamps[i] = Files.getLastModifiedTime(box.dir.resolve(FOLDERS[i])).to(TimeUnit.NANOSECONDS);
+            } catch (NoSuchFileException e) {
+                stamps[i] = 0;
+            } catch (IOException e) {
+                throw new MailStoreException("Could not stat " + box.dir.resolve(FOLDERS[i]) + ": " + e.getMessage(), e);
+            }
+        }
+        return stamps;
+    }
+
+    private static byte[] header(String sender, String recipient, String subject, long date) {
+        String from = line(sender);
+        return ("Return-Path: <" + from + ">\r\n"
+                + "From: " + from + "\r\n"
+                + "To: " + line(recipient) + "\r\n"
+                + "Subject: " + line(subject) + "\r\n"
+                + "Date: " + DATE.format(Instant.ofEpochMilli(date).atOffset(ZoneOffset.UTC)) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A header value on one line.
+    private static String line(String value) {
+        return value == null ? "" : value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    // The id in a file name of this store: <seconds>.<id>.<host>[,S=<size>][:2,<flags>]; 0 if none.
+    private static long idOf(String name) {
+        int first = name.indexOf('.');
+        int second = first < 0 ? -1 : name.indexOf('.', first + 1);
+        if (second < 0) {
+            return 0;
+        }
+        try {
+            Long.parseLong(name.substring(0, first));
+            return Long.parseLong(name.substring(first + 1, second));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // The S= file size in a file name, or -1.
+    private static long sizeOf(String name) {
+        int start = name.indexOf(",S=");
+        if (start < 0) {
+            return -1;
+        }
+        int end = start + 3;
+        while (end < name.length() && Character.isDigit(name.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(name.substring(start + 3, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Maildir info flags, in the ASCII order they are written in, for the ImapMessage flag bits.
+    private static String info(int flags) {
+        StringBuilder info = new StringBuilder();
+        if ((flags & ImapMessage.DRAFT) != 0) {
+            info.append('D');
+        }
+        if ((flags & ImapMessage.FLAGGED) != 0) {
+            info.append('F');
+        }
+        if ((flags & ImapMessage.ANSWERED) != 0) {
+            info.append('R');
+        }
+        if ((flags & ImapMessage.SEEN) != 0) {
+            info.append('S');
+        }
+        if ((flags & ImapMessage.DELETED) != 0) {
+            info.append('T');
+        }
+        return info.toString();
+    }
+
+    private static int flags(String info) {
+        int flags = 0;
+        for (char c : info.toCharArray()) {
+            switch (c) {
+                case 'D': flags |= ImapMessage.DRAFT; break;
+                case 'F': flags |= ImapMessage.FLAGGED; break;
+                case 'R': flags |= ImapMessage.ANSWERED; break;
+                case 'S': flags |= ImapMessage.SEEN; break;
+                case 'T': flags |= ImapMessage.DELETED; break;
+                default: break; // P and keywords are not kept
+            }
+        }
+        return flags;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private Mailbox mailbox(String mailbox) {
+        return mailboxes.computeIfAbsent(mailbox, k -> new Mailbox(k, root.resolve(directory(k))));
+    }
+
+    // One directory per address, URL-encoded as in FileMailStore.
+    private static String directory(String mailbox) {
+        String name = URLEncoder.encode(mailbox, StandardCharsets.UTF_8).replace("%40", "@").replace("*", "%2A");
+        return name.startsWith(".") ? "%2E" + name.substring(1) : name;
+    }
+
+    private static String address(Path dir) {
+        return URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+    }
+
+    // The host part of file names, with the characters Maildir reserves escaped.
+    private static String host() {
+        String host = System.getenv("HOSTNAME");
+        if (host == null || host.isEmpty()) {
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "localhost";
+            }
+        }
+        return host.replace("/", "\\057").replace(":", "\\072").replace(",", "\\054");
+    }
+}
@@ -0,0 +1,534 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-pass parser for the DATA of an SMTP message, fed a line at a time as it arrives, so
+ * that the raw message is never held whole.
+ *
+ * A multipart message, nested ones included, is split into its parts as they go by. Text parts
+ * are decoded (base64 or quoted-printable, then their charset) into the body that is stored:
+ * the text/plain parts, or the text/html ones if there are none. Any other part, and any part
+ * with a file name or an attachment disposition, becomes an {@link Attachment} of its decoded
+ * bytes. Any other message keeps the body SMTP has always stored: the lines after the header,
+ * blank ones left out.
+ *
+ * Decoded content is kept in memory up to mail.mime.memory-limit octets (1 MB) per part and
+ * goes to a temporary file past that, so a large attachment costs no more heap than a small
+ * one; {@link #close} deletes those files.
+ */
+public final class MimeParser implements AutoCloseable {
+
+    private static final int MEMORY_LIMIT = Integer.getInteger("mail.mime.memory-limit", 1 << 20);
+    private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?]+)\\?([BbQq])\\?([^?]*)\\?=");
+
+    /** A part taken out of the message, decoded. */
+    public static final class Attachment {
+        public final String name;
+        public final String contentType;
+        private final Content data;
+
+        Attachment(String name, String contentType, Content data) {
+            this.name = name;
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        public long size() {
+            return data.size;
+        }
+
+        // The decoded octets, read from where they were decoded into, not a copy of them.
+        public InputStream content() throws IOException {
+            return data.open();
+        }
+
+        public String sha256() {
+            return data.sha256();
+        }
+    }
+
+    // The decoded content of a part: in memory, whose buffer is read in place, until it grows
+    // past memoryLimit, then in a temporary file. Hashed as it is written.
+    private static final class Content extends OutputStream {
+        private final int memoryLimit;
+        private final MessageDigest sha = JdbcMailStore.sha256();
+        private Buffer memory = new Buffer();
+        private Path file;
+        private OutputStream fileOut;
+        private String hash;
+        long size;
+
+        Content(int memoryLimit) {
+            this.memoryLimit = memoryLimit;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            sha.update(b, off, len);
+            size += len;
+            try {
+                if (file == null && memory.size() + len > memoryLimit) {
+                    file = Files.createTempFile("mail-part", ".tmp");
+                    fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+                    memory.writeTo(fileOut);
+                    memory = null;
+                }
+                if (file != null) {
+                    fileOut.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spool a message part", e);
+            }
+        }
+
+        void writeBytes(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        InputStream open() throws IOException {
+            if (file == null) {
+                return new ByteArrayInputStream(memory.buffer(), 0, memory.size());
+            }
+            fileOut.flush();
+            return Files.newInputStream(file);
+        }
+
+        String sha256() {
+            if (hash == null) {
+                hash = JdbcMailStore.hex(sha.digest());
+            }
+            return hash;
+        }
+
+        String toString(Charset charset) {
+            if (file == null) {
+                return memory.toString(charset);
+            }
+            try (InputStream in = open()) {
+                return new String(in.readAllBytes(), charset);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read a spooled message part", e);
+            }
+        }
+
+        void delete() {
+            if (file == null) {
+                return;
+            }
+            try {
+                fileOut.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    // A part being read: its header, then its content decoded as it comes.
+    private static final class Part {
+        final StringBuilder header = new StringBuilder();
+        boolean inHeader = true;
+        String type;
+        String charset;
+        String encoding;
+        String name;
+        boolean attachment;
+        final Content bytes;
+        final StringBuilder base64 = new StringBuilder();
+        boolean pendingNewline;
+
+        Part(int memoryLimit) {
+            bytes = new Content(memoryLimit);
+        }
+
+        void content(String line) {
+            switch (encoding) {
+                case "base64":
+                    base64.append(line.trim());
+                    int whole = base64.length() - base64.length() % 4;
+                    if (whole > 0) {
+                        base64(base64.substring(0, whole));
+                        base64.delete(0, whole);
+                    }
+                    break;
+                case "quoted-printable":
+                    newline();
+                    boolean soft = line.endsWith("=");
+                    ByteArrayOutputStream decoded = new ByteArrayOutputStream(line.length());
+                    quotedPrintable(soft ? line.substring(0, line.length() - 1) : line, decoded);
+                    bytes.writeBytes(decoded.toByteArray());
+                    pendingNewline = !soft;
+                    break;
+                default:
+                    // Read with the session's charset, so written back with it to get the
+                    // octets the client sent.
+                    newline();
+                    bytes.writeBytes(line.getBytes(Charset.defaultCharset()));
+                    pendingNewline = true;
+                    break;
+            }
+        }
+
+        // The line break before the next line; the one before a boundary belongs to the boundary.
+        private void newline() {
+            if (pendingNewline) {
+                bytes.write('\r');
+                bytes.write('\n');
+            }
+        }
+
+        // Decodes base64 text; if it is malformed (padding inside, say), each group of four
+        // that decodes on its own is kept and the others are dropped.
+        private void base64(String text) {
+            try {
+                bytes.writeBytes(Base64.getMimeDecoder().decode(text));
+                return;
+            } catch (IllegalArgumentException e) {
+                // decoded below a group at a time
+            }
+            for (int i = 0; i + 4 <= text.length(); i += 4) {
+                try {
+                    bytes.writeBytes(Base64.getMimeDecoder().decode(text.substring(i, i + 4)));
+                } catch (IllegalArgumentException e) {
+                    // dropped
+                }
+            }
+        }
+
+        void finish() {
+            if (encoding.equals("base64") && base64.length() > 0) {
+                // Cut short; keep what decodes.
+                base64(base64.toString());
+            }
+        }
+
+        // The content in the charset the part declares, UTF-8 if it declares none or an unknown one.
+        String text() {
+            Charset decodeWith;
+            try {
+                decodeWith = charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset);
+            } catch (IllegalArgumentException e) {
+                decodeWith = StandardCharsets.UTF_8;
+            }
+            return bytes.toString(decodeWith);
+        }
+    }
+
+    private final StringBuilder header = new StringBuilder();
+    private boolean inHeader = true;
+    private boolean multipart;
+    private long length;
+    // Boundaries of the multiparts the parser is in, innermost first.
+    private final Deque<String> boundaries = new ArrayDeque<>();
+    private Part part;
+    private final StringBuilder plain = new StringBuilder();
+    private final StringBuilder html = new StringBuilder();
+    private final StringBuilder simple = new StringBuilder();
+    private final List<Attachment> attachments = new ArrayList<>();
+    private final int memoryLimit;
+
+    public MimeParser() {
+        this(MEMORY_LIMIT);
+    }
+
+    // Keeps up to memoryLimit decoded octets of a part in memory.
+    MimeParser(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public void line(String line) {
+        length += line.length() + 2;
+        if (inHeader) {
+            if (!line.isEmpty()) {
+                header.append(line).append("\r\n");
+                return;
+            }
+            inHeader = false;
+            String contentType = field(header, "content-type");
+            String boundary = contentType == null ? null : parameter(contentType, "boundary");
+            if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("multipart/") && boundary != null) {
+                multipart = true;
+                boundaries.push(boundary);
+            }
+            return;
+        }
+        if (!multipart) {
+            if (!line.isEmpty()) {
+                simple.append(line).append("\r\n");
+            }
+            return;
+        }
+        if (line.startsWith("--") && boundary(line)) {
+            return;
+        }
+        if (part == null) {
+            return; // preamble or epilogue
+        }
+        if (!part.inHeader) {
+            part.content(line);
+            return;
+        }
+        if (!line.isEmpty()) {
+            part.header.append(line).append("\r\n");
+            return;
+        }
+        part.inHeader = false;
+        String contentType = field(part.header, "content-type");
+        String type = contentType == null ? "text/plain" : contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        String boundary = contentType == null ? null : parameter(contentType, "boundary");
+        if (type.startsWith("multipart/") && boundary != null) {
+            boundaries.push(boundary);
+            part = null;
+            return;
+        }
+        String disposition = field(part.header, "content-disposition");
+        String encoding = field(part.header, "content-transfer-encoding");
+        part.type = type;
+        part.charset = contentType == null ? null : parameter(contentType, "charset");
+        part.encoding = encoding == null ? "7bit" : encoding.trim().toLowerCase(Locale.ROOT);
+        part.name = disposition == null ? null : parameter(disposition, "filename");
+        if (part.name == null && contentType != null) {
+            part.name = parameter(contentType, "name");
+        }
+        part.attachment = part.name != null || !type.startsWith("text/")
+                || disposition != null && disposition.trim().toLowerCase(Locale.ROOT).startsWith("attachment");
+    }
+
+    // The subject the header gives, as SMTP has always read it.
+    public String subject() {
+        return inHeader ? null : extractSubject(header + "\r\n");
+    }
+
+    // The text to store as the body of the message.
+    public String body() {
+        if (!multipart) {
+            return simple.toString().trim();
+        }
+        finishPart();
+        return (plain.length() > 0 ? plain : html).toString().trim();
+    }
+
+    public List<Attachment> attachments() {
+        finishPart();
+        return attachments;
+    }
+
+    // Characters received, line breaks included.
+    public long length() {
+        return length;
+    }
+
+    // Deletes the temporary files of the attachments, once they are stored.
+    @Override
+    public void close() {
+        if (part != null) {
+            part.bytes.delete();
+        }
+        for (Attachment attachment : attachments) {
+            attachment.data.delete();
+        }
+    }
+
+    // Handles a boundary line of any multipart the parser is in; false if it is not one.
+    private boolean boundary(String line) {
+        String marker = line.stripTrailing();
+        int depth = 0;
+        for (Iterator<String> it = boundaries.iterator(); it.hasNext(); depth++) {
+            String boundary = it.next();
+            boolean close = marker.equals("--" + boundary + "--");
+            if (!close && !marker.equals("--" + boundary)) {
+                continue;
+            }
+            finishPart();
+            // A boundary of an outer multipart also ends the inner ones.
+            for (int i = 0; i < depth; i++) {
+                boundaries.pop();
+            }
+            if (close) {
+                boundaries.pop();
+            } else {
+                part = new Part(memoryLimit);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void finishPart() {
+        Part done = part;
+        part = null;
+        if (done == null || done.inHeader) {
+            return;
+        }
+        done.finish();
+        if (done.attachment) {
+            attachments.add(new Attachment(done.name == null ? "part" + (attachments.size() + 1) : done.name,
+                    done.type, done.bytes));
+            return;
+        }
+        StringBuilder text = done.type.equals("text/html") ? html : plain;
+        if (text.length() > 0) {
+            text.append("\r\n");
+        }
+        text.append(done.text());
+        done.bytes.delete();
+    }
+
+    // The Subject header of the message data, decoded if it is a UTF-8 base64 encoded word; null if there is none.
+    static String extractSubject(String data) {
+        // Find the headers part (before the empty line)
+        int headerEndIndex = data.indexOf("\r\n\r\n");  // Locate the blank line separating headers and body
+        if (headerEndIndex == -1) {
+            return null;  // No body found, could be invalid data
+        }
+
+        String headers = data.substring(0, headerEndIndex);  // Extract headers part
+        String[] lines = headers.split("\r\n");  // Split headers into lines
+
+        // Look for the Subject header
+        for (String line : lines) {
+            if (line.toLowerCase().startsWith("subject:")) {
+                // Extract the subject and check if it needs decoding
+                String subject = line.substring(8).trim();  // Remove "Subject:" and any extra spaces
+
+                // Check if the subject is base64 encoded (common for non-ASCII subjects)
+                if (subject.contains("=?UTF-8?B?")) {
+                    // Remove the encoding part (e.g., =?UTF-8?B?...)
+                    String base64EncodedSubject = subject.split("\\?B\\?")[1].split("\\?=")[0];
+                    return decodeBase64Subject(base64EncodedSubject);
+                }
+                return subject;  // If no encoding, return as is
+            }
+        }
+
+        return null;  // No subject found
+    }
+
+    // Base64 decoding method
+    static String decodeBase64Subject(String encodedSubject) {
+        try {
+            // Decode the base64 string and return the result as UTF-8
+            return new String(Base64.getDecoder().decode(encodedSubject), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return encodedSubject;  // If decoding fails, return the raw subject
+        }
+    }
+
+    // The unfolded value of the first header field with the given lower-case name, or null.
+    static String field(CharSequence header, String name) {
+        String value = null;
+        for (String line : header.toString().split("\r\n")) {
+            if (value != null) {
+                if (line.startsWith(" ") || line.startsWith("\t")) {
+                    value += " " + line.trim();
+                    continue;
+                }
+                return value;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals(name)) {
+                value = line.substring(colon + 1).trim();
+            }
+        }
+        return value;
+    }
+
+    // A parameter of a header field value, unquoted and decoded (RFC 2231 and RFC 2047), or null.
+    static String parameter(String value, String name) {
+        Matcher extended = Pattern.compile("(?i);\\s*" + Pattern.quote(name) + "\\*\\s*=\\s*([^;\\s]+)").matcher(value);
+        if (extended.find()) {
+            String[] parts = extended.group(1).replace("\"", "").split("'", 3);
+            if (parts.length == 3) {
+                try {
+                    return URLDecoder.decode(parts[2].replace("+", "%2B"), parts[0].isEmpty() ? "UTF-8" : parts[0]);
+                } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                    return parts[2];
+                }
+            }
+        }
+        Matcher plain = Pattern.compile("(?i);\\s*" + Pattern.quote(name) + "\\s*=\\s*(?:\"([^\"]*)\"|([^;\\s]+))").matcher(value);
+        if (!plain.find()) {
+            return null;
+        }
+        return decodeWords(plain.group(1) != null ? plain.group(1) : plain.group(2));
+    }
+
+    // Decodes RFC 2047 encoded words such as =?UTF-8?B?...?=.
+    static String decodeWords(String text) {
+        Matcher word = ENCODED_WORD.matcher(text);
+        StringBuilder decoded = new StringBuilder();
+        int last = 0;
+        while (word.find()) {
+            decoded.append(text, last, word.start());
+            try {
+                Charset charset = Charset.forName(word.group(1));
+                byte[] bytes;
+                if (word.group(2).equalsIgnoreCase("B")) {
+                    bytes = Base64.getDecoder().decode(word.group(3));
+                } else {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    quotedPrintable(word.group(3).replace('_', ' '), out);
+                    bytes = out.toByteArray();
+                }
+                decoded.append(new String(bytes, charset));
+            } catch (IllegalArgumentException e) {
+                decoded.append(word.group());
+            }
+            last = word.end();
+        }
+        return decoded.append(text.substring(last)).toString();
+    }
+
+    private static void quotedPrintable(String text, ByteArrayOutputStream out) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '=' && i + 2 < text.length() && isHex(text.charAt(i + 1)) && isHex(text.charAt(i + 2))) {
+                out.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                out.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static boolean isHex(char c) {
+        return Character.digit(c, 16) >= 0;
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The adaptive concurrency limits of this JVM: in-flight database connections taken through
+ * {@link MailDb}, in-flight AuthService calls and in-flight REST requests. The servers shed
+ * work early, with 421 / 451, -ERR [SYS/TEMP] or HTTP 503, while a limit is reached.
+ *
+ * Each limit keeps the average latency near a target and stays within bounds, set with the
+ * system properties mail.overload.{db,auth,rest}.{target-ms,initial,min,max}; defaults are
+ * db 50 ms (20, 4, 200), auth 200 ms (10, 2, 100) and rest 500 ms (50, 8, 400). Each further
+ * mail shard and each read replica gets a limit of its own with the db settings, named db1,
+ * db2 and so on for shards and db0-replica0 and so on for replicas.
+ */
+public final class Overload {
+
+    public static final AdaptiveLimiter DB = limiter("db", 50, 20, 4, 200);
+    public static final AdaptiveLimiter AUTH = limiter("auth", 200, 10, 2, 100);
+    public static final AdaptiveLimiter REST = limiter("rest", 500, 50, 8, 400);
+
+    private static final ConcurrentHashMap<String, AdaptiveLimiter> DATABASES = new ConcurrentHashMap<>();
+
+    private Overload() {
+    }
+
+    // The database limit of the mail shard with the given index; shard 0 is DB.
+    public static AdaptiveLimiter db(int shard) {
+        if (shard == 0) {
+            return DB;
+        }
+        return db("db" + shard);
+    }
+
+    // The limit of another mail database, such as a read replica, with the db settings.
+    static AdaptiveLimiter db(String name) {
+        return DATABASES.computeIfAbsent(name, n -> limiter("db", n, 50, 20, 4, 200));
+    }
+
+    private static AdaptiveLimiter limiter(String name, long targetMillis, int initial, int min, int max) {
+        return limiter(name, name, targetMillis, initial, min, max);
+    }
+
+    private static AdaptiveLimiter limiter(String settings, String name, long targetMillis, int initial, int min, int max) {
+        String prefix = "mail.overload." + settings + ".";
+        return new AdaptiveLimiter(name,
+                Long.getLong(prefix + "target-ms", targetMillis),
+                Integer.getInteger(prefix + "initial", initial),
+                Integer.getInteger(prefix + "min", min),
+                Integer.getInteger(prefix + "max", max));
+    }
+}
@@ -1,116 +1,301 @@
 package org.example;
 
+import org.example.jfr.AuthEvent;
+import org.example.jfr.CommandEvent;
+import org.example.jfr.JdbcEvent;
+import org.example.jfr.SessionEvent;
+import org.example.jfr.UserHash;
+
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 public class Pop3Server {
-    private static final int PORT = 1100; // Custom port to avoid conflicts
+    static final int PORT = Integer.getInteger("mail.pop3.port", 1100); // Custom port to avoid conflicts
+    // Implicit TLS (POP3S), only when MailTls is configured.
+    static final int TLS_PORT = Integer.getInteger("mail.pop3s.port", 995);
 
     public static void main(String[] args) {
+        // Committed deletions are removed in the background rather than at QUIT.
+        new MailPurger().start();
+
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("POP3 Server started on port " + PORT);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Connection from " + clientSocket.getInetAddress());
-                new Pop3Session(clientSocket).start();
+            MailMetrics.enableJmx();
+            ProtocolTrace.registerMBean();
+            if (MailTls.enabled()) {
+                serveTls(new ServerSocket(TLS_PORT));
+                System.out.println("POP3S started on port " + TLS_PORT);
             }
+            serve(serverSocket);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    // Accept loop; one Pop3Session per connection until the socket is closed.
+    static void serve(ServerSocket serverSocket) throws IOException {
+        listener(serverSocket).serve();
+    }
+
+    // Runs the implicit-TLS accept loop on its own thread.
+    private static void serveTls(ServerSocket serverSocket) {
+        new Thread(() -> {
+            try {
+                listener(serverSocket, true).serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "pop3s-accept").start();
+    }
+
+    static SessionListener listener(ServerSocket serverSocket) {
+        return listener(serverSocket, false);
+    }
+
+    // With implicitTls the busy reply is not sent: the client expects a TLS handshake first.
+    static SessionListener listener(ServerSocket serverSocket, boolean implicitTls) {
+        return new SessionListener("pop3", serverSocket, socket -> new Pop3Session(socket, implicitTls),
+                implicitTls ? null : "-ERR [SYS/TEMP] Too many connections, try again later");
+    }
 }
 
 class Pop3Session extends Thread {
+    // Once TLS is configured, USER/PASS are refused on plaintext connections unless this is set.
+    private static final boolean PLAINTEXT_AUTH = Boolean.getBoolean("mail.tls.allow-plaintext-auth");
+
     private Socket socket;
+    private final String clientIp;
     private BufferedReader in;
     private PrintWriter out;
+    // The socket's (metered) streams, and the TLS layer over them once started.
+    private InputStream netIn;
+    private OutputStream netOut;
+    private final boolean implicitTls;
+    private TlsConnection tls;
     private String username;
-    private File userDir;
-    private List<File> emails;
     private boolean authenticated;
-    private List<Boolean> deletionFlags;
+
+    // Flight recorder state: the session event and the pseudonym of the USER name.
+    private final SessionEvent sessionEvent = new SessionEvent();
+    private ProtocolTrace trace;
+    private String userHash;
+    private long lastMessageSize;
 
     public Pop3Session(Socket socket) {
+        this(socket, false);
+    }
+
+    public Pop3Session(Socket socket, boolean implicitTls) {
         this.socket = socket;
+        this.implicitTls = implicitTls;
+        this.clientIp = socket.getInetAddress().getHostAddress();
         this.authenticated = false;
     }
 
     @Override
     public void run() {
+        MailMetrics.sessionOpened("pop3");
+        sessionEvent.begin();
+        trace = new ProtocolTrace("pop3", socket.getInetAddress());
         try {
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            netIn = MailMetrics.meterIn("pop3", socket.getInputStream());
+            netOut = MailMetrics.meterOut("pop3", socket.getOutputStream());
+            if (implicitTls) {
+                tls = MailTls.accept("pop3", netIn, netOut);
+                in = new BufferedReader(new InputStreamReader(tls.in()));
+                out = trace.writer(tls.out());
+            } else {
+                in = new BufferedReader(new InputStreamReader(netIn));
+                out = trace.writer(netOut);
+            }
 
             out.println("+OK POP3 server ready");
 
             String line;
             while ((line = in.readLine()) != null) {
-                System.out.println("Received: " + line);
+                trace.received(line);
+                long started = System.nanoTime();
+                CommandEvent event = new CommandEvent();
+                event.begin();
                 String[] parts = line.split(" ", 2);
                 String command = parts[0].toUpperCase();
                 String argument = parts.length > 1 ? parts[1] : "";
 
                 switch (command) {
+                    case "CAPA":
+                        handleCapa();
+                        break;
+                    case "STLS":
+                        handleStls();
+                        break;
                     case "USER":
-                        handleUser(argument);
+                        if (admitted()) {
+                            handleUser(argument);
+                        }
                         break;
                     case "PASS":
-                        handlePass(argument);
+                        if (admitted()) {
+                            handlePass(argument);
+                        }
                         break;
                     case "STAT":
-                        handleStat();
+                        if (available()) {
+                            handleStat();
+                        }
                         break;
                     case "LIST":
-                        handleList();
+                        if (available()) {
+                            handleList();
+                        }
                         break;
                     case "RETR":
-                        handleRetr(argument);
+                        if (available()) {
+                            handleRetr(argument);
+                        }
                         break;
                     case "DELE":
-                        handleDele(argument);
+                        if (available()) {
+                            handleDele(argument);
+                        }
                         break;
                     case "RSET":
-                        handleRset();
+                        if (available()) {
+                            handleRset();
+                        }
                         break;
                     case "QUIT":
                         handleQuit();
+                        commandDone(command, started, event);
                         return; // Terminate session after QUIT.
                     default:
                         out.println("-ERR Unknown command");
                         break;
                 }
+                commandDone(command, started, event);
             }
         } catch (IOException e) {
+            trace.error(e);
             System.err.println("Error reading from connection: " + e.getMessage());
         } finally {
+            MailMetrics.sessionClosed("pop3");
+            trace.close();
+            sessionEvent.protocol = "pop3";
+            sessionEvent.user = userHash;
+            sessionEvent.commit();
+            try {
+                if (tls != null) {
+                    tls.close();
+                }
+            } catch (IOException e) {
+                // the client is gone already
+            }
             try { socket.close(); } catch (IOException e) { /* ignore */ }
         }
     }
 
+    // Records the latency metric and the flight recorder event of one command.
+    private void commandDone(String command, long started, CommandEvent event) {
+        MailMetrics.command("pop3", command, started);
+        trace.commandDone(command, started);
+        sessionEvent.commands++;
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = "pop3";
+            event.command = command.length() > 16 ? command.substring(0, 16) : command;
+            event.user = userHash;
+            event.messageSize = "RETR".equals(command) ? lastMessageSize : 0;
+            event.commit();
+        }
+    }
+
+    // USER costs a user lookup and PASS an AuthService call, so both are rate limited per address.
+    private boolean admitted() {
+        if (!available()) {
+            return false;
+        }
+        if (Admission.allowCommand("pop3", clientIp)) {
+            return true;
+        }
+        out.println("-ERR [SYS/TEMP] Too many commands, slow down");
+        return false;
+    }
+
+    // Mailbox commands are shed while the database is at its concurrency limit; QUIT never
+    // is, as it commits the deletions.
+    private boolean available() {
+        if (!Overload.DB.saturated()) {
+            return true;
+        }
+        MailMetrics.rejected("pop3", "overload");
+        out.println("-ERR [SYS/TEMP] Server busy, try again later");
+        return false;
+    }
+
+    private void handleCapa() {
+        out.println("+OK Capability list follows");
+        out.println("USER");
+        out.println("RESP-CODES");
+        if (tls == null && !authenticated && MailTls.enabled()) {
+            out.println("STLS");
+        }
+        out.println(".");
+    }
+
+    // RFC 2595: plaintext the client pipelined after STLS is dropped with the old reader, and
+    // a USER given before the handshake is forgotten.
+    private void handleStls() throws IOException {
+        if (tls != null) {
+            out.println("-ERR Command not permitted when TLS active");
+            return;
+        }
+        if (authenticated) {
+            out.println("-ERR Command not permitted after login");
+            return;
+        }
+        if (!MailTls.enabled()) {
+            out.println("-ERR STLS not supported");
+            return;
+        }
+        out.println("+OK Begin TLS negotiation");
+        tls = MailTls.accept("pop3", netIn, netOut);
+        in = new BufferedReader(new InputStreamReader(tls.in()));
+        out = trace.writer(tls.out());
+        username = null;
+        userHash = null;
+    }
+
     private void handleUser(String arg) {
+        if (tls == null && MailTls.enabled() && !PLAINTEXT_AUTH) {
+            out.println("-ERR [AUTH] Use STLS before logging in");
+            return;
+        }
         if (arg.trim().isEmpty()) {
             out.println("-ERR Username cannot be empty");
             return;
         }
 
         // Check if user exists in MySQL instead of directory
-        if (!userExistsInDatabase(arg)) {
-            out.println("-ERR No such user exists");
+        try {
+            if (!userExistsInDatabase(arg)) {
+                out.println("-ERR No such user exists");
+                return;
+            }
+        } catch (SQLException e) {
+            System.err.println("Database error during POP3 user check: " + e.getMessage());
+            out.println("-ERR [SYS/TEMP] Temporary lookup failure, try again later");
             return;
         }
 
         username = arg;
+        userHash = UserHash.of(arg);
+        trace.user(arg);
         out.println("+OK User found, please enter password");
     }
 
@@ -122,12 +307,33 @@ class Pop3Session extends Thread {
             return;
         }
 
+        if (Admission.authBlocked("pop3", clientIp, username)) {
+            out.println("-ERR [AUTH] Too many failed logins, try again later");
+            return;
+        }
+
+        if (!Overload.AUTH.tryAcquire()) {
+            MailMetrics.rejected("pop3", "overload");
+            out.println("-ERR [SYS/TEMP] Server busy, try again later");
+            return;
+        }
+        long authStarted = System.nanoTime();
+        boolean authErrored = true;
+        AuthEvent authEvent = new AuthEvent();
+        authEvent.begin();
+        authEvent.operation = "authenticate";
+        authEvent.user = userHash;
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-            AuthService authService = (AuthService) registry.lookup("AuthService");
+            AuthService authService = AuthServices.get();
 
             boolean isAuthenticated = authService.authenticate(username, arg);
+            MailMetrics.auth("authenticate", authStarted);
+            authErrored = false;
+            Overload.AUTH.release(System.nanoTime() - authStarted, false);
+            authEvent.success = isAuthenticated;
             if (!isAuthenticated) {
+                authEvent.end(); // the tarpit below is not AuthService time
+                Admission.tarpit(Admission.authFailed(clientIp, username));
                 out.println("-ERR Wrong password, try again");
                 return;
             }
@@ -136,15 +342,15 @@ class Pop3Session extends Thread {
             e.printStackTrace();
             out.println("-ERR Server error during authentication");
             return;
+        } finally {
+            if (authErrored) {
+                Overload.AUTH.release(System.nanoTime() - authStarted, true);
+            }
+            authEvent.commit();
         }
 
         authenticated = true;
-
-        // You can still use local files for emails, or switch to DB later
-        File userDir = new File("mailserver/" + username);
-        File[] files = userDir.listFiles();
-        emails = (files == null) ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
-        deletionFlags = new ArrayList<>(Collections.nCopies(emails.size(), false));
+        Admission.authSucceeded(username);
 
         out.println("+OK Password accepted, mailbox ready");
     }
@@ -156,32 +362,15 @@ class Pop3Session extends Thread {
             return;
         }
 
-        int emailCount = 0;
-        long totalSize = 0;
-
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = "";
-        String sql = "SELECT content FROM emails WHERE recipient_email = ?";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
-
-            // Construct the full recipient email address
-            String recipientEmail = username + "@example.com";  // Change domain if needed
-            pst.setString(1, recipientEmail);
-
-            ResultSet rs = pst.executeQuery();
-            while (rs.next()) {
-                String content = rs.getString("content");
-                totalSize += content.getBytes(StandardCharsets.UTF_8).length;
-                emailCount++;
+        try {
+            List<StoredMail> messages = MailStores.get().list(mailbox());
+            long totalSize = 0;
+            for (StoredMail mail : messages) {
+                totalSize += mail.size;
             }
-
-            out.println("+OK " + emailCount + " " + totalSize);
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            out.println("-ERR Could not retrieve email statistics");
+            out.println("+OK " + messages.size() + " " + totalSize);
+        } catch (MailStoreException ex) {
+            storeFailed(ex, "-ERR Could not retrieve email statistics");
         }
     }
 
@@ -192,212 +381,144 @@ class Pop3Session extends Thread {
             return;
         }
 
-        String recipientEmail = username + "@example.com";  // Adjust domain if needed
-
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
-        String sql = "SELECT LENGTH(content) AS size FROM emails WHERE recipient_email = ? ORDER BY date_sent ASC";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
-
-            pst.setString(1, recipientEmail);
-            ResultSet rs = pst.executeQuery();
-
-            List<String> lines = new ArrayList<>();
-            int index = 1;
-            int totalSize = 0;
-
-            while (rs.next()) {
-                int size = rs.getInt("size");
-                totalSize += size;
-                lines.add(index + " " + size);  // Use sequence number, not DB ID
-                index++;
-            }
-
-            if (lines.isEmpty()) {
+        try {
+            List<StoredMail> messages = MailStores.get().list(mailbox());
+            if (messages.isEmpty()) {
                 out.println("-ERR No messages found.");
-            } else {
-                out.println("+OK " + lines.size() + " " + totalSize);
-                for (String line : lines) {
-                    out.println(line);
-                }
-                out.println(".");  // End of multi-line response
+                return;
             }
-
-            rs.close();
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            out.println("-ERR Unable to list emails");
+            long totalSize = 0;
+            for (StoredMail mail : messages) {
+                totalSize += mail.size;
+            }
+            out.println("+OK " + messages.size() + " " + totalSize);
+            for (int i = 0; i < messages.size(); i++) {
+                out.println(formatScanLine(i + 1, messages.get(i).size));  // Use sequence number, not the store id
+            }
+            out.println(".");  // End of multi-line response
+        } catch (MailStoreException ex) {
+            storeFailed(ex, "-ERR Unable to list emails");
         }
     }
 
 
-
-
-
-
     private void handleRetr(String msgId) {
-        long startTime = System.currentTimeMillis();
-
         if (!authenticated) {
             out.println("-ERR Authentication required");
             return;
         }
 
-        int index;
-        try {
-            index = Integer.parseInt(msgId) - 1;  // Convert to 0-based index
-            if (index < 0) {
-                out.println("-ERR Invalid message number");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            out.println("-ERR Invalid message number format");
+        lastMessageSize = 0;
+        int index = messageIndex(msgId);
+        if (index < 0) {
             return;
         }
 
-        String recipientEmail = username + "@example.com";
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
-
-        String sql = "SELECT subject, content FROM emails WHERE recipient_email = ? AND is_deleted = 0 ORDER BY date_sent ASC";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
-
-            pst.setString(1, recipientEmail);
-            ResultSet rs = pst.executeQuery();
-
-            List<String> messages = new ArrayList<>();
-            List<String> subjects = new ArrayList<>();
-
-            while (rs.next()) {
-                subjects.add(rs.getString("subject"));
-                messages.add(rs.getString("content"));
-            }
-
-            if (index >= messages.size()) {
+        try {
+            StoredMail mail = message(index);
+            if (mail == null) {
                 out.println("-ERR No such message");
                 return;
             }
 
-            String subject = subjects.get(index);
-            String content = messages.get(index);
-            String fullMessage = "Subject: " + subject + "\r\n" + content;
-
-            out.println("+OK " + fullMessage.length() + " octets");
-            out.println(fullMessage);
+            // The body is copied from the store to the socket rather than loaded first. With
+            // attachments the message goes out as multipart/mixed, the body its first part.
+            List<MailAttachment> attachments = MailAttachments.list(mailbox(), List.of(mail.id)).get(mail.id);
+            MailEntity entity = attachments == null ? null : new MailEntity(mail.id, attachments);
+            String header = formatHeader(mail.subject);
+            if (entity != null) {
+                header += "MIME-Version: 1.0\r\nContent-Type: " + entity.contentType() + "\r\n\r\n";
+            }
+            lastMessageSize = header.getBytes(StandardCharsets.UTF_8).length + (entity == null ? mail.size : entity.size(mail.size));
+            out.println("+OK " + lastMessageSize + " octets");
+            out.print(header);
+            if (entity != null) {
+                out.write(new String(entity.opening(), StandardCharsets.US_ASCII));
+            }
+            MailStores.get().writeBody(mailbox(), mail.id, out);
+            if (entity != null) {
+                entity.writeAttachments(out);
+            }
+            out.println();
             out.println(".");
-
-            rs.close();
-        } catch (SQLException ex) {
+        } catch (MailStoreException ex) {
+            storeFailed(ex, "-ERR Server error during message retrieval");
+        } catch (IOException ex) {
             ex.printStackTrace();
             out.println("-ERR Server error during message retrieval");
         }
-        long endTime = System.currentTimeMillis();
-        System.out.println("[POP3] Temps de réponse pour handleRetr : " + (endTime - startTime) + " ms");
-
     }
 
+    static String formatHeader(String subject) {
+        return "Subject: " + subject + "\r\n";
+    }
 
+    // One line of a LIST scan listing: message number and size in octets.
+    static String formatScanLine(int number, long size) {
+        return number + " " + size;
+    }
 
-
-
-
-    private void handleDele(String msgId) {
-        if (!authenticated) {
-            out.println("-ERR Authentication required");
-            return;
-        }
-
-        int index;
+    // The 0-based index of a message number argument, or -1 after answering an invalid one.
+    private int messageIndex(String msgId) {
         try {
-            index = Integer.parseInt(msgId) - 1;  // Convert to 0-based index
+            int index = Integer.parseInt(msgId) - 1;  // Convert to 0-based index
             if (index < 0) {
                 out.println("-ERR Invalid message number");
-                return;
             }
+            return Math.max(index, -1);
         } catch (NumberFormatException e) {
             out.println("-ERR Invalid message number format");
-            return;
+            return -1;
         }
+    }
 
-        // Construct the recipient email (e.g., username@example.com)
-        String recipientEmail = username + "@example.com";
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
-
-        String sql = "SELECT id FROM emails WHERE recipient_email = ? AND is_deleted = 0 ORDER BY date_sent ASC";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
+    // The index-th (0-based) live message of the mailbox, without its body, or null if there is none.
+    private StoredMail message(int index) throws MailStoreException {
+        List<StoredMail> messages = MailStores.get().list(mailbox());
+        return index < messages.size() ? messages.get(index) : null;
+    }
 
-            pst.setString(1, recipientEmail);
-            ResultSet rs = pst.executeQuery();
+    private void handleDele(String msgId) {
+        if (!authenticated) {
+            out.println("-ERR Authentication required");
+            return;
+        }
 
-            List<Integer> emailIds = new ArrayList<>();
-            while (rs.next()) {
-                emailIds.add(rs.getInt("id"));
-            }
+        int index = messageIndex(msgId);
+        if (index < 0) {
+            return;
+        }
 
-            if (index >= emailIds.size()) {
+        try {
+            StoredMail mail = message(index);
+            // Soft delete: hidden from now on, removed once QUIT commits it.
+            if (mail != null && MailStores.get().markDeleted(mailbox(), List.of(mail.id), false) > 0) {
+                MailboxVersions.bump(mailbox());
+                out.println("+OK Message marked for deletion");
+            } else {
                 out.println("-ERR No such message");
-                return;
             }
-
-            int messageId = emailIds.get(index);
-
-            // Soft delete the email by updating 'is_deleted' field
-            String deleteSql = "UPDATE emails SET is_deleted = 1 WHERE id = ? AND recipient_email = ?";
-            try (PreparedStatement deletePst = con.prepareStatement(deleteSql)) {
-                deletePst.setInt(1, messageId);
-                deletePst.setString(2, recipientEmail);
-                int rowsAffected = deletePst.executeUpdate();
-
-                if (rowsAffected > 0) {
-                    out.println("+OK Message marked for deletion");
-                } else {
-                    out.println("-ERR No such message");
-                }
-            }
-
-            rs.close();
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            out.println("-ERR Server error during message deletion");
+        } catch (MailStoreException ex) {
+            storeFailed(ex, "-ERR Server error during message deletion");
         }
     }
 
 
-
-
     private void handleRset() {
         if (!authenticated) {
             out.println("-ERR Authentication required");
             return;
         }
 
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
-
-        String sql = "UPDATE emails SET is_deleted = 0 WHERE recipient_email = ? AND is_deleted = 1";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
-
-            String recipientEmail = username + "@example.com";  // Assuming this format
-            pst.setString(1, recipientEmail);
-            int rowsAffected = pst.executeUpdate();
-
-            out.println("+OK Reset deletion flags on " + rowsAffected + " message(s)");
-        } catch (SQLException e) {
-            e.printStackTrace();
-            out.println("-ERR Failed to reset deletion flags");
+        // Only deletions made in this session (not yet committed by QUIT) can be undone.
+        try {
+            int restored = MailStores.get().unmarkDeleted(mailbox());
+            if (restored > 0) {
+                MailboxVersions.bump(mailbox());
+            }
+            out.println("+OK Reset deletion flags on " + restored + " message(s)");
+        } catch (MailStoreException ex) {
+            storeFailed(ex, "-ERR Failed to reset deletion flags");
         }
     }
 
@@ -409,48 +530,55 @@ class Pop3Session extends Thread {
             return;
         }
 
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb";
-        String dbUser = "root";
-        String dbPassword = "";
-
-        // Construct user's email address
-        String recipientEmail = username + "@example.com";
-
-        // SQL to permanently delete all soft-deleted messages for the authenticated user
-        String sql = "DELETE FROM emails WHERE recipient_email = ? AND is_deleted = 1";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
-
-            pst.setString(1, recipientEmail);
-            int deletedCount = pst.executeUpdate();
-
+        // Commit this session's deletions; MailPurger removes the messages later in small batches.
+        try {
+            int deletedCount = MailStores.get().commitDeleted(mailbox());
             out.println("+OK " + deletedCount + " message(s) deleted. Goodbye");
-
-        } catch (SQLException e) {
+        } catch (MailStoreException e) {
             e.printStackTrace();
             out.println("-ERR Error during cleanup. Goodbye anyway");
         }
     }
 
-    private boolean userExistsInDatabase(String username) {
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = "";
+    private String mailbox() {
+        return username + "@example.com";  // Change domain if needed
+    }
+
+    // A store that shed the call gets the client to retry; other failures are logged.
+    private void storeFailed(MailStoreException e, String reply) {
+        if (e.isTemporary()) {
+            MailMetrics.rejected("pop3", "overload");
+            out.println("-ERR [SYS/TEMP] Server busy, try again later");
+        } else {
+            e.printStackTrace();
+            out.println(reply);
+        }
+    }
+
+    // As in SmtpSession: on a replica if one is fresh enough, a miss checked again on the primary.
+    private boolean userExistsInDatabase(String username) throws SQLException {
+        MailReplica replica = MailShards.get(0).replica(null);
+        return userExistsInDatabase(username, replica) || replica != null && userExistsInDatabase(username, null);
+    }
+
+    private boolean userExistsInDatabase(String username, MailReplica replica) throws SQLException {
+        long dbStarted = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("user_exists");
         String sql = "SELECT 1 FROM users WHERE username = ? LIMIT 1";
 
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = replica != null ? replica.getConnection() : MailDb.getConnection();
              PreparedStatement stmt = con.prepareStatement(sql)) {
 
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
             boolean exists = rs.next();
+            jdbc.rows = exists ? 1 : 0;
             rs.close();
             return exists;
 
-        } catch (SQLException e) {
-            System.err.println("Database error during POP3 user check: " + e.getMessage());
-            return false;
+        } finally {
+            MailMetrics.db("user_exists", dbStarted);
+            jdbc.commit();
         }
     }
 
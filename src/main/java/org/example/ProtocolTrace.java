@@ -0,0 +1,284 @@
+package org.example;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * Per-connection protocol trace: a ring buffer of the last commands and responses of one
+ * session, printed to stdout only when it is worth reading.
+ *
+ * A session is dumped when it fails (IOException or a server error reply), when a command
+ * takes longer than {@code mail.trace.slow-ms} (500), when it was picked by sampling
+ * ({@code mail.trace.sample-rate}, 0 by default) or when its client address or user is
+ * watched. Watches come from {@code mail.trace.addresses} / {@code mail.trace.users}
+ * (comma separated) and can be changed at runtime through the
+ * {@code org.example:type=ProtocolTrace} MBean. Dumps are capped at
+ * {@code mail.trace.max-dumps-per-second} (10) across all sessions.
+ *
+ * Recording only stores the line reference and a timestamp into preallocated arrays, so
+ * sessions that are never dumped allocate nothing. The buffer has a single writer, the
+ * session thread. Passwords and AUTH payloads are redacted when a dump is formatted.
+ */
+public final class ProtocolTrace {
+
+    private static final int CAPACITY = Integer.getInteger("mail.trace.capacity", 64);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("mail.trace.slow-ms", 500));
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("mail.trace.sample-rate", "0"));
+    private static final int MAX_DUMPS_PER_SECOND = Integer.getInteger("mail.trace.max-dumps-per-second", 10);
+
+    // Stands in for the lines of a DATA body, which are not traced.
+    public static final String MESSAGE_DATA = "<message data>";
+
+    private static final Set<String> WATCHED_ADDRESSES = ConcurrentHashMap.newKeySet();
+    private static final Set<String> WATCHED_USERS = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong DUMP_WINDOW = new AtomicLong();
+    private static final AtomicLong DUMPS_IN_WINDOW = new AtomicLong();
+    private static volatile boolean mbeanRegistered;
+
+    static {
+        addAll(WATCHED_ADDRESSES, System.getProperty("mail.trace.addresses", ""));
+        addAll(WATCHED_USERS, System.getProperty("mail.trace.users", ""));
+    }
+
+    private static final byte RECEIVED = 0;
+    private static final byte SENT = 1;
+
+    private final String protocol;
+    private final String address;
+    private final String[] lines = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final byte[] directions = new byte[CAPACITY];
+    private long recorded;
+    private final long openedNanos = System.nanoTime();
+
+    private String user;
+    private boolean sampled;
+    private boolean watched;
+    private boolean failed;
+    // Set while the client is sending an AUTH exchange, so its continuation lines are hidden.
+    private boolean authPayload;
+
+    public ProtocolTrace(String protocol, InetAddress address) {
+        this.protocol = protocol;
+        this.address = address == null ? "?" : address.getHostAddress();
+        this.sampled = SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE;
+        this.watched = WATCHED_ADDRESSES.contains(this.address);
+    }
+
+    // Autoflushing writer for the session's replies that records every line it prints.
+    public PrintWriter writer(OutputStream out) {
+        return new PrintWriter(out, true) {
+            @Override
+            public void println(String x) {
+                sent(x);
+                super.println(x);
+            }
+        };
+    }
+
+    public void received(String line) {
+        record(line, RECEIVED);
+    }
+
+    public void sent(String line) {
+        record(line, SENT);
+        if (isServerError(line)) {
+            failed = true;
+        }
+    }
+
+    // The session learned who the client is (POP3 USER, SMTP MAIL FROM local part).
+    public void user(String user) {
+        this.user = user;
+        if (user != null && WATCHED_USERS.contains(user.toLowerCase(Locale.ROOT))) {
+            watched = true;
+        }
+    }
+
+    // Called after each command; dumps the buffer right away if the command was slow.
+    public void commandDone(String command, long startedNanos) {
+        long elapsed = System.nanoTime() - startedNanos;
+        if (elapsed > SLOW_NANOS) {
+            dump("slow " + command + " " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        }
+    }
+
+    public void error(Throwable t) {
+        dump("error " + t);
+        failed = false;
+    }
+
+    // Called when the session ends.
+    public void close() {
+        if (failed) {
+            dump("server error reply");
+        } else if (watched) {
+            dump("watched");
+        } else if (sampled) {
+            dump("sampled");
+        }
+    }
+
+    private void record(String line, byte direction) {
+        int slot = (int) (recorded++ % CAPACITY);
+        lines[slot] = line;
+        times[slot] = System.nanoTime();
+        directions[slot] = direction;
+    }
+
+    private boolean isServerError(String line) {
+        // Replies the server sends when it, not the client, failed.
+        return line.startsWith("451") || line.startsWith("554") || line.startsWith("550 Failed")
+                || line.startsWith("-ERR Server error") || line.startsWith("-ERR Error")
+                || line.startsWith("-ERR Could not") || line.startsWith("-ERR Unable")
+                || line.startsWith("-ERR Failed") || line.contains(" NO [SERVERBUG]");
+    }
+
+    private void dump(String reason) {
+        if (!allowDump()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("[TRACE] ").append(protocol).append(' ').append(address);
+        if (user != null) {
+            sb.append(" user=").append(user);
+        }
+        sb.append(" reason=").append(reason).append('\n');
+
+        long first = Math.max(0, recorded - CAPACITY);
+        if (first > 0) {
+            sb.append("  ... ").append(first).append(" earlier line(s) dropped\n");
+        }
+        authPayload = false;
+        for (long i = first; i < recorded; i++) {
+            int slot = (int) (i % CAPACITY);
+            double offsetMs = (times[slot] - openedNanos) / 1e6;
+            sb.append(String.format(Locale.ROOT, "  %10.3f ms ", offsetMs))
+                    .append(directions[slot] == RECEIVED ? "C: " : "S: ")
+                    .append(directions[slot] == RECEIVED ? redact(lines[slot]) : lines[slot])
+                    .append('\n');
+            if (directions[slot] == SENT && !lines[slot].startsWith("334") && !lines[slot].startsWith("+ ")) {
+                authPayload = false;
+            }
+        }
+        System.out.print(sb);
+    }
+
+    // Hides credentials in a received line: PASS / LOGIN arguments and AUTH exchanges.
+    private String redact(String line) {
+        if (line == MESSAGE_DATA) {
+            return line;
+        }
+        if (authPayload) {
+            return "<redacted>";
+        }
+        String[] words = line.split(" ", 4);
+        String verb = words[0].toUpperCase(Locale.ROOT);
+        if (verb.equals("PASS") || verb.equals("APOP")) {
+            return words[0] + " <redacted>";
+        }
+        if (verb.equals("AUTH")) {
+            authPayload = true;
+            return words.length > 1 ? words[0] + " " + words[1] + " <redacted>" : line;
+        }
+        // IMAP: tag LOGIN user password / tag AUTHENTICATE mechanism
+        if (words.length > 1) {
+            String imapVerb = words[1].toUpperCase(Locale.ROOT);
+            if (imapVerb.equals("LOGIN")) {
+                return words[0] + " " + words[1] + (words.length > 2 ? " " + words[2] : "") + " <redacted>";
+            }
+            if (imapVerb.equals("AUTHENTICATE")) {
+                authPayload = true;
+                return words.length > 2 ? words[0] + " " + words[1] + " " + words[2] + " <redacted>" : line;
+            }
+        }
+        return line;
+    }
+
+    private static boolean allowDump() {
+        long second = System.nanoTime() / 1_000_000_000L;
+        long window = DUMP_WINDOW.get();
+        if (window != second && DUMP_WINDOW.compareAndSet(window, second)) {
+            DUMPS_IN_WINDOW.set(0);
+        }
+        return DUMPS_IN_WINDOW.incrementAndGet() <= MAX_DUMPS_PER_SECOND;
+    }
+
+    private static void addAll(Set<String> set, String csv) {
+        for (String value : csv.split(",")) {
+            if (!value.isBlank()) {
+                set.add(value.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    // Publishes the watch lists as org.example:type=ProtocolTrace on the platform MBean server.
+    public static synchronized void registerMBean() {
+        if (mbeanRegistered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new Control(), new ObjectName("org.example:type=ProtocolTrace"));
+            mbeanRegistered = true;
+        } catch (Exception e) {
+            System.err.println("Could not register the ProtocolTrace MBean: " + e.getMessage());
+        }
+    }
+
+    /** Runtime control of the watch lists. */
+    public interface ProtocolTraceMXBean {
+        Set<String> getWatchedAddresses();
+
+        Set<String> getWatchedUsers();
+
+        void watchAddress(String address);
+
+        void unwatchAddress(String address);
+
+        void watchUser(String user);
+
+        void unwatchUser(String user);
+    }
+
+    static final class Control implements ProtocolTraceMXBean {
+        @Override
+        public Set<String> getWatchedAddresses() {
+            return Set.copyOf(WATCHED_ADDRESSES);
+        }
+
+        @Override
+        public Set<String> getWatchedUsers() {
+            return Set.copyOf(WATCHED_USERS);
+        }
+
+        @Override
+        public void watchAddress(String address) {
+            addAll(WATCHED_ADDRESSES, address);
+        }
+
+        @Override
+        public void unwatchAddress(String address) {
+            WATCHED_ADDRESSES.remove(address.trim().toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public void watchUser(String user) {
+            addAll(WATCHED_USERS, user);
+        }
+
+        @Override
+        public void unwatchUser(String user) {
+            WATCHED_USERS.remove(user.trim().toLowerCase(Locale.ROOT));
+        }
+    }
+}
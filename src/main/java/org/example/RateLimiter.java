@@ -0,0 +1,115 @@
+package org.example;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token buckets keyed by string (client address, user name).
+ *
+ * Each bucket is a single AtomicLong holding the time at which it will be full again
+ * (the "theoretical arrival time" of the generic cell rate algorithm), so taking a token is
+ * one compare-and-set. The key table is bounded: when it reaches maxKeys, full buckets are
+ * dropped first (they carry no state), then arbitrary ones.
+ */
+public final class RateLimiter {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int burst;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // perSecond tokens are added per second, up to burst tokens.
+    public RateLimiter(double perSecond, int burst, int maxKeys) {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        this.burst = burst;
+        this.burstNanos = intervalNanos * burst;
+        this.maxKeys = maxKeys;
+    }
+
+    // Takes a token; false if the key's bucket is empty.
+    public boolean tryAcquire(String key) {
+        AtomicLong bucket = bucket(key);
+        long now = System.nanoTime();
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Takes a token even when the bucket is empty and returns the number of tokens in use.
+    public int charge(String key) {
+        AtomicLong bucket = bucket(key);
+        long now = System.nanoTime();
+        while (true) {
+            long full = bucket.get();
+            long next = Math.min(Math.max(full, now) + intervalNanos, now + burstNanos);
+            if (bucket.compareAndSet(full, next)) {
+                return used(next, now);
+            }
+        }
+    }
+
+    public boolean isExhausted(String key) {
+        AtomicLong bucket = buckets.get(key);
+        return bucket != null && used(bucket.get(), System.nanoTime()) >= burst;
+    }
+
+    // Time until the key can take a token again, 0 if it can now.
+    public long retryAfterMillis(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            return 0;
+        }
+        long wait = bucket.get() + intervalNanos - System.nanoTime() - burstNanos;
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    public void reset(String key) {
+        buckets.remove(key);
+    }
+
+    private int used(long full, long now) {
+        return full <= now ? 0 : (int) ((full - now + intervalNanos - 1) / intervalNanos);
+    }
+
+    private AtomicLong bucket(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                evict();
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        }
+        return bucket;
+    }
+
+    // One thread at a time trims the table to 90% of maxKeys; the others do not wait for it.
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            buckets.values().removeIf(bucket -> bucket.get() <= now);
+            int target = maxKeys - maxKeys / 10;
+            Iterator<AtomicLong> it = buckets.values().iterator();
+            while (buckets.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
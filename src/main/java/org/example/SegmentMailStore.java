@@ -0,0 +1,703 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MailStore} that keeps message bodies in append-only segment files in a local
+ * directory and everything else in another store (the emails table by default), so that
+ * storing and reading a body never goes through the database.
+ *
+ * A body is appended to the active segment as one record per stored copy: magic, id,
+ * mailbox, length, the UTF-8 bytes and a CRC. Writers make their records durable with a
+ * group fsync: whoever gets to sync first forces the segment for every record written so
+ * far, and the writers queued behind find theirs already covered. A full segment is sealed:
+ * forced, its record offsets written to {@code <n>.idx} next to it, and mapped read-only, so
+ * RETR decodes bodies straight from the page cache into the socket writer. An index per
+ * mailbox maps ids to records; on start it is loaded from the .idx files, and the active
+ * segment is scanned and cut back to its last whole record.
+ *
+ * Several processes (the separate SMTP, POP3 and IMAP servers) can share the directory.
+ * Appends hold a lock on the .lock file, which also records the number of the active
+ * segment, and start by reading the records the other processes appended since. A reader
+ * that does not find an id in its index reads them the same way before giving up on it.
+ *
+ * After each purge, the index entries of purged messages are dropped, and sealed segments
+ * where purged messages hold at least mail.segment.compact-ratio (0.5) of the bytes are
+ * compacted: their live records are copied to the active segment, and the old files removed
+ * once the copies are synced. One process compacts at a time. Segments roll over at
+ * mail.segment.size bytes (64 MB).
+ *
+ * writeBody answers from the index alone, so a message deleted but not purged yet can still
+ * be read by a session that listed it before. Messages stored before the switch to this
+ * engine have no record and are read from the other store as before.
+ */
+public class SegmentMailStore implements MailStore {
+
+    private static final int MAGIC = 0x4D534731; // "MSG1"
+    private static final String SEGMENT = ".seg";
+    private static final String INDEX = ".idx";
+    // Ids per retained() call while compacting.
+    private static final int BATCH = 500;
+
+    private final MailStore metadata;
+    private final Path dir;
+    private final long segmentSize;
+    private final double compactRatio;
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Long, Location>> index = new ConcurrentHashMap<>();
+
+    // Byte 0 is locked by appends, byte 1 by compaction; the first 4 bytes hold the active segment number.
+    private final FileChannel lockFile;
+    private final Object writeLock = new Object();
+    private final Object compactLock = new Object();
+    private final Object syncLock = new Object();
+    // Guarded by writeLock: the segment appended to, and the bytes appended since start.
+    private Segment active;
+    private long appended;
+    // Guarded by syncLock: how many of the bytes appended since start are known to be on disk.
+    private long synced;
+
+    public SegmentMailStore(MailStore metadata, Path dir) throws IOException {
+        this(metadata, dir, Long.getLong("mail.segment.size", 64L << 20),
+                Double.parseDouble(System.getProperty("mail.segment.compact-ratio", "0.5")));
+    }
+
+    public SegmentMailStore(MailStore metadata, Path dir, long segmentSize, double compactRatio) throws IOException {
+        this.metadata = metadata;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactRatio = compactRatio;
+        Files.createDirectories(dir);
+        this.lockFile = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        open();
+    }
+
+    private static final class Segment {
+        final int number;
+        final Path file;
+        final FileChannel channel;
+        // Set once sealed; the active segment is read through the channel.
+        volatile MappedByteBuffer mapped;
+        // Guarded by writeLock while active.
+        long size;
+        // Records appended while active, for the .idx file.
+        final List<Record> records = new ArrayList<>();
+
+        Segment(int number, Path file, FileChannel channel, long size) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        boolean sealed() {
+            return mapped != null;
+        }
+
+        void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            records.clear();
+        }
+    }
+
+    // Where a body is: bodyOffset and length in bytes, within the record that starts at offset.
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final long bodyOffset;
+        final int length;
+
+        Location(Segment segment, long offset, long bodyOffset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.bodyOffset = bodyOffset;
+            this.length = length;
+        }
+
+        // Bytes of the whole record: what compaction gets back once the message is purged.
+        long recordLength() {
+            return bodyOffset - offset + length + Integer.BYTES;
+        }
+    }
+
+    private static final class Record {
+        final long id;
+        final String mailbox;
+        final Location location;
+
+        Record(long id, String mailbox, Location location) {
+            this.id = id;
+            this.mailbox = mailbox;
+            this.location = location;
+        }
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        byte[] content = (body == null ? "" : body).getBytes(StandardCharsets.UTF_8);
+        List<Long> ids = metadata.append(sender, recipients, subject, "");
+        try {
+            long end = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                end = write(ids.get(i), recipients.get(i), content, null);
+            }
+            sync(end);
+            return ids;
+        } catch (IOException e) {
+            // The rows are stored but their bodies may not be: take them out of sight for good.
+            for (int i = 0; i < ids.size(); i++) {
+                try {
+                    metadata.markDeleted(recipients.get(i), List.of(ids.get(i)), true);
+                } catch (MailStoreException ignored) {
+                    // left visible with an empty body
+                }
+            }
+            throw new MailStoreException("Could not store message body: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        return complete(mailbox, metadata.page(mailbox, afterId, limit, false), withBody);
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (StoredMail mail : complete(mailbox, metadata.fetch(mailbox, ids, false).values(), withBody)) {
+            messages.put(mail.id, mail);
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        Location location = location(mailbox, id);
+        if (location == null) {
+            catchUp();
+            location = location(mailbox, id);
+        }
+        if (location == null) {
+            return metadata.writeBody(mailbox, id, out);
+        }
+        MailStores.writeUtf8(bytes(location), out);
+        return true;
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        return metadata.mailboxOf(id);
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        return metadata.highestId(mailbox);
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        return metadata.retained(mailbox, ids);
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        metadata.setFlags(mailbox, flags);
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        return metadata.markDeleted(mailbox, ids, commit);
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        return metadata.unmarkDeleted(mailbox);
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        return metadata.commitDeleted(mailbox);
+    }
+
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long purged = metadata.purge(cutoff, batchSize, pauseMillis);
+        compact();
+        return purged;
+    }
+
+    // Drops the index entries of purged messages, then rewrites the sealed segments that are
+    // mostly garbage.
+    void compact() throws MailStoreException {
+        synchronized (compactLock) {
+            try {
+                FileLock lock = lockFile.lock(1, 1, false);
+                try {
+                    catchUp();
+                    compactSegments();
+                } finally {
+                    release(lock);
+                }
+            } catch (MailStoreException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new MailStoreException("Could not compact " + dir + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void compactSegments() throws MailStoreException, IOException {
+        List<Segment> sealed = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (!segment.sealed()) {
+                continue;
+            }
+            if (!Files.exists(segment.file)) {
+                // Compacted by another process; the copies were read in by catchUp, and the
+                // mapping still serves the entries left on it until they are dropped below.
+                segments.remove(segment.number);
+                segment.channel.close();
+                continue;
+            }
+            sealed.add(segment);
+        }
+
+        Map<Segment, List<Record>> live = new HashMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<Long, Location>> mailbox : index.entrySet()) {
+            List<Long> ids = new ArrayList<>(mailbox.getValue().keySet());
+            for (int from = 0; from < ids.size(); from += BATCH) {
+                List<Long> batch = ids.subList(from, Math.min(ids.size(), from + BATCH));
+                Set<Long> kept = metadata.retained(mailbox.getKey(), batch);
+                for (Long id : batch) {
+                    Location location = mailbox.getValue().get(id);
+                    if (location == null) {
+                        continue;
+                    }
+                    if (!kept.contains(id)) {
+                        mailbox.getValue().remove(id, location);
+                    } else if (location.segment.sealed()) {
+                        live.computeIfAbsent(location.segment, k -> new ArrayList<>())
+                                .add(new Record(id, mailbox.getKey(), location));
+                    }
+                }
+            }
+        }
+
+        for (Segment segment : sealed) {
+            List<Record> records = live.getOrDefault(segment, List.of());
+            long liveBytes = 0;
+            for (Record record : records) {
+                liveBytes += record.location.recordLength();
+            }
+            if (liveBytes > segment.size * (1 - compactRatio)) {
+                continue;
+            }
+            long started = System.nanoTime();
+            long end = 0;
+            for (Record record : records) {
+                byte[] body = new byte[record.location.length];
+                bytes(record.location).get(body);
+                end = write(record.id, record.mailbox, body, record.location);
+            }
+            sync(end);
+            segments.remove(segment.number);
+            segment.channel.close();
+            Files.deleteIfExists(indexFile(segment.number));
+            Files.deleteIfExists(segment.file);
+            System.out.printf("[SEGMENT] Compacted %s: %d record(s) kept, %d bytes freed in %.1f ms%n",
+                    segment.file.getFileName(), records.size(), segment.size - liveBytes,
+                    (System.nanoTime() - started) / 1e6);
+        }
+    }
+
+    // The messages with their body size from the index and, with withBody, their body.
+    private List<StoredMail> complete(String mailbox, Collection<StoredMail> messages, boolean withBody)
+            throws MailStoreException {
+        List<StoredMail> completed = new ArrayList<>(messages.size());
+        List<Long> older = new ArrayList<>();
+        for (StoredMail mail : messages) {
+            if (location(mailbox, mail.id) == null) {
+                catchUp(); // appended by another process, or stored before this engine
+                break;
+            }
+        }
+        for (StoredMail mail : messages) {
+            Location location = location(mailbox, mail.id);
+            if (location == null) {
+                older.add(mail.id);
+                completed.add(mail);
+                continue;
+            }
+            String body = withBody ? StandardCharsets.UTF_8.decode(bytes(location)).toString() : null;
+            completed.add(new StoredMail(mail.id, mail.mailbox, mail.sender, mail.subject, mail.date,
+                    location.length, mail.flags, body));
+        }
+        if (withBody && !older.isEmpty()) {
+            // Stored before this engine, with the body in the other store.
+            Map<Long, StoredMail> withBodies = metadata.fetch(mailbox, older, true);
+            completed.replaceAll(mail -> withBodies.getOrDefault(mail.id, mail));
+        }
+        return completed;
+    }
+
+    private Location location(String mailbox, long id) {
+        ConcurrentHashMap<Long, Location> locations = index.get(mailbox);
+        return locations == null ? null : locations.get(id);
+    }
+
+    private ConcurrentHashMap<Long, Location> locations(String mailbox) {
+        return index.computeIfAbsent(mailbox, k -> new ConcurrentHashMap<>());
+    }
+
+    // The body bytes: a view of the mapping for sealed segments, a copy for the active one.
+    private static ByteBuffer bytes(Location location) throws MailStoreException {
+        MappedByteBuffer mapped = location.segment.mapped;
+        if (mapped != null) {
+            return mapped.slice((int) location.bodyOffset, location.length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(location.length);
+        try {
+            while (body.hasRemaining()) {
+                if (location.segment.channel.read(body, location.bodyOffset + body.position()) < 0) {
+                    throw new EOFException("Segment ends inside a record");
+                }
+            }
+        } catch (IOException e) {
+            throw new MailStoreException("Could not read " + location.segment.file + ": " + e.getMessage(), e);
+        }
+        return body.flip();
+    }
+
+    // Appends a record and indexes it, unless replacing is set and the entry no longer points
+    // to it; returns the end of the record in bytes appended since start, for sync.
+    private long write(long id, String mailbox, byte[] body, Location replacing) throws IOException {
+        byte[] name = mailbox.getBytes(StandardCharsets.UTF_8);
+        int header = Integer.BYTES + Long.BYTES + Short.BYTES + name.length + Integer.BYTES;
+        ByteBuffer record = ByteBuffer.allocate(header + body.length + Integer.BYTES);
+        record.putInt(MAGIC).putLong(id).putShort((short) name.length).put(name).putInt(body.length).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue()).flip();
+
+        synchronized (writeLock) {
+            FileLock lock = lockFile.lock(0, 1, false);
+            try {
+                follow(true);
+                if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+                    roll();
+                }
+                long offset = active.size;
+                while (record.hasRemaining()) {
+                    active.channel.write(record, offset + record.position());
+                }
+                active.size += record.limit();
+                appended += record.limit();
+                Location location = new Location(active, offset, offset + header, body.length);
+                active.records.add(new Record(id, mailbox, location));
+                if (replacing == null) {
+                    locations(mailbox).put(id, location);
+                } else {
+                    locations(mailbox).replace(id, replacing, location);
+                }
+                return appended;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    // Reads in the records other processes appended since; see follow.
+    private void catchUp() throws MailStoreException {
+        synchronized (writeLock) {
+            try {
+                follow(false);
+            } catch (IOException e) {
+                throw new MailStoreException("Could not read " + dir + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Indexes the records other processes appended to the active segment since, and moves on
+    // to the segments they started. With the append lock held (locked), a record cut short by
+    // a writer that died is cut off, so that the next one goes in its place. Called with
+    // writeLock held.
+    private void follow(boolean locked) throws IOException {
+        while (true) {
+            // Read before the segment: once another process moved on, it no longer writes to it.
+            boolean last = active.number >= activeNumber();
+            long end = active.channel.size();
+            if (end > active.size) {
+                long valid = scan(active, active.size, end);
+                if (valid < end && locked && last) {
+                    System.err.println("[SEGMENT] " + active.file.getFileName() + ": dropping " + (end - valid)
+                            + " byte(s) after the last whole record");
+                    active.channel.truncate(valid);
+                }
+                active.size = valid;
+            }
+            if (last) {
+                return;
+            }
+            Segment full = active;
+            full.seal();
+            active = openAfter(full.number);
+        }
+    }
+
+    // The first segment after number that is still there; the ones in between were compacted
+    // away, and their live records copied to later ones.
+    private Segment openAfter(int number) throws IOException {
+        while (true) {
+            int current = activeNumber();
+            for (int next = number + 1; next <= current; next++) {
+                Path file = segmentFile(next);
+                FileChannel channel;
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                Segment segment = new Segment(next, file, channel, 0);
+                segments.put(next, segment);
+                return segment;
+            }
+        }
+    }
+
+    // The number of the segment appended to, as the last process to roll over left it; 0 if unknown.
+    private int activeNumber() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Integer.BYTES);
+        while (value.hasRemaining()) {
+            if (lockFile.read(value, value.position()) < 0) {
+                return 0;
+            }
+        }
+        return value.flip().getInt();
+    }
+
+    private void setActiveNumber(int number) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Integer.BYTES).putInt(number).flip();
+        while (value.hasRemaining()) {
+            lockFile.write(value, value.position());
+        }
+    }
+
+    private static void release(FileLock lock) throws IOException {
+        if (lock.isValid()) {
+            lock.release();
+        }
+    }
+
+    // Returns once everything appended up to end is on disk, forcing the segment if no one
+    // else has since.
+    private void sync(long end) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= end) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (writeLock) {
+                // Records in earlier segments were forced when they were sealed.
+                channel = active.channel;
+                target = appended;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    // Seals the active segment and starts the next one. Called with writeLock held.
+    private void roll() throws IOException {
+        Segment full = active;
+        full.channel.force(false);
+        writeIndex(full);
+        full.seal();
+        active = create(full.number + 1);
+        setActiveNumber(active.number);
+    }
+
+    private Segment create(int number) throws IOException {
+        Path file = segmentFile(number);
+        Segment segment = new Segment(number, file, FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE), 0);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        Path tmp = dir.resolve(indexFile(segment.number).getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (Record record : segment.records) {
+                out.writeLong(record.id);
+                out.writeUTF(record.mailbox);
+                out.writeLong(record.location.offset);
+                out.writeLong(record.location.bodyOffset);
+                out.writeInt(record.location.length);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, indexFile(segment.number), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the index from the segments in order, so that copies made by compaction win over
+    // the records they were copied from, and makes the last segment the active one. Holds the
+    // append lock, so that no other process is inside a record when the last one is cut back.
+    private void open() throws IOException {
+        FileLock lock = lockFile.lock(0, 1, false);
+        try {
+            load();
+            setActiveNumber(active.number);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private void load() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        numbers.sort(null);
+        if (numbers.isEmpty()) {
+            active = create(1);
+            return;
+        }
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = numbers.get(i);
+            Path file = segmentFile(number);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(number, file, channel, channel.size());
+            segments.put(number, segment);
+            boolean last = i == numbers.size() - 1;
+            if (last || !loadIndex(segment)) {
+                long valid = scan(segment, 0, segment.size);
+                if (valid < segment.size) {
+                    System.err.println("[SEGMENT] " + file.getFileName() + ": dropping " + (segment.size - valid)
+                            + " byte(s) after the last whole record");
+                    channel.truncate(valid);
+                    segment.size = valid;
+                }
+            }
+            if (last) {
+                active = segment;
+            } else {
+                if (!Files.exists(indexFile(number))) {
+                    writeIndex(segment);
+                }
+                segment.seal();
+            }
+        }
+    }
+
+    // Indexes the records of a segment from its .idx file; false if there is none.
+    private boolean loadIndex(Segment segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile(segment.number))))) {
+            while (true) {
+                long id;
+                try {
+                    id = in.readLong();
+                } catch (EOFException e) {
+                    return true;
+                }
+                String mailbox = in.readUTF();
+                Location location = new Location(segment, in.readLong(), in.readLong(), in.readInt());
+                segment.records.add(new Record(id, mailbox, location));
+                locations(mailbox).put(id, location);
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    // Indexes the records of a segment between from and end by reading them through; returns
+    // where the last whole record ends.
+    private long scan(Segment segment, long from, long end) throws IOException {
+        long position = from;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segment.channel.position(from))));
+        CRC32 crc = new CRC32();
+        while (position < end) {
+            try {
+                byte[] head = in.readNBytes(Integer.BYTES + Long.BYTES + Short.BYTES);
+                ByteBuffer fixed = ByteBuffer.wrap(head);
+                if (head.length < Integer.BYTES + Long.BYTES + Short.BYTES || fixed.getInt() != MAGIC) {
+                    break;
+                }
+                long id = fixed.getLong();
+                byte[] name = in.readNBytes(fixed.getShort() & 0xFFFF);
+                int length = in.readInt();
+                if (length < 0 || position + head.length + name.length + Integer.BYTES + length > end) {
+                    break;
+                }
+                byte[] body = in.readNBytes(length);
+                int expected = in.readInt();
+                crc.reset();
+                crc.update(head);
+                crc.update(name);
+                crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+                crc.update(body);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                long bodyOffset = position + head.length + name.length + Integer.BYTES;
+                String mailbox = new String(name, StandardCharsets.UTF_8);
+                Location location = new Location(segment, position, bodyOffset, length);
+                segment.records.add(new Record(id, mailbox, location));
+                locations(mailbox).put(id, location);
+                position = location.offset + location.recordLength();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private Path segmentFile(int number) {
+        return dir.resolve(String.format("%08d", number) + SEGMENT);
+    }
+
+    private Path indexFile(int number) {
+        return dir.resolve(String.format("%08d", number) + INDEX);
+    }
+}
@@ -0,0 +1,120 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Accept loop of a socket server. Runs one session thread per connection and remembers the
+ * open connections, so that {@link #stop} can drain them: stop accepting, give the
+ * sessions in progress time to finish, then close whatever is left. Connections that
+ * {@link Admission} turns away, or that arrive while the database is at its {@link Overload}
+ * limit, get the protocol's busy reply and are closed right away.
+ */
+public final class SessionListener {
+
+    private final String protocol;
+    private final ServerSocket serverSocket;
+    private final Function<Socket, Runnable> sessions;
+    private final byte[] busyReply;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopping;
+
+    // busyReply may be null (implicit-TLS ports), then turned away connections are just closed.
+    public SessionListener(String protocol, ServerSocket serverSocket, Function<Socket, Runnable> sessions,
+                           String busyReply) {
+        this.protocol = protocol;
+        this.serverSocket = serverSocket;
+        this.sessions = sessions;
+        this.busyReply = busyReply == null ? null : (busyReply + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns once the listener is stopped; an IOException means the server socket failed.
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                String ip = clientSocket.getInetAddress().getHostAddress();
+                if (Overload.DB.saturated()) {
+                    MailMetrics.rejected(protocol, "overload");
+                    reject(clientSocket);
+                    continue;
+                }
+                if (!Admission.openSession(protocol, ip)) {
+                    reject(clientSocket);
+                    continue;
+                }
+                System.out.println("Connection from " + clientSocket.getInetAddress());
+                // Replies are flushed a line (or a TLS flight) at a time already; Nagle would
+                // only hold them back waiting for the client's delayed ACK.
+                clientSocket.setTcpNoDelay(true);
+                Runnable session = sessions.apply(clientSocket);
+                open.add(clientSocket);
+                Thread thread = new Thread(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        open.remove(clientSocket);
+                        Admission.closeSession(ip);
+                    }
+                }, protocol + "-session");
+                thread.start();
+            }
+        } catch (SocketException e) {
+            if (!stopping) {
+                throw e;
+            }
+        }
+    }
+
+    private void reject(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            if (busyReply != null) {
+                socket.getOutputStream().write(busyReply);
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    public int openSessions() {
+        return open.size();
+    }
+
+    // Stops accepting, waits up to drainMillis for open sessions to end, then closes the rest.
+    // Returns the number of sessions that had to be cut off.
+    public int stop(long drainMillis) {
+        stopping = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + protocol + " listener: " + e.getMessage());
+        }
+
+        long deadline = System.currentTimeMillis() + drainMillis;
+        while (!open.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int cut = 0;
+        for (Socket socket : open) {
+            try {
+                socket.close();
+                cut++;
+            } catch (IOException e) {
+                // already closing
+            }
+        }
+        return cut;
+    }
+}
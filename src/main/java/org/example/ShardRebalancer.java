@@ -0,0 +1,336 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Moves mailboxes to the shard that owns them after shards were added (see {@link MailShards}),
+ * while the servers keep running:
+ *
+ * <ol>
+ *   <li>create the emails table on the new shards and add them to mail.shards;</li>
+ *   <li>restart the servers with mail.shards.previous set to the old count, so that they
+ *       read moving mailboxes from both shards;</li>
+ *   <li>run this tool with the same settings, until it reports nothing left to move;</li>
+ *   <li>drop mail.shards.previous and restart the servers again.</li>
+ * </ol>
+ *
+ * A mailbox moves a batch at a time: the rows are copied to the new shard in one transaction
+ * and then removed from the old one in another, with the body references going along. A
+ * moved message gets an id of the new shard, so IMAP clients see it expunged and arrive
+ * again, and for a moment a listing can show it twice. Its attachments ({@link MailAttachments},
+ * in the database of shard 0) are given to the copy once it is committed, and taken from
+ * whichever of the two is not kept after the removal, so neither ever lacks them. A message whose flags or deletion
+ * change while its batch is copied is left where it is and its copy dropped; the next pass
+ * takes it.
+ *
+ * Settings (system properties): mail.rebalance.batch-size (200), mail.rebalance.pause-ms (20).
+ */
+public final class ShardRebalancer {
+
+    // Passes over a mailbox before the messages that keep changing are left for the next run.
+    private static final int PASSES = 5;
+
+    private final int shards;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    public ShardRebalancer() {
+        this(MailShards.count(), Integer.getInteger("mail.rebalance.batch-size", 200),
+                Long.getLong("mail.rebalance.pause-ms", 20));
+    }
+
+    public ShardRebalancer(int shards, int batchSize, long pauseMillis) {
+        this.shards = shards;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long moved = new ShardRebalancer().run();
+        System.out.println("[REBALANCE] Done, " + moved + " messages moved");
+    }
+
+    // Moves every mailbox that is not on its owner among the shards; returns how many messages moved.
+    public long run() throws SQLException, InterruptedException {
+        long moved = 0;
+        for (int from = 0; from < shards; from++) {
+            for (String mailbox : mailboxes(MailShards.get(from))) {
+                int to = MailShards.owner(mailbox, shards);
+                if (to != from) {
+                    long count = move(mailbox, MailShards.get(from), MailShards.get(to));
+                    System.out.println("[REBALANCE] " + mailbox + ": " + count + " messages from shard " + from
+                            + " to shard " + to);
+                    moved += count;
+                }
+            }
+        }
+        return moved;
+    }
+
+    // Moves the messages of the mailbox, deleted ones included; returns how many moved.
+    public long move(String mailbox, MailShard from, MailShard to) throws SQLException, InterruptedException {
+        try (Connection con = to.getConnection()) {
+            new JdbcMailStore(to).ensureSchema(con);
+        }
+        long moved = 0;
+        for (int pass = 0; pass < PASSES; pass++) {
+            boolean changed = false;
+            long after = 0;
+            List<Row> batch;
+            do {
+                batch = read(from, mailbox, after);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                copy(from, to, batch);
+                Map<Long, Long> copies = new HashMap<>();
+                for (Row row : batch) {
+                    copies.put(ShardedMailStore.id(from.index, row.id), ShardedMailStore.id(to.index, row.copyId));
+                }
+                MailAttachments.copy(copies);
+                int removed = remove(from, batch);
+                if (removed < batch.size()) {
+                    undo(to, batch);
+                    changed = true;
+                }
+                List<Long> dropped = new ArrayList<>();
+                for (Row row : batch) {
+                    dropped.add(row.removed ? ShardedMailStore.id(from.index, row.id) : ShardedMailStore.id(to.index, row.copyId));
+                }
+                MailAttachments.drop(dropped);
+                moved += removed;
+                MailboxVersions.bump(mailbox);
+                after = batch.get(batch.size() - 1).id;
+                if (pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            } while (batch.size() == batchSize);
+            if (!changed) {
+                break;
+            }
+        }
+        return moved;
+    }
+
+    // One emails row on its way, with the id its copy got.
+    private static final class Row {
+        long id;
+        String sender;
+        String recipient;
+        String subject;
+        Timestamp date;
+        String content;
+        String hash;
+        boolean deleted;
+        Timestamp deletedAt;
+        int flags;
+        long copyId;
+        boolean removed;
+    }
+
+    private List<String> mailboxes(MailShard shard) throws SQLException {
+        List<String> mailboxes = new ArrayList<>();
+        try (Connection con = shard.getConnection();
+             Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("SELECT DISTINCT recipient_email FROM emails")) {
+            while (rs.next()) {
+                mailboxes.add(rs.getString(1));
+            }
+        }
+        return mailboxes;
+    }
+
+    private List<Row> read(MailShard from, String mailbox, long after) throws SQLException {
+        String sql = "SELECT id, sender, recipient_email, subject, date_sent, content, body_hash, is_deleted, deleted_at, flags "
+                + "FROM emails WHERE recipient_email = ? AND id > ? ORDER BY id LIMIT ?";
+        List<Row> rows = new ArrayList<>();
+        try (Connection con = from.getConnection();
+             PreparedStatement pst = con.prepareStatement(sql)) {
+            pst.setString(1, mailbox);
+            pst.setLong(2, after);
+            pst.setInt(3, batchSize);
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    Row row = new Row();
+                    row.id = rs.getLong("id");
+                    row.sender = rs.getString("sender");
+                    row.recipient = rs.getString("recipient_email");
+                    row.subject = rs.getString("subject");
+                    row.date = rs.getTimestamp("date_sent");
+                    row.content = rs.getString("content");
+                    row.hash = rs.getString("body_hash");
+                    row.deleted = rs.getBoolean("is_deleted");
+                    row.deletedAt = rs.getTimestamp("deleted_at");
+                    row.flags = rs.getInt("flags");
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    // Inserts the rows into the new shard, and references to their bodies, in one transaction.
+    private void copy(MailShard from, MailShard to, List<Row> rows) throws SQLException {
+        String insertSql = "INSERT INTO emails (sender, recipient_email, subject, date_sent, content, body_hash, "
+                + "is_deleted, deleted_at, flags) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        try (Connection con = to.getConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement insert = con.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+                for (Map.Entry<String, Integer> reference : references(rows).entrySet()) {
+                    reference(from, con, reference.getKey(), reference.getValue());
+                }
+                for (Row row : rows) {
+                    insert.setString(1, row.sender);
+                    insert.setString(2, row.recipient);
+                    insert.setString(3, row.subject);
+                    insert.setTimestamp(4, row.date);
+                    insert.setString(5, row.content);
+                    insert.setString(6, row.hash);
+                    insert.setBoolean(7, row.deleted);
+                    insert.setTimestamp(8, row.deletedAt);
+                    insert.setInt(9, row.flags);
+                    insert.executeUpdate();
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        row.copyId = keys.next() ? keys.getLong(1) : 0L;
+                    }
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Adds count references to a body on the shard of con, copying it from the old shard if new there.
+    private static void reference(MailShard from, Connection con, String hash, int count) throws SQLException {
+        try (PreparedStatement update = con.prepareStatement("UPDATE email_bodies SET refs = refs + ? WHERE hash = ?")) {
+            update.setInt(1, count);
+            update.setString(2, hash);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        String selectSql = "SELECT content, size, data FROM email_bodies WHERE hash = ?";
+        String insertSql = "INSERT INTO email_bodies (hash, content, size, refs, data) VALUES (?, ?, ?, ?, ?)";
+        try (Connection source = from.getConnection();
+             PreparedStatement select = source.prepareStatement(selectSql);
+             PreparedStatement insert = con.prepareStatement(insertSql)) {
+            select.setString(1, hash);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Body " + hash + " is missing on shard " + from.index);
+                }
+                insert.setString(1, hash);
+                insert.setString(2, rs.getString("content"));
+                insert.setLong(3, rs.getLong("size"));
+                insert.setInt(4, count);
+                insert.setBytes(5, rs.getBytes("data"));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    // Deletes the rows that are still as read from the old shard, with their body references;
+    // returns how many were.
+    private int remove(MailShard from, List<Row> rows) throws SQLException {
+        String deleteSql = "DELETE FROM emails WHERE id = ? AND flags = ? AND is_deleted = ? AND deleted_at = ?";
+        String deleteLiveSql = "DELETE FROM emails WHERE id = ? AND flags = ? AND is_deleted = ? AND deleted_at IS NULL";
+        String unrefSql = "UPDATE email_bodies SET refs = refs - ? WHERE hash = ?";
+        // Not shed: the copies are committed already.
+        try (Connection con = from.getCommitConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement(deleteSql);
+                 PreparedStatement deleteLive = con.prepareStatement(deleteLiveSql);
+                 PreparedStatement unref = con.prepareStatement(unrefSql)) {
+                int removed = 0;
+                for (Row row : rows) {
+                    PreparedStatement pst = row.deletedAt == null ? deleteLive : delete;
+                    pst.setLong(1, row.id);
+                    pst.setInt(2, row.flags);
+                    pst.setBoolean(3, row.deleted);
+                    if (row.deletedAt != null) {
+                        pst.setTimestamp(4, row.deletedAt);
+                    }
+                    row.removed = pst.executeUpdate() > 0;
+                    if (row.removed) {
+                        removed++;
+                    }
+                }
+                List<Row> gone = new ArrayList<>();
+                for (Row row : rows) {
+                    if (row.removed) {
+                        gone.add(row);
+                    }
+                }
+                // Unreferenced bodies are left to the purge.
+                for (Map.Entry<String, Integer> reference : references(gone).entrySet()) {
+                    unref.setInt(1, reference.getValue());
+                    unref.setString(2, reference.getKey());
+                    unref.executeUpdate();
+                }
+                con.commit();
+                return removed;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Drops the copies of the rows that changed on the old shard while they were copied.
+    private static void undo(MailShard to, List<Row> rows) throws SQLException {
+        List<Row> kept = new ArrayList<>();
+        for (Row row : rows) {
+            if (!row.removed) {
+                kept.add(row);
+            }
+        }
+        try (Connection con = to.getCommitConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement("DELETE FROM emails WHERE id = ?");
+                 PreparedStatement unref = con.prepareStatement("UPDATE email_bodies SET refs = refs - ? WHERE hash = ?")) {
+                for (Row row : kept) {
+                    delete.setLong(1, row.copyId);
+                    delete.executeUpdate();
+                }
+                for (Map.Entry<String, Integer> reference : references(kept).entrySet()) {
+                    unref.setInt(1, reference.getValue());
+                    unref.setString(2, reference.getKey());
+                    unref.executeUpdate();
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Rows per body hash, in hash order so that transactions lock bodies in the same order.
+    private static Map<String, Integer> references(List<Row> rows) {
+        Map<String, Integer> references = new TreeMap<>();
+        for (Row row : rows) {
+            if (row.hash != null) {
+                references.merge(row.hash, 1, Integer::sum);
+            }
+        }
+        return references;
+    }
+}
@@ -0,0 +1,241 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link MailStore} that spreads mailboxes over the {@link MailShards}, a {@link JdbcMailStore}
+ * per shard. Callers see one store: ids carry the index of the shard that handed them out in
+ * the bits above {@link #SHIFT}, so id lookups go straight to it, ids stay unique across
+ * shards, and shard 0 ids are the plain row ids of the unsharded store. Ids stay below 2^32,
+ * as IMAP uses them as UIDs: there can be up to {@link #MAX_SHARDS} shards, and a shard
+ * refuses deliveries once its row ids pass 2^28.
+ *
+ * A delivery to several recipients is one batched append per shard. The shards commit on
+ * their own: if one fails after another succeeded the client is told the delivery failed,
+ * and a retry stores the copies of the first shard again.
+ *
+ * While mail.shards.previous is set, a mailbox whose owner changed is read from its old shard
+ * and its new one; new mail goes to the new owner. The ids of the higher shard are the
+ * higher ones, so a listing takes the messages of the lower shard first.
+ */
+public class ShardedMailStore implements MailStore {
+
+    // Bits of an id below the shard index; the index takes the rest of 32 bits.
+    static final int SHIFT = 28;
+    static final int MAX_SHARDS = 1 << (32 - SHIFT);
+    private static final long LOCAL = (1L << SHIFT) - 1;
+
+    private final List<JdbcMailStore> stores = new ArrayList<>();
+    private final int shards;
+    private final int previous;
+
+    public ShardedMailStore() {
+        this(MailShards.count(), MailShards.previous());
+    }
+
+    // Over the first shards; previous is the shard count mailboxes are being moved from, or 0.
+    public ShardedMailStore(int shards, int previous) {
+        if (shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("At most " + MAX_SHARDS + " mail shards are supported, not " + shards);
+        }
+        for (int i = 0; i < shards; i++) {
+            stores.add(new JdbcMailStore(MailShards.get(i)));
+        }
+        this.shards = shards;
+        this.previous = previous;
+    }
+
+    public static long id(int shard, long local) {
+        return (long) shard << SHIFT | local;
+    }
+
+    public static int shardOf(long id) {
+        return (int) (id >>> SHIFT);
+    }
+
+    @Override
+    public List<Long> append(String sender, List<String> recipients, String subject, String body) throws MailStoreException {
+        // Recipient positions by owner, so that the ids come back in recipient order.
+        Map<Integer, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < recipients.size(); i++) {
+            byShard.computeIfAbsent(MailShards.owner(recipients.get(i), shards), k -> new ArrayList<>()).add(i);
+        }
+        Long[] ids = new Long[recipients.size()];
+        for (Map.Entry<Integer, List<Integer>> group : byShard.entrySet()) {
+            int shard = group.getKey();
+            List<String> shardRecipients = new ArrayList<>(group.getValue().size());
+            for (int i : group.getValue()) {
+                shardRecipients.add(recipients.get(i));
+            }
+            List<Long> shardIds = stores.get(shard).append(sender, shardRecipients, subject, body);
+            if (shardIds.stream().anyMatch(local -> local > LOCAL)) {
+                // Their ids would be those of the next shard: hide the rows again and refuse the mail.
+                for (int i = 0; i < shardIds.size(); i++) {
+                    stores.get(shard).markDeleted(shardRecipients.get(i), List.of(shardIds.get(i)), true);
+                }
+                throw new MailStoreException("Shard " + shard + " has run out of message ids", null);
+            }
+            for (int i = 0; i < shardIds.size(); i++) {
+                ids[group.getValue().get(i)] = id(shard, shardIds.get(i));
+            }
+        }
+        return List.of(ids);
+    }
+
+    @Override
+    public List<StoredMail> page(String mailbox, long afterId, int limit, boolean withBody) throws MailStoreException {
+        List<StoredMail> messages = new ArrayList<>();
+        for (int shard : shardsOf(mailbox)) {
+            int afterShard = shardOf(afterId);
+            if (afterShard > shard || messages.size() >= limit) {
+                continue;
+            }
+            long after = afterShard == shard ? afterId & LOCAL : 0;
+            for (StoredMail mail : stores.get(shard).page(mailbox, after, limit - messages.size(), withBody)) {
+                messages.add(global(shard, mail));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<Long, StoredMail> fetch(String mailbox, Collection<Long> ids, boolean withBody) throws MailStoreException {
+        Map<Long, StoredMail> messages = new HashMap<>();
+        for (Map.Entry<Integer, List<Long>> group : byShard(ids).entrySet()) {
+            int shard = group.getKey();
+            for (StoredMail mail : stores.get(shard).fetch(mailbox, group.getValue(), withBody).values()) {
+                StoredMail found = global(shard, mail);
+                messages.put(found.id, found);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean writeBody(String mailbox, long id, Writer out) throws MailStoreException, IOException {
+        int shard = shardOf(id);
+        return shard < shards && stores.get(shard).writeBody(mailbox, id & LOCAL, out);
+    }
+
+    @Override
+    public String mailboxOf(long id) throws MailStoreException {
+        int shard = shardOf(id);
+        return shard < shards ? stores.get(shard).mailboxOf(id & LOCAL) : null;
+    }
+
+    @Override
+    public long highestId(String mailbox) throws MailStoreException {
+        long highest = 0;
+        for (int shard : shardsOf(mailbox)) {
+            long local = stores.get(shard).highestId(mailbox);
+            if (local > 0) {
+                highest = Math.max(highest, id(shard, local));
+            }
+        }
+        return highest;
+    }
+
+    @Override
+    public Set<Long> retained(String mailbox, Collection<Long> ids) throws MailStoreException {
+        Set<Long> retained = new HashSet<>();
+        for (Map.Entry<Integer, List<Long>> group : byShard(ids).entrySet()) {
+            for (long local : stores.get(group.getKey()).retained(mailbox, group.getValue())) {
+                retained.add(id(group.getKey(), local));
+            }
+        }
+        return retained;
+    }
+
+    @Override
+    public void setFlags(String mailbox, Map<Long, Integer> flags) throws MailStoreException {
+        Map<Integer, Map<Long, Integer>> byShard = new HashMap<>();
+        for (Map.Entry<Long, Integer> entry : flags.entrySet()) {
+            int shard = shardOf(entry.getKey());
+            if (shard < shards) {
+                byShard.computeIfAbsent(shard, k -> new HashMap<>()).put(entry.getKey() & LOCAL, entry.getValue());
+            }
+        }
+        for (Map.Entry<Integer, Map<Long, Integer>> group : byShard.entrySet()) {
+            stores.get(group.getKey()).setFlags(mailbox, group.getValue());
+        }
+    }
+
+    @Override
+    public int markDeleted(String mailbox, Collection<Long> ids, boolean commit) throws MailStoreException {
+        int marked = 0;
+        for (Map.Entry<Integer, List<Long>> group : byShard(ids).entrySet()) {
+            marked += stores.get(group.getKey()).markDeleted(mailbox, group.getValue(), commit);
+        }
+        return marked;
+    }
+
+    @Override
+    public int unmarkDeleted(String mailbox) throws MailStoreException {
+        int unmarked = 0;
+        for (int shard : shardsOf(mailbox)) {
+            unmarked += stores.get(shard).unmarkDeleted(mailbox);
+        }
+        return unmarked;
+    }
+
+    @Override
+    public int commitDeleted(String mailbox) throws MailStoreException {
+        int committed = 0;
+        for (int shard : shardsOf(mailbox)) {
+            committed += stores.get(shard).commitDeleted(mailbox);
+        }
+        return committed;
+    }
+
+    @Override
+    public long purge(Timestamp cutoff, int batchSize, long pauseMillis) throws MailStoreException, InterruptedException {
+        long purged = 0;
+        for (JdbcMailStore store : stores) {
+            purged += store.purge(cutoff, batchSize, pauseMillis);
+        }
+        return purged;
+    }
+
+    // The shards that may hold the mailbox, lowest first.
+    private int[] shardsOf(String mailbox) {
+        int owner = MailShards.owner(mailbox, shards);
+        if (previous == 0) {
+            return new int[]{owner};
+        }
+        int before = MailShards.owner(mailbox, previous);
+        if (before == owner) {
+            return new int[]{owner};
+        }
+        return before < owner ? new int[]{before, owner} : new int[]{owner, before};
+    }
+
+    // Local ids by shard; ids of no configured shard are left out.
+    private Map<Integer, List<Long>> byShard(Collection<Long> ids) {
+        Map<Integer, List<Long>> byShard = new HashMap<>();
+        for (long id : ids) {
+            int shard = shardOf(id);
+            if (shard < shards) {
+                byShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(id & LOCAL);
+            }
+        }
+        return byShard;
+    }
+
+    private static StoredMail global(int shard, StoredMail mail) {
+        if (shard == 0) {
+            return mail;
+        }
+        return new StoredMail(id(shard, mail.id), mail.mailbox, mail.sender, mail.subject, mail.date, mail.size,
+                mail.flags, mail.body);
+    }
+}
@@ -1,33 +1,73 @@
 package org.example;
+import org.example.jfr.CommandEvent;
+import org.example.jfr.JdbcEvent;
+import org.example.jfr.SessionEvent;
+import org.example.jfr.SpoolEvent;
+import org.example.jfr.UserHash;
+
 import java.sql.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.Base64;
-import java.io.UnsupportedEncodingException;
 
 public class SmtpServer {
     // Use a custom port (2525) to avoid needing privileged ports.
-    private static final int PORT = 25;
+    static final int PORT = Integer.getInteger("mail.smtp.port", 25);
+    // Implicit TLS (SMTPS), only when MailTls is configured.
+    static final int TLS_PORT = Integer.getInteger("mail.smtps.port", 465);
 
     public static void main(String[] args) {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("SMTP Server started on port " + PORT);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Connection from " + clientSocket.getInetAddress());
-                new SmtpSession(clientSocket).start();
+            MailMetrics.enableJmx();
+            ProtocolTrace.registerMBean();
+            if (MailTls.enabled()) {
+                serveTls(new ServerSocket(TLS_PORT));
+                System.out.println("SMTPS started on port " + TLS_PORT);
             }
+            serve(serverSocket);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    // Runs the implicit-TLS accept loop on its own thread.
+    private static void serveTls(ServerSocket serverSocket) {
+        new Thread(() -> {
+            try {
+                listener(serverSocket, true).serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "smtps-accept").start();
+    }
+
+    // Accept loop; one SmtpSession per connection until the socket is closed.
+    static void serve(ServerSocket serverSocket) throws IOException {
+        listener(serverSocket).serve();
+    }
+
+    static SessionListener listener(ServerSocket serverSocket) {
+        return listener(serverSocket, false);
+    }
+
+    // With implicitTls the busy reply is not sent: the client expects a TLS handshake first.
+    static SessionListener listener(ServerSocket serverSocket, boolean implicitTls) {
+        return new SessionListener("smtp", serverSocket, socket -> new SmtpSession(socket, implicitTls),
+                implicitTls ? null : "421 4.7.0 smtp.example.com Too many connections, try again later");
+    }
 }
 
 class SmtpSession extends Thread {
     private Socket socket;
+    private final String clientIp;
     private BufferedReader in;
     private PrintWriter out;
+    // The socket's (metered) streams, and the TLS layer over them once started.
+    private InputStream netIn;
+    private OutputStream netOut;
+    private final boolean implicitTls;
+    private TlsConnection tls;
 
     // SMTP session states
     private enum SmtpState {
@@ -43,27 +83,51 @@ class SmtpSession extends Thread {
     private String authUsername; // Set after successful AUTH command.
     private String sender;
     private List<String> recipients;
-    private StringBuilder dataBuffer;
+
+    // Flight recorder state: the session event and the pseudonym of the current sender.
+    private final SessionEvent sessionEvent = new SessionEvent();
+    private ProtocolTrace trace;
+    private String userHash;
+    private long lastMessageSize;
 
     public SmtpSession(Socket socket) {
+        this(socket, false);
+    }
+
+    public SmtpSession(Socket socket, boolean implicitTls) {
         this.socket = socket;
+        this.implicitTls = implicitTls;
+        this.clientIp = socket.getInetAddress().getHostAddress();
         // Start with authentication required
         this.state = SmtpState.NOT_AUTHENTICATED;
         this.recipients = new ArrayList<>();
-        this.dataBuffer = new StringBuilder();
     }
 
     @Override
     public void run() {
+        MailMetrics.sessionOpened("smtp");
+        sessionEvent.begin();
+        trace = new ProtocolTrace("smtp", socket.getInetAddress());
         try {
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            netIn = MailMetrics.meterIn("smtp", socket.getInputStream());
+            netOut = MailMetrics.meterOut("smtp", socket.getOutputStream());
+            if (implicitTls) {
+                tls = MailTls.accept("smtp", netIn, netOut);
+                in = new BufferedReader(new InputStreamReader(tls.in()));
+                out = trace.writer(tls.out());
+            } else {
+                in = new BufferedReader(new InputStreamReader(netIn));
+                out = trace.writer(netOut);
+            }
             // Initial greeting includes a note to authenticate.
             out.println("220 smtp.example.com Service Ready");
 
             String line;
             while ((line = in.readLine()) != null) {
-                System.out.println("Received: " + line);
+                trace.received(line);
+                long started = System.nanoTime();
+                CommandEvent event = new CommandEvent();
+                event.begin();
                 String command = extractToken(line).toUpperCase();
                 String argument = extractArgument(line);
 
@@ -71,50 +135,99 @@ class SmtpSession extends Thread {
 
                 switch (command) {
                     case "HELO":
-                    case "EHLO":
                         handleHelo(argument);
                         break;
+                    case "EHLO":
+                        handleEhlo(argument);
+                        break;
+                    case "STARTTLS":
+                        handleStartTls();
+                        break;
                     case "MAIL":
-                        handleMailFrom(argument);
+                        if (admitted()) {
+                            handleMailFrom(argument);
+                        }
                         break;
                     case "RCPT":
-                        handleRcptTo(argument);
+                        if (admitted()) {
+                            handleRcptTo(argument);
+                        }
                         break;
                     case "DATA":
                         handleData();
                         break;
                     case "QUIT":
                         handleQuit();
+                        commandDone(command, started, event);
                         return; // Terminate session after QUIT.
                     default:
                         out.println("500 Command unrecognized");
                         break;
                 }
-
-                // If we're in DATA receiving state, accumulate message lines.
-                if (state == SmtpState.DATA_RECEIVING) {
-                    if (line.equals(".")) {
-                        storeEmail(dataBuffer.toString());
-                        dataBuffer.setLength(0);
-                        state = SmtpState.HELO_RECEIVED;
-                        out.println("250 OK: Message accepted for delivery");
-                    } else {
-                        dataBuffer.append(line).append("\r\n");
-                    }
-                }
+                commandDone(command, started, event);
             }
             if (state == SmtpState.DATA_RECEIVING) {
                 System.err.println("Connection interrupted during DATA phase. Email incomplete, not stored.");
             }
         } catch (IOException e) {
+            trace.error(e);
             e.printStackTrace();
+        } catch (RuntimeException e) {
+            // A bug must not leave the client waiting for an answer.
+            trace.error(e);
+            e.printStackTrace();
+            if (out != null) {
+                out.println("421 4.3.0 smtp.example.com Internal error, closing transmission channel");
+            }
         } finally {
+            MailMetrics.sessionClosed("smtp");
+            trace.close();
+            sessionEvent.protocol = "smtp";
+            sessionEvent.user = userHash;
+            sessionEvent.commit();
+            try {
+                if (tls != null) {
+                    tls.close();
+                }
+            } catch (IOException e) {
+                // the client is gone already
+            }
             try { socket.close(); } catch (IOException e) { }
         }
     }
 
+    // Records the latency metric and the flight recorder event of one command.
+    private void commandDone(String command, long started, CommandEvent event) {
+        MailMetrics.command("smtp", command, started);
+        trace.commandDone(command, started);
+        sessionEvent.commands++;
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = "smtp";
+            event.command = command.length() > 16 ? command.substring(0, 16) : command;
+            event.user = userHash;
+            event.messageSize = "DATA".equals(command) ? lastMessageSize : 0;
+            event.commit();
+        }
+    }
+
 
 
+    // MAIL and RCPT each cost a user lookup, so they are rate limited per client address
+    // and shed while the database is at its concurrency limit.
+    private boolean admitted() {
+        if (Overload.DB.saturated()) {
+            MailMetrics.rejected("smtp", "overload");
+            out.println("451 4.3.2 Server busy, try again later");
+            return false;
+        }
+        if (Admission.allowCommand("smtp", clientIp)) {
+            return true;
+        }
+        out.println("450 4.7.1 Too many commands, slow down");
+        return false;
+    }
+
     private void handleHelo(String arg) {
         state = SmtpState.HELO_RECEIVED;
         sender = "";
@@ -122,6 +235,39 @@ class SmtpSession extends Thread {
         out.println("250 Hello " + arg);
     }
 
+    // Lists STARTTLS while the connection is still plaintext and a certificate is configured.
+    private void handleEhlo(String arg) {
+        if (tls == null && MailTls.enabled()) {
+            state = SmtpState.HELO_RECEIVED;
+            sender = "";
+            recipients.clear();
+            out.println("250-Hello " + arg);
+            out.println("250 STARTTLS");
+        } else {
+            handleHelo(arg);
+        }
+    }
+
+    // RFC 3207: plaintext the client pipelined after STARTTLS is dropped with the old reader,
+    // and everything learned before the handshake is forgotten.
+    private void handleStartTls() throws IOException {
+        if (tls != null) {
+            out.println("503 5.5.1 TLS already active");
+            return;
+        }
+        if (!MailTls.enabled()) {
+            out.println("502 5.5.1 STARTTLS not available");
+            return;
+        }
+        out.println("220 2.0.0 Ready to start TLS");
+        tls = MailTls.accept("smtp", netIn, netOut);
+        in = new BufferedReader(new InputStreamReader(tls.in()));
+        out = trace.writer(tls.out());
+        state = SmtpState.NOT_AUTHENTICATED;
+        sender = null;
+        recipients.clear();
+    }
+
     private void handleMailFrom(String arg) {
         if (!arg.toUpperCase().matches("^FROM:\\s*<[^>]+>$")) {
             out.println("501 Syntax error in parameters or arguments");
@@ -141,12 +287,19 @@ class SmtpSession extends Thread {
         String localPart = email.split("@")[0];
 
         // Check if user with this username exists in DB
-        if (!userExistsInDatabase(localPart)) {
-            out.println("550 Sender not recognized");
+        try {
+            if (!userExistsInDatabase(localPart)) {
+                out.println("550 Sender not recognized");
+                return;
+            }
+        } catch (SQLException e) {
+            lookupFailed(e);
             return;
         }
 
         sender = email;
+        userHash = UserHash.of(localPart);
+        trace.user(localPart);
         state = SmtpState.MAIL_FROM_SET;
         out.println("250 OK");
     }
@@ -175,8 +328,13 @@ class SmtpSession extends Thread {
         String localPart = email.split("@")[0];
 
         // Check if the recipient exists in the database by matching the recipient_email
-        if (!userExistsInDatabase(localPart)) {
-            out.println("550 Recipient address not found");
+        try {
+            if (!userExistsInDatabase(localPart)) {
+                out.println("550 Recipient address not found");
+                return;
+            }
+        } catch (SQLException e) {
+            lookupFailed(e);
             return;
         }
 
@@ -196,7 +354,8 @@ class SmtpSession extends Thread {
         state = SmtpState.DATA_RECEIVING;
         out.println("354 Start mail input; end with <CRLF>.<CRLF>");
 
-        StringBuilder messageContent = new StringBuilder();
+        // Parsed as it arrives: attachments are decoded on the way, the raw message is not kept.
+        MimeParser message = new MimeParser();
         boolean endOfMessage = false;
 
         // Reading the email content from the client
@@ -206,26 +365,37 @@ class SmtpSession extends Thread {
                 if (line.equals(".")) {
                     endOfMessage = true; // End the message when a single dot is entered
                 } else {
-                    messageContent.append(line).append("\r\n"); // Add the line to the message content
+                    message.line(line);
                 }
             }
 
+            trace.received(ProtocolTrace.MESSAGE_DATA);
             // After the message body is received, we process and store it
-            storeEmail(messageContent.toString());  // Store the email
+            storeEmail(message);  // Store the email
         } catch (IOException e) {
             out.println("550 Failed to store email");
             e.printStackTrace();
+            return;
+        } catch (RuntimeException e) {
+            // The message was read to its end, so the session can go on.
+            e.printStackTrace();
+            out.println("554 5.6.0 Message could not be processed, not stored");
+        } finally {
+            message.close();
+        }
+        if (state == SmtpState.DATA_RECEIVING) {
+            // Not stored: the envelope stays for another DATA, or a new MAIL FROM.
+            state = SmtpState.RCPT_TO_SET;
         }
     }
 
     private String readLine() throws IOException {
-        // Use the InputStream of your socket to read data from the client
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        // Read one line from the input stream
-        String line = reader.readLine();
-
-        // Return the read line
+        // Read through the session's reader: a fresh BufferedReader per line would swallow
+        // whatever the client had already pipelined behind this line.
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("Connection closed during DATA");
+        }
         return line;
     }
 
@@ -236,94 +406,52 @@ class SmtpSession extends Thread {
     }
 
     // Helper to extract the first token (command) from the input line.
-    private String extractToken(String line) {
+    static String extractToken(String line) {
         String[] parts = line.split(" ");
         return parts.length > 0 ? parts[0] : "";
     }
 
     // Helper to extract the argument portion (everything after the command).
-    private String extractArgument(String line) {
+    static String extractArgument(String line) {
         int index = line.indexOf(' ');
         return index > 0 ? line.substring(index).trim() : "";
     }
 
     // Basic email extraction that removes angle brackets and validates the format.
-    private String extractEmail(String input) {
+    static String extractEmail(String input) {
         input = input.replaceAll("[<>]", "");
         if (input.contains("@") && input.indexOf("@") > 0 && input.indexOf("@") < input.length() - 1) {
             return input;
         }
         return null;
     }
-    private String extractSubject(String data) {
-        // Find the headers part (before the empty line)
-        int headerEndIndex = data.indexOf("\r\n\r\n");  // Locate the blank line separating headers and body
-        if (headerEndIndex == -1) {
-            return null;  // No body found, could be invalid data
-        }
-
-        String headers = data.substring(0, headerEndIndex);  // Extract headers part
-        String[] lines = headers.split("\r\n");  // Split headers into lines
-
-        // Look for the Subject header
-        for (String line : lines) {
-            if (line.toLowerCase().startsWith("subject:")) {
-                // Extract the subject and check if it needs decoding
-                String subject = line.substring(8).trim();  // Remove "Subject:" and any extra spaces
-
-                // Check if the subject is base64 encoded (common for non-ASCII subjects)
-                if (subject.contains("=?UTF-8?B?")) {
-                    // Remove the encoding part (e.g., =?UTF-8?B?...)
-                    String base64EncodedSubject = subject.split("\\?B\\?")[1].split("\\?=")[0];
-                    return decodeBase64Subject(base64EncodedSubject);
-                }
-                return subject;  // If no encoding, return as is
-            }
-        }
-
-        return null;  // No subject found
-    }
-    // Base64 decoding method
-    private String decodeBase64Subject(String encodedSubject) {
-        try {
-            // Decode the base64 string and return the result as UTF-8
-            return new String(Base64.getDecoder().decode(encodedSubject), "UTF-8");
-        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
-            e.printStackTrace();
-            return encodedSubject;  // If decoding fails, return the raw subject
-        }
-    }
     // Store the email in the authenticated user's directory.
 // Store the email after DATA command
-    private void storeEmail(String data) {
-        long startTime = System.currentTimeMillis();
-        String body = extractEmailBody(data);
-        String subject = extractSubject(data); // fixed typo from extracttSubject
+    private void storeEmail(MimeParser message) {
+        String body = message.body();
+        String subject = message.subject();
 
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = "";
-        String sql = "INSERT INTO emails (sender, content, date_sent, recipient_email, subject) VALUES (?, ?, ?, ?, ?)";
-
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
-             PreparedStatement pst = con.prepareStatement(sql)) {
+        if (sender == null || recipients.isEmpty()) {
+            out.println("550 Missing sender or recipient");
+            return;
+        }
 
-            if (sender == null || recipients.isEmpty()) {
-                out.println("550 Missing sender or recipient");
-                return;
-            }
+        SpoolEvent spool = new SpoolEvent();
+        spool.begin();
+        spool.sender = userHash;
+        spool.recipients = recipients.size();
+        spool.messageSize = message.length();
+        lastMessageSize = message.length();
+        List<Long> ids = null;
+        try {
+            ids = MailStores.get().append(sender, recipients, subject, body);
+            MailAttachments.store(ids, recipients, message.attachments());
+            spool.stored = true;
 
             for (String recipientEmail : recipients) {
-                pst.setString(1, sender); // FROM MAIL FROM
-                pst.setString(2, body);   // email body from DATA
-                pst.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
-                pst.setString(4, recipientEmail); // FROM RCPT TO
-                pst.setString(5, subject);        // From DATA
-
-                pst.executeUpdate();
+                MailboxVersions.bump(recipientEmail);
             }
 
-            System.out.println("Email stored in database successfully.");
             out.println("250 OK: Message accepted for delivery");
 
             // ✅ Reset state for next email
@@ -331,16 +459,35 @@ class SmtpSession extends Thread {
             recipients.clear();
             state = SmtpState.WAITING_MAIL_FROM;
 
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            out.println("550 Failed to store email: " + ex.getMessage());
+        } catch (MailStoreException ex) {
+            if (ids != null) {
+                // Stored without its attachments: take it back, the client sends it again.
+                unstore(ids);
+            }
+            if (ex.isTemporary()) {
+                // Overloaded or timed out: the client keeps the message and retries later.
+                System.err.println("Email not stored, store busy: " + ex.getMessage());
+                out.println("451 4.3.0 Server busy, message not stored, try again later");
+            } else {
+                ex.printStackTrace();
+                out.println("550 Failed to store email: " + ex.getMessage());
+            }
+        } finally {
+            spool.commit();
         }
-        long endTime = System.currentTimeMillis();
-        System.out.println("[SMTP] Temps de réponse pour storeEmail : " + (endTime - startTime) + " ms");
-
     }
 
 
+    private void unstore(List<Long> ids) {
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                MailStores.get().markDeleted(recipients.get(i), List.of(ids.get(i)), true);
+            } catch (MailStoreException e) {
+                System.err.println("Could not take back message " + ids.get(i) + ": " + e.getMessage());
+            }
+        }
+    }
+
     // Helper function to extract the subject from the email data
     private String extracttSubject(String data) {
         String[] lines = data.split("\r\n");
@@ -353,25 +500,6 @@ class SmtpSession extends Thread {
     }
 
 
-    // Helper function to extract the email body (ignores headers like Subject, From, To, etc.)
-    private String extractEmailBody(String data) {
-        String[] lines = data.split("\r\n");
-        StringBuilder body = new StringBuilder();
-
-        boolean isBody = false;
-        for (String line : lines) {
-            if (line.isEmpty()) {  // Empty line indicates the start of the body
-                isBody = true;
-                continue;
-            }
-            if (isBody) {
-                body.append(line).append("\r\n");
-            }
-        }
-
-        return body.toString().trim();  // Remove the last \r\n (if any)
-    }
-
     // Helper function to extract the sender from the email data
     private String extractSender(String data) {
         String[] lines = data.split("\r\n");
@@ -411,22 +539,36 @@ class SmtpSession extends Thread {
 
 
 
-    private boolean userExistsInDatabase(String username) {
-        String jdbcUrl = "jdbc:mysql://localhost:3306/maildb?serverTimezone=UTC";
-        String dbUser = "root";
-        String dbPassword = "";
+    // A lookup that could not run must not turn into a permanent 550.
+    private void lookupFailed(SQLException e) {
+        System.err.println("Database error during user existence check: " + e.getMessage());
+        out.println("451 4.3.0 Temporary lookup failure, try again later");
+    }
+
+    // On a read replica when one is within the lag bound; a user it does not know, perhaps
+    // one added since, is looked up again on the primary.
+    private boolean userExistsInDatabase(String username) throws SQLException {
+        MailReplica replica = MailShards.get(0).replica(null);
+        return userExistsInDatabase(username, replica) || replica != null && userExistsInDatabase(username, null);
+    }
+
+    private boolean userExistsInDatabase(String username, MailReplica replica) throws SQLException {
+        long started = System.nanoTime();
+        JdbcEvent jdbc = JdbcEvent.start("user_exists");
         String sql = "SELECT * FROM users WHERE username = ?";
 
-        try (Connection con = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);
+        try (Connection con = replica != null ? replica.getConnection() : MailDb.getConnection();
              PreparedStatement stmt = con.prepareStatement(sql)) {
 
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
-            return rs.next(); // true if user exists
+            boolean exists = rs.next(); // true if user exists
+            jdbc.rows = exists ? 1 : 0;
+            return exists;
 
-        } catch (SQLException e) {
-            System.err.println("Database error during user existence check: " + e.getMessage());
-            return false;
+        } finally {
+            MailMetrics.db("user_exists", started);
+            jdbc.commit();
         }
     }
 
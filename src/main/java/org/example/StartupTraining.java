@@ -0,0 +1,209 @@
+package org.example;
+
+import org.example.api.Application;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.List;
+
+/**
+ * Training run for the AppCDS archives built by the appcds Maven profile. Starts one entry
+ * point (smtp, pop3, auth, rest, or all for MailLauncher) on an in-memory H2 database and
+ * ephemeral ports, drives a client conversation through it so that the classes of real
+ * requests get loaded too, then exits:
+ *
+ *   java -XX:ArchiveClassesAtExit=target/cds/smtp.jsa -cp target/Messagerie-1.0-SNAPSHOT.jar
+ *        org.example.StartupTraining smtp
+ *
+ * The archive is then used with -XX:SharedArchiveFile and the same class path.
+ */
+public class StartupTraining {
+
+    private static final String USER = "training";
+    private static final String PASSWORD = "secret";
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "all";
+        EmbeddedMailDb.start("training");
+        EmbeddedMailDb.addUser(USER, PASSWORD);
+        MailStores.get().append(USER + "@example.com", List.of(USER + "@example.com"), "Training", "Training message");
+
+        // The separate servers reach AuthService over RMI, so train that path when the port is free.
+        AuthServiceImpl auth = new AuthServiceImpl();
+        try {
+            LocateRegistry.createRegistry(1099).rebind("AuthService", auth);
+        } catch (RemoteException e) {
+            AuthServices.useLocal(auth);
+        }
+
+        switch (mode) {
+            case "smtp":
+                smtp();
+                break;
+            case "pop3":
+                pop3();
+                break;
+            case "auth":
+                AuthService client = AuthServices.get();
+                client.createUser("training2", PASSWORD);
+                client.authenticate(USER, PASSWORD);
+                client.updateUser("training2", "changed");
+                client.deleteUser("training2");
+                break;
+            case "rest":
+                rest();
+                break;
+            case "all":
+                AuthServices.useLocal(auth);
+                smtp();
+                pop3();
+                rest();
+                break;
+            default:
+                System.err.println("Unknown entry point: " + mode + " (smtp, pop3, auth, rest, all)");
+                System.exit(2);
+        }
+        System.out.println("Training run for " + mode + " done");
+        System.exit(0);
+    }
+
+    private static void smtp() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        startDaemon(() -> SmtpServer.serve(serverSocket));
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            Client c = new Client(socket);
+            c.expect("220");
+            c.send("EHLO training", "250");
+            c.send("MAIL FROM:<" + USER + "@example.com>", "250");
+            c.send("RCPT TO:<" + USER + "@example.com>", "250");
+            c.send("DATA", "354");
+            c.out.println("Subject: training");
+            c.out.println();
+            c.out.println("Hello");
+            c.send(".", "250");
+            c.send("QUIT", "221");
+        }
+        serverSocket.close();
+    }
+
+    private static void pop3() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        startDaemon(() -> Pop3Server.serve(serverSocket));
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            Client c = new Client(socket);
+            c.expect("+OK");
+            c.send("USER " + USER, "+OK");
+            c.send("PASS " + PASSWORD, "+OK");
+            c.send("STAT", "+OK");
+            c.send("LIST", "+OK");
+            c.drain();
+            c.send("RETR 1", "+OK");
+            c.drain();
+            c.send("DELE 1", "+OK");
+            c.send("RSET", "+OK");
+            c.send("QUIT", "+OK");
+        }
+        serverSocket.close();
+    }
+
+    private static void rest() throws IOException {
+        // A devtools restart would rerun main() in another class loader.
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        // Arguments, so they win over application.properties.
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .run("--server.port=0",
+                        "--spring.datasource.url=" + MailDb.url(),
+                        "--spring.datasource.username=" + MailDb.user(),
+                        "--spring.datasource.password=" + MailDb.password(),
+                        "--mail.search.dir=" + Files.createTempDirectory("training-index"));
+        try {
+            String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            http("POST", base + "/auth/login", "{\"username\":\"" + USER + "\",\"password\":\"" + PASSWORD + "\"}");
+            http("GET", base + "/emails/inbox/" + USER + "/1", null);
+            http("GET", base + "/emails/search?user=" + USER + "&q=training", null);
+        } finally {
+            context.close();
+        }
+    }
+
+    private static void http(String method, String url, String json) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setRequestMethod(method);
+        if (json != null) {
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream body = con.getOutputStream()) {
+                body.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = con.getResponseCode();
+        try (InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream()) {
+            if (in != null) {
+                in.readAllBytes();
+            }
+        }
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private static void startDaemon(Server server) {
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                // the training run closed the socket
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static final class Client {
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client(Socket socket) throws IOException {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        void expect(String prefix) throws IOException {
+            String reply = in.readLine();
+            while (reply != null && reply.length() > 3 && reply.charAt(3) == '-') {
+                reply = in.readLine(); // multi-line SMTP reply
+            }
+            if (reply == null || !reply.startsWith(prefix)) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+        }
+
+        void send(String line, String prefix) throws IOException {
+            out.println(line);
+            expect(prefix);
+        }
+
+        // Skips the rest of a multi-line reply.
+        void drain() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+                // listing / message body
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import java.sql.Timestamp;
+
+/**
+ * One stored copy of a message, as a {@link MailStore} returns it. body is null when only
+ * the metadata was asked for; size is the body length in UTF-8 octets either way.
+ */
+public final class StoredMail {
+
+    public final long id;
+    public final String mailbox;
+    public final String sender;
+    public final String subject;
+    public final Timestamp date;
+    public final long size;
+    // IMAP flag bits, see ImapMessage.
+    public final int flags;
+    public final String body;
+
+    public StoredMail(long id, String mailbox, String sender, String subject, Timestamp date, long size, int flags,
+                      String body) {
+        this.id = id;
+        this.mailbox = mailbox;
+        this.sender = sender;
+        this.subject = subject;
+        this.date = date;
+        this.size = size;
+        this.flags = flags;
+        this.body = body;
+    }
+}
@@ -0,0 +1,267 @@
+package org.example;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A TLS connection driven through an {@link SSLEngine} over a socket's plain streams.
+ *
+ * The sessions keep reading and writing streams, so STARTTLS/STLS only swap {@link #in()}
+ * and {@link #out()} in for the socket's own, and the bytes the mail.bytes.* meters see are
+ * the encrypted ones when metered streams are passed in. Since the engine does not own the
+ * socket, the same code can later be fed from a selector loop instead of blocking reads.
+ *
+ * One thread may read while another writes (IMAP IDLE pushes updates while the session
+ * thread waits for DONE), but neither side is for concurrent use. Application data is sent on
+ * {@code out().flush()}, which the sessions' autoflush writers do after every reply line.
+ */
+public final class TlsConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final InputStream netIn;
+    private final OutputStream netOut;
+    // All three are kept in write mode: data is between 0 and position.
+    private ByteBuffer inbound;
+    private ByteBuffer plain;
+    private ByteBuffer outbound;
+    private boolean closed;
+    // Held while records are produced: by writes, and by reads that must answer the peer.
+    private final Object writeLock = new Object();
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (plain.position() == 0) {
+                if (unwrap() < 0) {
+                    return -1;
+                }
+                synchronized (writeLock) {
+                    handshake(); // post-handshake messages: TLS 1.3 key updates, renegotiation
+                }
+            }
+            plain.flip();
+            int n = Math.min(len, plain.remaining());
+            plain.get(buf, off, n);
+            plain.compact();
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return plain.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            synchronized (writeLock) {
+                wrap(ByteBuffer.wrap(buf, off, len));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (writeLock) {
+                netOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    };
+
+    // netIn must not have read ahead of the TLS records: pass the socket's own stream, not a
+    // reader that buffered plaintext sent before the handshake.
+    public TlsConnection(SSLEngine engine, InputStream netIn, OutputStream netOut) {
+        this.engine = engine;
+        int packet = engine.getSession().getPacketBufferSize();
+        this.netIn = netIn;
+        // Records are sent a flight at a time: separate small writes would each wait for the
+        // peer's delayed ACK under Nagle's algorithm.
+        this.netOut = new BufferedOutputStream(netOut, packet);
+        this.inbound = ByteBuffer.allocate(packet);
+        this.outbound = ByteBuffer.allocate(packet);
+        this.plain = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    // Runs the full or abbreviated handshake; returns once application data can flow.
+    public TlsConnection start() throws IOException {
+        engine.beginHandshake();
+        handshake();
+        return this;
+    }
+
+    public SSLEngine engine() {
+        return engine;
+    }
+
+    public InputStream in() {
+        return in;
+    }
+
+    public OutputStream out() {
+        return out;
+    }
+
+    // Sends close_notify; the caller closes the socket.
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            engine.closeOutbound();
+            while (!engine.isOutboundDone()) {
+                wrap(EMPTY);
+            }
+            netOut.flush();
+        }
+    }
+
+    private void handshake() throws IOException {
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netOut.flush();
+                    if (unwrap() < 0) {
+                        throw new EOFException("Connection closed during TLS handshake");
+                    }
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default:
+                    netOut.flush();
+                    return;
+            }
+        }
+    }
+
+    // Decrypts one record into plain; returns the plaintext bytes it added, -1 at end of stream.
+    private int unwrap() throws IOException {
+        while (true) {
+            inbound.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(inbound, plain);
+            } finally {
+                inbound.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+                    return result.bytesProduced();
+                case BUFFER_UNDERFLOW:
+                    if (!inbound.hasRemaining()) {
+                        inbound = grow(inbound, engine.getSession().getPacketBufferSize());
+                    }
+                    int n = netIn.read(inbound.array(), inbound.arrayOffset() + inbound.position(), inbound.remaining());
+                    if (n < 0) {
+                        closeInbound();
+                        return -1;
+                    }
+                    inbound.position(inbound.position() + n);
+                    break;
+                case BUFFER_OVERFLOW:
+                    plain = grow(plain, engine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    if (!engine.isOutboundDone()) {
+                        close(); // answer the peer's close_notify
+                    }
+                    return -1;
+                default:
+                    throw new SSLException("Unexpected TLS state " + result.getStatus());
+            }
+        }
+    }
+
+    private void closeInbound() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // the peer closed the socket without close_notify; nothing left to read either way
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            outbound.clear();
+            SSLEngineResult result = engine.wrap(src, outbound);
+            switch (result.getStatus()) {
+                case OK:
+                case CLOSED:
+                    netOut.write(outbound.array(), outbound.arrayOffset(), outbound.position());
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+                        throw new SSLException("TLS connection closed");
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    outbound = ByteBuffer.allocate(Math.max(outbound.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                    continue;
+                default:
+                    throw new SSLException("Unexpected TLS state " + result.getStatus());
+            }
+            if (!src.hasRemaining() || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return;
+            }
+        }
+    }
+
+    // Certificate and key exchange work; run inline since the session thread would only wait.
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, atLeast));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,22 @@
+package org.example.api.config;
+
+import org.example.MailDb;
+import org.example.MailStore;
+import org.example.MailStores;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+// The REST API reads and writes mail through the same MailStore as the socket servers. The
+// JDBC engine and the mailbox versions reach the database through MailDb, which is pointed
+// at Spring's pool here instead of opening a connection per call.
+@Configuration
+public class MailStoreConfig {
+
+    @Bean
+    public MailStore mailStore(DataSource dataSource) {
+        MailDb.useDataSource(dataSource);
+        return MailStores.get();
+    }
+}
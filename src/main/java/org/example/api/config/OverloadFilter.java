@@ -0,0 +1,45 @@
+package org.example.api.config;
+
+import org.example.MailMetrics;
+import org.example.Overload;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// Answers 503 right away while the REST or database concurrency limit is reached, instead of
+// letting requests queue for a connection. Actuator endpoints are never shed.
+@Component
+public class OverloadFilter extends OncePerRequestFilter {
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return request.getRequestURI().startsWith("/actuator");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (Overload.DB.saturated() || !Overload.REST.tryAcquire()) {
+            MailMetrics.rejected("rest", "overload");
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Server busy, try again later");
+            return;
+        }
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            // Streaming responses finish asynchronously; only the time up to that hand-off counts.
+            Overload.REST.release(System.nanoTime() - started, failed);
+        }
+    }
+}
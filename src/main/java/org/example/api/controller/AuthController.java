@@ -1,11 +1,19 @@
 package org.example.api.controller;
 
+import org.example.Admission;
 import org.example.api.dto.LoginRequest;
 import org.example.api.dto.RegisterRequest;
 import org.example.api.service.AuthApiService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 @RestController
 @RequestMapping("/auth")
 public class AuthController {
@@ -13,16 +21,33 @@ public class AuthController {
     @Autowired
     private AuthApiService authService;
 
+    // Failed logins are tarpitted and, once too frequent for the address or user, refused with 429.
+    // The tarpit delays the answer without holding the request thread.
     @PostMapping("/login")
-    public String login(@RequestBody LoginRequest request) {
+    public CompletableFuture<ResponseEntity<String>> login(@RequestBody LoginRequest request, HttpServletRequest http) {
+        String ip = http.getRemoteAddr();
+        if (Admission.authBlocked("rest", ip, request.username)) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Admission.authRetryAfterSeconds(ip, request.username)))
+                    .body("Too many failed logins, try again later"));
+        }
         boolean success = authService.login(request.username, request.password);
-        return success ? "Login successful" : "Login failed";
+        if (success) {
+            Admission.authSucceeded(request.username);
+            return CompletableFuture.completedFuture(ResponseEntity.ok("Login successful"));
+        }
+        long delay = Admission.authFailed(ip, request.username);
+        return CompletableFuture.supplyAsync(() -> ResponseEntity.ok("Login failed"),
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
     }
 
     @PostMapping("/register")
-    public String register(@RequestBody RegisterRequest request) {
+    public ResponseEntity<String> register(@RequestBody RegisterRequest request, HttpServletRequest http) {
+        if (!Admission.allowCommand("rest", http.getRemoteAddr())) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body("Too many requests, slow down");
+        }
         boolean created = authService.register(request.username, request.password);
-        return created ? "User created" : "Error creating user";
+        return ResponseEntity.ok(created ? "User created" : "Error creating user");
     }
 
     @DeleteMapping("/delete/{username}")
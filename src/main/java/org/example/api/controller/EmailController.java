@@ -1,14 +1,27 @@
 package org.example.api.controller;
 
+import org.example.MailAttachment;
+import org.example.MailboxVersions;
 import org.example.api.dto.EmailRequest;
 import org.example.api.entity.Email;
+import org.example.api.search.SearchQuery;
 import org.example.api.service.EmailApiService;
 import org.example.api.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.List;
 
 @RestController
@@ -40,9 +53,118 @@ public class EmailController {
         return sent ? ResponseEntity.ok("Email sent") : ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to send email");
     }
 
+    // Clients that send back the ETag in If-None-Match get a 304 without touching the emails table.
+    // The listing is written a page of the MailStore at a time, so large mailboxes are never held in memory.
     @GetMapping("/inbox/{username}")
-    public List<Email> inbox(@PathVariable String username) {
-        return mailService.inbox(username);
+    public ResponseEntity<StreamingResponseBody> inbox(@PathVariable String username,
+                                                       @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String etag = mailService.inboxTag(username);
+        if (MailboxVersions.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (etag != null) {
+            ok.eTag(etag);
+        }
+        return ok.body(out -> mailService.writeInbox(username, out));
+    }
+
+    @GetMapping("/export/{username}")
+    public ResponseEntity<StreamingResponseBody> export(@PathVariable String username) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + username + "-mailbox.json\"")
+                .body(out -> mailService.writeInbox(username, out));
+    }
+
+    @GetMapping("/inbox/{username}/{id}")
+    public ResponseEntity<Email> message(@PathVariable String username, @PathVariable Long id,
+                                         @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String etag = mailService.messageTag(username, id);
+        if (MailboxVersions.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        return mailService.message(username, id)
+                .map(mail -> {
+                    ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+                    if (etag != null) {
+                        ok.eTag(etag);
+                    }
+                    return ok.body(mail);
+                })
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/inbox/{username}/{id}/attachments")
+    public ResponseEntity<List<MailAttachment>> attachments(@PathVariable String username, @PathVariable Long id) {
+        return mailService.attachments(username, id)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    // Supports a single byte range (Range: bytes=start-end) for resumed and partial downloads;
+    // only the octets asked for are read from the database.
+    @GetMapping("/inbox/{username}/{id}/attachments/{part}")
+    public ResponseEntity<StreamingResponseBody> attachment(@PathVariable String username, @PathVariable Long id, @PathVariable int part,
+                                                            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+        MailAttachment attachment = mailService.attachment(username, id, part).orElse(null);
+        if (attachment == null) {
+            return ResponseEntity.notFound().build();
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = range == null ? List.of() : HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            ranges = List.of(); // unreadable: the whole attachment
+        }
+        long start = 0;
+        long end = attachment.size - 1;
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (ranges.size() == 1) {
+            try {
+                start = ranges.get(0).getRangeStart(attachment.size);
+                end = ranges.get(0).getRangeEnd(attachment.size);
+            } catch (IllegalArgumentException e) {
+                start = attachment.size;
+            }
+            if (start >= attachment.size || start > end) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + attachment.size).build();
+            }
+            ok = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + attachment.size);
+        }
+        MediaType type;
+        try {
+            type = attachment.contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(attachment.contentType);
+        } catch (InvalidMediaTypeException e) {
+            type = MediaType.APPLICATION_OCTET_STREAM;
+        }
+        long offset = start;
+        long length = end - start + 1;
+        return ok.contentType(type)
+                .contentLength(length)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(attachment.name, StandardCharsets.UTF_8).build().toString())
+                .body(out -> mailService.writeAttachment(attachment, offset, length, out));
+    }
+
+    // Full-text search: words and "quoted phrases" in subject/body, sender substring, date range.
+    @GetMapping("/search")
+    public ResponseEntity<List<Email>> search(@RequestParam String user,
+                                              @RequestParam(required = false) String q,
+                                              @RequestParam(required = false) String sender,
+                                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate after,
+                                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate before,
+                                              @RequestParam(defaultValue = "50") int limit) {
+        if (limit < 1 || limit > 500) {
+            return ResponseEntity.badRequest().build();
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        Long from = after == null ? null : after.atStartOfDay(zone).toInstant().toEpochMilli();
+        Long to = before == null ? null : before.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+        return ResponseEntity.ok(mailService.search(user, new SearchQuery(q, sender, from, to, limit)));
     }
 
     @DeleteMapping("/{id}")
@@ -6,8 +6,11 @@ import javax.persistence.Table;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Column;
+import javax.persistence.Transient;
+import org.example.MailAttachment;
 
 import java.sql.Timestamp;
+import java.util.List;
 
 @Entity
 @Table(name = "emails")
@@ -22,6 +25,9 @@ public class Email {
     private String subject;
     private Timestamp dateSent;
     private boolean isDeleted;
+    private Timestamp deletedAt; // set when the deletion is committed; MailPurger removes the row later
+    @Transient
+    private List<MailAttachment> attachments; // listed only, fetched through /emails/inbox/{user}/{id}/attachments/{part}
 
     public Long getId() {
         return id;
@@ -79,5 +85,21 @@ public class Email {
         isDeleted = deleted;
     }
 
+    public Timestamp getDeletedAt() {
+        return deletedAt;
+    }
+
+    public void setDeletedAt(Timestamp deletedAt) {
+        this.deletedAt = deletedAt;
+    }
+
+    public List<MailAttachment> getAttachments() {
+        return attachments;
+    }
+
+    public void setAttachments(List<MailAttachment> attachments) {
+        this.attachments = attachments;
+    }
+
 // getters/setters...
 }
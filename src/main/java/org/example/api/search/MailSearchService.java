@@ -0,0 +1,218 @@
+package org.example.api.search;
+
+import org.example.MailStore;
+import org.example.MailStoreException;
+import org.example.MailboxVersions;
+import org.example.StoredMail;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded full-text search over mailboxes, one {@link MailboxIndex} shard per recipient.
+ *
+ * Shards are loaded from their segment files on first use and then caught up from the
+ * {@link MailStore} whenever the mailbox version changes, which is how mail delivered by the
+ * SMTP server or deleted over POP3 reaches the index. Writes made through the REST API
+ * update the shard directly. A background thread flushes new documents to segment files
+ * and merges shards once they have accumulated too many segments.
+ */
+@Service
+public class MailSearchService {
+
+    private static final int CATCH_UP_BATCH = 1000;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MAX_OPEN_SHARDS = 256;
+
+    @Autowired
+    private MailStore store;
+
+    @Value("${mail.search.dir:index}")
+    private String indexDir;
+
+    @Value("${mail.search.flush-interval-seconds:5}")
+    private long flushIntervalSeconds;
+
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mail-search-merge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Access-ordered so the least recently searched shard is closed first.
+    private final Map<String, MailboxIndex> shards = new LinkedHashMap<>(16, 0.75f, true);
+
+    @PostConstruct
+    void start() {
+        background.scheduleWithFixedDelay(this::flushAndMerge, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (MailboxIndex shard : snapshot()) {
+            try {
+                shard.flush();
+            } catch (IOException e) {
+                System.err.println("Could not flush search index: " + e.getMessage());
+            }
+        }
+    }
+
+    public List<StoredMail> search(String recipientEmail, SearchQuery query) throws MailStoreException {
+        MailboxIndex shard = shard(recipientEmail);
+        catchUp(recipientEmail, shard);
+
+        List<Long> ids = shard.search(query);
+        Map<Long, StoredMail> byId = store.fetch(recipientEmail, ids, true);
+        List<StoredMail> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            StoredMail mail = byId.get(id);
+            if (mail != null) {
+                result.add(mail);
+            }
+        }
+        return result;
+    }
+
+    // Called after a message has been saved through the REST API.
+    public void onStored(StoredMail mail) {
+        MailboxIndex shard = loadedShard(mail.mailbox);
+        if (shard != null) {
+            shard.add(toDoc(mail));
+        }
+    }
+
+    // Called after a message has been deleted through the REST API.
+    public void onDeleted(String recipientEmail, long id) {
+        MailboxIndex shard = loadedShard(recipientEmail);
+        if (shard != null) {
+            shard.delete(id);
+        }
+    }
+
+    private void catchUp(String recipientEmail, MailboxIndex shard) throws MailStoreException {
+        long version = MailboxVersions.current(recipientEmail);
+        if (version >= 0 && version == shard.version()) {
+            return;
+        }
+        synchronized (shard) {
+            if (version >= 0 && version == shard.version()) {
+                return;
+            }
+            long previousMax = shard.maxIndexedId();
+
+            // New mail since the last catch-up, in id order.
+            long lastId = previousMax;
+            List<StoredMail> batch;
+            do {
+                batch = store.page(recipientEmail, lastId, CATCH_UP_BATCH, true);
+                for (StoredMail mail : batch) {
+                    shard.add(toDoc(mail));
+                    lastId = mail.id;
+                }
+            } while (batch.size() == CATCH_UP_BATCH);
+
+            // Mail deleted elsewhere (POP3 DELE, IMAP EXPUNGE) since the last catch-up.
+            if (previousMax > 0) {
+                Set<Long> live = new HashSet<>();
+                for (StoredMail mail : store.list(recipientEmail)) {
+                    if (mail.id <= previousMax) {
+                        live.add(mail.id);
+                    }
+                }
+                shard.retainOnly(live, previousMax);
+            }
+            shard.setVersion(version);
+        }
+    }
+
+    private MailboxIndex shard(String recipientEmail) {
+        synchronized (shards) {
+            MailboxIndex shard = shards.get(recipientEmail);
+            if (shard != null) {
+                return shard;
+            }
+            shard = new MailboxIndex(shardDir(recipientEmail));
+            try {
+                shard.load();
+            } catch (IOException e) {
+                // A damaged shard is rebuilt from the database by the next catch-up.
+                System.err.println("Could not load search index for " + recipientEmail + ": " + e.getMessage());
+                shard = new MailboxIndex(shardDir(recipientEmail));
+            }
+            shards.put(recipientEmail, shard);
+            evictIfNeeded();
+            return shard;
+        }
+    }
+
+    private MailboxIndex loadedShard(String recipientEmail) {
+        synchronized (shards) {
+            return shards.get(recipientEmail);
+        }
+    }
+
+    private void evictIfNeeded() {
+        while (shards.size() > MAX_OPEN_SHARDS) {
+            Map.Entry<String, MailboxIndex> eldest = shards.entrySet().iterator().next();
+            shards.remove(eldest.getKey());
+            MailboxIndex evicted = eldest.getValue();
+            background.execute(() -> {
+                try {
+                    evicted.flush();
+                } catch (IOException e) {
+                    System.err.println("Could not flush evicted search index: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void flushAndMerge() {
+        for (MailboxIndex shard : snapshot()) {
+            try {
+                shard.flush();
+                if (shard.segmentCount() > MAX_SEGMENTS) {
+                    shard.merge();
+                }
+            } catch (IOException e) {
+                System.err.println("Search index flush/merge failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private List<MailboxIndex> snapshot() {
+        synchronized (shards) {
+            return new ArrayList<>(shards.values());
+        }
+    }
+
+    private Path shardDir(String recipientEmail) {
+        return Paths.get(indexDir).resolve(recipientEmail.replaceAll("[^A-Za-z0-9@._-]", "_"));
+    }
+
+    private static MailboxIndex.IndexedDoc toDoc(StoredMail mail) {
+        long date = mail.date == null ? 0L : mail.date.getTime();
+        return MailboxIndex.IndexedDoc.of(mail.id, date, mail.sender, mail.subject, mail.body);
+    }
+}
@@ -0,0 +1,501 @@
+package org.example.api.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of one mailbox (one shard).
+ *
+ * Documents get dense ordinals in insertion order, so every posting list is sorted and
+ * positions inside a document are increasing. On disk the shard is a directory of
+ * immutable segment files (one per flush) plus an append-only log of deleted ids;
+ * {@link #merge()} rewrites all live documents into a single segment.
+ */
+final class MailboxIndex {
+
+    private static final int SEGMENT_MAGIC = 0x4d494458; // "MIDX"
+    // Positions of body terms start after this offset so phrases never span subject and body.
+    private static final int BODY_POSITION_OFFSET = 1 << 16;
+
+    private final Path dir;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] ids = new long[64];
+    private long[] dates = new long[64];
+    private String[] senders = new String[64];
+    private int docCount;
+    private final BitSet deleted = new BitSet();
+    private final Map<Long, Integer> ordinalById = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    // Documents and deletions not yet written to disk.
+    private final List<IndexedDoc> pendingDocs = new ArrayList<>();
+    private final List<Long> pendingDeletes = new ArrayList<>();
+    private int segmentCount;
+    private int nextSegment;
+
+    // Highest message id indexed, and the mailbox version this shard was last caught up to.
+    private long maxIndexedId;
+    private volatile long version = -1;
+
+    MailboxIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /** A document as it is written to a segment: metadata plus the term streams of each field. */
+    static final class IndexedDoc {
+        final long id;
+        final long date;
+        final String sender;
+        final List<String> subjectTerms;
+        final List<String> bodyTerms;
+
+        IndexedDoc(long id, long date, String sender, List<String> subjectTerms, List<String> bodyTerms) {
+            this.id = id;
+            this.date = date;
+            this.sender = sender == null ? "" : sender.toLowerCase(Locale.ROOT);
+            this.subjectTerms = subjectTerms;
+            this.bodyTerms = bodyTerms;
+        }
+
+        static IndexedDoc of(long id, long date, String sender, String subject, String body) {
+            return new IndexedDoc(id, date, sender, Tokenizer.tokenize(subject), Tokenizer.tokenize(body));
+        }
+    }
+
+    /** Sorted doc ordinals for one term, each with its sorted positions. */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] posStart = new int[4];
+        int[] positions = new int[8];
+        int size;
+        int posCount;
+
+        void add(int doc, int position) {
+            if (size == 0 || docs[size - 1] != doc) {
+                if (size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                    posStart = Arrays.copyOf(posStart, size * 2);
+                }
+                docs[size] = doc;
+                posStart[size] = posCount;
+                size++;
+            }
+            if (posCount == positions.length) {
+                positions = Arrays.copyOf(positions, posCount * 2);
+            }
+            positions[posCount++] = position;
+        }
+
+        int find(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc);
+        }
+
+        boolean hasPosition(int slot, int position) {
+            int end = slot + 1 < size ? posStart[slot + 1] : posCount;
+            return Arrays.binarySearch(positions, posStart[slot], end, position) >= 0;
+        }
+    }
+
+    long version() {
+        return version;
+    }
+
+    long maxIndexedId() {
+        lock.readLock().lock();
+        try {
+            return maxIndexedId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- updates ---------------------------------------------------------------------
+
+    void add(IndexedDoc doc) {
+        lock.writeLock().lock();
+        try {
+            if (ordinalById.containsKey(doc.id)) {
+                return;
+            }
+            addInMemory(doc);
+            pendingDocs.add(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void delete(long id) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalById.get(id);
+            if (ordinal != null && !deleted.get(ordinal)) {
+                deleted.set(ordinal);
+                pendingDeletes.add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Marks every indexed message up to maxId whose id is not in the live set as deleted.
+    void retainOnly(Set<Long> liveIds, long maxId) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < docCount; i++) {
+                if (!deleted.get(i) && ids[i] <= maxId && !liveIds.contains(ids[i])) {
+                    deleted.set(i);
+                    pendingDeletes.add(ids[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    private void addInMemory(IndexedDoc doc) {
+        if (docCount == ids.length) {
+            ids = Arrays.copyOf(ids, docCount * 2);
+            dates = Arrays.copyOf(dates, docCount * 2);
+            senders = Arrays.copyOf(senders, docCount * 2);
+        }
+        int ordinal = docCount++;
+        ids[ordinal] = doc.id;
+        dates[ordinal] = doc.date;
+        senders[ordinal] = doc.sender;
+        ordinalById.put(doc.id, ordinal);
+        maxIndexedId = Math.max(maxIndexedId, doc.id);
+
+        int position = 0;
+        for (String term : doc.subjectTerms) {
+            postings.computeIfAbsent(term, t -> new Postings()).add(ordinal, position++);
+        }
+        position = BODY_POSITION_OFFSET;
+        for (String term : doc.bodyTerms) {
+            postings.computeIfAbsent(term, t -> new Postings()).add(ordinal, position++);
+        }
+    }
+
+    // ---- search ----------------------------------------------------------------------
+
+    // Ids of matching messages, newest first.
+    List<Long> search(SearchQuery query) {
+        lock.readLock().lock();
+        try {
+            int[] candidates = query.hasTerms() ? intersect(query.terms) : allDocs();
+            List<Integer> hits = new ArrayList<>();
+            for (int ordinal : candidates) {
+                if (deleted.get(ordinal)
+                        || dates[ordinal] < query.fromMillis || dates[ordinal] > query.toMillis
+                        || (query.sender != null && !senders[ordinal].contains(query.sender))
+                        || !matchesPhrases(ordinal, query.phrases)) {
+                    continue;
+                }
+                hits.add(ordinal);
+            }
+            hits.sort((a, b) -> Long.compare(dates[b], dates[a]));
+
+            List<Long> result = new ArrayList<>(Math.min(hits.size(), query.limit));
+            for (int i = 0; i < hits.size() && i < query.limit; i++) {
+                result.add(ids[hits.get(i)]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] allDocs() {
+        int[] all = new int[docCount];
+        for (int i = 0; i < docCount; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    // Doc ordinals containing every term, walking the shortest posting list first.
+    private int[] intersect(List<String> terms) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : terms) {
+            Postings p = postings.get(term);
+            if (p == null) {
+                return new int[0];
+            }
+            lists.add(p);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+        Postings shortest = lists.get(0);
+        int[] result = new int[shortest.size];
+        int count = 0;
+        int[] cursors = new int[lists.size()];
+        outer:
+        for (int i = 0; i < shortest.size; i++) {
+            int doc = shortest.docs[i];
+            for (int l = 1; l < lists.size(); l++) {
+                Postings other = lists.get(l);
+                int slot = Arrays.binarySearch(other.docs, cursors[l], other.size, doc);
+                if (slot < 0) {
+                    cursors[l] = -slot - 1;
+                    if (cursors[l] >= other.size) {
+                        break outer;
+                    }
+                    continue outer;
+                }
+                cursors[l] = slot;
+            }
+            result[count++] = doc;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private boolean matchesPhrases(int ordinal, List<List<String>> phrases) {
+        for (List<String> phrase : phrases) {
+            if (!matchesPhrase(ordinal, phrase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesPhrase(int ordinal, List<String> phrase) {
+        Postings first = postings.get(phrase.get(0));
+        int firstSlot = first.find(ordinal);
+        int end = firstSlot + 1 < first.size ? first.posStart[firstSlot + 1] : first.posCount;
+        for (int p = first.posStart[firstSlot]; p < end; p++) {
+            int start = first.positions[p];
+            boolean all = true;
+            for (int k = 1; k < phrase.size() && all; k++) {
+                Postings next = postings.get(phrase.get(k));
+                int slot = next.find(ordinal);
+                all = slot >= 0 && next.hasPosition(slot, start + k);
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---- persistence -----------------------------------------------------------------
+
+    void load() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments();
+        lock.writeLock().lock();
+        try {
+            for (Path segment : segments) {
+                for (IndexedDoc doc : readSegment(segment)) {
+                    if (!ordinalById.containsKey(doc.id)) {
+                        addInMemory(doc);
+                    }
+                }
+                nextSegment = Math.max(nextSegment, segmentNumber(segment) + 1);
+            }
+            segmentCount = segments.size();
+
+            Path deletes = dir.resolve("deletes.log");
+            if (Files.exists(deletes)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(deletes)))) {
+                    while (true) {
+                        Integer ordinal = ordinalById.get(in.readLong());
+                        if (ordinal != null) {
+                            deleted.set(ordinal);
+                        }
+                    }
+                } catch (EOFException endOfLog) {
+                    // fully read
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Writes pending documents as a new segment and appends pending deletions.
+    void flush() throws IOException {
+        List<IndexedDoc> docs;
+        List<Long> deletes;
+        int segment;
+        lock.writeLock().lock();
+        try {
+            if (pendingDocs.isEmpty() && pendingDeletes.isEmpty()) {
+                return;
+            }
+            docs = new ArrayList<>(pendingDocs);
+            deletes = new ArrayList<>(pendingDeletes);
+            pendingDocs.clear();
+            pendingDeletes.clear();
+            segment = docs.isEmpty() ? -1 : nextSegment++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (segment >= 0) {
+            writeSegment(dir.resolve(segmentName(segment)), docs);
+            lock.writeLock().lock();
+            try {
+                segmentCount++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (!deletes.isEmpty()) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                    dir.resolve("deletes.log"), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for (long id : deletes) {
+                    out.writeLong(id);
+                }
+            }
+        }
+    }
+
+    int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segmentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites all live documents into one segment and drops the old segments and the
+     * delete log. Term streams are re-read from the old segments, so search keeps running
+     * on the in-memory index while the merge is in progress.
+     */
+    void merge() throws IOException {
+        flush();
+        List<Path> oldSegments = listSegments();
+        if (oldSegments.size() <= 1 && !Files.exists(dir.resolve("deletes.log"))) {
+            return;
+        }
+
+        List<IndexedDoc> live = new ArrayList<>();
+        int segment;
+        lock.readLock().lock();
+        try {
+            for (Path path : oldSegments) {
+                for (IndexedDoc doc : readSegment(path)) {
+                    Integer ordinal = ordinalById.get(doc.id);
+                    if (ordinal != null && !deleted.get(ordinal)) {
+                        live.add(doc);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            segment = nextSegment++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeSegment(dir.resolve(segmentName(segment)), live);
+
+        lock.writeLock().lock();
+        try {
+            for (Path path : oldSegments) {
+                Files.deleteIfExists(path);
+            }
+            // Deletions recorded after the snapshot are still pending and will be re-logged.
+            Files.deleteIfExists(dir.resolve("deletes.log"));
+            segmentCount = 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "seg-*.dat")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static String segmentName(int number) {
+        return "seg-" + number + ".dat";
+    }
+
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(4, name.length() - 4));
+    }
+
+    private static void writeSegment(Path target, List<IndexedDoc> docs) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(docs.size());
+            for (IndexedDoc doc : docs) {
+                out.writeLong(doc.id);
+                out.writeLong(doc.date);
+                out.writeUTF(doc.sender);
+                writeTerms(out, doc.subjectTerms);
+                writeTerms(out, doc.bodyTerms);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static List<IndexedDoc> readSegment(Path segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not an index segment: " + segment);
+            }
+            int count = in.readInt();
+            List<IndexedDoc> docs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long date = in.readLong();
+                String sender = in.readUTF();
+                docs.add(new IndexedDoc(id, date, sender, readTerms(in), readTerms(in)));
+            }
+            return docs;
+        }
+    }
+
+    private static void writeTerms(DataOutputStream out, List<String> terms) throws IOException {
+        out.writeInt(terms.size());
+        for (String term : terms) {
+            out.writeUTF(term);
+        }
+    }
+
+    private static List<String> readTerms(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> terms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            terms.add(in.readUTF());
+        }
+        return terms;
+    }
+}
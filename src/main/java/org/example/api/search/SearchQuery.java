@@ -0,0 +1,42 @@
+package org.example.api.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parsed search: free terms, "quoted phrases", a sender filter and a date range.
+ * Every condition must match (AND semantics).
+ */
+public class SearchQuery {
+    final List<String> terms = new ArrayList<>();
+    final List<List<String>> phrases = new ArrayList<>();
+    final String sender;
+    final long fromMillis;
+    final long toMillis;
+    final int limit;
+
+    public SearchQuery(String text, String sender, Long fromMillis, Long toMillis, int limit) {
+        this.sender = sender == null || sender.isBlank() ? null : sender.trim().toLowerCase(Locale.ROOT);
+        this.fromMillis = fromMillis == null ? Long.MIN_VALUE : fromMillis;
+        this.toMillis = toMillis == null ? Long.MAX_VALUE : toMillis;
+        this.limit = limit;
+        parse(text == null ? "" : text);
+    }
+
+    private void parse(String text) {
+        boolean inPhrase = false;
+        for (String part : text.split("\"", -1)) {
+            List<String> tokens = Tokenizer.tokenize(part);
+            if (inPhrase && tokens.size() > 1) {
+                phrases.add(tokens);
+            }
+            terms.addAll(tokens);
+            inPhrase = !inPhrase;
+        }
+    }
+
+    boolean hasTerms() {
+        return !terms.isEmpty();
+    }
+}
@@ -1,43 +1,84 @@
 package org.example.api.service;
 
 import org.example.AuthService;
+import org.example.AuthServices;
+import org.example.MailMetrics;
+import org.example.Overload;
+import org.example.jfr.AuthEvent;
+import org.example.jfr.UserHash;
 
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
 @Service
 public class AuthApiService {
     private AuthService getAuthService() throws Exception {
-        Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-        return (AuthService) registry.lookup("AuthService");
+        return AuthServices.get();
     }
 
+    // An AuthService that is overloaded or unreachable is a 503, not a failed login to tarpit.
     public boolean login(String username, String password) {
+        if (!Overload.AUTH.tryAcquire()) {
+            MailMetrics.rejected("rest", "overload");
+            throw busy();
+        }
+        long started = System.nanoTime();
+        boolean failed = true;
+        AuthEvent event = event("authenticate", username);
         try {
-            return getAuthService().authenticate(username, password);
+            event.success = getAuthService().authenticate(username, password);
+            failed = false;
+            return event.success;
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
+            throw busy();
+        } finally {
+            Overload.AUTH.release(System.nanoTime() - started, failed);
+            MailMetrics.auth("authenticate", started);
+            event.commit();
         }
     }
 
     public boolean register(String username, String password) {
+        long started = System.nanoTime();
+        AuthEvent event = event("createUser", username);
         try {
-            return getAuthService().createUser(username, password);
+            event.success = getAuthService().createUser(username, password);
+            return event.success;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
+        } finally {
+            MailMetrics.auth("createUser", started);
+            event.commit();
         }
     }
 
     public boolean delete(String username) {
+        long started = System.nanoTime();
+        AuthEvent event = event("deleteUser", username);
         try {
-            return getAuthService().deleteUser(username);
+            event.success = getAuthService().deleteUser(username);
+            return event.success;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
+        } finally {
+            MailMetrics.auth("deleteUser", started);
+            event.commit();
         }
     }
+
+    private static ResponseStatusException busy() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Server busy, try again later");
+    }
+
+    private static AuthEvent event(String operation, String username) {
+        AuthEvent event = new AuthEvent();
+        event.begin();
+        event.operation = operation;
+        event.user = UserHash.of(username);
+        return event;
+    }
 }
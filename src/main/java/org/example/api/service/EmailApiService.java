@@ -1,43 +1,195 @@
 package org.example.api.service;
 
+import org.example.MailAttachment;
+import org.example.MailAttachments;
+import org.example.MailStore;
+import org.example.MailStoreException;
+import org.example.MailboxVersions;
+import org.example.StoredMail;
 import org.example.api.dto.EmailRequest;
 import org.example.api.entity.Email;
-import org.example.api.repository.EmailRepository;
+import org.example.api.search.MailSearchService;
+import org.example.api.search.SearchQuery;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @Service
 public class EmailApiService {
 
+    // Messages read from the store, and written, between flushes of the JSON generator.
+    private static final int PAGE_SIZE = 100;
+
+    @Autowired
+    private MailStore store;
+
     @Autowired
-    private EmailRepository emailRepo;
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MailSearchService searchService;
 
     public boolean sendEmail(EmailRequest req) {
-        Email mail = new Email();
-        mail.setSender(req.from);
-        mail.setRecipientEmail(req.to);
-        mail.setSubject(req.subject);
-        mail.setContent(req.content);
-        mail.setDateSent(new Timestamp(System.currentTimeMillis()));
-        mail.setDeleted(false);
+        String content = req.content == null ? "" : req.content;
+        try {
+            List<Long> ids = store.append(req.from, List.of(req.to), req.subject, content);
+            MailboxVersions.bump(req.to);
+            searchService.onStored(new StoredMail(ids.get(0), req.to, req.from, req.subject,
+                    new Timestamp(System.currentTimeMillis()), content.getBytes(StandardCharsets.UTF_8).length, 0, content));
+            return true;
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
+    }
 
-        emailRepo.save(mail);
-        return true;
+    /**
+     * Writes the user's inbox to {@code out} as a JSON array. Messages are read from the
+     * store a page at a time and written as they come, so memory use stays flat no matter
+     * how large the mailbox is.
+     */
+    public void writeInbox(String user, OutputStream out) throws IOException {
+        String mailbox = mailboxOf(user);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.writeStartArray();
+            long lastId = 0;
+            List<StoredMail> page;
+            do {
+                page = store.page(mailbox, lastId, PAGE_SIZE, true);
+                for (Email email : toEmails(mailbox, page)) {
+                    json.writeObject(email);
+                    lastId = email.getId();
+                }
+                json.flush();
+            } while (page.size() == PAGE_SIZE);
+            json.writeEndArray();
+        }
     }
 
-    public List<Email> inbox(String user) {
-        String email = user + "@example.com";
-        return emailRepo.findByRecipientEmailAndIsDeletedFalse(email);
+    public List<Email> search(String user, SearchQuery query) {
+        try {
+            String mailbox = mailboxOf(user);
+            return toEmails(mailbox, searchService.search(mailbox, query));
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
+    }
+
+    public Optional<Email> message(String user, Long id) {
+        try {
+            String mailbox = mailboxOf(user);
+            StoredMail mail = store.fetch(mailbox, List.of(id), true).get(id);
+            return mail == null ? Optional.empty() : Optional.of(toEmails(mailbox, List.of(mail)).get(0));
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
+    }
+
+    // The attachments of a message in the user's inbox; empty if there is no such message.
+    public Optional<List<MailAttachment>> attachments(String user, Long id) {
+        try {
+            String mailbox = mailboxOf(user);
+            if (store.fetch(mailbox, List.of(id), false).isEmpty()) {
+                return Optional.empty();
+            }
+            return Optional.of(MailAttachments.list(mailbox, List.of(id)).getOrDefault(id, List.of()));
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
+    }
+
+    public Optional<MailAttachment> attachment(String user, Long id, int part) {
+        return attachments(user, id).flatMap(all -> all.stream().filter(a -> a.part == part).findFirst());
+    }
+
+    // Writes length octets of the attachment from offset on to out.
+    public void writeAttachment(MailAttachment attachment, long offset, long length, OutputStream out) throws IOException {
+        MailAttachments.write(attachment, offset, length, out);
+    }
+
+    // ETag of the user's inbox listing; null if the mailbox version is unavailable.
+    public String inboxTag(String user) {
+        return MailboxVersions.etag(mailboxOf(user));
+    }
+
+    // ETag of one message in the user's inbox; null if the mailbox version is unavailable or
+    // the message is not in the inbox, so that an unknown id never gets a 304.
+    public String messageTag(String user, Long id) {
+        String mailbox = mailboxOf(user);
+        String etag = MailboxVersions.etag(mailbox, id);
+        if (etag == null) {
+            return null;
+        }
+        try {
+            return store.fetch(mailbox, List.of(id), false).isEmpty() ? null : etag;
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
     }
 
     public boolean delete(Long id) {
-        return emailRepo.findById(id).map(email -> {
-            email.setDeleted(true);
-            emailRepo.save(email);
+        try {
+            String mailbox = store.mailboxOf(id);
+            if (mailbox == null || store.markDeleted(mailbox, List.of(id), true) == 0) {
+                return false;
+            }
+            MailboxVersions.bump(mailbox);
+            searchService.onDeleted(mailbox, id);
             return true;
-        }).orElse(false);
+        } catch (MailStoreException e) {
+            throw failed(e);
+        }
+    }
+
+    private String mailboxOf(String user) {
+        return user + "@example.com";
+    }
+
+    // A shed or timed-out store call is a 503 the client can retry; anything else a 500.
+    private static ResponseStatusException failed(MailStoreException e) {
+        if (e.isTemporary()) {
+            return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Server busy, try again later");
+        }
+        e.printStackTrace();
+        return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Storage error");
+    }
+
+    // The messages as the API shows them, with their attachment lists but not the attachments.
+    private static List<Email> toEmails(String mailbox, List<StoredMail> mails) throws MailStoreException {
+        List<Long> ids = new ArrayList<>(mails.size());
+        for (StoredMail mail : mails) {
+            ids.add(mail.id);
+        }
+        Map<Long, List<MailAttachment>> attachments = MailAttachments.list(mailbox, ids);
+        List<Email> emails = new ArrayList<>(mails.size());
+        for (StoredMail mail : mails) {
+            Email email = toEmail(mail);
+            email.setAttachments(attachments.getOrDefault(mail.id, List.of()));
+            emails.add(email);
+        }
+        return emails;
+    }
+
+    private static Email toEmail(StoredMail mail) {
+        Email email = new Email();
+        email.setId(mail.id);
+        email.setSender(mail.sender);
+        email.setRecipientEmail(mail.mailbox);
+        email.setSubject(mail.subject);
+        email.setContent(mail.body);
+        email.setDateSent(mail.date);
+        email.setDeleted(false);
+        return email;
     }
 }
@@ -0,0 +1,24 @@
+package org.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.example.mail.Auth")
+@Label("AuthService Call")
+@Description("A call to AuthService, including the RMI registry lookup when it is remote")
+@Category({"Mail", "Auth"})
+@StackTrace(false)
+public class AuthEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("User Hash")
+    public String user;
+
+    @Label("Success")
+    public boolean success;
+}
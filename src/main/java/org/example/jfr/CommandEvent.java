@@ -0,0 +1,31 @@
+package org.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("org.example.mail.Command")
+@Label("Mail Command")
+@Description("One SMTP or POP3 command, from reading the line to writing the reply")
+@Category({"Mail", "Protocol"})
+@StackTrace(false)
+@Threshold("1 ms")
+public class CommandEvent extends jdk.jfr.Event {
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Command")
+    public String command;
+
+    @Label("User Hash")
+    public String user;
+
+    @Label("Message Size")
+    @DataAmount
+    public long messageSize;
+}
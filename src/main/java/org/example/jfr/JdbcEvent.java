@@ -0,0 +1,31 @@
+package org.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("org.example.mail.Jdbc")
+@Label("Mail JDBC Statement")
+@Description("A database call made by the socket servers, including connection setup")
+@Category({"Mail", "Database"})
+@StackTrace(false)
+@Threshold("1 ms")
+public class JdbcEvent extends jdk.jfr.Event {
+
+    @Label("Query")
+    public String query;
+
+    @Label("Rows")
+    public long rows;
+
+    // Creates the event and starts its clock.
+    public static JdbcEvent start(String query) {
+        JdbcEvent event = new JdbcEvent();
+        event.query = query;
+        event.begin();
+        return event;
+    }
+}
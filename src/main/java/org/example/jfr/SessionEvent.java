@@ -0,0 +1,24 @@
+package org.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.example.mail.Session")
+@Label("Mail Session")
+@Description("One SMTP or POP3 client connection, from accept to close")
+@Category({"Mail", "Protocol"})
+@StackTrace(false)
+public class SessionEvent extends jdk.jfr.Event {
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("User Hash")
+    public String user;
+
+    @Label("Commands")
+    public int commands;
+}
@@ -0,0 +1,29 @@
+package org.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.example.mail.Spool")
+@Label("Message Spooled")
+@Description("A message accepted over SMTP and stored for all of its recipients")
+@Category({"Mail", "Protocol"})
+@StackTrace(false)
+public class SpoolEvent extends jdk.jfr.Event {
+
+    @Label("Sender Hash")
+    public String sender;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Message Size")
+    @DataAmount
+    public long messageSize;
+
+    @Label("Stored")
+    public boolean stored;
+}
@@ -0,0 +1,13 @@
+/**
+ * Custom Java Flight Recorder events of the mail servers: protocol sessions and commands,
+ * JDBC statements of the socket servers, AuthService calls and spooled messages.
+ *
+ * The events are enabled by default with thresholds that keep continuous production
+ * recording well under 1% overhead, so the standard "default" settings are enough:
+ *
+ *   -XX:StartFlightRecording=settings=default,disk=true,maxage=6h,dumponexit=true,filename=mail.jfr
+ *
+ * Users are identified by {@link org.example.jfr.UserHash}, never by name. Analyze offline
+ * with JDK Mission Control or {@code jfr print --categories Mail mail.jfr}.
+ */
+package org.example.jfr;
@@ -0,0 +1,120 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MimeParserTest {
+
+    // Padding inside the data makes the JDK decoder give up on all of it; the groups that
+    // decode on their own are kept.
+    @Test
+    void malformedBase64KeepsWhatDecodes() throws Exception {
+        MimeParser parser = parse("Subject: broken",
+                "Content-Type: multipart/mixed; boundary=b",
+                "",
+                "--b",
+                "Content-Type: application/octet-stream; name=a.bin",
+                "Content-Transfer-Encoding: base64",
+                "",
+                "QQ==QQ==",
+                "QQ=A",
+                "Qg",
+                "--b--");
+
+        List<MimeParser.Attachment> attachments = parser.attachments();
+        assertEquals(1, attachments.size());
+        assertArrayEquals("AAB".getBytes(StandardCharsets.US_ASCII), attachments.get(0).content().readAllBytes());
+        assertEquals("broken", parser.subject());
+    }
+
+    @Test
+    void textAndAttachmentAreSplit() throws Exception {
+        MimeParser parser = parse("Subject: report",
+                "Content-Type: multipart/mixed; boundary=\"outer\"",
+                "",
+                "preamble",
+                "--outer",
+                "Content-Type: text/plain; charset=UTF-8",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "Caf=C3=A9 au lait, long line =",
+                "continued",
+                "--outer",
+                "Content-Type: application/pdf",
+                "Content-Disposition: attachment; filename=\"report.pdf\"",
+                "Content-Transfer-Encoding: base64",
+                "",
+                "aGVsbG8g",
+                "d29ybGQ=",
+                "--outer--");
+
+        assertEquals("Café au lait, long line continued", parser.body());
+        List<MimeParser.Attachment> attachments = parser.attachments();
+        assertEquals(1, attachments.size());
+        assertEquals("report.pdf", attachments.get(0).name);
+        assertEquals("application/pdf", attachments.get(0).contentType);
+        assertEquals(11, attachments.get(0).size());
+        assertArrayEquals("hello world".getBytes(StandardCharsets.US_ASCII), attachments.get(0).content().readAllBytes());
+    }
+
+    // Past the memory limit the decoded content goes to a file, read back whole, with the same
+    // hash; closing the parser deletes the file.
+    @Test
+    void largeAttachmentSpillsToFile() throws Exception {
+        byte[] data = new byte[10_000];
+        new Random(1).nextBytes(data);
+        MimeParser parser = new MimeParser(1024);
+        List<String> lines = new ArrayList<>(List.of("Subject: big", "Content-Type: multipart/mixed; boundary=b", "",
+                "--b", "Content-Type: text/plain", "", "Attached", "--b",
+                "Content-Type: application/octet-stream; name=big.bin", "Content-Transfer-Encoding: base64", ""));
+        lines.addAll(List.of(Base64.getMimeEncoder().encodeToString(data).split("\r\n")));
+        lines.add("--b--");
+        lines.forEach(parser::line);
+
+        MimeParser.Attachment attachment = parser.attachments().get(0);
+        assertEquals(data.length, attachment.size());
+        try (InputStream content = attachment.content()) {
+            assertArrayEquals(data, content.readAllBytes());
+        }
+        assertEquals(JdbcMailStore.sha256(data), attachment.sha256());
+        parser.close();
+        assertThrows(IOException.class, attachment::content);
+    }
+
+    // A text part that is not encoded is made of the octets the session read, taken in the
+    // charset the part declares rather than the session's.
+    @Test
+    void unencodedTextUsesDeclaredCharset() {
+        MimeParser parser = parse("Subject: charset",
+                "Content-Type: multipart/mixed; boundary=b",
+                "",
+                "--b",
+                "Content-Type: text/plain; charset=ISO-8859-1",
+                "Content-Transfer-Encoding: 8bit",
+                "",
+                "Caf\u00e9",
+                "--b--");
+
+        assertEquals(new String("Caf\u00e9".getBytes(Charset.defaultCharset()), StandardCharsets.ISO_8859_1), parser.body());
+    }
+
+    private static MimeParser parse(String... lines) {
+        MimeParser parser = new MimeParser();
+        for (String line : lines) {
+            parser.line(line);
+        }
+        return parser;
+    }
+}
@@ -0,0 +1,167 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedMailStoreTest {
+
+    private static final int SHARDS = 3;
+
+    @BeforeAll
+    static void databases() throws Exception {
+        EmbeddedMailDb.start("sharded-mail-store-test");
+        for (int shard = 1; shard < SHARDS; shard++) {
+            EmbeddedMailDb.startShard("sharded-mail-store-test", shard);
+        }
+    }
+
+    // Every copy lands on the owner of its recipient, under an id that names that shard and
+    // fits an IMAP UID.
+    @Test
+    void appendRoutesToOwnerWithUidSizedIds() throws Exception {
+        ShardedMailStore store = new ShardedMailStore(SHARDS, 0);
+        List<String> recipients = new ArrayList<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            recipients.add(mailboxOn(shard, SHARDS, "route"));
+        }
+
+        List<Long> ids = store.append("sender@example.com", recipients, "Routed", "Hello shards");
+
+        assertEquals(SHARDS, ids.size());
+        for (int i = 0; i < SHARDS; i++) {
+            long id = ids.get(i);
+            String mailbox = recipients.get(i);
+            assertTrue(id > 0 && id < 1L << 32, "id " + id + " is no 32-bit UID");
+            assertEquals(i, ShardedMailStore.shardOf(id));
+            assertEquals(mailbox, store.mailboxOf(id));
+            assertEquals(id, store.highestId(mailbox));
+            assertEquals("Routed", store.fetch(mailbox, List.of(id), false).get(id).subject);
+            StringWriter body = new StringWriter();
+            assertTrue(store.writeBody(mailbox, id, body));
+            assertEquals("Hello shards", body.toString());
+        }
+    }
+
+    // While a mailbox is on its way, a listing pages through its old shard and then its new
+    // one, each message once and in id order.
+    @Test
+    void pageSpansOldAndNewShard() throws Exception {
+        String mailbox = movingMailbox("paging");
+        ShardedMailStore before = new ShardedMailStore(SHARDS - 1, 0);
+        ShardedMailStore during = new ShardedMailStore(SHARDS, SHARDS - 1);
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            expected.addAll(before.append("sender@example.com", List.of(mailbox), "Old " + i, "old"));
+        }
+        for (int i = 0; i < 4; i++) {
+            expected.addAll(during.append("sender@example.com", List.of(mailbox), "New " + i, "new"));
+        }
+        assertNotEquals(ShardedMailStore.shardOf(expected.get(0)), ShardedMailStore.shardOf(expected.get(8)));
+
+        List<Long> paged = new ArrayList<>();
+        long after = 0;
+        List<StoredMail> page;
+        do {
+            page = during.page(mailbox, after, 2, false);
+            for (StoredMail mail : page) {
+                paged.add(mail.id);
+                after = mail.id;
+            }
+        } while (!page.isEmpty());
+
+        expected.sort(null);
+        assertEquals(expected, paged);
+    }
+
+    // The rebalancer moves every message, deleted ones and flags included, to the owner.
+    @Test
+    void rebalancerMovesMailboxToOwner() throws Exception {
+        String mailbox = movingMailbox("move");
+        int from = MailShards.owner(mailbox, SHARDS - 1);
+        int to = MailShards.owner(mailbox, SHARDS);
+        ShardedMailStore before = new ShardedMailStore(SHARDS - 1, 0);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            ids.addAll(before.append("sender@example.com", List.of(mailbox), "Message " + i, "Body " + i));
+        }
+        before.setFlags(mailbox, Map.of(ids.get(1), 1));
+        before.markDeleted(mailbox, List.of(ids.get(2)), true);
+
+        long moved = new ShardRebalancer(SHARDS, 3, 0).move(mailbox, MailShards.get(from), MailShards.get(to));
+
+        assertEquals(7, moved);
+        assertTrue(new ShardedMailStore(SHARDS - 1, 0).page(mailbox, 0, 100, false).isEmpty());
+        List<StoredMail> after = new ShardedMailStore(SHARDS, 0).page(mailbox, 0, 100, true);
+        assertEquals(6, after.size());
+        for (int i = 0; i < after.size(); i++) {
+            StoredMail mail = after.get(i);
+            int original = i < 2 ? i : i + 1;
+            assertEquals(to, ShardedMailStore.shardOf(mail.id));
+            assertEquals("Message " + original, mail.subject);
+            assertEquals("Body " + original, mail.body);
+            assertEquals(original == 1 ? 1 : 0, mail.flags);
+        }
+    }
+
+    // A moved message keeps its attachments under its new id, and the sweep leaves them alone.
+    @Test
+    void rebalancerMovesAttachments() throws Exception {
+        String mailbox = movingMailbox("attached");
+        int from = MailShards.owner(mailbox, SHARDS - 1);
+        int to = MailShards.owner(mailbox, SHARDS);
+        MimeParser message = new MimeParser();
+        for (String line : List.of("Subject: With attachment", "Content-Type: multipart/mixed; boundary=b", "",
+                "--b", "Content-Type: text/plain", "", "See attached", "--b",
+                "Content-Type: application/octet-stream; name=data.bin", "Content-Transfer-Encoding: base64", "",
+                "aGVsbG8gd29ybGQ=", "--b--")) {
+            message.line(line);
+        }
+        List<Long> ids = new ShardedMailStore(SHARDS - 1, 0).append("sender@example.com", List.of(mailbox),
+                message.subject(), message.body());
+        MailAttachments.store(ids, List.of(mailbox), message.attachments());
+
+        new ShardRebalancer(SHARDS, 10, 0).move(mailbox, MailShards.get(from), MailShards.get(to));
+        ShardedMailStore after = new ShardedMailStore(SHARDS, 0);
+        MailAttachments.sweep(after, 100, 0);
+
+        long moved = after.page(mailbox, 0, 10, false).get(0).id;
+        assertNotEquals(ids.get(0), moved);
+        assertTrue(MailAttachments.list(mailbox, ids).isEmpty());
+        MailAttachment attachment = MailAttachments.find(mailbox, moved, 1);
+        assertEquals("data.bin", attachment.name);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        MailAttachments.write(attachment, 0, attachment.size, content);
+        assertEquals("hello world", content.toString(StandardCharsets.US_ASCII));
+    }
+
+    // A mailbox that the shard count puts on the given shard.
+    private static String mailboxOn(int shard, int shards, String prefix) {
+        for (int i = 0; ; i++) {
+            String mailbox = prefix + i + "@example.com";
+            if (MailShards.owner(mailbox, shards) == shard) {
+                return mailbox;
+            }
+        }
+    }
+
+    // A mailbox that moves to another shard when the last shard is added.
+    private static String movingMailbox(String prefix) {
+        for (int i = 0; ; i++) {
+            String mailbox = prefix + i + "@example.com";
+            if (MailShards.owner(mailbox, SHARDS - 1) != MailShards.owner(mailbox, SHARDS)) {
+                return mailbox;
+            }
+        }
+    }
+}
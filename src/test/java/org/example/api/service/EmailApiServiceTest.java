@@ -0,0 +1,110 @@
+package org.example.api.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.EmbeddedMailDb;
+import org.example.JdbcMailStore;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmailApiServiceTest {
+
+    private static final int BODY_SIZE = 64 * 1024;
+
+    @BeforeAll
+    static void database() throws Exception {
+        EmbeddedMailDb.start("email-api-service-test");
+    }
+
+    // The export of a mailbox several times the size of the heap, stored in the database and
+    // read back through JdbcMailStore, must neither run out of memory nor let the heap in use
+    // (measured after a GC) grow while it is written. The bodies are the same, so the database
+    // keeps one compressed copy and only a store that materialises the mailbox runs out of heap.
+    @Test
+    void writeInboxKeepsHeapFlat() throws Exception {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        int messages = (int) (3 * maxHeap / BODY_SIZE);
+        JdbcMailStore store = new JdbcMailStore();
+        String body = "x".repeat(BODY_SIZE);
+        List<String> copies = Collections.nCopies(500, "huge@example.com");
+        for (int stored = 0; stored < messages; stored += copies.size()) {
+            store.append("sender@example.com", copies.subList(0, Math.min(copies.size(), messages - stored)), "Message", body);
+        }
+        body = null;
+        EmailApiService service = new EmailApiService();
+        ReflectionTestUtils.setField(service, "store", store);
+        ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+        CountingOutputStream out = new CountingOutputStream(memory, 32L * 1024 * 1024);
+        service.writeInbox("huge", out);
+
+        assertTrue(out.count > 3 * maxHeap, "wrote " + out.count + " bytes with a heap of " + maxHeap);
+        assertEquals(messages, out.messages());
+        long growth = out.peak() - before;
+        assertTrue(growth < 16 * 1024 * 1024, "heap grew by " + growth + " bytes while exporting");
+    }
+
+    // Counts what is written, measuring the heap in use every sampleEvery octets.
+    private static final class CountingOutputStream extends OutputStream {
+        private final MemoryMXBean memory;
+        private final long sampleEvery;
+        private final StringBuilder tail = new StringBuilder();
+        private long nextSample;
+        private long peak;
+        private int ids;
+        long count;
+
+        CountingOutputStream(MemoryMXBean memory, long sampleEvery) {
+            this.memory = memory;
+            this.sampleEvery = sampleEvery;
+            this.nextSample = sampleEvery;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            // Counts the messages by their "id" fields, which may be split between writes.
+            tail.append(new String(b, off, len, StandardCharsets.ISO_8859_1));
+            for (int at = tail.indexOf("\"id\":"); at >= 0; at = tail.indexOf("\"id\":", at + 1)) {
+                ids++;
+            }
+            tail.delete(0, Math.max(0, tail.length() - 4));
+            if (count >= nextSample) {
+                nextSample += sampleEvery;
+                sample();
+            }
+        }
+
+        int messages() {
+            return ids;
+        }
+
+        long peak() {
+            sample();
+            return peak;
+        }
+
+        private void sample() {
+            memory.gc();
+            peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+}